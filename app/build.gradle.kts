@@ -42,6 +42,10 @@ android {
     composeOptions {
         kotlinCompilerExtensionVersion = "1.4.7" // 使用最新穩定版本
     }
+    testOptions {
+        // 讓 JVM 單元測試中的 android.util.Log 呼叫回傳預設值而不是拋例外
+        unitTests.isReturnDefaultValues = true
+    }
     packaging {
         resources {
             excludes += "/META-INF/{AL2.0,LGPL2.1}"
@@ -0,0 +1,158 @@
+package com.example.myapplication;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+// 附件的描述，即 FILE_META 的內容：檔名、MIME 類型、大小與 SHA-256
+// FILE_META 與 FILE_START 使用同一個 transferId，排在 FILE_START 之前送出；沒有 FILE_META 的檔案視為錄音訊息
+// payload：大小 (8 bytes) + SHA-256 (32 bytes) + MIME 長度 (1 byte) + MIME + 檔名長度 (2 bytes) + 檔名，字串為 UTF-8
+public final class Attachment {
+
+    static final int DIGEST_SIZE = 32;
+    private static final int MAX_MIME_BYTES = 255;
+    private static final int MAX_NAME_BYTES = 255;
+    private static final String DEFAULT_EXTENSION = "bin";
+    static final String DEFAULT_MIME = "application/octet-stream";
+
+    // 收到時檢查過、可以直接用在檔名與畫面上
+    public final String name;
+    // 空字串代表沒有 FILE_META (錄音訊息或舊版送出端)
+    public final String mimeType;
+    public final long size;
+    // 舊版送出端沒有摘要時為 null
+    public final byte[] digest;
+
+    public Attachment(String name, String mimeType, long size, byte[] digest) {
+        this.name = sanitizeName(name);
+        this.mimeType = sanitizeMime(mimeType);
+        this.size = size;
+        this.digest = digest;
+    }
+
+    // 送出前只知道檔名與類型，大小與摘要在讀過內容後補上；類型不明時一律當成一般檔案
+    public static Attachment describe(String name, String mimeType) {
+        String mime = sanitizeMime(mimeType);
+        return new Attachment(name, mime.isEmpty() ? DEFAULT_MIME : mime, -1, null);
+    }
+
+    public Attachment withContent(long size, byte[] digest) {
+        return new Attachment(name, mimeType, size, digest);
+    }
+
+    public boolean hasMetadata() {
+        return !mimeType.isEmpty();
+    }
+
+    public Frame toFrame(int transferId) {
+        return new Frame(Frame.TYPE_FILE_META, (byte) 0, transferId, 0, encode());
+    }
+
+    ByteBuffer encode() {
+        byte[] mime = truncate(mimeType.getBytes(StandardCharsets.UTF_8), MAX_MIME_BYTES);
+        byte[] nameBytes = truncate(name.getBytes(StandardCharsets.UTF_8), MAX_NAME_BYTES);
+        ByteBuffer payload = ByteBuffer.allocate(8 + DIGEST_SIZE + 1 + mime.length + 2 + nameBytes.length);
+        payload.putLong(size).put(digest != null ? digest : new byte[DIGEST_SIZE]);
+        payload.put((byte) mime.length).put(mime);
+        payload.putShort((short) nameBytes.length).put(nameBytes);
+        payload.flip();
+        return payload;
+    }
+
+    static Attachment decode(ByteBuffer payload) throws ProtocolException {
+        try {
+            long size = payload.getLong();
+            byte[] digest = new byte[DIGEST_SIZE];
+            payload.get(digest);
+            byte[] mime = new byte[payload.get() & 0xff];
+            payload.get(mime);
+            byte[] name = new byte[payload.getShort() & 0xffff];
+            payload.get(name);
+            if (size < 0) {
+                throw new ProtocolException("Bad FILE_META size: " + size);
+            }
+            return new Attachment(new String(name, StandardCharsets.UTF_8), new String(mime, StandardCharsets.UTF_8),
+                    size, digest);
+        } catch (BufferUnderflowException e) {
+            throw new ProtocolException("Short FILE_META payload");
+        }
+    }
+
+    // 存檔用的副檔名：優先用檔名的副檔名，沒有時依 MIME 類型
+    public String extension() {
+        int dot = name.lastIndexOf('.');
+        if (dot > 0 && dot < name.length() - 1) {
+            String extension = name.substring(dot + 1).toLowerCase(Locale.US);
+            if (extension.length() <= 10 && extension.matches("[a-z0-9]+")) {
+                return extension;
+            }
+        }
+        switch (mimeType) {
+            case "image/jpeg":
+                return "jpg";
+            case "image/png":
+                return "png";
+            case "image/gif":
+                return "gif";
+            case "image/webp":
+                return "webp";
+            case "application/pdf":
+                return "pdf";
+            case "text/plain":
+                return "txt";
+            case "audio/mpeg":
+                return "mp3";
+            case "audio/wav":
+            case "audio/x-wav":
+                return "wav";
+            case "video/mp4":
+                return "mp4";
+            default:
+                return DEFAULT_EXTENSION;
+        }
+    }
+
+    // 對方送來的檔名只取最後一段，去掉控制字元，避免寫到存放區以外或破壞畫面
+    static String sanitizeName(String name) {
+        if (name == null) {
+            return "";
+        }
+        int slash = Math.max(name.lastIndexOf('/'), name.lastIndexOf('\\'));
+        StringBuilder builder = new StringBuilder();
+        for (int i = slash + 1; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c >= 0x20 && c != 0x7f) {
+                builder.append(c);
+            }
+        }
+        String clean = builder.toString().trim();
+        return clean.equals(".") || clean.equals("..") ? "" : clean;
+    }
+
+    private static String sanitizeMime(String mimeType) {
+        if (mimeType == null) {
+            return "";
+        }
+        String clean = mimeType.trim().toLowerCase(Locale.US);
+        return clean.matches("[a-z0-9.+-]+/[a-z0-9.+*-]+") ? clean : "";
+    }
+
+    // 依 UTF-8 截斷，不切斷多位元組字元
+    private static byte[] truncate(byte[] bytes, int max) {
+        if (bytes.length <= max) {
+            return bytes;
+        }
+        int end = max;
+        while (end > 0 && (bytes[end] & 0xc0) == 0x80) {
+            end--;
+        }
+        return Arrays.copyOf(bytes, end);
+    }
+
+    @Override
+    public String toString() {
+        return "Attachment{" + name + ", " + mimeType + ", " + size + " bytes}";
+    }
+}
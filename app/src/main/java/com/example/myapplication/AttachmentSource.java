@@ -0,0 +1,91 @@
+package com.example.myapplication;
+
+import android.content.ContentResolver;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.provider.OpenableColumns;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// 以 ContentResolver 開啟要送出的附件 (例如系統檔案選擇器回傳的 URI)
+// 可以 seek 的內容 (一般檔案) 直接用 file descriptor 的 FileChannel 算摘要與 transferTo，不複製；
+// 只能循序讀取的內容 (例如其他 app 以 pipe 提供) 無法先算摘要再送，只好先寫進 cacheDir 的暫存檔
+public final class AttachmentSource implements FileTransfer.Content {
+
+    private static final int SPOOL_BUFFER_SIZE = 64 * 1024;
+
+    private final ContentResolver resolver;
+    private final Uri uri;
+    private final File spoolDir;
+    // 需要暫存時只寫一次，之後的續傳直接讀暫存檔
+    private File spooled;
+
+    public AttachmentSource(ContentResolver resolver, Uri uri, File spoolDir) {
+        this.resolver = resolver;
+        this.uri = uri;
+        this.spoolDir = spoolDir;
+    }
+
+    // 檔名查 OpenableColumns，類型由提供者決定，查不到時當成一般檔案
+    public Attachment describe() {
+        String name = null;
+        try (Cursor cursor = resolver.query(uri, new String[] {OpenableColumns.DISPLAY_NAME}, null, null, null)) {
+            if (cursor != null && cursor.moveToFirst()) {
+                name = cursor.getString(0);
+            }
+        } catch (RuntimeException e) {
+            // 部分提供者不支援查詢，改用 URI 的最後一段
+        }
+        if (name == null) {
+            name = uri.getLastPathSegment();
+        }
+        return Attachment.describe(name, resolver.getType(uri));
+    }
+
+    @Override
+    public synchronized SharedFileChannel open() throws IOException {
+        if (spooled != null) {
+            return SharedFileChannel.open(spooled);
+        }
+        ParcelFileDescriptor descriptor = resolver.openFileDescriptor(uri, "r");
+        if (descriptor == null) {
+            throw new FileNotFoundException(uri.toString());
+        }
+        if (descriptor.getStatSize() >= 0) {
+            // 關閉 channel 時一併關閉 file descriptor
+            return SharedFileChannel.of(new ParcelFileDescriptor.AutoCloseInputStream(descriptor).getChannel());
+        }
+        descriptor.close();
+        spooled = spool();
+        return SharedFileChannel.open(spooled);
+    }
+
+    private File spool() throws IOException {
+        File file = File.createTempFile("attachment_", ".spool", spoolDir);
+        try (InputStream in = resolver.openInputStream(uri); OutputStream out = new FileOutputStream(file)) {
+            if (in == null) {
+                throw new FileNotFoundException(uri.toString());
+            }
+            byte[] buffer = new byte[SPOOL_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            file.delete();
+            throw e;
+        }
+        return file;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
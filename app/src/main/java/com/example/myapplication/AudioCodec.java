@@ -0,0 +1,45 @@
+package com.example.myapplication;
+
+// 即時對講的語音編解碼器：一次處理一個 20 ms 的 PCM 封包 (8 kHz、16-bit 單聲道)
+// 編碼器與解碼器可以有狀態，每段對講各自建立；編解碼器本身只描述格式
+public interface AudioCodec {
+
+    // 即時對講的 PCM 格式：8 kHz、16-bit 單聲道，每個 20 ms 封包 160 個取樣 = 320 bytes
+    int SAMPLE_RATE = 8000;
+    int FRAME_MS = 20;
+    int FRAME_SAMPLES = SAMPLE_RATE * FRAME_MS / 1000;
+    int FRAME_BYTES = FRAME_SAMPLES * 2;
+
+    // 放在 VOICE 封包 flags 欄位的代號；0 為未壓縮 PCM，與舊版相容
+    byte id();
+
+    String name();
+
+    // 大約的位元率 (bps)，協商時以此排列品質與頻寬的高低
+    int bitrate();
+
+    Encoder newEncoder();
+
+    Decoder newDecoder();
+
+    interface Encoder {
+        // 回傳要放進 VOICE 封包的資料，送出端會在另一個執行緒使用，不可重複使用回傳的陣列
+        // 有延遲的編碼器可能回傳空陣列，該封包仍然要送出以維持 sequence 連續
+        byte[] encode(byte[] pcm);
+
+        // 解碼端開始解碼前需要的設定；連線改用這個編碼後，送出端把它放在第一個有資料的封包前面
+        // 不需要設定的編碼回傳空陣列，需要設定但還沒產生時也回傳空陣列
+        default byte[] config() {
+            return new byte[0];
+        }
+
+        default void close() { }
+    }
+
+    interface Decoder {
+        // 每個 VOICE 封包回傳剛好一個 FRAME_BYTES 的 PCM；資料無法解碼時回傳 null
+        byte[] decode(byte[] data);
+
+        default void close() { }
+    }
+}
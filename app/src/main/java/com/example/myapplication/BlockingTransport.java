@@ -0,0 +1,268 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 原本的做法：每個 socket 佔用一條讀取執行緒；送出時放進該連線自己的佇列，由專屬寫出執行緒寫入
+public class BlockingTransport implements Transport {
+
+    // accept 與每條連線的讀取迴圈各佔一條執行緒
+    private final Executor ioExecutor;
+    private final FrameCodec frameCodec;
+    private final TransportMetrics metrics;
+    private final Map<Integer, BlockingConnection> connectionMap = new ConcurrentHashMap<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private volatile Listener listener;
+    private volatile ServerSocket serverSocket;
+    private volatile OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO;
+    private volatile int queueCapacityBytes = OutboundQueue.DEFAULT_CAPACITY_BYTES;
+
+    public BlockingTransport(Executor ioExecutor, FrameCodec frameCodec) {
+        this(ioExecutor, frameCodec, new TransportMetrics());
+    }
+
+    public BlockingTransport(Executor ioExecutor, FrameCodec frameCodec, TransportMetrics metrics) {
+        this.ioExecutor = ioExecutor;
+        this.frameCodec = frameCodec;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy policy, int capacityBytes) {
+        this.overflowPolicy = policy;
+        this.queueCapacityBytes = capacityBytes;
+    }
+
+    @Override
+    public int startServer(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port);
+        serverSocket = server;
+        Runnable acceptLoop = () -> {
+            try {
+                Log.d("BlockingTransport", "Server started, waiting for connections...");
+                while (!server.isClosed()) {
+                    Socket clientSocket = server.accept();
+                    Log.d("BlockingTransport", "Connection received from " + clientSocket.getInetAddress());
+                    addSocket(clientSocket);
+                }
+            } catch (IOException e) {
+                if (!server.isClosed()) {
+                    Log.e("BlockingTransport", "Server error", e);
+                }
+            }
+        };
+        try {
+            ioExecutor.execute(acceptLoop);
+        } catch (RejectedExecutionException e) {
+            server.close();
+            throw new IOException("No I/O thread available for accept loop", e);
+        }
+        return server.getLocalPort();
+    }
+
+    @Override
+    public Connection connect(String host, int port) throws IOException {
+        return addSocket(new Socket(host, port));
+    }
+
+    @Override
+    public Connection addSocket(Socket socket) throws IOException {
+        BlockingConnection connection = new BlockingConnection(nextId.incrementAndGet(), socket);
+        connectionMap.put(connection.id, connection);
+        Log.d("BlockingTransport", "Socket added: " + socket.getInetAddress());
+        Listener l = listener;
+        if (l != null) {
+            l.onConnected(connection);
+        }
+        try {
+            ioExecutor.execute(() -> readLoop(connection));
+        } catch (RejectedExecutionException e) {
+            // I/O 執行緒已滿：不接受這條連線，而不是讓它排隊等一個永遠不會空出來的讀取執行緒
+            IOException cause = new IOException("Too many connections, no reader thread available", e);
+            connection.closeWith(cause);
+            throw cause;
+        }
+        connection.writer.start();
+        return connection;
+    }
+
+    @Override
+    public void broadcast(Frame frame, Connection except) {
+        for (BlockingConnection connection : connectionMap.values()) {
+            if (connection != except) {
+                connection.send(frame);
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Connection> connections() {
+        return connectionMap.values();
+    }
+
+    @Override
+    public void shutdown() {
+        ServerSocket server = serverSocket;
+        if (server != null) {
+            try {
+                server.close();
+            } catch (IOException e) {
+                Log.e("BlockingTransport", "Failed to close server socket", e);
+            }
+        }
+        for (BlockingConnection connection : connectionMap.values()) {
+            connection.close();
+        }
+    }
+
+    private void readLoop(BlockingConnection connection) {
+        IOException cause = null;
+        try (DataInputStream dis = new DataInputStream(new BufferedInputStream(connection.socket.getInputStream()))) {
+            connection.socket.setSoTimeout(600000);
+            while (!connection.socket.isClosed() && connection.socket.isConnected()) {
+                Frame frame = frameCodec.readFrame(dis);
+                metrics.onFrameReceived(frame, FrameCodec.wireSize(frame));
+                Listener l = listener;
+                if (l != null) {
+                    l.onFrame(connection, frame);
+                }
+            }
+        } catch (ProtocolException e) {
+            metrics.onDecodeError();
+            cause = e;
+        } catch (IOException e) {
+            cause = e;
+        } finally {
+            connection.closeWith(cause);
+        }
+    }
+
+    private class BlockingConnection implements Connection {
+        final int id;
+        final Socket socket;
+        final DataOutputStream dos;
+        // 檔案區段直接 transferTo 到這裡，略過 DataOutputStream 的緩衝
+        final WritableByteChannel rawOut;
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        final OutboundQueue outbound = new OutboundQueue(queueCapacityBytes, overflowPolicy);
+        final Thread writer;
+
+        BlockingConnection(int id, Socket socket) throws IOException {
+            this.id = id;
+            this.socket = socket;
+            this.dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.rawOut = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getOutputStream());
+            this.writer = new Thread(this::writeLoop, "BlockingTransport-writer-" + id);
+            writer.setDaemon(true);
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return String.valueOf(socket.getInetAddress());
+        }
+
+        @Override
+        public void send(Frame frame) {
+            if (!closed.get() && !outbound.offer(frame)) {
+                Log.w("BlockingTransport", "Outbound queue overflow, disconnecting " + remoteAddress());
+                closeWith(new IOException("Outbound queue overflow"));
+            }
+        }
+
+        @Override
+        public OutboundQueue outboundQueue() {
+            return outbound;
+        }
+
+        private void writeLoop() {
+            try {
+                Frame frame;
+                while ((frame = outbound.take()) != null) {
+                    // 寫入與 flush 花的時間就是被 socket 擋住的時間，緩衝區未滿時只有幾微秒
+                    long start = System.nanoTime();
+                    try {
+                        metrics.onFrameSent(frame, FrameCodec.wireSize(frame));
+                        frameCodec.writeFrame(dos, frame);
+                        if (frame.region != null) {
+                            dos.flush();
+                            transferRegion(frame.region);
+                        }
+                    } finally {
+                        frame.release();
+                    }
+                    // 佇列清空時才 flush，連續的小封包可以合併送出
+                    if (outbound.isEmpty()) {
+                        dos.flush();
+                    }
+                    metrics.onWriteStall(System.nanoTime() - start);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                Log.e("BlockingTransport", "Failed to send frame to " + remoteAddress(), e);
+                closeWith(e);
+            }
+        }
+
+        private void transferRegion(FileRegion region) throws IOException {
+            long position = region.position;
+            long remaining = region.count;
+            while (remaining > 0) {
+                long sent = region.file.channel.transferTo(position, remaining, rawOut);
+                if (sent <= 0) {
+                    throw new IOException("File ended before region was sent");
+                }
+                position += sent;
+                remaining -= sent;
+            }
+        }
+
+        @Override
+        public void close() {
+            closeWith(null);
+        }
+
+        void closeWith(IOException cause) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                socket.close();
+            } catch (IOException e) {
+                Log.e("BlockingTransport", "Failed to close socket", e);
+            }
+            connectionMap.remove(id);
+            outbound.close();
+            Listener l = listener;
+            if (l != null) {
+                l.onDisconnected(this, cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.example.myapplication;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 有名稱、執行緒數與佇列長度上限的執行緒池，並記錄排隊與執行時間，飽和時從統計就看得出來
+// 閒置超過 keepAlive 的執行緒會結束，沒有連線時不佔用任何執行緒
+public class BoundedExecutor extends ThreadPoolExecutor {
+
+    public enum SaturationPolicy {
+        // 佇列滿時丟出 RejectedExecutionException，由呼叫端決定怎麼處理
+        REJECT,
+        // 佇列滿時呼叫端等待空位：保留順序，並把壓力傳回呼叫端 (例如讀取 socket 的執行緒)
+        BLOCK
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private final String name;
+    private final SaturationPolicy policy;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong timedTasks = new AtomicLong();
+
+    // queueCapacity 為 0 時不排隊：沒有空閒執行緒就建立新的，直到 maxThreads
+    public BoundedExecutor(String name, int maxThreads, int queueCapacity, SaturationPolicy policy) {
+        super(queueCapacity == 0 ? 0 : maxThreads, maxThreads, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                newQueue(queueCapacity), namedThreads(name));
+        this.name = name;
+        this.policy = policy;
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler((task, executor) -> onSaturated(task));
+    }
+
+    private static BlockingQueue<Runnable> newQueue(int capacity) {
+        return capacity == 0 ? new SynchronousQueue<>() : new ArrayBlockingQueue<>(capacity);
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger next = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, name + "-" + next.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        super.execute(new TimedTask(command));
+    }
+
+    private void onSaturated(Runnable task) {
+        if (policy == SaturationPolicy.BLOCK && !isShutdown() && !(getQueue() instanceof SynchronousQueue)) {
+            try {
+                getQueue().put(task);
+                return;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        rejected.incrementAndGet();
+        throw new RejectedExecutionException(name + " saturated: " + getActiveCount() + " active, "
+                + getQueue().size() + " queued");
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long enqueuedNanos = System.nanoTime();
+
+        TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long wait = start - enqueuedNanos;
+            totalWaitNanos.addAndGet(wait);
+            maxWaitNanos.accumulateAndGet(wait, Math::max);
+            try {
+                task.run();
+            } finally {
+                totalRunNanos.addAndGet(System.nanoTime() - start);
+                timedTasks.incrementAndGet();
+            }
+        }
+    }
+
+    public String name() {
+        return name;
+    }
+
+    public int queueDepth() {
+        return getQueue().size();
+    }
+
+    public long rejectedTasks() {
+        return rejected.get();
+    }
+
+    // 從交付到開始執行的平均與最長等待時間
+    public long averageWaitNanos() {
+        long tasks = timedTasks.get();
+        return tasks == 0 ? 0 : totalWaitNanos.get() / tasks;
+    }
+
+    public long maxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    public long averageRunNanos() {
+        long tasks = timedTasks.get();
+        return tasks == 0 ? 0 : totalRunNanos.get() / tasks;
+    }
+
+    // 關閉並等待進行中的工作結束，逾時則中斷
+    public boolean shutdownAndWait(long timeoutMs) {
+        shutdown();
+        try {
+            if (awaitTermination(timeoutMs, TimeUnit.MILLISECONDS)) {
+                return true;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        shutdownNow();
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        return name + ": threads " + getPoolSize() + "/" + getMaximumPoolSize() + " (active " + getActiveCount()
+                + ", peak " + getLargestPoolSize() + "), queued " + queueDepth() + ", completed "
+                + getCompletedTaskCount() + ", rejected " + rejected.get() + ", wait avg "
+                + TimeUnit.NANOSECONDS.toMicros(averageWaitNanos()) + " us max "
+                + TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get()) + " us, run avg "
+                + TimeUnit.NANOSECONDS.toMicros(averageRunNanos()) + " us";
+    }
+}
@@ -0,0 +1,263 @@
+package com.example.myapplication;
+
+import android.annotation.SuppressLint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+// 麥克風擷取：聊天畫面開啟時就啟動並持續讀取 20 ms 的 PCM 封包，沒有人使用時只放進預錄緩衝
+// 按下按鈕 (beginTake) 與放開 (endTake) 都只是切換狀態，擷取執行緒在下一個封包先補上按下前的預錄，
+// 再把之後的封包交給 sink，不必在按下時才建立錄音器而切掉開頭的幾百毫秒
+public class CaptureEngine {
+
+    // 擷取來源，Android 上為 AudioRecord
+    public interface Source {
+        // 阻塞讀取，回傳讀到的位元組數，負值表示錯誤
+        int read(byte[] buffer, int offset, int length);
+        void close();
+    }
+
+    public interface SourceFactory {
+        Source open() throws IOException;
+    }
+
+    // 在擷取執行緒呼叫；frame 為新配置的陣列，sink 可以保留
+    public interface Sink {
+        void onFrame(byte[] frame);
+        void onEnd();
+    }
+
+    public static final int FRAME_BYTES = AudioCodec.FRAME_BYTES;
+    // 預錄緩衝最多保留 500 ms
+    public static final int MAX_PRE_ROLL_FRAMES = 25;
+
+    private static final class Take {
+        final Sink sink;
+        final int preRollFrames;
+        final long pressedNanos;
+        volatile boolean ended;
+        boolean started;
+        // 已呼叫過 onEnd，只在擷取執行緒存取
+        boolean finished;
+
+        Take(Sink sink, int preRollFrames, long pressedNanos) {
+            this.sink = sink;
+            this.preRollFrames = preRollFrames;
+            this.pressedNanos = pressedNanos;
+        }
+    }
+
+    private final SourceFactory sourceFactory;
+    private final ArrayDeque<byte[]> preRoll = new ArrayDeque<>(MAX_PRE_ROLL_FRAMES);
+    private final AtomicReference<Take> take = new AtomicReference<>();
+    // 被新的 take 取代的 take：擷取執行緒可能還沒看到它，由擷取執行緒補上 onEnd
+    private final Queue<Take> replaced = new ConcurrentLinkedQueue<>();
+    private volatile boolean running;
+    private Thread captureThread;
+
+    private volatile long capturedFrames;
+    private volatile long takes;
+    private volatile long lastStartLatencyNanos;
+    private volatile long maxStartLatencyNanos;
+
+    public CaptureEngine(SourceFactory sourceFactory) {
+        this.sourceFactory = sourceFactory;
+    }
+
+    // 以 AudioRecord 擷取，格式與 AudioCodec 一致：8 kHz、16-bit 單聲道
+    @SuppressLint("MissingPermission") // 權限由呼叫端 (ReceiveViewActivity) 先行檢查
+    public static CaptureEngine forMicrophone() {
+        return new CaptureEngine(() -> {
+            int minBuffer = AudioRecord.getMinBufferSize(AudioCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+            AudioRecord record = new AudioRecord(MediaRecorder.AudioSource.VOICE_COMMUNICATION, AudioCodec.SAMPLE_RATE,
+                    AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT,
+                    Math.max(minBuffer, FRAME_BYTES * 4));
+            if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                record.release();
+                throw new IOException("AudioRecord init failed");
+            }
+            record.startRecording();
+            return new Source() {
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    return record.read(buffer, offset, length);
+                }
+
+                @Override
+                public void close() {
+                    record.stop();
+                    record.release();
+                }
+            };
+        });
+    }
+
+    // 開始擷取；來源在擷取執行緒上開啟，不會阻塞呼叫端
+    public synchronized void warmUp() {
+        if (running) {
+            return;
+        }
+        running = true;
+        captureThread = new Thread(this::captureLoop, "CaptureEngine");
+        captureThread.start();
+    }
+
+    // 停止擷取並關閉來源；進行中的 take 會收到 onEnd
+    public synchronized void coolDown() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        try {
+            captureThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        captureThread = null;
+    }
+
+    public boolean isWarm() {
+        return running;
+    }
+
+    // 按下按鈕：之後的封包交給 sink，並先補上按下前最多 preRollFrames 個封包
+    // 取代還沒結束的 take 時，被取代的 take 同樣會在擷取執行緒收到 onEnd
+    public void beginTake(Sink sink, int preRollFrames) {
+        Take next = new Take(sink, Math.min(preRollFrames, MAX_PRE_ROLL_FRAMES), System.nanoTime());
+        Take previous = take.getAndSet(next);
+        if (previous != null) {
+            replaced.add(previous);
+        }
+    }
+
+    // 放開按鈕：sink 在擷取執行緒收到目前這個封包後呼叫 onEnd；sink 已不是目前的 take 時不做任何事
+    public void endTake(Sink sink) {
+        Take current = take.get();
+        if (current != null && current.sink == sink) {
+            current.ended = true;
+        }
+    }
+
+    private void captureLoop() {
+        Source source;
+        try {
+            source = sourceFactory.open();
+        } catch (IOException e) {
+            Log.e("CaptureEngine", "Failed to open capture source", e);
+            running = false;
+            endReplaced(null);
+            endActive(take.get());
+            return;
+        }
+        Take active = null;
+        try {
+            while (running) {
+                byte[] frame = new byte[FRAME_BYTES];
+                int read = 0;
+                while (read < FRAME_BYTES && running) {
+                    int n = source.read(frame, read, FRAME_BYTES - read);
+                    if (n < 0) {
+                        Log.e("CaptureEngine", "Capture read error: " + n);
+                        running = false;
+                        break;
+                    }
+                    read += n;
+                }
+                if (read < FRAME_BYTES) {
+                    break;
+                }
+                capturedFrames++;
+                // 快速的按下、放開、再按下可能在一個封包內發生，擷取執行緒從沒看過前一個 take
+                endReplaced(active);
+                Take current = take.get();
+                if (current != active) {
+                    // 換了一個 take：前一個結束，新的先補上預錄
+                    endActive(active);
+                    active = current;
+                    if (active != null) {
+                        while (preRoll.size() > active.preRollFrames) {
+                            preRoll.poll();
+                        }
+                        for (byte[] buffered : preRoll) {
+                            active.sink.onFrame(buffered);
+                        }
+                        preRoll.clear();
+                    }
+                }
+                if (active == null) {
+                    if (preRoll.size() == MAX_PRE_ROLL_FRAMES) {
+                        preRoll.poll();
+                    }
+                    preRoll.add(frame);
+                    continue;
+                }
+                if (!active.started) {
+                    active.started = true;
+                    recordStartLatency(System.nanoTime() - active.pressedNanos);
+                }
+                active.sink.onFrame(frame);
+                if (active.ended) {
+                    endActive(active);
+                    active = null;
+                }
+            }
+        } finally {
+            endReplaced(active);
+            endActive(active);
+            source.close();
+            preRoll.clear();
+        }
+    }
+
+    // 結束 take 並清掉 take 欄位 (若沒有被新的 take 取代)；每個 take 只結束一次
+    private void endActive(Take active) {
+        if (active == null || active.finished) {
+            return;
+        }
+        active.finished = true;
+        take.compareAndSet(active, null);
+        active.sink.onEnd();
+    }
+
+    // 被取代的 take 中，目前這個留給換 take 時結束，其餘 (擷取執行緒從沒拿到的) 在這裡結束
+    private void endReplaced(Take active) {
+        Take previous;
+        while ((previous = replaced.poll()) != null) {
+            if (previous != active) {
+                endActive(previous);
+            }
+        }
+    }
+
+    private void recordStartLatency(long nanos) {
+        takes++;
+        lastStartLatencyNanos = nanos;
+        maxStartLatencyNanos = Math.max(maxStartLatencyNanos, nanos);
+        Log.d("CaptureEngine", "Press to first captured frame: " + nanos / 1000 + " us");
+    }
+
+    public long capturedFrames() {
+        return capturedFrames;
+    }
+
+    public long takes() {
+        return takes;
+    }
+
+    // 從按下到第一個按下後擷取完成的封包
+    public long lastStartLatencyNanos() {
+        return lastStartLatencyNanos;
+    }
+
+    public long maxStartLatencyNanos() {
+        return maxStartLatencyNanos;
+    }
+}
@@ -0,0 +1,107 @@
+package com.example.myapplication;
+
+// 聊天紀錄中的一則訊息，由 MessageLog 保存，聊天畫面依 kind 與方向選擇不同的版面
+public final class ChatMessage {
+
+    public static final byte KIND_TEXT = 0;
+    // body 為音檔路徑
+    public static final byte KIND_AUDIO = 1;
+    // 即時對講結束
+    public static final byte KIND_LIVE_TALK = 2;
+    // 圖片、文件等附件：body 為 位置 \n MIME 類型 \n 大小 \n 檔名，位置是收到的檔案路徑或送出時的 content URI
+    public static final byte KIND_ATTACHMENT = 3;
+
+    // 送出的訊息：已放進至少一條連線的待送佇列 / 當時沒有任何連線；收到的訊息一律為 RECEIVED
+    public static final byte STATE_SENT = 0;
+    public static final byte STATE_FAILED = 1;
+    public static final byte STATE_RECEIVED = 2;
+
+    // 在 MessageLog 中的編號，同時作為 RecyclerView 的穩定 id；寫入前為 -1
+    public final long id;
+    public final long timestampMs;
+    public final boolean outgoing;
+    // 收到的訊息為對方位址，送出的為空字串
+    public final String sender;
+    public final byte kind;
+    public final byte state;
+    // 文字內容或檔案路徑
+    public final String body;
+
+    public ChatMessage(long id, long timestampMs, boolean outgoing, String sender, byte kind, byte state, String body) {
+        this.id = id;
+        this.timestampMs = timestampMs;
+        this.outgoing = outgoing;
+        this.sender = sender;
+        this.kind = kind;
+        this.state = state;
+        this.body = body;
+    }
+
+    public static ChatMessage outgoing(byte kind, byte state, String body) {
+        return new ChatMessage(-1, System.currentTimeMillis(), true, "", kind, state, body);
+    }
+
+    public static ChatMessage incoming(String sender, byte kind, String body) {
+        return new ChatMessage(-1, System.currentTimeMillis(), false, sender != null ? sender : "", kind,
+                STATE_RECEIVED, body);
+    }
+
+    public static String attachmentBody(String location, Attachment attachment) {
+        return location + "\n" + attachment.mimeType + "\n" + attachment.size + "\n" + attachment.name;
+    }
+
+    public String attachmentLocation() {
+        return field(0);
+    }
+
+    public String attachmentMimeType() {
+        return field(1);
+    }
+
+    public long attachmentSize() {
+        try {
+            return Long.parseLong(field(2));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // 檔名已在收到時清掉換行，可以放在最後一欄
+    public String attachmentName() {
+        return field(3);
+    }
+
+    private String field(int index) {
+        String[] fields = body.split("\n", 4);
+        return index < fields.length ? fields[index] : "";
+    }
+
+    ChatMessage withId(long id) {
+        return new ChatMessage(id, timestampMs, outgoing, sender, kind, state, body);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChatMessage)) {
+            return false;
+        }
+        ChatMessage other = (ChatMessage) o;
+        return id == other.id && timestampMs == other.timestampMs && outgoing == other.outgoing
+                && kind == other.kind && state == other.state
+                && sender.equals(other.sender) && body.equals(other.body);
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id) * 31 + body.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "ChatMessage{id=" + id + ", kind=" + kind + ", outgoing=" + outgoing + ", state=" + state
+                + ", body=" + body + "}";
+    }
+}
@@ -0,0 +1,220 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+// 收到的音檔依序播放：排隊中的下一則先在背景 prepare，目前這則播完立刻接上，不會互相重疊
+// 播放器數量有上限並重複使用，播完只 reset，shutdown 時才 release
+// 所有狀態只在 playbackExecutor (Android 上是專用的 HandlerThread) 存取，不佔用主執行緒
+public class ClipPlaybackEngine {
+
+    // 播放器的最小介面，Android 上由 MediaClipPlayer 包裝 MediaPlayer
+    public interface Player {
+        // 非同步準備，完成、播完或失敗時呼叫 listener (可以在任何執行緒)
+        void prepareAsync(File file, Listener listener);
+        void start();
+        // 回到可以再次 prepareAsync 的狀態
+        void reset();
+        void release();
+    }
+
+    public interface Listener {
+        void onPrepared();
+        void onCompletion();
+        void onError(String reason);
+    }
+
+    public interface PlayerFactory {
+        Player create();
+    }
+
+    // 一則正在播放與一則預先準備
+    public static final int DEFAULT_POOL_SIZE = 2;
+    // 排隊中的音檔超過上限時丟掉最舊的
+    public static final int MAX_QUEUED_CLIPS = 256;
+
+    private static final class Clip {
+        final File file;
+        final long enqueuedNanos;
+
+        Clip(File file, long enqueuedNanos) {
+            this.file = file;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+
+    // 一個播放器與它目前負責的音檔
+    private final class Slot implements Listener {
+        final Player player;
+        Clip clip;
+        boolean prepared;
+        boolean playing;
+
+        Slot(Player player) {
+            this.player = player;
+        }
+
+        @Override
+        public void onPrepared() {
+            executor.execute(() -> {
+                if (clip != null) {
+                    prepared = true;
+                    startHead();
+                }
+            });
+        }
+
+        @Override
+        public void onCompletion() {
+            executor.execute(() -> finish(this));
+        }
+
+        @Override
+        public void onError(String reason) {
+            executor.execute(() -> {
+                if (clip != null) {
+                    Log.w("ClipPlaybackEngine", "Failed to play " + clip.file + ": " + reason);
+                    errors++;
+                    finish(this);
+                }
+            });
+        }
+    }
+
+    private final Executor executor;
+    private final PlayerFactory factory;
+    private final int poolSize;
+    private final ArrayDeque<Clip> queue = new ArrayDeque<>();
+    // 依播放順序排列，第一個是正在播放 (或等待 prepare 完成) 的
+    private final ArrayDeque<Slot> active = new ArrayDeque<>();
+    private final ArrayDeque<Slot> idle = new ArrayDeque<>();
+    private boolean shutdown;
+
+    private int createdPlayers;
+    private int releasedPlayers;
+    private long playedClips;
+    private long droppedClips;
+    private long errors;
+    private long totalStartLatencyNanos;
+    private long maxStartLatencyNanos;
+
+    public ClipPlaybackEngine(Executor playbackExecutor, PlayerFactory factory, int poolSize) {
+        this.executor = playbackExecutor;
+        this.factory = factory;
+        this.poolSize = Math.max(1, poolSize);
+    }
+
+    // 可以在任何執行緒呼叫
+    public void enqueue(File file) {
+        long now = System.nanoTime();
+        executor.execute(() -> {
+            if (shutdown) {
+                return;
+            }
+            if (queue.size() >= MAX_QUEUED_CLIPS) {
+                Clip dropped = queue.poll();
+                droppedClips++;
+                Log.w("ClipPlaybackEngine", "Playback queue full, skipping " + dropped.file);
+            }
+            queue.add(new Clip(file, now));
+            fill();
+        });
+    }
+
+    // 停止播放並釋放所有播放器；之後的 enqueue 直接略過
+    public void shutdown() {
+        executor.execute(() -> {
+            shutdown = true;
+            queue.clear();
+            for (Slot slot : active) {
+                release(slot);
+            }
+            active.clear();
+            for (Slot slot : idle) {
+                release(slot);
+            }
+            idle.clear();
+        });
+    }
+
+    // 把排隊的音檔交給空出來的播放器先 prepare
+    private void fill() {
+        while (!queue.isEmpty() && active.size() < poolSize) {
+            Slot slot = idle.poll();
+            if (slot == null) {
+                slot = new Slot(factory.create());
+                createdPlayers++;
+            }
+            slot.clip = queue.poll();
+            slot.prepared = false;
+            slot.playing = false;
+            active.add(slot);
+            slot.player.prepareAsync(slot.clip.file, slot);
+        }
+    }
+
+    private void startHead() {
+        Slot head = active.peek();
+        if (head == null || head.playing || !head.prepared) {
+            return;
+        }
+        head.playing = true;
+        long latency = System.nanoTime() - head.clip.enqueuedNanos;
+        totalStartLatencyNanos += latency;
+        maxStartLatencyNanos = Math.max(maxStartLatencyNanos, latency);
+        playedClips++;
+        head.player.start();
+    }
+
+    private void finish(Slot slot) {
+        if (!active.remove(slot)) {
+            return;
+        }
+        slot.clip = null;
+        slot.player.reset();
+        idle.add(slot);
+        fill();
+        startHead();
+    }
+
+    private void release(Slot slot) {
+        slot.clip = null;
+        slot.player.release();
+        releasedPlayers++;
+    }
+
+    // 以下統計只在 playbackExecutor 上讀取才準確
+
+    // 尚未 release 的播放器數，每個都佔用一份原生資源
+    public int livePlayers() {
+        return createdPlayers - releasedPlayers;
+    }
+
+    public int createdPlayers() {
+        return createdPlayers;
+    }
+
+    public long playedClips() {
+        return playedClips;
+    }
+
+    public long droppedClips() {
+        return droppedClips;
+    }
+
+    public long errors() {
+        return errors;
+    }
+
+    // 從 enqueue 到開始播放的平均與最長時間
+    public long averageStartLatencyNanos() {
+        return playedClips == 0 ? 0 : totalStartLatencyNanos / playedClips;
+    }
+
+    public long maxStartLatencyNanos() {
+        return maxStartLatencyNanos;
+    }
+}
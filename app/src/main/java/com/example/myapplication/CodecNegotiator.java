@@ -0,0 +1,419 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// 每條連線各自決定語音編碼：連線建立時互送支援清單 (CODEC_OFFER)，雙方都支援的編碼依位元率由高到低排成階梯；
+// 待送佇列開始堆積或丟包時往低位元率降一階，連續一段時間順暢再升回一階
+// 收到對方清單前只用 PCM，與不認得 CODEC_OFFER 的舊版相容
+// 群主轉發語音時，成員沒有協商到來源的編碼就先解碼再以該成員的編碼重新編碼 (adapt)
+public class CodecNegotiator implements GroupRelay.Adapter {
+
+    // 待送佇列中的資料以目前位元率換算超過 200 ms 視為壅塞
+    static final int CONGESTED_BACKLOG_MS = 200;
+    // 降階後至少等 25 個封包 (500 ms) 讓佇列消化，才會再降
+    static final int STEP_DOWN_HOLD_FRAMES = 25;
+    // 連續 100 個封包 (2 秒) 順暢才升一階
+    static final int STEP_UP_FRAMES = 100;
+    // 超過 5 秒沒用到的解碼器視為對方已停止 (例如轉發來源斷線而沒有收到 VOICE_END)
+    private static final long DECODER_IDLE_MS = 5000;
+
+    private final List<AudioCodec> codecs = new CopyOnWriteArrayList<>();
+    private final Map<Integer, Link> links = new ConcurrentHashMap<>();
+    private final Map<String, ActiveDecoder> decoders = new ConcurrentHashMap<>();
+    // 群主轉發用，key 為 來源連線:streamId:來源編碼
+    private final Map<String, Transcoder> transcoders = new ConcurrentHashMap<>();
+
+    // 送出端的編碼器屬於目前這段對講，由 sendVoice 的呼叫執行緒使用
+    private final Map<Byte, AudioCodec.Encoder> encoders = new HashMap<>();
+    // 這段對講中每條連線最後收到資料的編碼，換了編碼就要重送解碼器設定
+    private final Map<Integer, Byte> sentCodecs = new HashMap<>();
+    private int encodingStream = -1;
+
+    public CodecNegotiator(AudioCodec... codecs) {
+        for (AudioCodec codec : codecs) {
+            addCodec(codec);
+        }
+    }
+
+    // 之後建立的連線才會在清單中看到新的編碼
+    public synchronized void addCodec(AudioCodec codec) {
+        AudioCodec existing = codec(codec.id());
+        if (existing != null) {
+            codecs.remove(existing);
+        }
+        codecs.add(codec);
+    }
+
+    public AudioCodec codec(byte id) {
+        for (AudioCodec codec : codecs) {
+            if (codec.id() == id) {
+                return codec;
+            }
+        }
+        return null;
+    }
+
+    public Frame offerFrame() {
+        List<AudioCodec> ladder = sortedByBitrate(codecs);
+        ByteBuffer payload = ByteBuffer.allocate(ladder.size());
+        for (AudioCodec codec : ladder) {
+            payload.put(codec.id());
+        }
+        payload.flip();
+        return new Frame(Frame.TYPE_CODEC_OFFER, (byte) 0, 0, 0, payload);
+    }
+
+    public void onOffer(Transport.Connection connection, Frame frame) {
+        List<AudioCodec> common = new ArrayList<>();
+        ByteBuffer payload = frame.payload.duplicate();
+        while (payload.hasRemaining()) {
+            AudioCodec codec = codec(payload.get());
+            if (codec != null && !common.contains(codec)) {
+                common.add(codec);
+            }
+        }
+        if (common.isEmpty()) {
+            common.add(defaultCodec());
+        }
+        List<AudioCodec> ladder = sortedByBitrate(common);
+        links.put(connection.id(), new Link(ladder));
+        Log.d("CodecNegotiator", "Link " + connection.remoteAddress() + " codecs " + names(ladder));
+    }
+
+    // 這條連線目前使用的編碼，依待送佇列狀態調整後回傳
+    public AudioCodec select(Transport.Connection connection) {
+        Link link = links.get(connection.id());
+        if (link == null) {
+            return defaultCodec();
+        }
+        return link.update(connection.outboundQueue());
+    }
+
+    // 每種用到的編碼只編碼一次，相同編碼的連線共用同一個封包
+    // 編碼器整段對講共用，中途才改用某個編碼的連線沒收到過設定，第一個封包另外帶上
+    public synchronized void sendVoice(Transport transport, int streamId, int sequence, byte[] pcm) {
+        if (streamId != encodingStream) {
+            closeEncoders();
+            encodingStream = streamId;
+        }
+        Map<Byte, Frame> encoded = new HashMap<>();
+        Map<Byte, Frame> configured = new HashMap<>();
+        for (Transport.Connection connection : transport.connections()) {
+            AudioCodec codec = select(connection);
+            Frame frame = encoded.get(codec.id());
+            if (frame == null) {
+                frame = encode(codec, streamId, sequence, pcm);
+                encoded.put(codec.id(), frame);
+            }
+            connection.send(withConfig(sentCodecs, connection.id(), frame, encoders.get(frame.flags), configured));
+        }
+    }
+
+    // 送出端：這段對講結束，釋放編碼器
+    public synchronized void endStream(int streamId) {
+        if (streamId == encodingStream) {
+            closeEncoders();
+            encodingStream = -1;
+        }
+    }
+
+    // 群主轉發：目標連線支援來源的編碼就原樣轉發，否則轉成目標目前的編碼
+    // 同一個來源封包只解碼一次，轉成同一種編碼的成員共用同一個封包
+    @Override
+    public Frame adapt(Transport.Connection source, Transport.Connection target, Frame frame) {
+        if (frame.type == Frame.TYPE_VOICE_END) {
+            closeTranscoders(source.id() + ":" + frame.streamId + ":");
+            return frame;
+        }
+        if (frame.type != Frame.TYPE_VOICE || accepts(target, frame.flags)) {
+            return frame;
+        }
+        String key = source.id() + ":" + frame.streamId + ":" + frame.flags;
+        Transcoder transcoder = transcoders.get(key);
+        if (transcoder == null) {
+            AudioCodec codec = codec(frame.flags);
+            if (codec == null) {
+                // 群主自己也不支援，無法轉換
+                return frame;
+            }
+            closeIdleTranscoders(System.currentTimeMillis());
+            transcoder = new Transcoder(codec.newDecoder());
+            Transcoder existing = transcoders.putIfAbsent(key, transcoder);
+            if (existing != null) {
+                transcoder.close();
+                transcoder = existing;
+            }
+        }
+        return transcoder.transcode(frame, select(target), target.id());
+    }
+
+    // 對方的階梯中有這個編碼；還沒收到清單的連線只收 PCM
+    private boolean accepts(Transport.Connection connection, byte codecId) {
+        Link link = links.get(connection.id());
+        return link == null ? codecId == PcmCodec.ID : link.contains(codecId);
+    }
+
+    // 接收端：依封包 flags 找對應的解碼器；不支援的編碼回傳 null
+    public byte[] decode(Transport.Connection connection, Frame frame) {
+        String key = connection.id() + ":" + frame.streamId + ":" + frame.flags;
+        long now = System.currentTimeMillis();
+        ActiveDecoder active = decoders.get(key);
+        if (active == null) {
+            AudioCodec codec = codec(frame.flags);
+            if (codec == null) {
+                Log.w("CodecNegotiator", "Unsupported voice codec " + frame.flags);
+                return null;
+            }
+            closeIdleDecoders(now);
+            active = new ActiveDecoder(codec.newDecoder());
+            decoders.put(key, active);
+        }
+        active.lastUsed = now;
+        return active.decoder.decode(frame.payloadBytes());
+    }
+
+    // 接收端：對方的這段對講結束
+    public void endStream(Transport.Connection connection, int streamId) {
+        closeDecoders(connection.id() + ":" + streamId + ":");
+    }
+
+    public void onDisconnected(Transport.Connection connection) {
+        links.remove(connection.id());
+        closeDecoders(connection.id() + ":");
+        closeTranscoders(connection.id() + ":");
+    }
+
+    private Frame encode(AudioCodec codec, int streamId, int sequence, byte[] pcm) {
+        AudioCodec.Encoder encoder = encoders.get(codec.id());
+        if (encoder == null) {
+            try {
+                encoder = codec.newEncoder();
+            } catch (RuntimeException e) {
+                // 平台編碼器建立失敗時這個封包改送 PCM
+                Log.e("CodecNegotiator", "Encoder unavailable: " + codec.name(), e);
+                return Frame.voice(streamId, sequence, pcm);
+            }
+            encoders.put(codec.id(), encoder);
+        }
+        return Frame.voice(streamId, sequence, codec.id(), encoder.encode(pcm));
+    }
+
+    private void closeEncoders() {
+        for (AudioCodec.Encoder encoder : encoders.values()) {
+            encoder.close();
+        }
+        encoders.clear();
+        sentCodecs.clear();
+    }
+
+    // 連線上一個有資料的封包不是這個編碼時，在前面加上編碼器的設定；同一輪要加設定的連線共用 configured 中的封包
+    // 編碼器還沒產生設定前的輸出不含資料，等到有資料的封包才算這條連線已經換好編碼
+    private static Frame withConfig(Map<Integer, Byte> sentCodecs, int connectionId, Frame frame,
+                                    AudioCodec.Encoder encoder, Map<Byte, Frame> configured) {
+        Byte sent = sentCodecs.get(connectionId);
+        if (sent != null && sent == frame.flags) {
+            return frame;
+        }
+        Frame result = configured.get(frame.flags);
+        if (result == null) {
+            byte[] config = encoder != null ? encoder.config() : new byte[0];
+            result = frame;
+            if (config.length > 0) {
+                byte[] data = frame.payloadBytes();
+                byte[] payload = Arrays.copyOf(config, config.length + data.length);
+                System.arraycopy(data, 0, payload, config.length, data.length);
+                result = Frame.voice(frame.streamId, frame.sequence, frame.flags, payload);
+                configured.put(frame.flags, result);
+            }
+        }
+        if (frame.length > 0) {
+            sentCodecs.put(connectionId, frame.flags);
+        }
+        return result;
+    }
+
+    private void closeDecoders(String prefix) {
+        for (Map.Entry<String, ActiveDecoder> entry : decoders.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && decoders.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().decoder.close();
+            }
+        }
+    }
+
+    private void closeIdleDecoders(long now) {
+        Iterator<Map.Entry<String, ActiveDecoder>> it = decoders.entrySet().iterator();
+        while (it.hasNext()) {
+            ActiveDecoder active = it.next().getValue();
+            if (now - active.lastUsed > DECODER_IDLE_MS) {
+                it.remove();
+                active.decoder.close();
+            }
+        }
+    }
+
+    private void closeTranscoders(String prefix) {
+        for (Map.Entry<String, Transcoder> entry : transcoders.entrySet()) {
+            if (entry.getKey().startsWith(prefix) && transcoders.remove(entry.getKey(), entry.getValue())) {
+                entry.getValue().close();
+            }
+        }
+    }
+
+    private void closeIdleTranscoders(long now) {
+        Iterator<Map.Entry<String, Transcoder>> it = transcoders.entrySet().iterator();
+        while (it.hasNext()) {
+            Transcoder transcoder = it.next().getValue();
+            if (now - transcoder.lastUsed > DECODER_IDLE_MS) {
+                it.remove();
+                transcoder.close();
+            }
+        }
+    }
+
+    private AudioCodec defaultCodec() {
+        AudioCodec pcm = codec(PcmCodec.ID);
+        return pcm != null ? pcm : new PcmCodec();
+    }
+
+    private static List<AudioCodec> sortedByBitrate(List<AudioCodec> codecs) {
+        List<AudioCodec> sorted = new ArrayList<>(codecs);
+        sorted.sort((a, b) -> Integer.compare(b.bitrate(), a.bitrate()));
+        return sorted;
+    }
+
+    private static String names(List<AudioCodec> codecs) {
+        StringBuilder builder = new StringBuilder();
+        for (AudioCodec codec : codecs) {
+            if (builder.length() > 0) {
+                builder.append(" > ");
+            }
+            builder.append(codec.name());
+        }
+        return builder.toString();
+    }
+
+    // 一條連線的編碼階梯，level 0 為位元率最高 (品質最好) 的編碼
+    static class Link {
+        private final List<AudioCodec> ladder;
+        private int level;
+        private int cleanFrames;
+        private int holdFrames;
+        private long lastDropped;
+
+        Link(List<AudioCodec> ladder) {
+            this.ladder = ladder;
+        }
+
+        boolean contains(byte codecId) {
+            for (AudioCodec codec : ladder) {
+                if (codec.id() == codecId) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        synchronized AudioCodec update(OutboundQueue queue) {
+            AudioCodec current = ladder.get(level);
+            if (queue == null) {
+                return current;
+            }
+            long dropped = queue.droppedFrames();
+            long backlogMs = queue.queuedBytes() * 8000 / current.bitrate();
+            boolean congested = dropped > lastDropped || backlogMs > CONGESTED_BACKLOG_MS;
+            lastDropped = dropped;
+            if (holdFrames > 0) {
+                holdFrames--;
+            }
+            if (congested) {
+                cleanFrames = 0;
+                if (holdFrames == 0 && level < ladder.size() - 1) {
+                    level++;
+                    holdFrames = STEP_DOWN_HOLD_FRAMES;
+                }
+            } else if (++cleanFrames >= STEP_UP_FRAMES && level > 0) {
+                level--;
+                cleanFrames = 0;
+            }
+            return ladder.get(level);
+        }
+    }
+
+    private static class ActiveDecoder {
+        final AudioCodec.Decoder decoder;
+        volatile long lastUsed;
+
+        ActiveDecoder(AudioCodec.Decoder decoder) {
+            this.decoder = decoder;
+        }
+    }
+
+    // 一個來源語音串流的轉碼：解碼器跟著來源的每個封包走，每種目標編碼各有一個編碼器
+    private static class Transcoder {
+        final AudioCodec.Decoder decoder;
+        final Map<Byte, AudioCodec.Encoder> encoders = new HashMap<>();
+        // 最近一個來源封包與已轉好的結果，同一個封包轉送給多個成員時共用
+        final Map<Byte, Frame> encoded = new HashMap<>();
+        final Map<Byte, Frame> configured = new HashMap<>();
+        // 每個目標成員最後收到資料的編碼，編碼器是這個來源串流共用的，中途換過來的成員要補送設定
+        final Map<Integer, Byte> sentCodecs = new HashMap<>();
+        Frame lastSource;
+        byte[] lastPcm;
+        volatile long lastUsed = System.currentTimeMillis();
+
+        Transcoder(AudioCodec.Decoder decoder) {
+            this.decoder = decoder;
+        }
+
+        synchronized Frame transcode(Frame frame, AudioCodec codec, int targetId) {
+            lastUsed = System.currentTimeMillis();
+            if (frame != lastSource) {
+                lastSource = frame;
+                lastPcm = decoder.decode(frame.payloadBytes());
+                encoded.clear();
+                configured.clear();
+            }
+            if (lastPcm == null) {
+                return frame;
+            }
+            Frame result = encoded.get(codec.id());
+            if (result == null) {
+                AudioCodec.Encoder encoder = encoders.get(codec.id());
+                if (encoder == null) {
+                    try {
+                        encoder = codec.newEncoder();
+                    } catch (RuntimeException e) {
+                        Log.e("CodecNegotiator", "Encoder unavailable: " + codec.name(), e);
+                        return Frame.voice(frame.streamId, frame.sequence, lastPcm);
+                    }
+                    encoders.put(codec.id(), encoder);
+                }
+                result = Frame.voice(frame.streamId, frame.sequence, codec.id(), encoder.encode(lastPcm));
+                encoded.put(codec.id(), result);
+            }
+            return withConfig(sentCodecs, targetId, result, encoders.get(codec.id()), configured);
+        }
+
+        synchronized void close() {
+            decoder.close();
+            for (AudioCodec.Encoder encoder : encoders.values()) {
+                encoder.close();
+            }
+            encoders.clear();
+            encoded.clear();
+            configured.clear();
+            sentCodecs.clear();
+            lastSource = null;
+        }
+    }
+}
@@ -1,46 +1,186 @@
 package com.example.myapplication;
 
 import android.content.Context;
+import android.net.Uri;
+import android.net.wifi.WifiManager;
 import android.net.wifi.p2p.WifiP2pManager;
 import android.os.Handler;
 import android.os.Looper;
 import android.util.Log;
+import android.view.Choreographer;
 import android.widget.Toast;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class ConnectionManager {
 
     private static final int SOCKET_PORT = 8888;
+    // 群播的語音只用 IMA ADPCM：所有成員共用同一份，不能依個別連線調整編碼
+    private static final byte[] MULTICAST_CODECS = {ImaAdpcmCodec.ID};
+    // Wi-Fi Direct 群組最多約 8 個成員，加上 accept 與重連時新舊連線短暫並存
+    private static final int MAX_IO_THREADS = 24;
+    private static final long SHUTDOWN_TIMEOUT_MS = 2000;
 
     private WifiP2pManager wifiP2pManager;
     private WifiP2pManager.Channel channel;
     private static ConnectionManager instance;
-    private final Map<Socket, DataOutputStream> socketOutputMap = new ConcurrentHashMap<>();
-    private final ExecutorService executorService = Executors.newFixedThreadPool(10);
+    private final FrameCodec frameCodec = new FrameCodec();
+    // 所有連線共用的收送統計，傳輸層與心跳直接寫入
+    private final TransportMetrics metrics = new TransportMetrics();
+    // 阻塞式傳輸的 accept 與每個 socket 的讀取迴圈：讀取會一直佔著執行緒，所以不排隊，上限就是同時連線數
+    private final BoundedExecutor ioExecutor = new BoundedExecutor("io", MAX_IO_THREADS, 0,
+            BoundedExecutor.SaturationPolicy.REJECT);
+    // 連線、重連與啟動伺服器等短暫的阻塞呼叫，不會被讀取迴圈佔滿
+    private final BoundedExecutor controlExecutor = new BoundedExecutor("control", 2, 32,
+            BoundedExecutor.SaturationPolicy.REJECT);
+    // 送出音檔時讀檔與分段
+    private final BoundedExecutor workerExecutor = new BoundedExecutor("worker", 2, 64,
+            BoundedExecutor.SaturationPolicy.REJECT);
+    // 收到的檔案分段依序寫入磁碟，不佔用傳輸層的執行緒
+    // 交付的是傳輸層的執行緒 (NIO 時就是 selector)，不能等待：佇列滿時拒絕，該筆傳輸直接失敗
+    private final BoundedExecutor fileExecutor = new BoundedExecutor("file", 1, 1024,
+            BoundedExecutor.SaturationPolicy.REJECT);
+    // 收檔中的傳輸 (連線編號:傳輸編號) -> FILE_START 標示的發送者
+    private final Map<String, String> fileSenders = new ConcurrentHashMap<>();
+    // 因 fileExecutor 滿了而放棄的傳輸 (連線編號:傳輸編號)，之後的分段直接略過，收尾或斷線時清掉
+    private final Set<String> failedTransfers = ConcurrentHashMap.newKeySet();
+    // 聊天紀錄依序寫入磁碟，寫完再通知畫面；同樣從傳輸層交付，佇列滿時不寫入紀錄、直接通知
+    private final BoundedExecutor historyExecutor = new BoundedExecutor("history", 1, 1024,
+            BoundedExecutor.SaturationPolicy.REJECT);
+    // 所有連線共用一條排程執行緒送心跳、ACK 與逾時
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(
+            runnable -> new Thread(runnable, "scheduler"));
+    // 送出不另外用執行緒池：每條連線有自己的 OutboundQueue (有容量上限) 與寫出執行緒或 selector
+    // 檔案傳輸編號，隨機起始避免經群主轉發後與其他成員的編號相撞
+    private final AtomicInteger nextTransferId = new AtomicInteger(new Random().nextInt() & 0x7fff0000);
+    // 連線與封包的堆疊 (心跳、session、群主轉發)，建構時建立
+    // 預設為每個 socket 一條執行緒的阻塞式傳輸，可用 setUseNioTransport 切換；
+    // session 層在短暫斷線時自動重連並補送，不會直接拆掉群組
+    private volatile PeerNode node;
+    // 群主以群播送出語音與檔案，成員接收群播；須在 startServer / startClient 之前設定
+    private volatile boolean useMulticast = false;
+    // 成員接收群播時 Wi-Fi 不能濾掉群播封包
+    private WifiManager.MulticastLock multicastLock;
+    // startServer 之後為 true：群主替所有成員轉發，單一成員離開不能拆掉整個群組
+    private volatile boolean groupOwner = false;
 
     // 用於將接收到的訊息通知給聊天畫面
     public interface MessageCallback {
-        void onTextMessageReceived(String message);
+        // 新的一則聊天紀錄 (收到或送出) 已寫入 messageLog，在主執行緒呼叫
+        void onMessageAppended(ChatMessage message);
         void onAudioMessageReceived(File audioFile);
+        void onVoiceFrameReceived(int streamId, int sequence, byte[] frame);
+        void onVoiceStreamEnded(int streamId);
     }
-    private MessageCallback messageCallback;
+    private volatile MessageCallback messageCallback;
+
+    // 聊天紀錄的批次通知：同一個畫面更新週期內寫入的訊息一次交給畫面，設定後取代 MessageCallback 的逐則通知
+    public interface BatchCallback {
+        // 在主執行緒呼叫，依寫入順序排列；收到的音檔也在其中 (kind 為 KIND_AUDIO、outgoing 為 false)
+        void onMessagesAppended(List<ChatMessage> messages);
+    }
+    private volatile BatchCallback batchCallback;
+    // 主執行緒的 Choreographer，init 時取得；在那之前改用 Handler
+    private volatile Choreographer choreographer;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final InboundDispatcher<ChatMessage> inboundDispatcher =
+            new InboundDispatcher<>(this::postFrame, this::deliverMessages);
 
     // 新增 Application Context 變數
     private Context appContext;
 
-    private ConnectionManager() { }
+    // 收到的音檔各自存成獨立檔案，init 時建立
+    private volatile ReceivedMediaStore mediaStore;
+    // 聊天紀錄，init 時開啟
+    private volatile MessageLog messageLog;
+    // 最近送出與收完的檔案，用來回應其他成員重新連上後的續傳請求
+    private final FileTransfer.Catalog fileCatalog = new FileTransfer.Catalog();
+    private final FileTransfer.Receiver fileReceiver = new FileTransfer.Receiver(
+            (connection, transferId) -> {
+                if (mediaStore == null) {
+                    throw new IllegalStateException("ConnectionManager 未初始化 context，請先呼叫 init(context) 方法");
+                }
+                return mediaStore.newTempFile();
+            }, fileCatalog);
+
+    // 即時對講的語音編碼，每條連線各自協商；平台編碼在 init 時加入
+    private final CodecNegotiator codecNegotiator = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec());
+    // 文字與檔案分段的壓縮，同樣每條連線各自協商
+    private final PayloadCompressor payloadCompressor = new PayloadCompressor(FrameCodec.DEFAULT_MAX_PAYLOAD);
+    private boolean platformCodecsAdded = false;
+
+    private ConnectionManager() {
+        node = newNode(new BlockingTransport(ioExecutor, frameCodec, metrics));
+        registerGauges();
+    }
+
+    private PeerNode newNode(Transport inner) {
+        PeerNode next = new PeerNode(inner, scheduler, controlExecutor, metrics, transportListener);
+        // 群主轉發壓縮過的封包時，對不支援的成員改送解壓後的內容；語音轉成對方協商到的編碼
+        next.setRelayAdapter((source, target, frame) ->
+                codecNegotiator.adapt(source, target, payloadCompressor.adapt(source, target, frame)));
+        return next;
+    }
+
+    // node 可能被 setUseNioTransport 換掉，每次讀取都取目前的
+    private void registerGauges() {
+        metrics.registerGauge("connections", () -> node.transport().connections().size());
+        metrics.registerGauge("queued frames", () -> {
+            long total = 0;
+            for (Transport.Connection connection : node.transport().connections()) {
+                total += connection.outboundQueue().depth();
+            }
+            return total;
+        });
+        metrics.registerGauge("queued bytes", () -> {
+            long total = 0;
+            for (Transport.Connection connection : node.transport().connections()) {
+                total += connection.outboundQueue().queuedBytes();
+            }
+            return total;
+        });
+        metrics.registerGauge("dropped frames", () -> {
+            long total = 0;
+            for (Transport.Connection connection : node.transport().connections()) {
+                total += connection.outboundQueue().droppedFrames();
+            }
+            return total;
+        });
+        metrics.registerGauge("reconnects", () -> node.transport().resumedSessions());
+        metrics.registerGauge("replayed frames", () -> node.transport().replayedFrames());
+        metrics.registerGauge("compressed frames", payloadCompressor::compressedFrames);
+        metrics.registerGauge("compression saved bytes",
+                () -> payloadCompressor.bytesIn() - payloadCompressor.bytesOut());
+        metrics.registerGauge("resumed files", fileReceiver::resumedTransfers);
+        metrics.registerGauge("corrupt file chunks", fileReceiver::corruptChunks);
+        metrics.registerGauge("deduped files", () -> mediaStore != null ? mediaStore.dedupedFiles() : 0);
+        metrics.registerGauge("multicast datagrams", () -> {
+            MulticastSender sender = node.delivery().sender();
+            return sender != null ? sender.sentDatagrams() : node.delivery().receivedDatagrams();
+        });
+        metrics.registerGauge("multicast repairs", () -> {
+            MulticastSender sender = node.delivery().sender();
+            return sender != null ? sender.repairedDatagrams() : node.delivery().repairedDatagrams();
+        });
+        metrics.registerGauge("multicast lost", () -> node.delivery().lostDatagrams());
+    }
 
     public static synchronized ConnectionManager getInstance() {
         if (instance == null) {
@@ -50,8 +190,28 @@ public class ConnectionManager {
     }
 
     // 請在使用前先呼叫此方法設定 context (例如在 MainActivity.onCreate 中)
-    public void init(Context context) {
+    public synchronized void init(Context context) {
         this.appContext = context.getApplicationContext();
+        if (choreographer == null && Looper.myLooper() == Looper.getMainLooper()) {
+            choreographer = Choreographer.getInstance();
+        }
+        if (mediaStore == null) {
+            mediaStore = new ReceivedMediaStore(new File(appContext.getFilesDir(), "received_media"),
+                    ReceivedMediaStore.DEFAULT_MAX_BYTES, ReceivedMediaStore.DEFAULT_MAX_AGE_MS);
+        }
+        if (messageLog == null) {
+            try {
+                messageLog = new MessageLog(new File(appContext.getFilesDir(), "messages"));
+            } catch (IOException e) {
+                Log.e("ConnectionManager", "Failed to open message history", e);
+            }
+        }
+        if (!platformCodecsAdded) {
+            platformCodecsAdded = true;
+            for (AudioCodec codec : MediaCodecAudioCodec.available()) {
+                codecNegotiator.addCodec(codec);
+            }
+        }
     }
 
     // 設定 Wi-Fi P2P 相關變數（例如在 MainActivity 中初始化時呼叫）
@@ -64,13 +224,115 @@ public class ConnectionManager {
         this.messageCallback = callback;
     }
 
+    // 畫面結束時呼叫：仍是同一個 callback 才清除，不會清掉新開的畫面剛設定的
+    public void clearMessageCallback(MessageCallback callback) {
+        if (messageCallback == callback) {
+            messageCallback = null;
+        }
+    }
+
+    // 聊天紀錄；init 之前或開啟失敗時為 null
+    public MessageLog messageLog() {
+        return messageLog;
+    }
+
+    public void setBatchCallback(BatchCallback callback) {
+        this.batchCallback = callback;
+    }
+
+    public void clearBatchCallback(BatchCallback callback) {
+        if (batchCallback == callback) {
+            batchCallback = null;
+        }
+    }
+
+    // 寫入一則聊天紀錄，完成後排進 inboundDispatcher，下一個 frame 再通知畫面
+    // 寫入失敗時照樣通知 (id 為 -1)，收到的音檔仍會播放
+    public void appendHistory(ChatMessage message) {
+        try {
+            historyExecutor.submit(() -> storeAndPost(message));
+        } catch (RejectedExecutionException e) {
+            Log.w("ConnectionManager", "History writer saturated, not saving " + message, e);
+            inboundDispatcher.post(message);
+        }
+    }
+
+    private void storeAndPost(ChatMessage message) {
+        ChatMessage stored = message;
+        MessageLog log = messageLog;
+        if (log == null) {
+            Log.w("ConnectionManager", "Message history not available, not saving " + message);
+        } else {
+            try {
+                stored = log.append(message);
+            } catch (IOException e) {
+                Log.e("ConnectionManager", "Failed to append message history", e);
+            }
+        }
+        inboundDispatcher.post(stored);
+    }
+
+    private void postFrame(Runnable task) {
+        // Choreographer 的 postFrameCallback 可以從其他執行緒呼叫
+        Choreographer target = choreographer;
+        if (target != null) {
+            target.postFrameCallback(frameTimeNanos -> task.run());
+        } else {
+            mainHandler.post(task);
+        }
+    }
+
+    private void deliverMessages(List<ChatMessage> messages) {
+        BatchCallback batch = batchCallback;
+        if (batch != null) {
+            batch.onMessagesAppended(messages);
+            return;
+        }
+        MessageCallback callback = messageCallback;
+        if (callback == null) {
+            return;
+        }
+        for (ChatMessage message : messages) {
+            callback.onMessageAppended(message);
+            if (message.kind == ChatMessage.KIND_AUDIO && !message.outgoing) {
+                callback.onAudioMessageReceived(new File(message.body));
+            }
+        }
+    }
+
+    // 送出當下沒有任何連線時記為失敗
+    private byte outgoingState() {
+        return node.transport().connections().isEmpty() ? ChatMessage.STATE_FAILED : ChatMessage.STATE_SENT;
+    }
+
+    // 切換為單執行緒 Selector 傳輸，須在 startServer / startClient 之前呼叫
+    public synchronized void setUseNioTransport(boolean useNio) {
+        if (useNio == (node.transport().inner() instanceof NioTransport)) {
+            return;
+        }
+        if (!node.transport().connections().isEmpty()) {
+            Log.w("ConnectionManager", "Cannot switch transport while connected");
+            return;
+        }
+        try {
+            Transport inner = useNio ? new NioTransport(frameCodec, metrics)
+                    : new BlockingTransport(ioExecutor, frameCodec, metrics);
+            node.shutdown();
+            node = newNode(inner);
+        } catch (IOException e) {
+            Log.e("ConnectionManager", "Failed to create transport", e);
+        }
+    }
+
+    // 群組成員多時以群播送出語音與檔案，只佔一份無線電時間；成員少於 MulticastSender.DEFAULT_MIN_MEMBERS 時仍走 TCP
+    public void setUseMulticast(boolean useMulticast) {
+        this.useMulticast = useMulticast;
+    }
+
     // 加入新連線的 Socket，並啟動接收處理
     public void addSocket(Socket socket) {
         try {
-            DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
-            socketOutputMap.put(socket, dos);
-            Log.d("ConnectionManager", "Socket added: " + socket.getInetAddress());
-            executorService.submit(() -> handleClientSocket(socket));
+            node.addSocket(socket);
         } catch (IOException e) {
             Log.e("ConnectionManager", "addSocket failed", e);
         }
@@ -78,115 +340,277 @@ public class ConnectionManager {
 
     // 發送文字訊息給所有連線
     public void sendMessageToAll(String message) {
-        executorService.submit(() -> {
-            for (Map.Entry<Socket, DataOutputStream> entry : socketOutputMap.entrySet()) {
-                DataOutputStream dos = entry.getValue();
-                try {
-                    synchronized (dos) {
-                        dos.writeUTF("TEXT");
-                        dos.writeUTF(message);
-                        dos.flush();
-                    }
-                } catch (IOException e) {
-                    Log.e("ConnectionManager", "Failed to send message", e);
-                }
-            }
-        });
+        // 兩種傳輸的 broadcast 都只是放進各連線的佇列，可以直接在 UI 執行緒呼叫
+        payloadCompressor.broadcast(node.transport(), Frame.text(message));
+        appendHistory(ChatMessage.outgoing(ChatMessage.KIND_TEXT, outgoingState(), message));
     }
 
-    // 發送音檔給所有連線
+    // 發送音檔給所有連線：分段後由傳輸層直接從檔案送進 socket
     public void sendAudioFile(File audioFile) {
-        executorService.submit(() -> {
-            for (Map.Entry<Socket, DataOutputStream> entry : socketOutputMap.entrySet()) {
-                DataOutputStream dos = entry.getValue();
+        try {
+            workerExecutor.execute(() -> {
                 try {
-                    synchronized (dos) {
-                        dos.writeUTF("AUDIO_FILE");
-                        long fileLength = audioFile.length();
-                        dos.writeLong(fileLength);
-                        try (FileInputStream fis = new FileInputStream(audioFile)) {
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = fis.read(buffer)) != -1) {
-                                dos.write(buffer, 0, bytesRead);
-                            }
-                        }
-                        dos.flush();
-                    }
+                    FileTransfer.broadcast(node.fanout(), audioFile, nextTransferId.incrementAndGet(),
+                            payloadCompressor, fileCatalog);
+                    appendHistory(ChatMessage.outgoing(ChatMessage.KIND_AUDIO, outgoingState(),
+                            audioFile.getAbsolutePath()));
                 } catch (IOException e) {
                     Log.e("ConnectionManager", "Failed to send audio file", e);
                 }
-            }
-        });
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w("ConnectionManager", "Too many pending audio sends, dropping " + audioFile, e);
+            appendHistory(ChatMessage.outgoing(ChatMessage.KIND_AUDIO, ChatMessage.STATE_FAILED,
+                    audioFile.getAbsolutePath()));
+        }
     }
 
-    // 處理接收端的資料
-    private void handleClientSocket(Socket socket) {
-        try (DataInputStream dis = new DataInputStream(socket.getInputStream())) {
-            socket.setSoTimeout(600000);
-            while (!socket.isClosed() && socket.isConnected()) {
+    // 發送任意檔案 (圖片、文件等) 給所有連線：先送 FILE_META 描述檔名與類型，內容直接從 file descriptor 送出
+    public void sendAttachment(Uri uri) {
+        if (appContext == null) {
+            throw new IllegalStateException("ConnectionManager 未初始化 context，請先呼叫 init(context) 方法");
+        }
+        AttachmentSource source = new AttachmentSource(appContext.getContentResolver(), uri, appContext.getCacheDir());
+        try {
+            workerExecutor.execute(() -> {
+                Attachment attachment = source.describe();
                 try {
-                    String header = dis.readUTF();
-                    if ("AUDIO_FILE".equals(header)) {
-                        // 呼叫修改後的方法接收並處理音檔
-                        receiveAndSaveAudio(dis);
-                    } else if ("TEXT".equals(header)) {
-                        String message = dis.readUTF();
-                        if (messageCallback != null) {
-                            messageCallback.onTextMessageReceived(message);
-                        }
-                    } else {
-                        Log.w("ConnectionManager", "Unknown header: " + header);
-                    }
+                    Attachment sent = FileTransfer.broadcast(node.fanout(), source, attachment,
+                            nextTransferId.incrementAndGet(), payloadCompressor, fileCatalog);
+                    appendHistory(ChatMessage.outgoing(ChatMessage.KIND_ATTACHMENT, outgoingState(),
+                            ChatMessage.attachmentBody(uri.toString(), sent)));
                 } catch (IOException e) {
-                    Log.e("ConnectionManager", "Exception while reading from socket", e);
+                    Log.e("ConnectionManager", "Failed to send attachment " + uri, e);
+                    appendHistory(ChatMessage.outgoing(ChatMessage.KIND_ATTACHMENT, ChatMessage.STATE_FAILED,
+                            ChatMessage.attachmentBody(uri.toString(), attachment)));
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w("ConnectionManager", "Too many pending file sends, dropping " + uri, e);
+            appendHistory(ChatMessage.outgoing(ChatMessage.KIND_ATTACHMENT, ChatMessage.STATE_FAILED,
+                    ChatMessage.attachmentBody(uri.toString(), Attachment.describe(uri.getLastPathSegment(), null))));
+        }
+    }
+
+    // 即時對講：把一個 PCM 語音封包依各連線協商的編碼壓縮後送出
+    public void sendVoiceFrame(int streamId, int sequence, byte[] data) {
+        // 直接在擷取執行緒編碼並放進佇列，保持封包順序
+        codecNegotiator.sendVoice(node.fanout(), streamId, sequence, data);
+    }
+
+    // 即時對講：說話中的停頓只送噪音強度，由接收端產生舒適噪音
+    public void sendVoiceSilence(int streamId, int sequence, int levelDbov) {
+        node.broadcast(Frame.voiceSilence(streamId, sequence, levelDbov));
+    }
+
+    // 即時對講：通知對方此段語音結束
+    public void sendVoiceEnd(int streamId) {
+        codecNegotiator.endStream(streamId);
+        node.broadcast(Frame.voiceEnd(streamId));
+    }
+
+    // 處理接收端的資料 (在傳輸層的執行緒上呼叫)
+    private final Transport.Listener transportListener = new Transport.Listener() {
+        @Override
+        public void onConnected(Transport.Connection connection) {
+            Log.d("ConnectionManager", "Peer connected: " + connection.remoteAddress());
+            connection.send(codecNegotiator.offerFrame());
+            connection.send(payloadCompressor.offerFrame());
+            // 之前斷線時沒收完的檔案，向新連線要求補送缺少的分段
+            try {
+                fileExecutor.submit(() -> fileReceiver.requestMissing(connection));
+            } catch (RejectedExecutionException e) {
+                Log.w("ConnectionManager", "File writer saturated, not resuming files yet", e);
+            }
+        }
+
+        @Override
+        public void onFrame(Transport.Connection connection, Frame incoming) {
+            // 經群主轉發的文字與檔案標有原始發送者，其餘就是連線的對方
+            String origin = incoming.origin();
+            String sender = origin != null ? origin : connection.remoteAddress();
+            Frame frame;
+            try {
+                frame = payloadCompressor.inflate(connection, incoming.withoutOrigin());
+            } catch (ProtocolException e) {
+                Log.e("ConnectionManager", "Dropping corrupt compressed frame " + incoming, e);
+                metrics.onDecodeError();
+                return;
+            }
+            switch (frame.type) {
+                case Frame.TYPE_FILE_META:
+                case Frame.TYPE_FILE_START:
+                case Frame.TYPE_FILE_CHUNK:
+                case Frame.TYPE_FILE_END:
+                    receiveFile(connection, frame, sender);
+                    break;
+                case Frame.TYPE_FILE_RESUME:
+                    resumeFile(connection, frame);
+                    break;
+                case Frame.TYPE_TEXT:
+                    appendHistory(ChatMessage.incoming(sender, ChatMessage.KIND_TEXT,
+                            frame.payloadAsText()));
+                    break;
+                case Frame.TYPE_VOICE: {
+                    byte[] pcm = codecNegotiator.decode(connection, frame);
+                    if (pcm != null && messageCallback != null) {
+                        messageCallback.onVoiceFrameReceived(frame.streamId, frame.sequence, pcm);
+                    }
                     break;
                 }
+                case Frame.TYPE_VOICE_SILENCE:
+                    if (messageCallback != null && frame.length > 0) {
+                        byte[] noise = SilenceSuppressor.comfortNoise(frame.payload.get(frame.payload.position()) & 0xff,
+                                AudioCodec.FRAME_BYTES, frame.sequence);
+                        messageCallback.onVoiceFrameReceived(frame.streamId, frame.sequence, noise);
+                    }
+                    break;
+                case Frame.TYPE_VOICE_END:
+                    codecNegotiator.endStream(connection, frame.streamId);
+                    if (messageCallback != null) {
+                        messageCallback.onVoiceStreamEnded(frame.streamId);
+                    }
+                    break;
+                case Frame.TYPE_CODEC_OFFER:
+                    codecNegotiator.onOffer(connection, frame);
+                    break;
+                case Frame.TYPE_COMPRESSION_OFFER:
+                    payloadCompressor.onOffer(connection, frame);
+                    break;
+                default:
+                    // 未知類型直接略過，保留給之後新增的封包類型
+                    Log.w("ConnectionManager", "Unknown frame type: " + frame.type);
+                    break;
             }
-        } catch (IOException e) {
-            Log.e("ConnectionManager", "Socket input stream error", e);
-        } finally {
-            // 使用新方法關閉 socket 並斷開群組連線
-            closeSocketAndRemove(socket);
         }
-    }
 
-    // 修改後：使用 appContext.getFilesDir() 儲存接收到的音檔，
-    // 並透過 Handler 切回主執行緒呼叫 messageCallback.onAudioMessageReceived
-    private void receiveAndSaveAudio(DataInputStream dis) throws IOException {
-        long fileLength = dis.readLong();
-        if (appContext == null) {
-            throw new IllegalStateException("ConnectionManager 未初始化 context，請先呼叫 init(context) 方法");
+        @Override
+        public void onDisconnected(Transport.Connection connection, IOException cause) {
+            if (cause instanceof SocketTimeoutException) {
+                Log.w("ConnectionManager", "Peer stopped responding: " + cause.getMessage());
+            } else if (cause instanceof ProtocolException) {
+                Log.e("ConnectionManager", "Malformed frame, closed connection", cause);
+            } else if (cause != null) {
+                Log.e("ConnectionManager", "Exception while reading from socket", cause);
+            }
+            failedTransfers.removeIf(key -> key.startsWith(connection.id() + ":"));
+            try {
+                fileExecutor.submit(() -> abortFiles(connection));
+            } catch (RejectedExecutionException e) {
+                // 排隊中的分段寫不進去了，直接收尾；之後輪到它們時找不到傳輸就會略過
+                Log.w("ConnectionManager", "File writer saturated, aborting transfers from " + connection.remoteAddress(), e);
+                abortFiles(connection);
+            }
+            codecNegotiator.onDisconnected(connection);
+            payloadCompressor.onDisconnected(connection);
+            onPeerClosed(connection);
         }
-        File audioFile = new File(appContext.getFilesDir(), "received_audio.3gp");
-        try (FileOutputStream fos = new FileOutputStream(audioFile)) {
-            byte[] buffer = new byte[4096];
-            int bytesRead;
-            long totalBytesRead = 0;
-            while (totalBytesRead < fileLength &&
-                    (bytesRead = dis.read(buffer, 0, (int) Math.min(buffer.length, fileLength - totalBytesRead))) != -1) {
-                fos.write(buffer, 0, bytesRead);
-                totalBytesRead += bytesRead;
+    };
+
+    // 寫檔交給背景執行緒，避免卡住讀取迴圈；排不進去時放棄這筆傳輸而不是等待
+    private void receiveFile(Transport.Connection connection, Frame frame, String sender) {
+        String key = connection.id() + ":" + frame.streamId;
+        if (failedTransfers.contains(key)) {
+            if (frame.type == Frame.TYPE_FILE_END) {
+                cancelFile(connection, frame.streamId);
             }
+            return;
         }
-        Log.d("ConnectionManager", "Received audio file: " + audioFile.getAbsolutePath());
-        // 使用 Handler 切回主執行緒
-        new Handler(Looper.getMainLooper()).post(() -> {
-            if (messageCallback != null) {
-                messageCallback.onAudioMessageReceived(audioFile);
+        try {
+            fileExecutor.submit(() -> {
+                if (failedTransfers.contains(key)) {
+                    fileReceiver.cancel(connection, frame.streamId);
+                    fileSenders.remove(key);
+                    return;
+                }
+                if (frame.type == Frame.TYPE_FILE_START) {
+                    fileSenders.put(key, sender);
+                }
+                try {
+                    File received = fileReceiver.onFrame(connection, frame);
+                    if (received != null) {
+                        String from = fileSenders.remove(key);
+                        onFileReceived(from != null ? from : sender, received, fileReceiver.takeAttachment(received));
+                    }
+                } catch (IOException e) {
+                    Log.e("ConnectionManager", "Failed to save received file", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w("ConnectionManager", "File writer saturated, dropping transfer " + frame.streamId + " from "
+                    + sender, e);
+            failedTransfers.add(key);
+            if (frame.type == Frame.TYPE_FILE_END) {
+                cancelFile(connection, frame.streamId);
             }
-        });
+        }
     }
 
-    // 關閉單一 socket 並移除，並嘗試斷開 Wi-Fi Direct 群組連線
-    private void closeSocketAndRemove(Socket socket) {
+    // 傳輸已結束，收尾排不進去時留到斷線時由 abortFiles 清掉
+    private void cancelFile(Transport.Connection connection, int transferId) {
+        String key = connection.id() + ":" + transferId;
         try {
-            Log.d("WiFiP2P_DEBUG", "Closing socket from " + socket.getInetAddress());
-            socket.close();
-        } catch (IOException e) {
-            Log.e("WiFiP2P_DEBUG", "closeSocketAndRemove: Failed to close socket", e);
+            fileExecutor.submit(() -> {
+                fileReceiver.cancel(connection, transferId);
+                fileSenders.remove(key);
+                failedTransfers.remove(key);
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w("ConnectionManager", "File writer saturated, transfer " + transferId + " cleaned up on disconnect");
+        }
+    }
+
+    private void abortFiles(Transport.Connection connection) {
+        fileReceiver.abort(connection);
+        fileSenders.keySet().removeIf(key -> key.startsWith(connection.id() + ":"));
+    }
+
+    // 對方要求補送：這邊送過或收過該檔案時只送出缺少的分段，讀檔在 workerExecutor 上進行
+    private void resumeFile(Transport.Connection connection, Frame request) {
+        try {
+            workerExecutor.execute(() -> {
+                try {
+                    FileTransfer.resume(connection, request, nextTransferId.incrementAndGet(), fileCatalog,
+                            payloadCompressor);
+                } catch (IOException e) {
+                    Log.e("ConnectionManager", "Failed to resume file transfer", e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Log.w("ConnectionManager", "Too many pending file sends, ignoring resume request", e);
+        }
+    }
+
+    // 收完的檔案依內容摘要改為正式檔名 (相同內容只存一份)，跟文字訊息一樣寫入聊天紀錄後批次通知畫面
+    // 沒有 FILE_META 的是錄音訊息，副檔名由檔頭判斷
+    private void onFileReceived(String sender, File received, Attachment attachment)
+            throws IOException {
+        byte[] digest = attachment != null ? attachment.digest : null;
+        if (attachment == null || !attachment.hasMetadata()) {
+            String extension = WavClipWriter.extensionOf(received);
+            File committed = digest != null ? mediaStore.commit(received, digest, extension)
+                    : mediaStore.commit(received, extension);
+            fileCatalog.relocate(received, committed);
+            Log.d("ConnectionManager", "Received audio file: " + committed.getAbsolutePath());
+            appendHistory(ChatMessage.incoming(sender, ChatMessage.KIND_AUDIO,
+                    committed.getAbsolutePath()));
+            return;
+        }
+        File committed = mediaStore.commit(received, digest, attachment.extension());
+        fileCatalog.relocate(received, committed);
+        Log.d("ConnectionManager", "Received " + attachment + ": " + committed.getAbsolutePath());
+        appendHistory(ChatMessage.incoming(sender, ChatMessage.KIND_ATTACHMENT,
+                ChatMessage.attachmentBody(committed.getAbsolutePath(), attachment)));
+    }
+
+    // session 已結束 (對方關閉或逾時未接回)
+    // 群主只是少了一個成員，轉發與群播已經不再送給它；成員與群主的 session 結束才斷開 Wi-Fi Direct 群組連線
+    private void onPeerClosed(Transport.Connection connection) {
+        Log.d("WiFiP2P_DEBUG", "Closed socket from " + connection.remoteAddress());
+        if (groupOwner) {
+            Log.d("WiFiP2P_DEBUG", "Member left, " + node.transport().connections().size() + " remaining");
+            return;
         }
-        socketOutputMap.remove(socket);
 
         // 斷開 Wi-Fi Direct 群組連線
         if (wifiP2pManager != null && channel != null) {
@@ -194,7 +618,7 @@ public class ConnectionManager {
                 @Override
                 public void onSuccess() {
                     Log.d("WiFiP2P_DEBUG", "removeGroup: Successfully removed Wi-Fi Direct group.");
-                    new Handler(Looper.getMainLooper()).post(() ->
+                    mainHandler.post(() ->
                             Toast.makeText(appContext, "Disconnected from Wi-Fi Direct group", Toast.LENGTH_SHORT).show()
                     );
                 }
@@ -206,15 +630,14 @@ public class ConnectionManager {
         }
     }
 
-    // 啟動伺服器端：群組擁有者呼叫
-    public void startServer() {
-        executorService.submit(() -> {
-            try (ServerSocket serverSocket = new ServerSocket(SOCKET_PORT)) {
-                Log.d("ConnectionManager", "Server started, waiting for connections...");
-                while (true) {
-                    Socket clientSocket = serverSocket.accept();
-                    Log.d("ConnectionManager", "Connection received from " + clientSocket.getInetAddress());
-                    addSocket(clientSocket);
+    // 啟動伺服器端：群組擁有者呼叫，groupOwnerAddress 用來找出 P2P 介面
+    public void startServer(InetAddress groupOwnerAddress) {
+        groupOwner = true;
+        controlExecutor.execute(() -> {
+            try {
+                node.startOwner(SOCKET_PORT);
+                if (useMulticast) {
+                    startMulticast(groupOwnerAddress);
                 }
             } catch (IOException e) {
                 Log.e("ConnectionManager", "Server error", e);
@@ -222,16 +645,111 @@ public class ConnectionManager {
         });
     }
 
+    // 群播失敗時維持 TCP
+    private void startMulticast(InetAddress groupOwnerAddress) {
+        try {
+            NetworkInterface iface = MulticastDelivery.interfaceFor(groupOwnerAddress);
+            if (iface == null) {
+                Log.w("ConnectionManager", "No interface for " + groupOwnerAddress + ", multicast disabled");
+                return;
+            }
+            InetSocketAddress group = new InetSocketAddress(InetAddress.getByName(MulticastDelivery.DEFAULT_GROUP),
+                    MulticastDelivery.DEFAULT_PORT);
+            MulticastSender sender = node.startMulticast(group, iface, ioExecutor);
+            // 群播送出端也是一條連線：語音固定用 ADPCM，檔案分段照常壓縮 (成員都支援)
+            codecNegotiator.onOffer(sender, new Frame(Frame.TYPE_CODEC_OFFER, (byte) 0, 0, 0,
+                    ByteBuffer.wrap(MULTICAST_CODECS)));
+            payloadCompressor.onOffer(sender, payloadCompressor.offerFrame());
+            Log.d("ConnectionManager", "Multicast " + group + " on " + iface.getName());
+        } catch (IOException | RejectedExecutionException e) {
+            Log.e("ConnectionManager", "Failed to start multicast", e);
+        }
+    }
+
     // 啟動客戶端：接收端呼叫
     public void startClient(String hostAddress) {
-        executorService.submit(() -> {
+        groupOwner = false;
+        controlExecutor.execute(() -> {
             try {
+                if (useMulticast) {
+                    acceptMulticast(InetAddress.getByName(hostAddress));
+                }
                 Log.d("ConnectionManager", "Client connecting to " + hostAddress);
-                Socket socket = new Socket(hostAddress, SOCKET_PORT);
-                addSocket(socket);
+                node.connect(hostAddress, SOCKET_PORT);
             } catch (IOException e) {
                 Log.e("ConnectionManager", "Client connection failed", e);
             }
         });
     }
+
+    // 連線前先準備好，收到群主的 OFFER 時才加入群組
+    private void acceptMulticast(InetAddress groupOwnerAddress) throws IOException {
+        NetworkInterface iface = MulticastDelivery.interfaceFor(groupOwnerAddress);
+        if (iface == null) {
+            Log.w("ConnectionManager", "No interface for " + groupOwnerAddress + ", multicast disabled");
+            return;
+        }
+        synchronized (this) {
+            if (multicastLock == null && appContext != null) {
+                WifiManager wifiManager = (WifiManager) appContext.getSystemService(Context.WIFI_SERVICE);
+                if (wifiManager != null) {
+                    multicastLock = wifiManager.createMulticastLock("WalkiTalkie");
+                    multicastLock.setReferenceCounted(false);
+                    multicastLock.acquire();
+                }
+            }
+        }
+        node.acceptMulticast(iface, ioExecutor);
+    }
+
+    public TransportMetrics metrics() {
+        return metrics;
+    }
+
+    // 除錯畫面與 log 用：收送統計加上各執行緒池的狀態
+    public String dumpStats() {
+        return metrics.dump() + executorStats();
+    }
+
+    // 各執行緒池的執行緒數、佇列深度與等待時間
+    public List<BoundedExecutor> executors() {
+        return Arrays.asList(ioExecutor, controlExecutor, workerExecutor, fileExecutor, historyExecutor);
+    }
+
+    public String executorStats() {
+        StringBuilder stats = new StringBuilder();
+        for (BoundedExecutor executor : executors()) {
+            stats.append(executor).append('\n');
+        }
+        return stats.toString();
+    }
+
+    // 離開程式時呼叫 (會阻塞，請勿在主執行緒呼叫)：關閉所有連線，等待進行中的寫檔完成後結束所有執行緒
+    // 之後 getInstance 會建立新的實例
+    public void shutdown() {
+        synchronized (ConnectionManager.class) {
+            if (instance == this) {
+                instance = null;
+            }
+        }
+        Log.d("ConnectionManager", "Shutting down\n" + dumpStats());
+        node.shutdown();
+        synchronized (this) {
+            if (multicastLock != null) {
+                multicastLock.release();
+                multicastLock = null;
+            }
+        }
+        scheduler.shutdownNow();
+        // 先停掉會產生新工作的，最後才是寫檔
+        for (BoundedExecutor executor : executors()) {
+            if (!executor.shutdownAndWait(SHUTDOWN_TIMEOUT_MS)) {
+                Log.w("ConnectionManager", executor.name() + " did not finish in time");
+            }
+        }
+        MessageLog log = messageLog;
+        if (log != null) {
+            log.close();
+        }
+    }
 }
@@ -0,0 +1,89 @@
+package com.example.myapplication;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+// CRC-32C (Castagnoli)：java.util.zip.CRC32C 要 API 34 才有，minSdk 31 只能自己算
+// 以 slicing-by-8 查表，每次處理 8 bytes
+public final class Crc32c implements Checksum {
+
+    private static final int POLY = 0x82f63b78;
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLE[0][n];
+            for (int k = 1; k < 8; k++) {
+                crc = TABLE[0][crc & 0xff] ^ (crc >>> 8);
+                TABLE[k][n] = crc;
+            }
+        }
+    }
+
+    private int crc = 0xffffffff;
+
+    @Override
+    public void update(int b) {
+        crc = TABLE[0][(crc ^ b) & 0xff] ^ (crc >>> 8);
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int c = crc;
+        int end = off + len;
+        int[] t0 = TABLE[0], t1 = TABLE[1], t2 = TABLE[2], t3 = TABLE[3];
+        int[] t4 = TABLE[4], t5 = TABLE[5], t6 = TABLE[6], t7 = TABLE[7];
+        while (end - off >= 8) {
+            int lo = c ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8 | (b[off + 2] & 0xff) << 16 | b[off + 3] << 24);
+            c = t7[lo & 0xff] ^ t6[(lo >>> 8) & 0xff] ^ t5[(lo >>> 16) & 0xff] ^ t4[lo >>> 24]
+                    ^ t3[b[off + 4] & 0xff] ^ t2[b[off + 5] & 0xff] ^ t1[b[off + 6] & 0xff] ^ t0[b[off + 7] & 0xff];
+            off += 8;
+        }
+        while (off < end) {
+            c = t0[(c ^ b[off++]) & 0xff] ^ (c >>> 8);
+        }
+        crc = c;
+    }
+
+    public void update(byte[] b) {
+        update(b, 0, b.length);
+    }
+
+    // 從 position 讀到 limit，不改變 buffer 的位置
+    public void update(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        } else {
+            ByteBuffer in = buffer.duplicate();
+            byte[] block = new byte[Math.min(in.remaining(), 8192)];
+            while (in.hasRemaining()) {
+                int n = Math.min(block.length, in.remaining());
+                in.get(block, 0, n);
+                update(block, 0, n);
+            }
+        }
+    }
+
+    @Override
+    public long getValue() {
+        return ~crc & 0xffffffffL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xffffffff;
+    }
+
+    public static int of(ByteBuffer buffer) {
+        Crc32c crc = new Crc32c();
+        crc.update(buffer);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,15 @@
+package com.example.myapplication;
+
+// 檔案中的一段，作為 FILE_CHUNK 封包的 payload，由傳輸層以 transferTo 直接送進 socket
+public final class FileRegion {
+
+    public final SharedFileChannel file;
+    public final long position;
+    public final int count;
+
+    public FileRegion(SharedFileChannel file, long position, int count) {
+        this.file = file;
+        this.position = position;
+        this.count = count;
+    }
+}
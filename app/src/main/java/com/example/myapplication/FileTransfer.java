@@ -0,0 +1,709 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 分段檔案傳輸：送出端以 FileRegion 讓傳輸層 transferTo，不經過 Java heap；
+// 接收端以 FileChannel 依分段位置直接寫入，分段可以和其他封包交錯
+// FILE_START 帶整個檔案的 SHA-256 與每個分段的 CRC32C，接收端以 bitmap 記錄收到且檢查通過的分段；
+// session 斷線逾時後保留未完成的檔案，重新連上時以 FILE_RESUME 送出 bitmap，對方只補送缺少的分段
+// 附件在 FILE_START 之前多送一個 FILE_META (檔名、類型、大小、摘要)，見 Attachment
+public final class FileTransfer {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    // FILE_START payload：總長度 (8 bytes) + 分段大小 (4 bytes)，之後是 SHA-256 (32 bytes) 與每個分段的 CRC32C (各 4 bytes)
+    // 舊版只送前 12 bytes，收到時不檢查內容也不能續傳
+    private static final int START_PAYLOAD_SIZE = 12;
+    private static final int DIGEST_SIZE = 32;
+    // FILE_RESUME payload：SHA-256 + 總長度 + 分段大小 + 已收到分段的 bitmap (BitSet.toByteArray)
+    private static final int RESUME_HEADER_SIZE = DIGEST_SIZE + START_PAYLOAD_SIZE;
+    // 壓縮過的分段在 heap 上排隊、佔 OutboundQueue 的上限：每條連線最多排到上限的一半，其餘留給文字與語音
+    static final int COMPRESSED_SHARE_PERCENT = 50;
+    // 連結在這段時間內完全沒有送出任何資料時不再等，交給佇列的溢出處理
+    static final long STALL_TIMEOUT_MS = OutboundQueue.DEFAULT_BLOCK_TIMEOUT_MS;
+
+    private FileTransfer() { }
+
+    // 要送出的內容：一般檔案或 ContentResolver 開啟的 file descriptor，每次呼叫開啟一個新的 channel
+    public interface Content {
+        SharedFileChannel open() throws IOException;
+    }
+
+    // 把檔案切成分段封包廣播給所有連線，只把封包排進佇列，不等待送出
+    public static void broadcast(Transport transport, File file, int transferId) throws IOException {
+        broadcast(transport, file, transferId, null, null);
+    }
+
+    // 先讀一次檔案算出摘要與各分段的 CRC；catalog 不為 null 時登記起來，之後可以回應續傳請求
+    // compressor 不為 null 且有連線支援壓縮時，先試壓第一段：壓得下來才把分段讀進記憶體逐段壓縮，
+    // 否則 (例如已編碼的音訊) 照常以 transferTo 直接送出，不多花 CPU
+    // 壓縮時會等連線的佇列消化 (見 awaitHeadroom)，不能在傳輸層的執行緒上呼叫
+    public static Manifest broadcast(Transport transport, File file, int transferId, PayloadCompressor compressor,
+                                     Catalog catalog) throws IOException {
+        SharedFileChannel shared = SharedFileChannel.open(file);
+        try {
+            Manifest manifest = Manifest.of(shared.channel);
+            if (catalog != null) {
+                catalog.register(file, manifest, null);
+            }
+            send(new ArrayList<>(transport.connections()), shared, manifest, null, transferId, null, compressor);
+            return manifest;
+        } finally {
+            // 排隊中的分段各自持有參考，全部送完或丟棄後才會真正關閉檔案
+            shared.release();
+        }
+    }
+
+    // 送出附件：同一個 channel 先算摘要再直接從中送出分段，內容不會被複製或整個讀進記憶體
+    // 回傳補上大小與摘要的 Attachment
+    public static Attachment broadcast(Transport transport, Content content, Attachment attachment, int transferId,
+                                       PayloadCompressor compressor, Catalog catalog) throws IOException {
+        SharedFileChannel shared = content.open();
+        try {
+            Manifest manifest = Manifest.of(shared.channel);
+            Attachment described = attachment.withContent(manifest.size, manifest.digest);
+            if (catalog != null) {
+                catalog.register(content, manifest, described);
+            }
+            send(new ArrayList<>(transport.connections()), shared, manifest, described, transferId, null, compressor);
+            return described;
+        } finally {
+            shared.release();
+        }
+    }
+
+    // 回應對方的 FILE_RESUME：catalog 裡有這個檔案時只送出對方缺少的分段，沒有則回傳 false
+    public static boolean resume(Transport.Connection connection, Frame request, int transferId, Catalog catalog,
+                                 PayloadCompressor compressor) throws IOException {
+        ByteBuffer payload = request.payload.duplicate();
+        if (payload.remaining() < RESUME_HEADER_SIZE) {
+            throw new ProtocolException("Short FILE_RESUME payload");
+        }
+        byte[] digest = new byte[DIGEST_SIZE];
+        payload.get(digest);
+        long size = payload.getLong();
+        int chunkSize = payload.getInt();
+        Catalog.Source source = catalog.find(digest);
+        if (source == null || source.manifest.size != size || source.manifest.chunkSize != chunkSize) {
+            return false;
+        }
+        BitSet have = BitSet.valueOf(payload);
+        Log.d("FileTransfer", "Resuming " + source + " to " + connection.remoteAddress() + ": "
+                + (source.manifest.chunkCount() - have.cardinality()) + "/" + source.manifest.chunkCount() + " chunks");
+        SharedFileChannel shared = source.content.open();
+        try {
+            if (shared.size() != source.manifest.size) {
+                throw new IOException("Content changed since it was sent: " + source);
+            }
+            send(Collections.singletonList(connection), shared, source.manifest, source.attachment, transferId, have,
+                    compressor);
+        } finally {
+            shared.release();
+        }
+        return true;
+    }
+
+    // attachment 不為 null 時先送 FILE_META；skip 為 null 或該分段未設定時才送出
+    private static void send(Collection<? extends Transport.Connection> targets, SharedFileChannel shared,
+                             Manifest manifest, Attachment attachment, int transferId, BitSet skip,
+                             PayloadCompressor compressor) throws IOException {
+        if (attachment != null) {
+            sendAll(targets, attachment.toFrame(transferId));
+        }
+        sendAll(targets, new Frame(Frame.TYPE_FILE_START, (byte) 0, transferId, 0, manifest.encode()));
+        boolean compress = compressor != null && anySupports(targets, compressor);
+        boolean probed = false;
+        int chunks = manifest.chunkCount();
+        for (int index = 0; index < chunks; index++) {
+            if (skip != null && skip.get(index)) {
+                continue;
+            }
+            long position = (long) index * manifest.chunkSize;
+            int count = manifest.chunkLength(index);
+            if (compress) {
+                Frame plain = new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, transferId, index,
+                        readChunk(shared, position, count));
+                Frame packed = compressor.compress(plain);
+                if (packed != plain || probed) {
+                    probed = true;
+                    sendCompressed(targets, compressor, packed,
+                            new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, transferId, index,
+                                    new FileRegion(shared, position, count)));
+                    continue;
+                }
+                // 第一段壓不下來，之後的分段都不再嘗試
+                compress = false;
+            }
+            FileRegion region = new FileRegion(shared, position, count);
+            sendAll(targets, new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, transferId, index, region));
+        }
+        sendAll(targets, new Frame(Frame.TYPE_FILE_END, (byte) 0, transferId, chunks, ByteBuffer.allocate(0)));
+    }
+
+    private static void sendAll(Collection<? extends Transport.Connection> targets, Frame frame) {
+        for (Transport.Connection connection : targets) {
+            connection.send(frame);
+        }
+    }
+
+    private static boolean anySupports(Collection<? extends Transport.Connection> targets,
+                                       PayloadCompressor compressor) {
+        for (Transport.Connection connection : targets) {
+            if (compressor.supports(connection)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static ByteBuffer readChunk(SharedFileChannel shared, long position, int count) throws IOException {
+        ByteBuffer chunk = ByteBuffer.allocate(count);
+        while (chunk.hasRemaining()) {
+            if (shared.channel.read(chunk, position + chunk.position()) < 0) {
+                throw new IOException("File ended before chunk was read");
+            }
+        }
+        chunk.flip();
+        return chunk;
+    }
+
+    // 支援壓縮的連線等佇列有空間再送壓縮過的分段，其餘照樣送檔案區段 (不佔佇列上限)
+    private static void sendCompressed(Collection<? extends Transport.Connection> targets,
+                                       PayloadCompressor compressor, Frame packed, Frame region)
+            throws InterruptedIOException {
+        for (Transport.Connection connection : targets) {
+            if (compressor.supports(connection)) {
+                awaitHeadroom(connection, packed.length);
+                connection.send(packed);
+            } else {
+                connection.send(region);
+            }
+        }
+    }
+
+    // 壓縮過的分段是 heap 封包，一次全部排進去會超過佇列上限而被斷線；
+    // 佇列用量超過一定比例時等連結送出一些，連結完全停住時就不再等
+    private static void awaitHeadroom(Transport.Connection connection, int bytes) throws InterruptedIOException {
+        OutboundQueue queue = connection.outboundQueue();
+        if (queue == null) {
+            return;
+        }
+        long limit = Math.max((long) queue.capacityBytes() * COMPRESSED_SHARE_PERCENT / 100 - bytes, 0);
+        try {
+            long before = queue.queuedBytes();
+            while (!queue.awaitQueuedBytesAtMost(limit, STALL_TIMEOUT_MS)) {
+                long now = queue.queuedBytes();
+                if (now >= before) {
+                    Log.w("FileTransfer", "Link to " + connection.remoteAddress() + " stalled with " + now
+                            + " bytes queued, sending compressed chunks anyway");
+                    return;
+                }
+                before = now;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for " + connection.remoteAddress());
+        }
+    }
+
+    static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    // 檔案的分段方式與檢查碼，即 FILE_START 的內容；舊版送出端沒有 digest 與 chunkCrcs
+    public static final class Manifest {
+        public final long size;
+        public final int chunkSize;
+        public final byte[] digest;
+        final int[] chunkCrcs;
+
+        Manifest(long size, int chunkSize, byte[] digest, int[] chunkCrcs) {
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.digest = digest;
+            this.chunkCrcs = chunkCrcs;
+        }
+
+        public static Manifest of(File file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                return of(channel);
+            }
+        }
+
+        // 讀一次內容，同時計算 SHA-256 與每個分段的 CRC32C；只用指定位置讀取，不改變 channel 的 position
+        static Manifest of(FileChannel channel) throws IOException {
+            long size = channel.size();
+            Manifest manifest = new Manifest(size, CHUNK_SIZE, null, null);
+            int[] crcs = new int[manifest.chunkCount()];
+            MessageDigest sha = sha256();
+            ByteBuffer buffer = ByteBuffer.allocate(CHUNK_SIZE);
+            for (int index = 0; index < crcs.length; index++) {
+                buffer.clear().limit(manifest.chunkLength(index));
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, (long) index * CHUNK_SIZE + buffer.position()) < 0) {
+                        throw new IOException("Content shrank while reading");
+                    }
+                }
+                buffer.flip();
+                crcs[index] = Crc32c.of(buffer);
+                sha.update(buffer);
+            }
+            return new Manifest(size, CHUNK_SIZE, sha.digest(), crcs);
+        }
+
+        public int chunkCount() {
+            return (int) ((size + chunkSize - 1) / chunkSize);
+        }
+
+        int chunkLength(int index) {
+            return (int) Math.min(chunkSize, size - (long) index * chunkSize);
+        }
+
+        ByteBuffer encode() {
+            ByteBuffer payload = ByteBuffer.allocate(START_PAYLOAD_SIZE + DIGEST_SIZE + 4 * chunkCrcs.length);
+            payload.putLong(size).putInt(chunkSize).put(digest);
+            for (int crc : chunkCrcs) {
+                payload.putInt(crc);
+            }
+            payload.flip();
+            return payload;
+        }
+
+        static Manifest decode(ByteBuffer payload) throws ProtocolException {
+            if (payload.remaining() < START_PAYLOAD_SIZE) {
+                throw new ProtocolException("Short FILE_START payload");
+            }
+            long size = payload.getLong();
+            int chunkSize = payload.getInt();
+            if (size < 0 || chunkSize <= 0 || (size + chunkSize - 1) / chunkSize > Integer.MAX_VALUE) {
+                throw new ProtocolException("Bad FILE_START: size=" + size + ", chunk=" + chunkSize);
+            }
+            Manifest plain = new Manifest(size, chunkSize, null, null);
+            if (payload.remaining() < DIGEST_SIZE) {
+                return plain;
+            }
+            byte[] digest = new byte[DIGEST_SIZE];
+            payload.get(digest);
+            int[] crcs = null;
+            if (payload.remaining() == 4L * plain.chunkCount()) {
+                crcs = new int[plain.chunkCount()];
+                for (int i = 0; i < crcs.length; i++) {
+                    crcs[i] = payload.getInt();
+                }
+            }
+            return new Manifest(size, chunkSize, digest, crcs);
+        }
+
+        String key() {
+            return hex(digest) + ":" + size + ":" + chunkSize;
+        }
+    }
+
+    // 最近送出或收完的檔案，以內容摘要查詢，用來回應續傳請求；只保留最近 MAX_ENTRIES 個
+    public static class Catalog {
+
+        private static final int MAX_ENTRIES = 64;
+
+        static final class Source {
+            final Content content;
+            // 一般檔案才有，用來檢查是否已被刪除
+            final File file;
+            final Manifest manifest;
+            final Attachment attachment;
+
+            Source(Content content, File file, Manifest manifest, Attachment attachment) {
+                this.content = content;
+                this.file = file;
+                this.manifest = manifest;
+                this.attachment = attachment;
+            }
+
+            @Override
+            public String toString() {
+                return file != null ? file.getName() : String.valueOf(attachment);
+            }
+        }
+
+        private final Map<String, Source> entries = new LinkedHashMap<String, Source>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Source> eldest) {
+                return size() > MAX_ENTRIES;
+            }
+        };
+
+        public void register(File file, Manifest manifest, Attachment attachment) {
+            put(new Source(() -> SharedFileChannel.open(file), file, manifest, attachment));
+        }
+
+        // 例如 ContentResolver 的內容，需要在整個 app 執行期間都能再開啟
+        public void register(Content content, Manifest manifest, Attachment attachment) {
+            put(new Source(content, null, manifest, attachment));
+        }
+
+        private synchronized void put(Source source) {
+            if (source.manifest.digest != null) {
+                entries.put(hex(source.manifest.digest), source);
+            }
+        }
+
+        // 收到的檔案改名 (例如 ReceivedMediaStore.commit) 後更新位置
+        public synchronized void relocate(File from, File to) {
+            for (Map.Entry<String, Source> entry : entries.entrySet()) {
+                Source source = entry.getValue();
+                if (from.equals(source.file)) {
+                    entry.setValue(new Source(() -> SharedFileChannel.open(to), to, source.manifest,
+                            source.attachment));
+                }
+            }
+        }
+
+        // 檔案已被刪除或大小不同時視為沒有
+        synchronized Source find(byte[] digest) {
+            String key = hex(digest);
+            Source source = entries.get(key);
+            if (source != null && source.file != null
+                    && (!source.file.isFile() || source.file.length() != source.manifest.size)) {
+                entries.remove(key);
+                return null;
+            }
+            return source;
+        }
+    }
+
+    // 接收端決定每個傳輸要寫到哪個檔案
+    public interface TargetFactory {
+        File newTarget(Transport.Connection connection, int transferId) throws IOException;
+    }
+
+    // 接收並組合分段；每個 (連線, transferId) 對應一個進行中的檔案
+    // 有 SHA-256 的傳輸在連線結束或收到 FILE_END 時仍有缺少的分段，就暫停保留，以摘要為 key 等待續傳
+    public static class Receiver {
+
+        // 暫停中的檔案上限與保留時間，超過就刪除
+        static final int MAX_SUSPENDED = 16;
+        static final long SUSPEND_TTL_MS = 10 * 60 * 1000;
+        // 同一個檔案收到 FILE_END 仍不完整時，最多連續要求補送幾次
+        static final int MAX_RESUME_ATTEMPTS = 3;
+
+        private final TargetFactory targetFactory;
+        private final Catalog catalog;
+        private final Map<String, Incoming> incoming = new ConcurrentHashMap<>();
+        private final Map<String, Incoming> suspended = new ConcurrentHashMap<>();
+        // 已收到 FILE_META、還沒收到 FILE_START 的附件描述
+        private final Map<String, Attachment> pendingAttachments = new ConcurrentHashMap<>();
+        // 完成的檔案 -> 描述，由 takeAttachment 取走
+        private final Map<File, Attachment> completed = new ConcurrentHashMap<>();
+        private final AtomicLong corruptChunks = new AtomicLong();
+        private final AtomicLong resumedTransfers = new AtomicLong();
+
+        public Receiver(TargetFactory targetFactory) {
+            this(targetFactory, null);
+        }
+
+        // catalog 不為 null 時登記收完的檔案，之後也能回應其他成員的續傳請求
+        public Receiver(TargetFactory targetFactory, Catalog catalog) {
+            this.targetFactory = targetFactory;
+            this.catalog = catalog;
+        }
+
+        // 收到 FILE_END 且內容正確時回傳完成的檔案，其餘情況回傳 null
+        public File onFrame(Transport.Connection connection, Frame frame) throws IOException {
+            String key = connection.id() + ":" + frame.streamId;
+            switch (frame.type) {
+                case Frame.TYPE_FILE_META:
+                    pendingAttachments.put(key, Attachment.decode(frame.payload.duplicate()));
+                    return null;
+                case Frame.TYPE_FILE_START: {
+                    // 經群主轉發的 FILE_START 前面可能標有原始發送者
+                    Manifest manifest = Manifest.decode(frame.withoutOrigin().payload.duplicate());
+                    Attachment attachment = pendingAttachments.remove(key);
+                    if (attachment != null && !Arrays.equals(attachment.digest, manifest.digest)) {
+                        Log.w("FileTransfer", "FILE_META does not match FILE_START, ignoring " + attachment);
+                        attachment = null;
+                    }
+                    Incoming transfer = manifest.digest != null ? suspended.remove(manifest.key()) : null;
+                    if (transfer != null) {
+                        transfer.reopen();
+                        resumedTransfers.incrementAndGet();
+                        Log.d("FileTransfer", "Resuming " + transfer.target.getName() + " from "
+                                + connection.remoteAddress() + ", have " + transfer.have.cardinality() + "/"
+                                + manifest.chunkCount() + " chunks");
+                    } else if (manifest.digest != null && isActive(manifest)) {
+                        // 同一個檔案已經從別的連線在收，這份略過
+                        Incoming previous = incoming.remove(key);
+                        if (previous != null) {
+                            previous.abort();
+                        }
+                        return null;
+                    } else {
+                        File target = targetFactory.newTarget(connection, frame.streamId);
+                        FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE,
+                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                        transfer = new Incoming(target, channel, manifest);
+                    }
+                    if (attachment != null) {
+                        transfer.attachment = attachment;
+                    }
+                    Incoming previous = incoming.put(key, transfer);
+                    if (previous != null) {
+                        previous.abort();
+                    }
+                    return null;
+                }
+                case Frame.TYPE_FILE_CHUNK: {
+                    Incoming transfer = incoming.get(key);
+                    if (transfer == null) {
+                        // 沒看到 FILE_START (例如中途才加入)，略過
+                        return null;
+                    }
+                    Manifest manifest = transfer.manifest;
+                    int index = frame.sequence;
+                    if (index < 0 || index >= manifest.chunkCount() || frame.length != manifest.chunkLength(index)) {
+                        incoming.remove(key);
+                        transfer.abort();
+                        throw new ProtocolException("Chunk out of range: " + index + " (" + frame.length + " bytes)");
+                    }
+                    if (transfer.have.get(index)) {
+                        return null;
+                    }
+                    if (manifest.chunkCrcs != null && Crc32c.of(frame.payload) != manifest.chunkCrcs[index]) {
+                        // 不寫入也不記錄，FILE_END 時會再要求補送
+                        corruptChunks.incrementAndGet();
+                        Log.w("FileTransfer", "CRC mismatch in chunk " + index + " of " + transfer.target.getName());
+                        return null;
+                    }
+                    ByteBuffer payload = frame.payload.duplicate();
+                    long position = (long) index * manifest.chunkSize;
+                    while (payload.hasRemaining()) {
+                        position += transfer.channel.write(payload, position);
+                    }
+                    transfer.have.set(index);
+                    transfer.hashInOrder(index, frame.payload);
+                    return null;
+                }
+                case Frame.TYPE_FILE_END: {
+                    Incoming transfer = incoming.remove(key);
+                    if (transfer == null) {
+                        return null;
+                    }
+                    transfer.channel.close();
+                    int missing = transfer.manifest.chunkCount() - transfer.have.cardinality();
+                    if (missing > 0) {
+                        if (transfer.manifest.digest != null && ++transfer.attempts <= MAX_RESUME_ATTEMPTS) {
+                            // 分段在途中損壞或遺失：暫停並立即向同一條連線要求補送
+                            suspend(transfer);
+                            connection.send(transfer.resumeRequest());
+                            return null;
+                        }
+                        transfer.target.delete();
+                        throw new IOException("Incomplete file: missing " + missing + "/"
+                                + transfer.manifest.chunkCount() + " chunks");
+                    }
+                    if (transfer.manifest.digest != null
+                            && !Arrays.equals(transfer.manifest.digest, transfer.digest())) {
+                        transfer.target.delete();
+                        throw new IOException("Digest mismatch: " + transfer.target.getName());
+                    }
+                    Attachment attachment = transfer.attachment != null ? transfer.attachment
+                            : new Attachment("", "", transfer.manifest.size, transfer.manifest.digest);
+                    if (catalog != null) {
+                        catalog.register(transfer.target, transfer.manifest, transfer.attachment);
+                    }
+                    completed.put(transfer.target, attachment);
+                    return transfer.target;
+                }
+                default:
+                    return null;
+            }
+        }
+
+        // onFrame 回傳完成的檔案後呼叫，取得對方送來的描述；沒有 FILE_META 時 mimeType 為空字串
+        public Attachment takeAttachment(File file) {
+            return completed.remove(file);
+        }
+
+        private boolean isActive(Manifest manifest) {
+            for (Incoming transfer : incoming.values()) {
+                if (transfer.manifest.digest != null && transfer.manifest.key().equals(manifest.key())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        // 放棄一筆傳輸 (例如收檔跟不上而被拒絕)，刪除已寫入的部分；之後同一筆的分段都會略過
+        public void cancel(Transport.Connection connection, int transferId) {
+            String key = connection.id() + ":" + transferId;
+            pendingAttachments.remove(key);
+            Incoming transfer = incoming.remove(key);
+            if (transfer != null) {
+                transfer.abort();
+            }
+        }
+
+        // 連線中斷：能續傳的檔案暫停保留，其餘刪除
+        public void abort(Transport.Connection connection) {
+            String prefix = connection.id() + ":";
+            pendingAttachments.keySet().removeIf(key -> key.startsWith(prefix));
+            for (Map.Entry<String, Incoming> entry : incoming.entrySet()) {
+                if (entry.getKey().startsWith(prefix) && incoming.remove(entry.getKey(), entry.getValue())) {
+                    Incoming transfer = entry.getValue();
+                    if (transfer.manifest.digest != null) {
+                        transfer.closeQuietly();
+                        suspend(transfer);
+                    } else {
+                        transfer.abort();
+                    }
+                }
+            }
+        }
+
+        // 新連線建立時呼叫：向對方要求所有暫停中的檔案，對方沒有該檔案時不會回應
+        public void requestMissing(Transport.Connection connection) {
+            expire();
+            for (Incoming transfer : suspended.values()) {
+                connection.send(transfer.resumeRequest());
+            }
+        }
+
+        private void suspend(Incoming transfer) {
+            transfer.suspendedAtMs = System.currentTimeMillis();
+            Incoming previous = suspended.put(transfer.manifest.key(), transfer);
+            if (previous != null && previous != transfer) {
+                previous.abort();
+            }
+            expire();
+        }
+
+        // 刪除過期的暫停檔案，數量超過上限時從最早暫停的刪起
+        private void expire() {
+            long now = System.currentTimeMillis();
+            List<Map.Entry<String, Incoming>> entries = new ArrayList<>(suspended.entrySet());
+            entries.sort((a, b) -> Long.compare(a.getValue().suspendedAtMs, b.getValue().suspendedAtMs));
+            int excess = entries.size() - MAX_SUSPENDED;
+            for (Iterator<Map.Entry<String, Incoming>> it = entries.iterator(); it.hasNext(); excess--) {
+                Map.Entry<String, Incoming> entry = it.next();
+                if ((excess > 0 || now - entry.getValue().suspendedAtMs > SUSPEND_TTL_MS)
+                        && suspended.remove(entry.getKey(), entry.getValue())) {
+                    entry.getValue().abort();
+                }
+            }
+        }
+
+        public int suspendedCount() {
+            return suspended.size();
+        }
+
+        // CRC 不符而捨棄的分段數
+        public long corruptChunks() {
+            return corruptChunks.get();
+        }
+
+        // 接續暫停中檔案的次數
+        public long resumedTransfers() {
+            return resumedTransfers.get();
+        }
+    }
+
+    private static class Incoming {
+        final File target;
+        final Manifest manifest;
+        // 已寫入且檢查通過的分段
+        final BitSet have;
+        FileChannel channel;
+        int attempts;
+        long suspendedAtMs;
+        // 有 FILE_META 的附件
+        Attachment attachment;
+        // 依序收到的分段的 SHA-256，亂序後為 null
+        MessageDigest running;
+        int nextInOrder;
+
+        Incoming(File target, FileChannel channel, Manifest manifest) {
+            this.target = target;
+            this.channel = channel;
+            this.manifest = manifest;
+            this.have = new BitSet(manifest.chunkCount());
+        }
+
+        // 分段依序到達時邊收邊算 SHA-256；一旦亂序或接續就改成收完後重新讀檔計算
+        void hashInOrder(int index, ByteBuffer payload) {
+            if (manifest.digest == null || index != nextInOrder) {
+                running = null;
+                return;
+            }
+            if (index == 0) {
+                running = sha256();
+            }
+            if (running != null) {
+                running.update(payload.duplicate());
+                nextInOrder++;
+            }
+        }
+
+        byte[] digest() throws IOException {
+            if (running != null && nextInOrder == manifest.chunkCount()) {
+                return running.digest();
+            }
+            return Manifest.of(target).digest;
+        }
+
+        // 暫停後接續：保留已寫入的內容
+        void reopen() throws IOException {
+            channel = FileChannel.open(target.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            running = null;
+        }
+
+        Frame resumeRequest() {
+            byte[] bitmap = have.toByteArray();
+            ByteBuffer payload = ByteBuffer.allocate(RESUME_HEADER_SIZE + bitmap.length);
+            payload.put(manifest.digest).putLong(manifest.size).putInt(manifest.chunkSize).put(bitmap).flip();
+            return new Frame(Frame.TYPE_FILE_RESUME, (byte) 0, 0, 0, payload);
+        }
+
+        void closeQuietly() {
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // 之後會重新開啟或刪除
+            }
+        }
+
+        void abort() {
+            closeQuietly();
+            target.delete();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+package com.example.myapplication;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// 傳輸層的一個封包：固定長度標頭 + 變長 payload，格式見 FrameCodec
+public final class Frame {
+
+    public static final byte TYPE_TEXT = 1;
+    public static final byte TYPE_VOICE = 3;
+    public static final byte TYPE_VOICE_END = 4;
+    // 檔案分段傳送：START (總長度、分段大小) -> 多個 CHUNK (sequence 為分段編號) -> END
+    public static final byte TYPE_FILE_START = 5;
+    public static final byte TYPE_FILE_CHUNK = 6;
+    public static final byte TYPE_FILE_END = 7;
+    // 連線建立時送出本機支援的語音編碼代號清單，每個代號 1 byte，依偏好排列
+    public static final byte TYPE_CODEC_OFFER = 8;
+    // 說話中的靜音改送舒適噪音標記：payload 為噪音強度 (-dBov) 1 byte，佔用一個 sequence
+    public static final byte TYPE_VOICE_SILENCE = 9;
+    // 心跳：PING 的 payload 為送出時間 (8 bytes)，對方以 PONG 原樣送回，用來量測來回時間
+    public static final byte TYPE_PING = 10;
+    public static final byte TYPE_PONG = 11;
+    // session 層：HELLO 帶節點 id 與已收到的可靠封包數，ACK 帶已收到的數量，BYE 結束 session
+    public static final byte TYPE_SESSION_HELLO = 12;
+    public static final byte TYPE_SESSION_ACK = 13;
+    public static final byte TYPE_SESSION_BYE = 14;
+    // 連線建立時送出本機支援的壓縮方式代號清單，每個代號 1 byte，見 PayloadCompressor
+    public static final byte TYPE_COMPRESSION_OFFER = 15;
+    // 要求對方補送未完成檔案缺少的分段：payload 為 SHA-256 + 總長度 + 分段大小 + 已收到分段的 bitmap，見 FileTransfer
+    public static final byte TYPE_FILE_RESUME = 16;
+    // 附件的檔名、類型、大小與摘要，在同一個 transferId 的 FILE_START 之前送出，見 Attachment
+    public static final byte TYPE_FILE_META = 17;
+    // 群主的群播：OFFER 告知群組位址、epoch 與成員編號，成員能收到群播後以 JOIN 加入 (或退出)，
+    // 群主以 START 回覆從哪個序號開始改走群播；漏收的 datagram 以 NACK 要求，群主以 REPAIR 經 TCP 補送，見 MulticastDelivery
+    public static final byte TYPE_MULTICAST_OFFER = 18;
+    public static final byte TYPE_MULTICAST_JOIN = 19;
+    public static final byte TYPE_MULTICAST_START = 20;
+    public static final byte TYPE_MULTICAST_NACK = 21;
+    public static final byte TYPE_MULTICAST_REPAIR = 22;
+
+    // 語音以外的封包：payload 為 PayloadCompressor 壓縮過的內容 (語音封包的 flags 是編碼代號)
+    public static final byte FLAG_COMPRESSED = 0x01;
+    // 群主轉發的文字與 FILE_START：payload 前面加上原始發送者 (1 byte 長度 + UTF-8)，其後才是原本 (可能壓縮過) 的內容
+    public static final byte FLAG_ORIGIN = 0x02;
+    static final int MAX_ORIGIN_BYTES = 255;
+
+    // 待送佇列的優先順序，數字小的先送；同一優先順序內維持送出順序
+    public static final int PRIORITY_CONTROL = 0;
+    public static final int PRIORITY_TEXT = 1;
+    public static final int PRIORITY_VOICE = 2;
+    public static final int PRIORITY_BULK = 3;
+    public static final int PRIORITY_COUNT = 4;
+
+    public final byte type;
+    public final byte flags;
+    public final int streamId;
+    public final int sequence;
+    public final int length;
+    // 只讀取標頭或 payload 為檔案區段時為 null
+    public final ByteBuffer payload;
+    // 送出端的檔案區段，由傳輸層以 transferTo 寫出；收到的封包一律是 payload
+    public final FileRegion region;
+    // 建立時間，傳輸層寫出時用來量測排隊時間
+    final long createdNanos = System.nanoTime();
+
+    public Frame(byte type, byte flags, int streamId, int sequence, ByteBuffer payload) {
+        this(type, flags, streamId, sequence, payload.remaining(), payload, null);
+    }
+
+    public Frame(byte type, byte flags, int streamId, int sequence, FileRegion region) {
+        this(type, flags, streamId, sequence, region.count, null, region);
+    }
+
+    Frame(byte type, byte flags, int streamId, int sequence, int length, ByteBuffer payload, FileRegion region) {
+        this.type = type;
+        this.flags = flags;
+        this.streamId = streamId;
+        this.sequence = sequence;
+        this.length = length;
+        this.payload = payload;
+        this.region = region;
+    }
+
+    public static Frame text(String message) {
+        return new Frame(TYPE_TEXT, (byte) 0, 0, 0,
+                ByteBuffer.wrap(message.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    public static Frame voice(int streamId, int sequence, byte[] data) {
+        return voice(streamId, sequence, PcmCodec.ID, data);
+    }
+
+    // 語音封包的 flags 為編碼代號 (AudioCodec.id)
+    public static Frame voice(int streamId, int sequence, byte codecId, byte[] data) {
+        return new Frame(TYPE_VOICE, codecId, streamId, sequence, ByteBuffer.wrap(data));
+    }
+
+    public static Frame voiceSilence(int streamId, int sequence, int levelDbov) {
+        return new Frame(TYPE_VOICE_SILENCE, (byte) 0, streamId, sequence, ByteBuffer.wrap(new byte[] {(byte) levelDbov}));
+    }
+
+    public static Frame voiceEnd(int streamId) {
+        return new Frame(TYPE_VOICE_END, (byte) 0, streamId, 0, ByteBuffer.allocate(0));
+    }
+
+    // 群主需要轉發給其他成員的資料封包；控制用封包只在單一連線上有意義
+    public boolean isRelayable() {
+        switch (type) {
+            case TYPE_TEXT:
+            case TYPE_VOICE:
+            case TYPE_VOICE_END:
+            case TYPE_VOICE_SILENCE:
+            case TYPE_FILE_META:
+            case TYPE_FILE_START:
+            case TYPE_FILE_CHUNK:
+            case TYPE_FILE_END:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 斷線重連後需要補送的封包；即時語音過時就沒有意義，不補送
+    public boolean isReliable() {
+        switch (type) {
+            case TYPE_TEXT:
+            case TYPE_VOICE_END:
+            case TYPE_FILE_META:
+            case TYPE_FILE_START:
+            case TYPE_FILE_CHUNK:
+            case TYPE_FILE_END:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // 控制封包最先送，文字不會被大檔案卡住；檔案切成分段，每個分段之間都能插入較優先的封包
+    public int priority() {
+        switch (type) {
+            case TYPE_PING:
+            case TYPE_PONG:
+            case TYPE_CODEC_OFFER:
+            case TYPE_COMPRESSION_OFFER:
+            case TYPE_FILE_RESUME:
+            case TYPE_MULTICAST_OFFER:
+            case TYPE_MULTICAST_JOIN:
+            case TYPE_MULTICAST_START:
+            case TYPE_MULTICAST_NACK:
+            case TYPE_SESSION_HELLO:
+            case TYPE_SESSION_ACK:
+                return PRIORITY_CONTROL;
+            case TYPE_VOICE:
+            case TYPE_VOICE_END:
+            case TYPE_VOICE_SILENCE:
+            // 補送的可能是語音，排在檔案前面
+            case TYPE_MULTICAST_REPAIR:
+                return PRIORITY_VOICE;
+            case TYPE_FILE_META:
+            case TYPE_FILE_START:
+            case TYPE_FILE_CHUNK:
+            case TYPE_FILE_END:
+            // BYE 排在最後，之前排隊的資料都送完才結束 session
+            case TYPE_SESSION_BYE:
+                return PRIORITY_BULK;
+            case TYPE_TEXT:
+            default:
+                return PRIORITY_TEXT;
+        }
+    }
+
+    public boolean isCompressed() {
+        return type != TYPE_VOICE && (flags & FLAG_COMPRESSED) != 0;
+    }
+
+    // 只有文字與檔案開頭需要標出發送者，其餘轉發的封包跟著同一個 transferId 或不顯示發送者
+    public boolean carriesOrigin() {
+        return type == TYPE_TEXT || type == TYPE_FILE_START;
+    }
+
+    public boolean hasOrigin() {
+        return carriesOrigin() && (flags & FLAG_ORIGIN) != 0;
+    }
+
+    // 原始發送者；不是轉發的封包或標示損壞時回傳 null
+    public String origin() {
+        int size = originSize();
+        if (size <= 0) {
+            return null;
+        }
+        ByteBuffer name = payload.duplicate();
+        name.position(name.position() + 1).limit(name.position() + size - 1);
+        return StandardCharsets.UTF_8.decode(name).toString();
+    }
+
+    // 去掉發送者後的原始封包
+    public Frame withoutOrigin() throws ProtocolException {
+        if (!hasOrigin()) {
+            return this;
+        }
+        int size = originSize();
+        if (size < 0) {
+            throw new ProtocolException("Truncated origin in " + this);
+        }
+        return new Frame(type, (byte) (flags & ~FLAG_ORIGIN), streamId, sequence, skip(size));
+    }
+
+    // 加上 (或換掉) 發送者，不需要標示的封包原樣回傳
+    public Frame withOrigin(String origin) {
+        if (!carriesOrigin()) {
+            return this;
+        }
+        ByteBuffer body = skip(Math.max(originSize(), 0));
+        byte[] name = origin.getBytes(StandardCharsets.UTF_8);
+        int length = Math.min(name.length, MAX_ORIGIN_BYTES);
+        ByteBuffer tagged = ByteBuffer.allocate(1 + length + body.remaining());
+        tagged.put((byte) length).put(name, 0, length).put(body);
+        tagged.flip();
+        return new Frame(type, (byte) (flags | FLAG_ORIGIN), streamId, sequence, tagged);
+    }
+
+    // 發送者標示佔的 bytes，沒有標示為 0，損壞為 -1
+    private int originSize() {
+        if (!hasOrigin()) {
+            return 0;
+        }
+        if (!payload.hasRemaining()) {
+            return -1;
+        }
+        int size = 1 + (payload.get(payload.position()) & 0xff);
+        return payload.remaining() < size ? -1 : size;
+    }
+
+    private ByteBuffer skip(int bytes) {
+        ByteBuffer rest = payload.duplicate();
+        rest.position(rest.position() + bytes);
+        return rest.slice();
+    }
+
+    // 檔案區段的參考計數，由 OutboundQueue 與傳輸層管理；一般 payload 不需要
+    void retain() {
+        if (region != null) {
+            region.file.retain();
+        }
+    }
+
+    void release() {
+        if (region != null) {
+            region.file.release();
+        }
+    }
+
+    // 文字內容，不含轉發時標上的發送者
+    public String payloadAsText() {
+        return StandardCharsets.UTF_8.decode(skip(Math.max(originSize(), 0))).toString();
+    }
+
+    public byte[] payloadBytes() {
+        byte[] bytes = new byte[payload.remaining()];
+        payload.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "Frame{type=" + type + ", flags=" + flags + ", stream=" + streamId
+                + ", seq=" + sequence + ", length=" + length + "}";
+    }
+}
@@ -0,0 +1,207 @@
+package com.example.myapplication;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// 二進位封包格式 (big-endian)：
+//   magic   2 bytes  0x5754 ("WT")
+//   version 1 byte
+//   type    1 byte
+//   flags   1 byte
+//   stream  4 bytes
+//   seq     4 bytes
+//   length  varint (1~5 bytes，無號 LEB128)
+//   payload length bytes
+public class FrameCodec {
+
+    public static final int MAGIC = 0x5754;
+    public static final int VERSION = 1;
+    public static final int FIXED_HEADER_SIZE = 13;
+    public static final int MAX_HEADER_SIZE = FIXED_HEADER_SIZE + 5;
+    // 檔案以 64 KB 區段傳送，最大的控制封包是檔案清單 (每個區段 4 bytes)，
+    // 上限不需要更大；對方宣告的長度決定讀取緩衝區會長到多大
+    public static final int DEFAULT_MAX_PAYLOAD = 256 * 1024;
+
+    private final int maxPayload;
+
+    public FrameCodec() {
+        this(DEFAULT_MAX_PAYLOAD);
+    }
+
+    public FrameCodec(int maxPayload) {
+        this.maxPayload = maxPayload;
+    }
+
+    // 寫出完整封包，呼叫端負責同步與 flush；檔案區段封包只寫標頭，payload 由呼叫端 transferTo
+    public void writeFrame(DataOutputStream out, Frame frame) throws IOException {
+        writeHeader(out, frame.type, frame.flags, frame.streamId, frame.sequence, frame.length);
+        if (frame.region != null) {
+            return;
+        }
+        ByteBuffer payload = frame.payload.duplicate();
+        if (payload.hasArray()) {
+            out.write(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            out.write(bytes);
+        }
+    }
+
+    // 只寫標頭，payload 由呼叫端串流寫出 (例如直接從檔案複製)
+    public void writeHeader(DataOutputStream out, byte type, byte flags, int streamId, int sequence,
+                            int length) throws IOException {
+        if (length < 0 || length > maxPayload) {
+            throw new ProtocolException("Payload too large: " + length);
+        }
+        out.writeShort(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(type);
+        out.writeByte(flags);
+        out.writeInt(streamId);
+        out.writeInt(sequence);
+        writeVarint(out, length);
+    }
+
+    // 讀取標頭，回傳的 Frame 沒有 payload；呼叫端需接著讀取 frame.length 個位元組
+    public Frame readHeader(DataInputStream in) throws IOException {
+        int magic = in.readUnsignedShort();
+        if (magic != MAGIC) {
+            throw new ProtocolException("Bad magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = in.readUnsignedByte();
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported version: " + version);
+        }
+        byte type = in.readByte();
+        byte flags = in.readByte();
+        int streamId = in.readInt();
+        int sequence = in.readInt();
+        int length = readVarint(in);
+        if (length > maxPayload) {
+            throw new ProtocolException("Payload too large: " + length);
+        }
+        return new Frame(type, flags, streamId, sequence, length, null, null);
+    }
+
+    // 讀取完整封包 (含 payload)
+    public Frame readFrame(DataInputStream in) throws IOException {
+        Frame header = readHeader(in);
+        byte[] payload = new byte[header.length];
+        in.readFully(payload);
+        return new Frame(header.type, header.flags, header.streamId, header.sequence, ByteBuffer.wrap(payload));
+    }
+
+    // NIO 用：把標頭編碼成一個可直接寫出的 ByteBuffer，payload 另外以 gathering write 送出
+    public ByteBuffer encodeHeader(Frame frame) throws ProtocolException {
+        if (frame.length < 0 || frame.length > maxPayload) {
+            throw new ProtocolException("Payload too large: " + frame.length);
+        }
+        ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        header.putShort((short) MAGIC);
+        header.put((byte) VERSION);
+        header.put(frame.type);
+        header.put(frame.flags);
+        header.putInt(frame.streamId);
+        header.putInt(frame.sequence);
+        int value = frame.length;
+        while ((value & ~0x7f) != 0) {
+            header.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        header.put((byte) value);
+        header.flip();
+        return header;
+    }
+
+    // NIO 用：從讀取緩衝區 (讀取模式) 解出一個完整封包；資料不足時回傳 null 且不移動 position
+    public Frame decode(ByteBuffer in) throws ProtocolException {
+        int start = in.position();
+        if (in.remaining() < FIXED_HEADER_SIZE + 1) {
+            return null;
+        }
+        int magic = in.getShort(start) & 0xffff;
+        if (magic != MAGIC) {
+            throw new ProtocolException("Bad magic: 0x" + Integer.toHexString(magic));
+        }
+        int version = in.get(start + 2) & 0xff;
+        if (version != VERSION) {
+            throw new ProtocolException("Unsupported version: " + version);
+        }
+        int length = 0;
+        int index = start + FIXED_HEADER_SIZE;
+        for (int shift = 0; ; shift += 7) {
+            if (shift >= 35) {
+                throw new ProtocolException("Varint too long");
+            }
+            if (index >= in.limit()) {
+                return null;
+            }
+            int b = in.get(index++) & 0xff;
+            if (shift == 28 && (b & 0xf0) != 0) {
+                throw new ProtocolException("Varint overflow");
+            }
+            length |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                break;
+            }
+        }
+        if (length < 0 || length > maxPayload) {
+            throw new ProtocolException("Payload too large: " + length);
+        }
+        if (in.limit() - index < length) {
+            return null;
+        }
+        byte type = in.get(start + 3);
+        byte flags = in.get(start + 4);
+        int streamId = in.getInt(start + 5);
+        int sequence = in.getInt(start + 9);
+        // 讀取緩衝區會被重複使用，payload 需要複製出來
+        byte[] payload = new byte[length];
+        in.position(index);
+        in.get(payload);
+        return new Frame(type, flags, streamId, sequence, ByteBuffer.wrap(payload));
+    }
+
+    public int maxFrameSize() {
+        return MAX_HEADER_SIZE + maxPayload;
+    }
+
+    // 標頭加 payload 在線路上的位元組數
+    public static long wireSize(Frame frame) {
+        int varintBytes = 1;
+        for (int value = frame.length >>> 7; value != 0; value >>>= 7) {
+            varintBytes++;
+        }
+        return FIXED_HEADER_SIZE + varintBytes + (long) frame.length;
+    }
+
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarint(DataInputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            if (shift == 28 && (b & 0xf0) != 0) {
+                // 第五個位元組只能使用低 4 位元，且長度不可為負
+                throw new ProtocolException("Varint overflow");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                if (value < 0) {
+                    throw new ProtocolException("Negative length");
+                }
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+}
@@ -0,0 +1,83 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+
+// 群主的轉發中心：從一個成員收到的資料封包原封不動轉送給其他成員，
+// payload 直接沿用收到的緩衝區，不重新解碼或編碼；每個連線各自排隊送出，慢的成員不會拖累其他人
+// 文字與 FILE_START 另外標上原始發送者 (Frame.FLAG_ORIGIN)
+public class GroupRelay implements Transport.Listener {
+
+    private final Transport transport;
+    private final Transport.Listener downstream;
+    private volatile boolean enabled = false;
+    private volatile Adapter adapter;
+    private volatile MulticastSender multicast;
+
+    // 依目標連線調整轉發的封包，例如對不支援壓縮的成員改送解壓後的內容
+    public interface Adapter {
+        Frame adapt(Transport.Connection source, Transport.Connection target, Frame frame);
+    }
+
+    public GroupRelay(Transport transport, Transport.Listener downstream) {
+        this.transport = transport;
+        this.downstream = downstream;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setAdapter(Adapter adapter) {
+        this.adapter = adapter;
+    }
+
+    // 群播啟用時語音與檔案交給 MulticastSender，只送一次
+    public void setMulticast(MulticastSender multicast) {
+        this.multicast = multicast;
+    }
+
+    @Override
+    public void onConnected(Transport.Connection connection) {
+        downstream.onConnected(connection);
+    }
+
+    @Override
+    public void onFrame(Transport.Connection connection, Frame frame) {
+        if (enabled) {
+            // 成員自己標的發送者不可信，轉發時由群主依來源連線重新標上
+            try {
+                frame = frame.withoutOrigin();
+            } catch (ProtocolException e) {
+                Log.w("GroupRelay", "Dropping frame with corrupt origin from " + connection.remoteAddress(), e);
+                return;
+            }
+            MulticastSender m = multicast;
+            if (frame.isRelayable() && (m == null || !m.relay(connection, frame))) {
+                for (Transport.Connection target : transport.connections()) {
+                    if (target != connection) {
+                        target.send(forTarget(adapter, connection, target, frame));
+                    }
+                }
+            }
+        }
+        downstream.onFrame(connection, frame);
+    }
+
+    // 轉發給一個成員的封包：先依目標調整，再標上原始發送者 (群主眼中來源連線的位址)，
+    // 成員收到時才不會把所有轉發的訊息都當成群主送的
+    static Frame forTarget(Adapter adapter, Transport.Connection source, Transport.Connection target, Frame frame) {
+        Frame adapted = adapter != null ? adapter.adapt(source, target, frame) : frame;
+        return adapted.withOrigin(source.remoteAddress());
+    }
+
+    @Override
+    public void onDisconnected(Transport.Connection connection, IOException cause) {
+        downstream.onDisconnected(connection, cause);
+    }
+}
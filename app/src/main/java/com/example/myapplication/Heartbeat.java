@@ -0,0 +1,144 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// 應用層心跳：一個排程執行緒每個間隔掃過所有連線送出 PING，不需要每個 socket 各自的計時器
+// 收到任何封包都算對方還活著；連續 missThreshold 個間隔沒收到資料就主動斷線，
+// 斷線原因以 SocketTimeoutException 通知下游；順便從 PONG 量測每個連線的來回時間
+public class Heartbeat implements Transport.Listener {
+
+    public static final long DEFAULT_INTERVAL_MS = 1000;
+    public static final int DEFAULT_MISS_THRESHOLD = 3;
+
+    private static final int PING_PAYLOAD_SIZE = 8;
+
+    private final Transport.Listener downstream;
+    private final ScheduledExecutorService scheduler;
+    private final long intervalMs;
+    private final int missThreshold;
+    private final TransportMetrics metrics;
+    private final Map<Integer, Peer> peers = new ConcurrentHashMap<>();
+    private ScheduledFuture<?> task;
+
+    public Heartbeat(Transport.Listener downstream, ScheduledExecutorService scheduler,
+                     long intervalMs, int missThreshold) {
+        this(downstream, scheduler, intervalMs, missThreshold, new TransportMetrics());
+    }
+
+    public Heartbeat(Transport.Listener downstream, ScheduledExecutorService scheduler,
+                     long intervalMs, int missThreshold, TransportMetrics metrics) {
+        this.downstream = downstream;
+        this.scheduler = scheduler;
+        this.intervalMs = intervalMs;
+        this.missThreshold = missThreshold;
+        this.metrics = metrics;
+    }
+
+    public synchronized void start() {
+        if (task == null) {
+            task = scheduler.scheduleWithFixedDelay(this::tick, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public synchronized void stop() {
+        if (task != null) {
+            task.cancel(false);
+            task = null;
+        }
+    }
+
+    // 平滑後的來回時間 (毫秒)；還沒收到 PONG 時回傳 -1
+    public double rttMs(Transport.Connection connection) {
+        Peer peer = peers.get(connection.id());
+        return peer != null ? peer.smoothedRttMs : -1;
+    }
+
+    @Override
+    public void onConnected(Transport.Connection connection) {
+        peers.put(connection.id(), new Peer(connection));
+        downstream.onConnected(connection);
+    }
+
+    @Override
+    public void onFrame(Transport.Connection connection, Frame frame) {
+        Peer peer = peers.get(connection.id());
+        if (peer != null) {
+            peer.lastReceivedNanos = System.nanoTime();
+        }
+        switch (frame.type) {
+            case Frame.TYPE_PING:
+                connection.send(new Frame(Frame.TYPE_PONG, (byte) 0, 0, frame.sequence, frame.payload.duplicate()));
+                return;
+            case Frame.TYPE_PONG:
+                if (peer != null && frame.length == PING_PAYLOAD_SIZE) {
+                    long sample = peer.onPong(frame.payload.getLong(frame.payload.position()));
+                    if (sample >= 0) {
+                        metrics.onRtt(sample);
+                    }
+                }
+                return;
+            default:
+                downstream.onFrame(connection, frame);
+        }
+    }
+
+    @Override
+    public void onDisconnected(Transport.Connection connection, IOException cause) {
+        Peer peer = peers.remove(connection.id());
+        if (peer != null && peer.evicted) {
+            cause = new SocketTimeoutException("No data from " + connection.remoteAddress()
+                    + " for " + missThreshold + " heartbeat intervals");
+        }
+        downstream.onDisconnected(connection, cause);
+    }
+
+    private void tick() {
+        long now = System.nanoTime();
+        long deadlineNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs * missThreshold);
+        for (Peer peer : peers.values()) {
+            if (now - peer.lastReceivedNanos > deadlineNanos) {
+                if (!peer.evicted) {
+                    Log.w("Heartbeat", "Evicting silent peer " + peer.connection.remoteAddress());
+                    peer.evicted = true;
+                    peer.connection.close();
+                }
+                continue;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(PING_PAYLOAD_SIZE);
+            payload.putLong(0, now);
+            peer.connection.send(new Frame(Frame.TYPE_PING, (byte) 0, 0, peer.pingsSent++, payload));
+        }
+    }
+
+    private static class Peer {
+        final Transport.Connection connection;
+        volatile long lastReceivedNanos = System.nanoTime();
+        volatile boolean evicted;
+        volatile double smoothedRttMs = -1;
+        int pingsSent;
+
+        Peer(Transport.Connection connection) {
+            this.connection = connection;
+        }
+
+        // 與 TCP 的 SRTT 相同，新樣本佔 1/8；回傳這次的樣本 (奈秒)，無效時為 -1
+        long onPong(long sentNanos) {
+            long nanos = System.nanoTime() - sentNanos;
+            if (nanos < 0) {
+                return -1;
+            }
+            double sample = nanos / 1e6;
+            smoothedRttMs = smoothedRttMs < 0 ? sample : smoothedRttMs + (sample - smoothedRttMs) / 8;
+            return nanos;
+        }
+    }
+}
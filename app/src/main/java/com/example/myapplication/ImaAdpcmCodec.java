@@ -0,0 +1,144 @@
+package com.example.myapplication;
+
+// IMA ADPCM：每個取樣 4 bits，純 Java 實作、幾乎不花 CPU，20 ms 封包 84 bytes (約 34 kbps)
+// 每個封包自帶第一個取樣與 step index，封包之間互不依賴，遺失或重排不會讓後續解碼錯亂
+public class ImaAdpcmCodec implements AudioCodec {
+
+    public static final byte ID = 1;
+
+    // 標頭：第一個取樣 (16-bit little endian) + step index + 保留 1 byte
+    private static final int HEADER_BYTES = 4;
+    // 其餘 159 個取樣各 4 bits，最後半個 byte 補 0
+    static final int ENCODED_BYTES = HEADER_BYTES + FRAME_SAMPLES / 2;
+
+    private static final int[] INDEX_TABLE = {
+            -1, -1, -1, -1, 2, 4, 6, 8
+    };
+
+    private static final int[] STEP_TABLE = {
+            7, 8, 9, 10, 11, 12, 13, 14, 16, 17, 19, 21, 23, 25, 28, 31, 34, 37, 41, 45,
+            50, 55, 60, 66, 73, 80, 88, 97, 107, 118, 130, 143, 157, 173, 190, 209, 230,
+            253, 279, 307, 337, 371, 408, 449, 494, 544, 598, 658, 724, 796, 876, 963,
+            1060, 1166, 1282, 1411, 1552, 1707, 1878, 2066, 2272, 2499, 2749, 3024, 3327,
+            3660, 4026, 4428, 4871, 5358, 5894, 6484, 7132, 7845, 8630, 9493, 10442, 11487,
+            12635, 13899, 15289, 16818, 18500, 20350, 22385, 24623, 27086, 29794, 32767
+    };
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "IMA-ADPCM";
+    }
+
+    @Override
+    public int bitrate() {
+        return ENCODED_BYTES * 8 * 1000 / FRAME_MS;
+    }
+
+    @Override
+    public Encoder newEncoder() {
+        return new AdpcmEncoder();
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return ImaAdpcmCodec::decodeFrame;
+    }
+
+    // step index 延續上一個封包，讓每個封包開頭就有合適的量化步距
+    private static class AdpcmEncoder implements Encoder {
+        private int index;
+
+        @Override
+        public byte[] encode(byte[] pcm) {
+            byte[] out = new byte[ENCODED_BYTES];
+            int predictor = sample(pcm, 0);
+            out[0] = (byte) predictor;
+            out[1] = (byte) (predictor >> 8);
+            out[2] = (byte) index;
+            for (int i = 1; i < FRAME_SAMPLES; i++) {
+                int step = STEP_TABLE[index];
+                int diff = sample(pcm, i) - predictor;
+                int nibble = 0;
+                if (diff < 0) {
+                    nibble = 8;
+                    diff = -diff;
+                }
+                if (diff >= step) {
+                    nibble |= 4;
+                    diff -= step;
+                }
+                if (diff >= step >> 1) {
+                    nibble |= 2;
+                    diff -= step >> 1;
+                }
+                if (diff >= step >> 2) {
+                    nibble |= 1;
+                }
+                // 用和解碼端相同的算式更新預測值，避免誤差累積
+                predictor = clampSample(predictor + delta(nibble, step));
+                index = clampIndex(index + INDEX_TABLE[nibble & 7]);
+                int position = HEADER_BYTES + (i - 1) / 2;
+                if ((i - 1) % 2 == 0) {
+                    out[position] = (byte) nibble;
+                } else {
+                    out[position] |= (byte) (nibble << 4);
+                }
+            }
+            return out;
+        }
+    }
+
+    static byte[] decodeFrame(byte[] data) {
+        if (data.length != ENCODED_BYTES) {
+            return null;
+        }
+        byte[] pcm = new byte[FRAME_BYTES];
+        int predictor = (short) ((data[0] & 0xff) | (data[1] << 8));
+        int index = data[2] & 0xff;
+        if (index >= STEP_TABLE.length) {
+            return null;
+        }
+        pcm[0] = data[0];
+        pcm[1] = data[1];
+        for (int i = 1; i < FRAME_SAMPLES; i++) {
+            int packed = data[HEADER_BYTES + (i - 1) / 2] & 0xff;
+            int nibble = (i - 1) % 2 == 0 ? packed & 0x0f : packed >> 4;
+            predictor = clampSample(predictor + delta(nibble, STEP_TABLE[index]));
+            index = clampIndex(index + INDEX_TABLE[nibble & 7]);
+            pcm[2 * i] = (byte) predictor;
+            pcm[2 * i + 1] = (byte) (predictor >> 8);
+        }
+        return pcm;
+    }
+
+    private static int delta(int nibble, int step) {
+        int delta = step >> 3;
+        if ((nibble & 4) != 0) {
+            delta += step;
+        }
+        if ((nibble & 2) != 0) {
+            delta += step >> 1;
+        }
+        if ((nibble & 1) != 0) {
+            delta += step >> 2;
+        }
+        return (nibble & 8) != 0 ? -delta : delta;
+    }
+
+    private static int sample(byte[] pcm, int i) {
+        return (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+    }
+
+    private static int clampSample(int sample) {
+        return Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+    }
+
+    private static int clampIndex(int index) {
+        return Math.max(0, Math.min(STEP_TABLE.length - 1, index));
+    }
+}
@@ -0,0 +1,69 @@
+package com.example.myapplication;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 把背景執行緒送來的事件收集起來，每個畫面更新週期只喚醒主執行緒一次，整批交給 sink
+// post 可以在任何執行緒呼叫，不加鎖；frameExecutor 在 Android 上對應 Choreographer 的下一個 frame
+public class InboundDispatcher<T> {
+
+    public interface Sink<T> {
+        // 在 frameExecutor 的執行緒呼叫，batch 依 post 的順序排列
+        void onBatch(List<T> batch);
+    }
+
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    // 已經排了一次 drain 還沒執行時，後續的 post 不再重複排程
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    // 已放進 queue 的事件數；drain 只取當下這麼多，不會跟著持續送來的事件一直取下去而卡住主執行緒
+    private final AtomicInteger pending = new AtomicInteger();
+    private final Executor frameExecutor;
+    private final Sink<T> sink;
+    private final AtomicLong posted = new AtomicLong();
+    private final AtomicLong batches = new AtomicLong();
+    private final Runnable drain = this::drain;
+
+    public InboundDispatcher(Executor frameExecutor, Sink<T> sink) {
+        this.frameExecutor = frameExecutor;
+        this.sink = sink;
+    }
+
+    public void post(T event) {
+        queue.offer(event);
+        pending.incrementAndGet();
+        posted.incrementAndGet();
+        if (scheduled.compareAndSet(false, true)) {
+            frameExecutor.execute(drain);
+        }
+    }
+
+    private void drain() {
+        // 先清掉旗標再取數量：之後才計入的事件會排下一次 drain，不會被漏掉
+        scheduled.set(false);
+        int count = pending.getAndSet(0);
+        if (count == 0) {
+            return;
+        }
+        // 先放進 queue 才計數，queue 中至少有 count 個事件
+        List<T> batch = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            batch.add(queue.poll());
+        }
+        batches.incrementAndGet();
+        sink.onBatch(batch);
+    }
+
+    public long postedEvents() {
+        return posted.get();
+    }
+
+    // 實際喚醒 sink 的次數
+    public long deliveredBatches() {
+        return batches.get();
+    }
+}
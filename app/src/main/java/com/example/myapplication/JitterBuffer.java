@@ -0,0 +1,274 @@
+package com.example.myapplication;
+
+// 即時語音的自適應抖動緩衝：依 sequence 重新排序，依量測到的到達時間抖動決定播放延遲，
+// 遺失或太晚到的封包以衰減重複上一個封包補上。不依賴 Android，可用合成的到達時間測試。
+// 時間一律由呼叫端傳入 (毫秒)，方便測試用模擬時鐘驅動
+public class JitterBuffer {
+
+    // 最後輸出端，例如包裝 AudioTrack
+    public interface PcmSink {
+        void write(byte[] pcm, int offset, int length);
+    }
+
+    // 最多緩衝的封包數 (20 ms 封包約 1.28 秒)
+    static final int CAPACITY = 64;
+    // 連續補音超過此數就停止輸出並重新緩衝
+    static final int MAX_CONCEALED_RUN = 5;
+
+    private final int frameMs;
+    private final int frameBytes;
+    private final int minDelayFrames;
+    private final int maxDelayFrames;
+
+    private final byte[][] slots = new byte[CAPACITY][];
+    private final int[] slotSequence = new int[CAPACITY];
+    private final long[] slotArrivalMs = new long[CAPACITY];
+    private final byte[] lastFrame;
+    private final byte[] concealFrame;
+
+    private int streamId = -1;
+    private boolean playing;
+    private boolean ended;
+    private boolean haveData;
+    private int nextSequence;
+    private int highestSequence;
+    private long bufferingSince;
+    private int concealedRun;
+    // 上一個播出的封包在緩衝裡等待的時間，補音時為 -1
+    private long lastResidenceMs = -1;
+
+    // RFC 3550 的到達抖動估計 (毫秒)
+    private double jitterMs;
+    private boolean haveTransit;
+    private long lastTransit;
+
+    private long receivedFrames;
+    private long playedFrames;
+    private long concealedFrames;
+    private long lateFrames;
+    private long skippedFrames;
+    private long underruns;
+
+    public JitterBuffer(int frameMs, int frameBytes, int minDelayFrames, int maxDelayFrames) {
+        this.frameMs = frameMs;
+        this.frameBytes = frameBytes;
+        this.minDelayFrames = minDelayFrames;
+        this.maxDelayFrames = Math.min(maxDelayFrames, CAPACITY / 2);
+        this.lastFrame = new byte[frameBytes];
+        this.concealFrame = new byte[frameBytes];
+    }
+
+    public synchronized void push(int streamId, int sequence, byte[] frame, long arrivalMs) {
+        if (streamId != this.streamId) {
+            reset(streamId);
+        }
+        receivedFrames++;
+        updateJitter(sequence, arrivalMs);
+        if (!haveData) {
+            haveData = true;
+            nextSequence = sequence;
+            highestSequence = sequence;
+            bufferingSince = arrivalMs;
+        } else if (sequence < nextSequence) {
+            if (playing) {
+                // 已經播過或已經補音的位置
+                lateFrames++;
+                return;
+            }
+            // 還在緩衝時先到的是較晚的封包，往前調整起點
+            nextSequence = sequence;
+        }
+        if (sequence - nextSequence >= CAPACITY) {
+            // 落後太多，跳到只保留目標延遲的位置
+            int newNext = sequence - targetDelayFrames() + 1;
+            skippedFrames += newNext - nextSequence;
+            clearRange(nextSequence, newNext);
+            nextSequence = newNext;
+        }
+        int slot = index(sequence);
+        slots[slot] = frame;
+        slotSequence[slot] = sequence;
+        slotArrivalMs[slot] = arrivalMs;
+        if (sequence > highestSequence) {
+            highestSequence = sequence;
+        }
+        ended = false;
+    }
+
+    // 對方送出結束通知：允許把不足目標延遲的短句直接播完
+    public synchronized void markEnd(int streamId) {
+        if (streamId == this.streamId) {
+            ended = true;
+        }
+    }
+
+    // 每播放一個封包的時間呼叫一次。回傳 null 代表目前沒有可播的資料 (緩衝中或已播完)；
+    // 回傳的陣列可能是內部重複使用的補音緩衝區，需在下一次呼叫前使用完畢
+    public synchronized byte[] pull(long nowMs) {
+        if (!haveData) {
+            return null;
+        }
+        if (!playing) {
+            int buffered = highestSequence - nextSequence + 1;
+            int target = targetDelayFrames();
+            if (buffered < target && nowMs - bufferingSince < (long) target * frameMs && !ended) {
+                return null;
+            }
+            playing = true;
+        }
+        if (nextSequence > highestSequence) {
+            // 沒有任何後續封包
+            if (ended) {
+                finish();
+                return null;
+            }
+            underruns++;
+            return conceal(nowMs);
+        }
+        // 緩衝量遠超過目標時每次略過一個封包，逐步把延遲拉回來
+        if (highestSequence - nextSequence + 1 > targetDelayFrames() + 2) {
+            clearRange(nextSequence, nextSequence + 1);
+            nextSequence++;
+            skippedFrames++;
+        }
+        int slot = index(nextSequence);
+        byte[] frame = slots[slot];
+        if (frame != null && slotSequence[slot] == nextSequence) {
+            slots[slot] = null;
+            nextSequence++;
+            concealedRun = 0;
+            playedFrames++;
+            lastResidenceMs = nowMs - slotArrivalMs[slot];
+            System.arraycopy(frame, 0, lastFrame, 0, Math.min(frame.length, frameBytes));
+            return frame;
+        }
+        // 這個位置遺失，但後面已有封包
+        return conceal(nowMs);
+    }
+
+    // 取出一個封包寫到 sink；回傳是否有寫出資料
+    public boolean playout(long nowMs, PcmSink sink) {
+        byte[] frame = pull(nowMs);
+        if (frame == null) {
+            return false;
+        }
+        sink.write(frame, 0, frame.length);
+        return true;
+    }
+
+    // 目標播放延遲 (封包數)：約三倍抖動加上一個封包，限制在最小與最大值之間
+    public synchronized int targetDelayFrames() {
+        int frames = (int) Math.ceil(3 * jitterMs / frameMs) + 1;
+        return Math.max(minDelayFrames, Math.min(maxDelayFrames, frames));
+    }
+
+    public synchronized double jitterMs() {
+        return jitterMs;
+    }
+
+    public synchronized boolean isPlaying() {
+        return playing;
+    }
+
+    public synchronized long receivedFrames() {
+        return receivedFrames;
+    }
+
+    public synchronized long playedFrames() {
+        return playedFrames;
+    }
+
+    public synchronized long concealedFrames() {
+        return concealedFrames;
+    }
+
+    public synchronized long lateFrames() {
+        return lateFrames;
+    }
+
+    public synchronized long skippedFrames() {
+        return skippedFrames;
+    }
+
+    public synchronized long underruns() {
+        return underruns;
+    }
+
+    public synchronized long lastResidenceMs() {
+        return lastResidenceMs;
+    }
+
+    private byte[] conceal(long nowMs) {
+        lastResidenceMs = -1;
+        nextSequence++;
+        concealedRun++;
+        concealedFrames++;
+        if (concealedRun > MAX_CONCEALED_RUN) {
+            // 連續遺失太多，停止輸出並重新累積緩衝
+            playing = false;
+            concealedRun = 0;
+            bufferingSince = nowMs;
+            if (nextSequence > highestSequence) {
+                haveData = false;
+            }
+            return null;
+        }
+        // 重複上一個封包並逐次減半音量，避免突然的靜音或爆音
+        int shift = concealedRun;
+        for (int i = 0; i + 1 < frameBytes; i += 2) {
+            int sample = (short) ((lastFrame[i] & 0xff) | (lastFrame[i + 1] << 8));
+            sample >>= shift;
+            concealFrame[i] = (byte) sample;
+            concealFrame[i + 1] = (byte) (sample >> 8);
+        }
+        return concealFrame;
+    }
+
+    private void updateJitter(int sequence, long arrivalMs) {
+        long transit = arrivalMs - (long) sequence * frameMs;
+        if (haveTransit) {
+            long d = Math.abs(transit - lastTransit);
+            jitterMs += (d - jitterMs) / 16.0;
+        }
+        lastTransit = transit;
+        haveTransit = true;
+    }
+
+    private void finish() {
+        playing = false;
+        haveData = false;
+        concealedRun = 0;
+    }
+
+    private void reset(int streamId) {
+        this.streamId = streamId;
+        for (int i = 0; i < CAPACITY; i++) {
+            slots[i] = null;
+        }
+        playing = false;
+        ended = false;
+        haveData = false;
+        concealedRun = 0;
+        // 抖動估計沿用上一段，同一條連線的特性不會因換人說話而改變
+        haveTransit = false;
+    }
+
+    private void clearRange(int from, int to) {
+        if (to - from >= CAPACITY) {
+            for (int i = 0; i < CAPACITY; i++) {
+                slots[i] = null;
+            }
+            return;
+        }
+        for (int sequence = from; sequence < to; sequence++) {
+            int slot = index(sequence);
+            if (slotSequence[slot] == sequence) {
+                slots[slot] = null;
+            }
+        }
+    }
+
+    private static int index(int sequence) {
+        return Math.floorMod(sequence, CAPACITY);
+    }
+}
@@ -5,6 +5,7 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
+import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.net.wifi.WpsInfo;
 import android.net.wifi.p2p.WifiP2pConfig;
@@ -32,6 +33,9 @@ import java.util.List;
 public class MainActivity extends AppCompatActivity implements DeviceAdapter.OnDeviceClickListener {
 
     private static final int PERMISSIONS_REQUEST_CODE = 100;
+    // 群播預設關閉，使用者在主畫面開啟後記住設定
+    private static final String PREFS_NAME = "settings";
+    private static final String PREF_USE_MULTICAST = "use_multicast";
 
     // Wi-Fi P2P 相關變數
     private WifiP2pManager wifiP2pManager;
@@ -43,6 +47,7 @@ public class MainActivity extends AppCompatActivity implements DeviceAdapter.OnD
     private RecyclerView recyclerView;
     private DeviceAdapter adapter;
     private Switch roleSwitch;
+    private Switch multicastSwitch;
     private ImageButton chat_room_btn;
 
     // 角色設定：發送邀請端預設為 false（代表 Client），若為 true 則為 Server（群主）
@@ -80,6 +85,16 @@ public class MainActivity extends AppCompatActivity implements DeviceAdapter.OnD
         Log.d("WiFiP2P_DEBUG", "BroadcastReceiver unregistered");
     }
 
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // 離開程式時關閉所有連線與執行緒；shutdown 會等待寫檔完成，不在主執行緒執行
+        if (isFinishing()) {
+            ConnectionManager connectionManager = ConnectionManager.getInstance();
+            new Thread(connectionManager::shutdown, "ConnectionManager-shutdown").start();
+        }
+    }
+
     private void initWifiP2p() {
         wifiP2pManager = (WifiP2pManager) getSystemService(Context.WIFI_P2P_SERVICE);
         if (wifiP2pManager != null) {
@@ -111,6 +126,12 @@ public class MainActivity extends AppCompatActivity implements DeviceAdapter.OnD
             Toast.makeText(MainActivity.this, "已設定為 " + role, Toast.LENGTH_SHORT).show();
         });
 
+        SharedPreferences settings = getSharedPreferences(PREFS_NAME, MODE_PRIVATE);
+        multicastSwitch = findViewById(R.id.multicast_switch);
+        multicastSwitch.setChecked(settings.getBoolean(PREF_USE_MULTICAST, false));
+        multicastSwitch.setOnCheckedChangeListener((buttonView, isChecked) ->
+                settings.edit().putBoolean(PREF_USE_MULTICAST, isChecked).apply());
+
         // 掃描按鈕點擊事件
         findViewById(R.id.scan_btn).setOnClickListener(v -> {
             Toast.makeText(MainActivity.this, "Starting scan...", Toast.LENGTH_SHORT).show();
@@ -130,6 +151,10 @@ public class MainActivity extends AppCompatActivity implements DeviceAdapter.OnD
                 != PackageManager.PERMISSION_GRANTED) {
             permissionsNeeded.add(Manifest.permission.ACCESS_FINE_LOCATION);
         }
+        if (ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                != PackageManager.PERMISSION_GRANTED) {
+            permissionsNeeded.add(Manifest.permission.RECORD_AUDIO);
+        }
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.NEARBY_WIFI_DEVICES)
                     != PackageManager.PERMISSION_GRANTED) {
@@ -265,9 +290,13 @@ public class MainActivity extends AppCompatActivity implements DeviceAdapter.OnD
     // 處理連線資訊，依角色啟動 server 或 client，並跳轉至聊天畫面
     public void handleConnectionInfo(WifiP2pInfo info) {
         if (info.groupFormed) {
+            // 開啟群播時，成員多的群組語音與檔案改以群播送出；群主與成員都開啟才會用上，否則照常走 TCP
+            ConnectionManager.getInstance().setUseMulticast(multicastSwitch.isChecked());
             if (info.isGroupOwner) {
                 Log.d("WiFiP2P_DEBUG", "This device is Group Owner. Starting server.");
-                ConnectionManager.getInstance().startServer();
+                // 群主要服務所有成員，改用單執行緒 Selector 傳輸
+                ConnectionManager.getInstance().setUseNioTransport(true);
+                ConnectionManager.getInstance().startServer(info.groupOwnerAddress);
             } else {
                 String hostAddress = info.groupOwnerAddress.getHostAddress();
                 Log.d("WiFiP2P_DEBUG", "This device is Client. Connecting to " + hostAddress);
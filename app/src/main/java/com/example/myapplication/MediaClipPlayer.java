@@ -0,0 +1,52 @@
+package com.example.myapplication;
+
+import android.media.AudioAttributes;
+import android.media.MediaPlayer;
+
+import java.io.File;
+import java.io.IOException;
+
+// ClipPlaybackEngine 的 MediaPlayer 實作
+// MediaPlayer 的回呼送到建立它的執行緒的 Looper，所以要在播放用的 HandlerThread 上建立
+public class MediaClipPlayer implements ClipPlaybackEngine.Player {
+
+    private final MediaPlayer mediaPlayer = new MediaPlayer();
+
+    public MediaClipPlayer() {
+        mediaPlayer.setAudioAttributes(new AudioAttributes.Builder()
+                .setUsage(AudioAttributes.USAGE_MEDIA)
+                .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                .build());
+    }
+
+    @Override
+    public void prepareAsync(File file, ClipPlaybackEngine.Listener listener) {
+        mediaPlayer.setOnPreparedListener(player -> listener.onPrepared());
+        mediaPlayer.setOnCompletionListener(player -> listener.onCompletion());
+        mediaPlayer.setOnErrorListener((player, what, extra) -> {
+            listener.onError("what=" + what + ", extra=" + extra);
+            return true;
+        });
+        try {
+            mediaPlayer.setDataSource(file.getAbsolutePath());
+            mediaPlayer.prepareAsync();
+        } catch (IOException | IllegalStateException e) {
+            listener.onError(e.toString());
+        }
+    }
+
+    @Override
+    public void start() {
+        mediaPlayer.start();
+    }
+
+    @Override
+    public void reset() {
+        mediaPlayer.reset();
+    }
+
+    @Override
+    public void release() {
+        mediaPlayer.release();
+    }
+}
@@ -0,0 +1,327 @@
+package com.example.myapplication;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.media.MediaFormat;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// 平台內建的 MediaCodec 編碼 (Opus、AAC-LC)：位元率最低但較耗 CPU，且不是每台裝置都有
+// payload 由多個 [種類 1 byte][長度 2 bytes][資料] 組成：種類 0 為壓縮資料，1 為解碼器設定 (依序為 csd-0、csd-1...)
+// 編碼器的設定不放在 encode 的輸出裡，由 config() 提供，送出端放在每條連線改用這個編碼後的第一個封包前面；
+// 編碼器一次可能輸出 0 到多個壓縮封包，
+// 解碼端把輸出的 PCM 暫存起來，每個 VOICE 封包取出剛好 20 ms
+public class MediaCodecAudioCodec implements AudioCodec {
+
+    public static final byte ID_OPUS = 2;
+    public static final byte ID_AAC = 3;
+
+    private static final int KIND_DATA = 0;
+    private static final int KIND_CONFIG = 1;
+    private static final long TIMEOUT_US = 5000;
+    // 解碼端先累積 8 個封包 (160 ms，超過一個 AAC 封包的長度) 才開始輸出
+    private static final int PRIME_BYTES = FRAME_BYTES * 8;
+    private static final int MAX_PENDING_BYTES = FRAME_BYTES * 64;
+
+    private final byte id;
+    private final String name;
+    private final String mime;
+    private final int bitrate;
+
+    MediaCodecAudioCodec(byte id, String name, String mime, int bitrate) {
+        this.id = id;
+        this.name = name;
+        this.mime = mime;
+        this.bitrate = bitrate;
+    }
+
+    // 本機同時有編碼器與解碼器的平台編碼
+    public static List<AudioCodec> available() {
+        List<AudioCodec> codecs = new ArrayList<>();
+        MediaCodecList list = new MediaCodecList(MediaCodecList.REGULAR_CODECS);
+        MediaCodecAudioCodec[] candidates = {
+                new MediaCodecAudioCodec(ID_OPUS, "Opus", MediaFormat.MIMETYPE_AUDIO_OPUS, 12000),
+                new MediaCodecAudioCodec(ID_AAC, "AAC-LC", MediaFormat.MIMETYPE_AUDIO_AAC, 16000)
+        };
+        for (MediaCodecAudioCodec codec : candidates) {
+            if (list.findEncoderForFormat(codec.encoderFormat()) != null
+                    && list.findDecoderForFormat(MediaFormat.createAudioFormat(codec.mime, SAMPLE_RATE, 1)) != null) {
+                codecs.add(codec);
+            } else {
+                Log.d("MediaCodecAudioCodec", codec.name + " not available");
+            }
+        }
+        return codecs;
+    }
+
+    @Override
+    public byte id() {
+        return id;
+    }
+
+    @Override
+    public String name() {
+        return name;
+    }
+
+    @Override
+    public int bitrate() {
+        return bitrate;
+    }
+
+    @Override
+    public Encoder newEncoder() {
+        try {
+            return new PlatformEncoder();
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Cannot create " + name + " encoder", e);
+        }
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return new PlatformDecoder();
+    }
+
+    private MediaFormat encoderFormat() {
+        MediaFormat format = MediaFormat.createAudioFormat(mime, SAMPLE_RATE, 1);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitrate);
+        if (MediaFormat.MIMETYPE_AUDIO_AAC.equals(mime)) {
+            format.setInteger(MediaFormat.KEY_AAC_PROFILE, MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+        }
+        return format;
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, int kind, ByteBuffer data) {
+        int length = data.remaining();
+        out.write(kind);
+        out.write(length >> 8);
+        out.write(length);
+        for (int i = data.position(); i < data.limit(); i++) {
+            out.write(data.get(i));
+        }
+    }
+
+    private class PlatformEncoder implements Encoder {
+        private final MediaCodec codec;
+        private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        private byte[] config = new byte[0];
+        private long presentationUs;
+
+        PlatformEncoder() throws IOException {
+            codec = MediaCodec.createEncoderByType(mime);
+            codec.configure(encoderFormat(), null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            codec.start();
+        }
+
+        @Override
+        public byte[] encode(byte[] pcm) {
+            out.reset();
+            int input = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (input >= 0) {
+                ByteBuffer buffer = codec.getInputBuffer(input);
+                buffer.clear();
+                buffer.put(pcm);
+                codec.queueInputBuffer(input, 0, pcm.length, presentationUs, 0);
+                presentationUs += FRAME_MS * 1000L;
+            } else {
+                Log.w("MediaCodecAudioCodec", name + " encoder busy, frame dropped");
+            }
+            while (true) {
+                int index = codec.dequeueOutputBuffer(info, 0);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    // 解碼端需要的設定 (AAC 的 AudioSpecificConfig、Opus 的 OpusHead 等)
+                    MediaFormat format = codec.getOutputFormat();
+                    ByteArrayOutputStream entries = new ByteArrayOutputStream();
+                    for (int i = 0; format.containsKey("csd-" + i); i++) {
+                        writeEntry(entries, KIND_CONFIG, format.getByteBuffer("csd-" + i));
+                    }
+                    config = entries.toByteArray();
+                    continue;
+                }
+                if (index < 0) {
+                    break;
+                }
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) == 0 && info.size > 0 && buffer != null) {
+                    buffer.limit(info.offset + info.size);
+                    buffer.position(info.offset);
+                    writeEntry(out, KIND_DATA, buffer);
+                }
+                codec.releaseOutputBuffer(index, false);
+            }
+            return out.toByteArray();
+        }
+
+        @Override
+        public byte[] config() {
+            return config.clone();
+        }
+
+        @Override
+        public void close() {
+            codec.stop();
+            codec.release();
+        }
+    }
+
+    private class PlatformDecoder implements Decoder {
+        private final List<ByteBuffer> config = new ArrayList<>();
+        private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        private final byte[] pending = new byte[MAX_PENDING_BYTES];
+        private MediaCodec codec;
+        private boolean failed;
+        private boolean primed;
+        private int pendingBytes;
+        private long presentationUs;
+        // 平台解碼器可能以其他取樣率輸出 (例如 Opus 固定 48 kHz)，以平均值降回 8 kHz
+        private int outputRate = SAMPLE_RATE;
+        private int outputChannels = 1;
+        private int decimationSum;
+        private int decimationCount;
+
+        @Override
+        public byte[] decode(byte[] data) {
+            int position = 0;
+            boolean newConfig = true;
+            while (position + 3 <= data.length) {
+                int kind = data[position];
+                int length = ((data[position + 1] & 0xff) << 8) | (data[position + 2] & 0xff);
+                position += 3;
+                if (position + length > data.length) {
+                    return null;
+                }
+                if (kind == KIND_CONFIG) {
+                    // 送出端切換編碼或重送時設定會再出現：解碼器已建立就忽略，否則以這個封包的設定取代
+                    if (codec == null) {
+                        if (newConfig) {
+                            config.clear();
+                            newConfig = false;
+                        }
+                        config.add(ByteBuffer.wrap(data, position, length).slice());
+                    }
+                } else if (kind == KIND_DATA && ensureStarted()) {
+                    queue(data, position, length);
+                }
+                position += length;
+            }
+            if (codec != null) {
+                drain();
+            }
+            return nextFrame();
+        }
+
+        @Override
+        public void close() {
+            if (codec != null) {
+                codec.stop();
+                codec.release();
+                codec = null;
+            }
+        }
+
+        // 收到設定之後的第一個壓縮封包才建立解碼器；中途加入、沒收到設定的一段對講會輸出靜音
+        private boolean ensureStarted() {
+            if (codec != null) {
+                return true;
+            }
+            if (failed || config.isEmpty()) {
+                return false;
+            }
+            try {
+                MediaFormat format = MediaFormat.createAudioFormat(mime, SAMPLE_RATE, 1);
+                for (int i = 0; i < config.size(); i++) {
+                    format.setByteBuffer("csd-" + i, config.get(i));
+                }
+                codec = MediaCodec.createDecoderByType(mime);
+                codec.configure(format, null, null, 0);
+                codec.start();
+                return true;
+            } catch (IOException | RuntimeException e) {
+                Log.e("MediaCodecAudioCodec", "Cannot create " + name + " decoder", e);
+                failed = true;
+                codec = null;
+                return false;
+            }
+        }
+
+        private void queue(byte[] data, int offset, int length) {
+            int input = codec.dequeueInputBuffer(TIMEOUT_US);
+            if (input < 0) {
+                Log.w("MediaCodecAudioCodec", name + " decoder busy, packet dropped");
+                return;
+            }
+            ByteBuffer buffer = codec.getInputBuffer(input);
+            buffer.clear();
+            buffer.put(data, offset, length);
+            codec.queueInputBuffer(input, 0, length, presentationUs, 0);
+            presentationUs += FRAME_MS * 1000L;
+        }
+
+        private void drain() {
+            while (true) {
+                int index = codec.dequeueOutputBuffer(info, 0);
+                if (index == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+                    MediaFormat format = codec.getOutputFormat();
+                    outputRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+                    outputChannels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+                    continue;
+                }
+                if (index < 0) {
+                    return;
+                }
+                ByteBuffer buffer = codec.getOutputBuffer(index);
+                if (buffer != null) {
+                    appendPcm(buffer, info.offset, info.size);
+                }
+                codec.releaseOutputBuffer(index, false);
+            }
+        }
+
+        // 只取第一個聲道，並把多餘的取樣率平均掉
+        private void appendPcm(ByteBuffer buffer, int offset, int size) {
+            int factor = Math.max(1, outputRate / SAMPLE_RATE);
+            int stride = 2 * Math.max(1, outputChannels);
+            for (int i = offset; i + 1 < offset + size; i += stride) {
+                decimationSum += (short) ((buffer.get(i) & 0xff) | (buffer.get(i + 1) << 8));
+                if (++decimationCount < factor) {
+                    continue;
+                }
+                int sample = decimationSum / factor;
+                decimationSum = 0;
+                decimationCount = 0;
+                if (pendingBytes + 2 > pending.length) {
+                    // 播放端跟不上，丟掉最舊的一個封包
+                    System.arraycopy(pending, FRAME_BYTES, pending, 0, pendingBytes - FRAME_BYTES);
+                    pendingBytes -= FRAME_BYTES;
+                }
+                pending[pendingBytes++] = (byte) sample;
+                pending[pendingBytes++] = (byte) (sample >> 8);
+            }
+        }
+
+        private byte[] nextFrame() {
+            byte[] frame = new byte[FRAME_BYTES];
+            if (!primed && pendingBytes < PRIME_BYTES) {
+                return frame;
+            }
+            primed = true;
+            if (pendingBytes < FRAME_BYTES) {
+                // 解碼輸出不足，輸出靜音並重新累積
+                primed = false;
+                return frame;
+            }
+            System.arraycopy(pending, 0, frame, 0, FRAME_BYTES);
+            pendingBytes -= FRAME_BYTES;
+            System.arraycopy(pending, FRAME_BYTES, pending, 0, pendingBytes);
+            return frame;
+        }
+    }
+}
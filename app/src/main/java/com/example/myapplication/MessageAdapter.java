@@ -6,34 +6,160 @@ import android.view.ViewGroup;
 import android.widget.TextView;
 
 import androidx.annotation.NonNull;
+import androidx.recyclerview.widget.AsyncListDiffer;
+import androidx.recyclerview.widget.DiffUtil;
 import androidx.recyclerview.widget.RecyclerView;
 
 import java.util.List;
+import java.util.Locale;
 
+// 聊天紀錄由 MessageWindow 分頁載入，記憶體中只保留附近幾頁
+// 每次視窗變動交給 AsyncListDiffer 在背景比對，只更新有變化的項目
 public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageViewHolder> {
 
-    private final List<String> messages;
+    public interface OnAudioClickListener {
+        void onAudioClick(ChatMessage message);
+    }
+
+    public interface OnAttachmentClickListener {
+        void onAttachmentClick(ChatMessage message);
+    }
+
+    static final int TYPE_INCOMING_TEXT = 0;
+    static final int TYPE_OUTGOING_TEXT = 1;
+    static final int TYPE_AUDIO = 2;
+    static final int TYPE_EVENT = 3;
+    static final int TYPE_ATTACHMENT = 4;
+
+    // 繫結到距離頭尾這麼近的項目時先載入下一頁
+    private static final int PREFETCH_DISTANCE = 10;
+
+    private static final DiffUtil.ItemCallback<ChatMessage> DIFF_CALLBACK = new DiffUtil.ItemCallback<ChatMessage>() {
+        @Override
+        public boolean areItemsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return oldItem.id == newItem.id;
+        }
+
+        @Override
+        public boolean areContentsTheSame(@NonNull ChatMessage oldItem, @NonNull ChatMessage newItem) {
+            return oldItem.equals(newItem);
+        }
+    };
+
+    private final MessageWindow window;
+    private final OnAudioClickListener audioClickListener;
+    private final OnAttachmentClickListener attachmentClickListener;
+    private final AsyncListDiffer<ChatMessage> differ = new AsyncListDiffer<>(this, DIFF_CALLBACK);
+    private Runnable commitCallback;
+
+    public MessageAdapter(MessageWindow window, OnAudioClickListener audioClickListener) {
+        this(window, audioClickListener, null);
+    }
+
+    public MessageAdapter(MessageWindow window, OnAudioClickListener audioClickListener,
+                          OnAttachmentClickListener attachmentClickListener) {
+        this.window = window;
+        this.audioClickListener = audioClickListener;
+        this.attachmentClickListener = attachmentClickListener;
+        setHasStableIds(true);
+        window.setListener(this::submit);
+    }
+
+    // 每次比對結果套用到畫面後呼叫，用來決定是否捲到最底
+    public void setCommitCallback(Runnable commitCallback) {
+        this.commitCallback = commitCallback;
+    }
+
+    // 比對尚未完成時又送來新的內容，舊的比對結果會直接丟棄
+    void submit(List<ChatMessage> snapshot) {
+        differ.submitList(snapshot, commitCallback);
+    }
 
-    public MessageAdapter(List<String> messages) {
-        this.messages = messages;
+    @Override
+    public int getItemViewType(int position) {
+        return viewType(differ.getCurrentList().get(position));
+    }
+
+    static int viewType(ChatMessage message) {
+        switch (message.kind) {
+            case ChatMessage.KIND_AUDIO:
+                return TYPE_AUDIO;
+            case ChatMessage.KIND_LIVE_TALK:
+                return TYPE_EVENT;
+            case ChatMessage.KIND_ATTACHMENT:
+                return TYPE_ATTACHMENT;
+            case ChatMessage.KIND_TEXT:
+            default:
+                return message.outgoing ? TYPE_OUTGOING_TEXT : TYPE_INCOMING_TEXT;
+        }
+    }
+
+    @Override
+    public long getItemId(int position) {
+        return differ.getCurrentList().get(position).id;
     }
 
     @NonNull
     @Override
     public MessageViewHolder onCreateViewHolder(@NonNull ViewGroup parent, int viewType) {
-        View view = LayoutInflater.from(parent.getContext()).inflate(R.layout.message_item, parent, false);
-        return new MessageViewHolder(view);
+        int layout;
+        switch (viewType) {
+            case TYPE_OUTGOING_TEXT:
+                layout = R.layout.message_item_outgoing;
+                break;
+            case TYPE_AUDIO:
+                layout = R.layout.message_item_audio;
+                break;
+            case TYPE_EVENT:
+                layout = R.layout.message_item_event;
+                break;
+            case TYPE_ATTACHMENT:
+                layout = R.layout.message_item_attachment;
+                break;
+            case TYPE_INCOMING_TEXT:
+            default:
+                layout = R.layout.message_item;
+                break;
+        }
+        View view = LayoutInflater.from(parent.getContext()).inflate(layout, parent, false);
+        MessageViewHolder holder = new MessageViewHolder(view);
+        if (viewType == TYPE_AUDIO) {
+            view.setOnClickListener(v -> {
+                int position = holder.getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && audioClickListener != null) {
+                    audioClickListener.onAudioClick(differ.getCurrentList().get(position));
+                }
+            });
+        } else if (viewType == TYPE_ATTACHMENT) {
+            view.setOnClickListener(v -> {
+                int position = holder.getBindingAdapterPosition();
+                if (position != RecyclerView.NO_POSITION && attachmentClickListener != null) {
+                    attachmentClickListener.onAttachmentClick(differ.getCurrentList().get(position));
+                }
+            });
+        }
+        return holder;
     }
 
     @Override
     public void onBindViewHolder(@NonNull MessageViewHolder holder, int position) {
-        String message = messages.get(position);
-        holder.messageText.setText(message);
+        List<ChatMessage> messages = differ.getCurrentList();
+        ChatMessage message = messages.get(position);
+        holder.messageText.setText(displayText(message));
+        if (message.kind == ChatMessage.KIND_ATTACHMENT) {
+            holder.messageText.setCompoundDrawablesRelativeWithIntrinsicBounds(
+                    attachmentIcon(message.attachmentMimeType()), 0, 0, 0);
+        }
+        if (position < PREFETCH_DISTANCE) {
+            window.loadOlder();
+        } else if (position >= messages.size() - PREFETCH_DISTANCE) {
+            window.loadNewer();
+        }
     }
 
     @Override
     public int getItemCount() {
-        return messages.size();
+        return differ.getCurrentList().size();
     }
 
     static class MessageViewHolder extends RecyclerView.ViewHolder {
@@ -45,9 +171,45 @@ public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageV
         }
     }
 
-    // 增加一個方法來添加新消息
-    public void addMessage(String message) {
-        messages.add(message);
-        notifyItemInserted(messages.size() - 1);
+    static String displayText(ChatMessage message) {
+        String text;
+        switch (message.kind) {
+            case ChatMessage.KIND_AUDIO:
+                text = message.outgoing ? "Me: Sent an audio message" : "Received an audio message";
+                break;
+            case ChatMessage.KIND_LIVE_TALK:
+                text = "Me: Live talk ended";
+                break;
+            case ChatMessage.KIND_ATTACHMENT: {
+                String name = message.attachmentName().isEmpty() ? "a file" : message.attachmentName();
+                long size = message.attachmentSize();
+                String detail = size >= 0 ? name + " (" + formatSize(size) + ")" : name;
+                text = message.outgoing ? "Me: Sent " + detail : "Received " + detail;
+                break;
+            }
+            case ChatMessage.KIND_TEXT:
+            default:
+                text = (message.outgoing ? "Me: " : "Peer: ") + message.body;
+                break;
+        }
+        return message.state == ChatMessage.STATE_FAILED ? text + " (not sent)" : text;
+    }
+
+    static int attachmentIcon(String mimeType) {
+        if (mimeType.startsWith("image/")) {
+            return android.R.drawable.ic_menu_gallery;
+        } else if (mimeType.startsWith("audio/") || mimeType.startsWith("video/")) {
+            return android.R.drawable.ic_media_play;
+        }
+        return android.R.drawable.ic_menu_save;
+    }
+
+    static String formatSize(long bytes) {
+        if (bytes < 1024) {
+            return bytes + " B";
+        } else if (bytes < 1024 * 1024) {
+            return String.format(Locale.US, "%.1f KB", bytes / 1024.0);
+        }
+        return String.format(Locale.US, "%.1f MB", bytes / (1024.0 * 1024));
     }
 }
@@ -0,0 +1,421 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+// 聊天紀錄：只附加寫入的二進位 log，依大小切成多個區段檔，每則訊息依寫入順序有一個從 0 開始的編號
+// 區段檔名為第一則訊息的編號；每個區段另有一個稀疏索引檔，每 INDEX_INTERVAL 則記一次檔案位置，
+// 讀取任一範圍只需找到區段、查索引，再往後掃最多 INDEX_INTERVAL - 1 則
+// 開啟時只讀索引檔並檢查最後一個區段的尾端，不需要掃過全部紀錄；寫到一半的紀錄 (例如當機) 會被截掉
+//
+// 紀錄格式：長度 (4 bytes，不含這 8 bytes 標頭) + CRC32 (4 bytes) + 時間 (8 bytes) + 旗標 (1 byte) + 種類 (1 byte)
+// + [狀態 (1 byte) + 發送者長度 (1 byte) + 發送者] + UTF-8 內容；旗標 bit 0 為送出的訊息，
+// bit 1 代表有中括號內的欄位 (最早的紀錄沒有，讀出時視為已送出 / 已收到、發送者空白)
+public class MessageLog {
+
+    public static final long DEFAULT_SEGMENT_BYTES = 4L * 1024 * 1024;
+    static final int INDEX_INTERVAL = 32;
+
+    private static final int HEADER_SIZE = 8;
+    private static final int FIXED_BODY_SIZE = 10;
+    private static final int FLAG_OUTGOING = 1;
+    private static final int FLAG_EXTENDED = 2;
+    private static final int MAX_SENDER_BYTES = 255;
+    // 單則訊息上限，超過視為損毀
+    private static final int MAX_RECORD_SIZE = 1024 * 1024;
+    private static final String LOG_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private final File directory;
+    private final long segmentBytes;
+    private final List<Segment> segments = new ArrayList<>();
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer writeBuffer = ByteBuffer.allocate(256);
+    private ByteBuffer readBuffer = ByteBuffer.allocate(64 * 1024);
+    private long size;
+    private boolean closed;
+
+    public MessageLog(File directory) throws IOException {
+        this(directory, DEFAULT_SEGMENT_BYTES);
+    }
+
+    public MessageLog(File directory, long segmentBytes) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(LOG_SUFFIX));
+        long[] bases = new long[files != null ? files.length : 0];
+        for (int i = 0; i < bases.length; i++) {
+            String name = files[i].getName();
+            bases[i] = Long.parseLong(name.substring(0, name.length() - LOG_SUFFIX.length()));
+        }
+        Arrays.sort(bases);
+        for (int i = 0; i < bases.length; i++) {
+            Segment segment = new Segment(bases[i]);
+            segment.loadIndex();
+            if (i + 1 < bases.length) {
+                segment.count = bases[i + 1] - bases[i];
+                if (segment.indexCount < (segment.count + INDEX_INTERVAL - 1) / INDEX_INTERVAL) {
+                    // 舊區段的索引不完整，掃一次重建
+                    recover(segment);
+                    segment.closeIndex();
+                }
+            } else {
+                recover(segment);
+            }
+            segments.add(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.add(new Segment(0));
+        }
+        Segment last = segments.get(segments.size() - 1);
+        size = last.base + last.count;
+    }
+
+    public synchronized long size() {
+        return size;
+    }
+
+    // 附加一則訊息，回傳帶有編號的紀錄
+    public synchronized ChatMessage append(ChatMessage message) throws IOException {
+        checkOpen();
+        byte[] text = message.body.getBytes(StandardCharsets.UTF_8);
+        byte[] sender = message.sender.getBytes(StandardCharsets.UTF_8);
+        if (sender.length > MAX_SENDER_BYTES) {
+            sender = Arrays.copyOf(sender, MAX_SENDER_BYTES);
+        }
+        int bodySize = FIXED_BODY_SIZE + 2 + sender.length + text.length;
+        if (bodySize > MAX_RECORD_SIZE) {
+            throw new IOException("Message too large: " + text.length + " bytes");
+        }
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.count > 0 && segment.bytes + HEADER_SIZE + bodySize > segmentBytes) {
+            segment = rotate();
+        }
+        if (writeBuffer.capacity() < HEADER_SIZE + bodySize) {
+            writeBuffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        }
+        writeBuffer.clear();
+        writeBuffer.position(HEADER_SIZE);
+        int flags = FLAG_EXTENDED | (message.outgoing ? FLAG_OUTGOING : 0);
+        writeBuffer.putLong(message.timestampMs).put((byte) flags).put(message.kind)
+                .put(message.state).put((byte) sender.length).put(sender).put(text);
+        crc.reset();
+        crc.update(writeBuffer.array(), HEADER_SIZE, bodySize);
+        writeBuffer.putInt(0, bodySize).putInt(4, (int) crc.getValue());
+        writeBuffer.flip();
+        long position = segment.bytes;
+        FileChannel channel = segment.channel();
+        while (writeBuffer.hasRemaining()) {
+            position += channel.write(writeBuffer, position);
+        }
+        // 先寫紀錄再寫索引，索引不會指向不存在的紀錄
+        if (segment.count % INDEX_INTERVAL == 0) {
+            segment.appendIndex((int) segment.bytes);
+        }
+        segment.bytes = position;
+        segment.count++;
+        return message.withId(size++);
+    }
+
+    // 讀取 [from, from + count) 範圍內的紀錄，超出現有範圍的部分略過
+    public synchronized List<ChatMessage> read(long from, int count) throws IOException {
+        checkOpen();
+        long end = Math.min(size, from + count);
+        List<ChatMessage> result = new ArrayList<>((int) Math.max(0, end - from));
+        long next = Math.max(0, from);
+        int segmentIndex = findSegment(next);
+        while (next < end && segmentIndex < segments.size()) {
+            Segment segment = segments.get(segmentIndex);
+            long segmentEnd = Math.min(end, segment.base + segment.count);
+            if (segmentEnd > next) {
+                readSegment(segment, Math.max(next, segment.base), segmentEnd, result);
+            }
+            next = segmentEnd;
+            segmentIndex++;
+        }
+        return result;
+    }
+
+    // 確保已寫入的紀錄落到儲存裝置
+    public synchronized void sync() throws IOException {
+        checkOpen();
+        Segment segment = segments.get(segments.size() - 1);
+        if (segment.channel != null) {
+            segment.channel.force(false);
+        }
+        if (segment.indexChannel != null) {
+            segment.indexChannel.force(false);
+        }
+    }
+
+    public synchronized int segmentCount() {
+        return segments.size();
+    }
+
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Segment segment : segments) {
+            segment.close();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (closed) {
+            throw new IOException("MessageLog closed");
+        }
+    }
+
+    private Segment rotate() throws IOException {
+        Segment last = segments.get(segments.size() - 1);
+        // 舊區段不再寫入，只保留讀取用的 channel
+        last.closeIndex();
+        Segment next = new Segment(last.base + last.count);
+        segments.add(next);
+        return next;
+    }
+
+    private int findSegment(long index) {
+        int low = 0;
+        int high = segments.size() - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (segments.get(mid).base <= index) {
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private void readSegment(Segment segment, long from, long to, List<ChatMessage> out) throws IOException {
+        int relative = (int) (from - segment.base);
+        int slot = relative / INDEX_INTERVAL;
+        long position = segment.index[slot];
+        int current = slot * INDEX_INTERVAL;
+        FileChannel channel = segment.channel();
+        ByteBuffer buffer = readBuffer;
+        buffer.clear().flip();
+        long bufferStart = position;
+        int wanted = (int) (to - segment.base);
+        while (current < wanted) {
+            if (buffer.remaining() < HEADER_SIZE) {
+                bufferStart = position;
+                buffer = fill(channel, buffer, position, HEADER_SIZE);
+            }
+            int bodySize = buffer.getInt(buffer.position());
+            if (buffer.remaining() < HEADER_SIZE + bodySize) {
+                bufferStart = position;
+                buffer = fill(channel, buffer, position, HEADER_SIZE + bodySize);
+            }
+            if (current >= relative) {
+                out.add(decode(buffer, segment.base + current, bodySize));
+            }
+            buffer.position(buffer.position() + HEADER_SIZE + bodySize);
+            position = bufferStart + buffer.position();
+            current++;
+        }
+        readBuffer = buffer.capacity() > readBuffer.capacity() ? buffer : readBuffer;
+    }
+
+    // 從 position 重新填滿讀取緩衝區，至少要有 needed bytes
+    private ByteBuffer fill(FileChannel channel, ByteBuffer buffer, long position, int needed) throws IOException {
+        if (buffer.capacity() < needed) {
+            buffer = ByteBuffer.allocate(needed);
+        }
+        buffer.clear();
+        while (buffer.position() < needed) {
+            int n = channel.read(buffer, position + buffer.position());
+            if (n < 0) {
+                throw new IOException("Unexpected end of message log at " + position);
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ChatMessage decode(ByteBuffer buffer, long index, int bodySize) throws IOException {
+        int start = buffer.position() + HEADER_SIZE;
+        int end = start + bodySize;
+        long timestamp = buffer.getLong(start);
+        int flags = buffer.get(start + 8);
+        boolean outgoing = (flags & FLAG_OUTGOING) != 0;
+        byte kind = buffer.get(start + 9);
+        int offset = start + FIXED_BODY_SIZE;
+        byte state = outgoing ? ChatMessage.STATE_SENT : ChatMessage.STATE_RECEIVED;
+        String sender = "";
+        if ((flags & FLAG_EXTENDED) != 0) {
+            state = buffer.get(offset);
+            int senderLength = buffer.get(offset + 1) & 0xff;
+            offset += 2;
+            if (offset + senderLength > end) {
+                throw new IOException("Corrupt message record " + index);
+            }
+            sender = new String(buffer.array(), buffer.arrayOffset() + offset, senderLength, StandardCharsets.UTF_8);
+            offset += senderLength;
+        }
+        String text = new String(buffer.array(), buffer.arrayOffset() + offset, end - offset, StandardCharsets.UTF_8);
+        return new ChatMessage(index, timestamp, outgoing, sender, kind, state, text);
+    }
+
+    // 檢查最後一個區段：從最後一個索引位置往後逐筆驗證，補上缺少的索引，截掉不完整或損毀的尾端
+    private void recover(Segment segment) throws IOException {
+        FileChannel channel = segment.channel();
+        long fileSize = channel.size();
+        while (segment.indexCount > 0 && segment.index[segment.indexCount - 1] >= fileSize) {
+            segment.indexCount--;
+        }
+        int slot = Math.max(0, segment.indexCount - 1);
+        long position = segment.indexCount > 0 ? segment.index[slot] : 0;
+        int count = slot * INDEX_INTERVAL;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        ByteBuffer body = ByteBuffer.allocate(256);
+        CRC32 check = new CRC32();
+        while (position + HEADER_SIZE <= fileSize) {
+            header.clear();
+            channel.read(header, position);
+            int bodySize = header.getInt(0);
+            if (bodySize < FIXED_BODY_SIZE || bodySize > MAX_RECORD_SIZE || position + HEADER_SIZE + bodySize > fileSize) {
+                break;
+            }
+            if (body.capacity() < bodySize) {
+                body = ByteBuffer.allocate(bodySize);
+            }
+            body.clear().limit(bodySize);
+            while (body.hasRemaining()) {
+                channel.read(body, position + HEADER_SIZE + body.position());
+            }
+            check.reset();
+            check.update(body.array(), 0, bodySize);
+            if ((int) check.getValue() != header.getInt(4)) {
+                break;
+            }
+            if (count % INDEX_INTERVAL == 0 && count / INDEX_INTERVAL >= segment.indexCount) {
+                segment.appendIndex((int) position);
+            }
+            position += HEADER_SIZE + bodySize;
+            count++;
+        }
+        // 索引比實際紀錄多 (紀錄沒寫完就中斷)
+        segment.truncateIndex((count + INDEX_INTERVAL - 1) / INDEX_INTERVAL);
+        if (position < fileSize) {
+            Log.w("MessageLog", "Truncating " + (fileSize - position) + " bytes of incomplete records in " + segment.file);
+            channel.truncate(position);
+        }
+        segment.bytes = position;
+        segment.count = count;
+    }
+
+    private class Segment {
+        final long base;
+        final File file;
+        final File indexFile;
+        long count;
+        long bytes;
+        // 第 k 個元素為第 k * INDEX_INTERVAL 則紀錄的檔案位置
+        int[] index = new int[16];
+        int indexCount;
+        private FileChannel channel;
+        private FileChannel indexChannel;
+
+        Segment(long base) {
+            this.base = base;
+            String name = String.format(Locale.ROOT, "%020d", base);
+            this.file = new File(directory, name + LOG_SUFFIX);
+            this.indexFile = new File(directory, name + INDEX_SUFFIX);
+        }
+
+        FileChannel channel() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+            }
+            return channel;
+        }
+
+        void loadIndex() throws IOException {
+            if (!indexFile.exists()) {
+                return;
+            }
+            try (FileChannel in = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+                // 寫到一半的索引項目直接捨棄
+                int entries = (int) (in.size() / 4);
+                ByteBuffer buffer = ByteBuffer.allocate(entries * 4);
+                while (buffer.hasRemaining() && in.read(buffer) >= 0) {
+                    // 讀滿為止
+                }
+                buffer.flip();
+                index = new int[Math.max(16, entries)];
+                indexCount = buffer.remaining() / 4;
+                for (int i = 0; i < indexCount; i++) {
+                    index[i] = buffer.getInt();
+                }
+            }
+        }
+
+        void appendIndex(int position) throws IOException {
+            if (indexCount == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[indexCount++] = position;
+            if (indexChannel == null) {
+                indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+            }
+            ByteBuffer entry = ByteBuffer.allocate(4);
+            entry.putInt(0, position);
+            indexChannel.write(entry, (long) (indexCount - 1) * 4);
+        }
+
+        void truncateIndex(int entries) throws IOException {
+            if (entries < indexCount) {
+                indexCount = entries;
+            }
+            if (indexFile.exists() && indexFile.length() != (long) indexCount * 4) {
+                if (indexChannel == null) {
+                    indexChannel = FileChannel.open(indexFile.toPath(), StandardOpenOption.WRITE);
+                }
+                indexChannel.truncate((long) indexCount * 4);
+            }
+        }
+
+        void closeIndex() {
+            if (indexChannel != null) {
+                try {
+                    indexChannel.close();
+                } catch (IOException e) {
+                    Log.e("MessageLog", "Failed to close " + indexFile, e);
+                }
+                indexChannel = null;
+            }
+        }
+
+        void close() {
+            closeIndex();
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    Log.e("MessageLog", "Failed to close " + file, e);
+                }
+                channel = null;
+            }
+        }
+    }
+}
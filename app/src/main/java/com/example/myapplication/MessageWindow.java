@@ -0,0 +1,195 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+// 聊天畫面顯示的一段連續紀錄：開啟時載入最新的一頁，捲到頂端 (或底端) 附近時再往前 (往後) 載入一頁，
+// 超過 maxItems 時從另一端丟掉，記憶體中的訊息數有上限
+// 除了建構之外所有方法都在主執行緒呼叫；讀檔在 ioExecutor，結果再交回 mainExecutor 套用
+// 同一輪主執行緒內的多次變更 (例如一群訊息同時到達) 合併成一次 snapshot 通知
+public class MessageWindow {
+
+    public interface Listener {
+        // 目前視窗內容的不可變副本，依編號遞增排列
+        void onWindowChanged(List<ChatMessage> snapshot);
+    }
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_ITEMS = 300;
+
+    private final MessageLog log;
+    private final Executor ioExecutor;
+    private final Executor mainExecutor;
+    private final int pageSize;
+    private final int maxItems;
+    private final List<ChatMessage> items = new ArrayList<>();
+    private Listener listener;
+    // items 第一則的編號，以及目前已知的紀錄總數
+    private long start;
+    private long logSize;
+    private boolean loadingOlder;
+    private boolean loadingNewer;
+    // 視窗是否跟著最新的紀錄移動
+    private boolean following;
+    private boolean publishScheduled;
+    private long loadedPages;
+    private long publishedSnapshots;
+
+    public MessageWindow(MessageLog log, Executor ioExecutor, Executor mainExecutor, int pageSize, int maxItems) {
+        this.log = log;
+        this.ioExecutor = ioExecutor;
+        this.mainExecutor = mainExecutor;
+        this.pageSize = pageSize;
+        this.maxItems = Math.max(maxItems, pageSize * 2);
+        this.logSize = log.size();
+        this.start = logSize;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // 開啟聊天畫面時呼叫：載入最新的一頁
+    public void loadLatest() {
+        start = Math.max(0, logSize - pageSize);
+        items.clear();
+        following = true;
+        loadNewer();
+    }
+
+    public void loadOlder() {
+        if (loadingOlder || start == 0) {
+            return;
+        }
+        loadingOlder = true;
+        long to = start;
+        long from = Math.max(0, to - pageSize);
+        read(from, (int) (to - from), loaded -> {
+            loadingOlder = false;
+            if (loaded == null || to != start) {
+                // 等待讀取期間視窗已經移動，這一頁作廢
+                return;
+            }
+            items.addAll(0, loaded);
+            start = from;
+            if (items.size() > maxItems) {
+                items.subList(maxItems, items.size()).clear();
+                following = false;
+            }
+            schedulePublish();
+        });
+    }
+
+    public void loadNewer() {
+        long from = start + items.size();
+        if (loadingNewer || from >= logSize) {
+            return;
+        }
+        loadingNewer = true;
+        read(from, pageSize, loaded -> {
+            loadingNewer = false;
+            if (loaded == null || from != start + items.size()) {
+                return;
+            }
+            items.addAll(loaded);
+            trimFront();
+            schedulePublish();
+            if (loaded.size() < pageSize) {
+                following = true;
+            }
+            // 跟著最新訊息時，讀取期間新寫入的紀錄接著補上
+            if (following && !isAtEnd()) {
+                loadNewer();
+            }
+        });
+    }
+
+    // 新寫入的紀錄：視窗在最尾端時直接加入，否則等捲到底端再載入
+    public void onAppended(ChatMessage message) {
+        if (message.id < logSize) {
+            return;
+        }
+        logSize = message.id + 1;
+        if (!loadingNewer && message.id == start + items.size()) {
+            items.add(message);
+            trimFront();
+            schedulePublish();
+        }
+    }
+
+    // 視窗是否包含最新的紀錄
+    public boolean isAtEnd() {
+        return start + items.size() >= logSize;
+    }
+
+    public boolean hasOlder() {
+        return start > 0;
+    }
+
+    public long start() {
+        return start;
+    }
+
+    public int residentEntries() {
+        return items.size();
+    }
+
+    public long loadedPages() {
+        return loadedPages;
+    }
+
+    public long publishedSnapshots() {
+        return publishedSnapshots;
+    }
+
+    private void trimFront() {
+        int excess = items.size() - maxItems;
+        if (excess > 0) {
+            items.subList(0, excess).clear();
+            start += excess;
+        }
+    }
+
+    private void schedulePublish() {
+        if (publishScheduled) {
+            return;
+        }
+        publishScheduled = true;
+        mainExecutor.execute(() -> {
+            publishScheduled = false;
+            publishedSnapshots++;
+            if (listener != null) {
+                listener.onWindowChanged(Collections.unmodifiableList(new ArrayList<>(items)));
+            }
+        });
+    }
+
+    private interface PageCallback {
+        // 讀取失敗時為 null
+        void onPage(List<ChatMessage> loaded);
+    }
+
+    private void read(long from, int count, PageCallback callback) {
+        ioExecutor.execute(() -> {
+            List<ChatMessage> loaded;
+            try {
+                loaded = log.read(from, count);
+            } catch (IOException e) {
+                Log.e("MessageWindow", "Failed to load messages from " + from, e);
+                loaded = null;
+            }
+            List<ChatMessage> result = loaded;
+            mainExecutor.execute(() -> {
+                if (result != null) {
+                    loadedPages++;
+                }
+                callback.onPage(result);
+            });
+        });
+    }
+}
@@ -0,0 +1,581 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.InterfaceAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+// 群播的控制流程，位於 session 與群主轉發之間：
+// 群主：對每個成員送 OFFER (群組位址、epoch 與成員編號)，依成員的 JOIN 加入或移出 MulticastSender，回應 NACK
+// 成員：收到 OFFER 後加入群組，收到第一個 datagram 才送 JOIN，之後依 START 的序號以 MulticastReceiver 重組，
+// 收到的封包當成從群主連線收到的交給下游；群播一段時間收不到就退出，改回 TCP
+// 群播與群主連線上收到的封包在同一把鎖內交給下游，下游不必處理同時呼叫
+public class MulticastDelivery implements Transport.Listener {
+
+    public static final String DEFAULT_GROUP = "239.255.87.84";
+    public static final int DEFAULT_PORT = 8889;
+
+    // datagram 標頭：magic (2) + 版本 (1) + 種類 (1) + epoch (4) + lane (1) + 保留 (1) + 序號 (4)
+    // + 不需交給哪個成員 (4，轉發時為來源成員編號) + 分段編號 (2) + 分段數 (2)，其後為 Frame 線路格式的一段
+    static final int MAGIC = 0x574D;
+    static final int VERSION = 1;
+    static final int VERSION_OFFSET = 2;
+    static final int KIND_OFFSET = 3;
+    static final int EPOCH_OFFSET = 4;
+    static final int LANE_OFFSET = 8;
+    static final int SEQ_OFFSET = 10;
+    static final int EXCLUDE_OFFSET = 14;
+    static final int INDEX_OFFSET = 18;
+    static final int COUNT_OFFSET = 20;
+    static final int HEADER_SIZE = 22;
+    // 資料分段；TAIL 沒有內容，序號為該 lane 目前送出的最後一個
+    static final byte KIND_DATA = 0;
+    static final byte KIND_TAIL = 1;
+    static final int LANE_VOICE = 0;
+    static final int LANE_BULK = 1;
+    static final int LANE_COUNT = 2;
+    // 一個封包最多切成幾段，檔案分段 (64 KB) 約 46 段
+    static final int MAX_FRAGMENTS = 256;
+    // NACK 的一段範圍：lane (1) + 起始序號 (4) + 數量 (2)
+    static final int NACK_RANGE_SIZE = 7;
+
+    // 成員端檢查漏收與送出 NACK 的間隔
+    static final long TICK_INTERVAL_MS = 20;
+    // 這麼久沒收到群播 (群主閒置時也會定期送 TAIL) 就退出
+    static final long LEAVE_AFTER_MS = 3000;
+
+    private final Transport sessions;
+    private final Transport.Listener downstream;
+    private final ScheduledExecutorService scheduler;
+    private final Transport fanout = new Fanout();
+
+    // 群主端
+    private volatile MulticastSender sender;
+    private volatile InetSocketAddress group;
+
+    // 成員端，acceptMulticast 之後才會處理 OFFER
+    private volatile NetworkInterface memberInterface;
+    private volatile Executor memberExecutor;
+    private final Object deliveryLock = new Object();
+    private Subscription subscription;
+    // 已結束的 MulticastReceiver 的統計
+    private long retiredReceived;
+    private long retiredRepaired;
+    private long retiredLost;
+
+    public MulticastDelivery(Transport sessions, Transport.Listener downstream, ScheduledExecutorService scheduler) {
+        this.sessions = sessions;
+        this.downstream = downstream;
+        this.scheduler = scheduler;
+    }
+
+    // 送出端用：群播啟用時只有 MulticastSender 一條連線，由它決定每個成員經群播或 TCP 收到；否則為所有 session
+    public Transport fanout() {
+        return fanout;
+    }
+
+    public MulticastSender sender() {
+        return sender;
+    }
+
+    // 群主：開始提供群播，之後新連上的成員也會收到 OFFER
+    public void startSender(MulticastSender sender, InetSocketAddress group) {
+        this.group = group;
+        this.sender = sender;
+        for (Transport.Connection connection : sessions.connections()) {
+            connection.send(offerFrame(sender, group, connection));
+        }
+        sender.requestTail();
+    }
+
+    // 成員：收到群主的 OFFER 時在 iface 上加入群組，接收迴圈在 executor 上執行
+    public void acceptMulticast(NetworkInterface iface, Executor executor) {
+        this.memberExecutor = executor;
+        this.memberInterface = iface;
+    }
+
+    static Frame offerFrame(MulticastSender sender, InetSocketAddress group, Transport.Connection member) {
+        byte[] address = group.getAddress().getAddress();
+        ByteBuffer payload = ByteBuffer.allocate(4 + 4 + 2 + 1 + address.length);
+        payload.putInt(sender.epoch()).putInt(member.id()).putShort((short) group.getPort());
+        payload.put((byte) address.length).put(address);
+        payload.flip();
+        return new Frame(Frame.TYPE_MULTICAST_OFFER, (byte) 0, 0, 0, payload);
+    }
+
+    static Frame joinFrame(int epoch, boolean joined) {
+        ByteBuffer payload = ByteBuffer.allocate(5);
+        payload.putInt(epoch).put((byte) (joined ? 1 : 0));
+        payload.flip();
+        return new Frame(Frame.TYPE_MULTICAST_JOIN, (byte) 0, 0, 0, payload);
+    }
+
+    static ByteBuffer datagram(byte kind, int epoch, int lane, int seq, int exclude, int index, int count,
+                               ByteBuffer body) {
+        ByteBuffer datagram = ByteBuffer.allocate(HEADER_SIZE + body.remaining());
+        datagram.putShort((short) MAGIC).put((byte) VERSION).put(kind).putInt(epoch);
+        datagram.put((byte) lane).put((byte) 0).putInt(seq).putInt(exclude);
+        datagram.putShort((short) index).putShort((short) count);
+        datagram.put(body);
+        datagram.flip();
+        return datagram;
+    }
+
+    // 與 peer 在同一個子網路的網路介面，即 Wi-Fi Direct 的 P2P 介面；找不到時回傳 null
+    public static NetworkInterface interfaceFor(InetAddress peer) throws SocketException {
+        if (!(peer instanceof Inet4Address)) {
+            return null;
+        }
+        int target = ByteBuffer.wrap(peer.getAddress()).getInt();
+        for (NetworkInterface iface : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (!iface.isUp()) {
+                continue;
+            }
+            for (InterfaceAddress address : iface.getInterfaceAddresses()) {
+                if (!(address.getAddress() instanceof Inet4Address)) {
+                    continue;
+                }
+                int local = ByteBuffer.wrap(address.getAddress().getAddress()).getInt();
+                int prefix = address.getNetworkPrefixLength();
+                int mask = prefix <= 0 ? 0 : -1 << (32 - Math.min(prefix, 32));
+                if ((local & mask) == (target & mask)) {
+                    return iface;
+                }
+            }
+        }
+        return null;
+    }
+
+    // 從 iface 送往群組位址；同一台裝置上的接收端也收得到 (測試時所有成員都在 loopback)
+    public static MulticastSender.DatagramSink channelSink(InetSocketAddress group, NetworkInterface iface)
+            throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, iface);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+        channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 1);
+        return new MulticastSender.DatagramSink() {
+            @Override
+            public void send(ByteBuffer datagram) throws IOException {
+                channel.send(datagram, group);
+            }
+
+            @Override
+            public void close() {
+                closeQuietly(channel);
+            }
+        };
+    }
+
+    @Override
+    public void onConnected(Transport.Connection connection) {
+        MulticastSender s = sender;
+        if (s != null) {
+            connection.send(offerFrame(s, group, connection));
+            s.requestTail();
+        }
+        downstream.onConnected(connection);
+    }
+
+    @Override
+    public void onFrame(Transport.Connection connection, Frame frame) {
+        try {
+            switch (frame.type) {
+                case Frame.TYPE_MULTICAST_OFFER:
+                    onOffer(connection, frame);
+                    return;
+                case Frame.TYPE_MULTICAST_START:
+                    onStart(connection, frame);
+                    return;
+                case Frame.TYPE_MULTICAST_REPAIR:
+                    onRepair(connection, frame);
+                    return;
+                case Frame.TYPE_MULTICAST_JOIN:
+                    onJoin(connection, frame);
+                    return;
+                case Frame.TYPE_MULTICAST_NACK: {
+                    MulticastSender s = sender;
+                    if (s != null) {
+                        s.repair(connection, frame);
+                    }
+                    return;
+                }
+                default:
+                    break;
+            }
+        } catch (ProtocolException e) {
+            Log.w("MulticastDelivery", "Bad multicast frame from " + connection.remoteAddress(), e);
+            return;
+        }
+        if (isOwnerLink(connection)) {
+            synchronized (deliveryLock) {
+                downstream.onFrame(connection, frame);
+            }
+        } else {
+            downstream.onFrame(connection, frame);
+        }
+    }
+
+    @Override
+    public void onDisconnected(Transport.Connection connection, IOException cause) {
+        MulticastSender s = sender;
+        if (s != null) {
+            s.leave(connection);
+        }
+        synchronized (deliveryLock) {
+            if (subscription != null && subscription.link == connection) {
+                unsubscribe();
+            }
+        }
+        downstream.onDisconnected(connection, cause);
+    }
+
+    private boolean isOwnerLink(Transport.Connection connection) {
+        synchronized (deliveryLock) {
+            return subscription != null && subscription.link == connection;
+        }
+    }
+
+    private void onJoin(Transport.Connection connection, Frame frame) throws ProtocolException {
+        ByteBuffer payload = frame.payload.duplicate();
+        if (payload.remaining() < 5) {
+            throw new ProtocolException("Short MULTICAST_JOIN payload");
+        }
+        MulticastSender s = sender;
+        if (s == null || payload.getInt() != s.epoch()) {
+            return;
+        }
+        if (payload.get() != 0) {
+            s.join(connection);
+        } else {
+            s.leave(connection);
+        }
+    }
+
+    private void onOffer(Transport.Connection link, Frame frame) throws ProtocolException {
+        NetworkInterface iface = memberInterface;
+        if (iface == null) {
+            return;
+        }
+        ByteBuffer payload = frame.payload.duplicate();
+        if (payload.remaining() < 11) {
+            throw new ProtocolException("Short MULTICAST_OFFER payload");
+        }
+        int epoch = payload.getInt();
+        int memberId = payload.getInt();
+        int port = payload.getShort() & 0xffff;
+        byte[] address = new byte[payload.get() & 0xff];
+        if (payload.remaining() < address.length) {
+            throw new ProtocolException("Short MULTICAST_OFFER payload");
+        }
+        payload.get(address);
+        InetSocketAddress offered;
+        try {
+            offered = new InetSocketAddress(InetAddress.getByAddress(address), port);
+        } catch (IOException e) {
+            throw new ProtocolException("Bad multicast group in OFFER");
+        }
+        synchronized (deliveryLock) {
+            if (subscription != null) {
+                if (subscription.link == link && subscription.epoch == epoch) {
+                    return;
+                }
+                unsubscribe();
+            }
+            DatagramChannel channel = null;
+            try {
+                channel = DatagramChannel.open(StandardProtocolFamily.INET);
+                channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+                channel.bind(new InetSocketAddress(port));
+                channel.join(offered.getAddress(), iface);
+            } catch (IOException e) {
+                // 收不到群播，維持 TCP
+                Log.w("MulticastDelivery", "Cannot join " + offered + " on " + iface.getName(), e);
+                closeQuietly(channel);
+                return;
+            }
+            Subscription joined = new Subscription(link, epoch, memberId, channel);
+            subscription = joined;
+            memberExecutor.execute(() -> receiveLoop(joined));
+            Log.d("MulticastDelivery", "Listening on " + offered + " via " + iface.getName());
+        }
+    }
+
+    private void onStart(Transport.Connection link, Frame frame) throws ProtocolException {
+        ByteBuffer payload = frame.payload.duplicate();
+        if (payload.remaining() < 4 + 4 * LANE_COUNT) {
+            throw new ProtocolException("Short MULTICAST_START payload");
+        }
+        int epoch = payload.getInt();
+        int[] start = new int[LANE_COUNT];
+        for (int i = 0; i < LANE_COUNT; i++) {
+            start[i] = payload.getInt();
+        }
+        synchronized (deliveryLock) {
+            Subscription s = subscription;
+            if (s == null || s.link != link || s.epoch != epoch) {
+                return;
+            }
+            retire(s);
+            s.receiver = new MulticastReceiver(epoch, s.memberId, start, new FrameCodec(), System.currentTimeMillis());
+            if (s.tick == null) {
+                s.tick = scheduler.scheduleWithFixedDelay(() -> tick(s), TICK_INTERVAL_MS, TICK_INTERVAL_MS,
+                        TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void onRepair(Transport.Connection link, Frame frame) throws ProtocolException {
+        synchronized (deliveryLock) {
+            Subscription s = subscription;
+            if (s == null || s.link != link || s.receiver == null) {
+                return;
+            }
+            List<Frame> ready = new ArrayList<>();
+            s.receiver.onDatagram(frame.payload.duplicate(), true, System.currentTimeMillis(), ready);
+            deliver(s, ready);
+        }
+    }
+
+    private void receiveLoop(Subscription s) {
+        ByteBuffer buffer = ByteBuffer.allocate(MulticastSender.MAX_DATAGRAM_SIZE);
+        try {
+            while (true) {
+                buffer.clear();
+                s.channel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < HEADER_SIZE || (buffer.getShort(0) & 0xffff) != MAGIC
+                        || buffer.getInt(EPOCH_OFFSET) != s.epoch) {
+                    continue;
+                }
+                ByteBuffer datagram = ByteBuffer.allocate(buffer.remaining());
+                datagram.put(buffer);
+                datagram.flip();
+                onDatagram(s, datagram);
+            }
+        } catch (ClosedChannelException e) {
+            // unsubscribe 關閉
+        } catch (IOException e) {
+            Log.e("MulticastDelivery", "Multicast receive failed", e);
+        }
+    }
+
+    private void onDatagram(Subscription s, ByteBuffer datagram) {
+        synchronized (deliveryLock) {
+            if (subscription != s) {
+                return;
+            }
+            if (s.receiver == null) {
+                // 確定收得到群播才加入，START 之前的 datagram 先不處理
+                if (!s.joinSent) {
+                    s.joinSent = true;
+                    s.link.send(joinFrame(s.epoch, true));
+                }
+                return;
+            }
+            List<Frame> ready = new ArrayList<>();
+            try {
+                s.receiver.onDatagram(datagram, false, System.currentTimeMillis(), ready);
+            } catch (ProtocolException e) {
+                Log.w("MulticastDelivery", "Bad multicast datagram", e);
+            }
+            deliver(s, ready);
+        }
+    }
+
+    private void tick(Subscription s) {
+        try {
+            synchronized (deliveryLock) {
+                if (subscription != s || s.receiver == null) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                List<Frame> ready = new ArrayList<>();
+                Frame nack = s.receiver.onTick(now, ready);
+                deliver(s, ready);
+                if (nack != null) {
+                    s.link.send(nack);
+                }
+                if (now - s.receiver.lastDatagramMs() > LEAVE_AFTER_MS) {
+                    // 群播收不到了，改回 TCP；之後又收到群播時會重新加入
+                    Log.w("MulticastDelivery", "No multicast for " + LEAVE_AFTER_MS + " ms, leaving");
+                    retire(s);
+                    s.receiver = null;
+                    s.joinSent = false;
+                    s.link.send(joinFrame(s.epoch, false));
+                }
+            }
+        } catch (RuntimeException e) {
+            // 例外會讓排程停止
+            Log.e("MulticastDelivery", "Multicast tick failed", e);
+        }
+    }
+
+    // 持有 deliveryLock
+    private void deliver(Subscription s, List<Frame> ready) {
+        for (Frame frame : ready) {
+            downstream.onFrame(s.link, frame);
+        }
+    }
+
+    // 持有 deliveryLock
+    private void retire(Subscription s) {
+        MulticastReceiver receiver = s.receiver;
+        if (receiver != null) {
+            retiredReceived += receiver.receivedDatagrams();
+            retiredRepaired += receiver.repairedDatagrams();
+            retiredLost += receiver.lostDatagrams();
+        }
+    }
+
+    // 持有 deliveryLock
+    private void unsubscribe() {
+        Subscription s = subscription;
+        subscription = null;
+        retire(s);
+        s.receiver = null;
+        if (s.tick != null) {
+            s.tick.cancel(false);
+        }
+        closeQuietly(s.channel);
+    }
+
+    public boolean isReceiving() {
+        synchronized (deliveryLock) {
+            return subscription != null && subscription.receiver != null;
+        }
+    }
+
+    // 成員端收到的群播 datagram (含補送)、其中補送的與最後放棄的數量
+    public long receivedDatagrams() {
+        synchronized (deliveryLock) {
+            MulticastReceiver receiver = subscription != null ? subscription.receiver : null;
+            return retiredReceived + (receiver != null ? receiver.receivedDatagrams() : 0);
+        }
+    }
+
+    public long repairedDatagrams() {
+        synchronized (deliveryLock) {
+            MulticastReceiver receiver = subscription != null ? subscription.receiver : null;
+            return retiredRepaired + (receiver != null ? receiver.repairedDatagrams() : 0);
+        }
+    }
+
+    public long lostDatagrams() {
+        synchronized (deliveryLock) {
+            MulticastReceiver receiver = subscription != null ? subscription.receiver : null;
+            return retiredLost + (receiver != null ? receiver.lostDatagrams() : 0);
+        }
+    }
+
+    public void shutdown() {
+        MulticastSender s = sender;
+        sender = null;
+        if (s != null) {
+            s.close();
+        }
+        synchronized (deliveryLock) {
+            if (subscription != null) {
+                unsubscribe();
+            }
+        }
+    }
+
+    private static void closeQuietly(DatagramChannel channel) {
+        if (channel == null) {
+            return;
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            Log.w("MulticastDelivery", "Failed to close multicast channel", e);
+        }
+    }
+
+    // 成員端對一個群主 OFFER 的訂閱
+    private static final class Subscription {
+        final Transport.Connection link;
+        final int epoch;
+        final int memberId;
+        final DatagramChannel channel;
+        boolean joinSent;
+        MulticastReceiver receiver;
+        ScheduledFuture<?> tick;
+
+        Subscription(Transport.Connection link, int epoch, int memberId, DatagramChannel channel) {
+            this.link = link;
+            this.epoch = epoch;
+            this.memberId = memberId;
+            this.channel = channel;
+        }
+    }
+
+    // 只用來送出的 Transport：群播啟用時 connections 只有 MulticastSender，其餘交給 session
+    private class Fanout implements Transport {
+        @Override
+        public void setListener(Listener listener) {
+            throw new UnsupportedOperationException("Fanout is send-only");
+        }
+
+        @Override
+        public void setOverflowPolicy(OutboundQueue.OverflowPolicy policy, int capacityBytes) {
+            sessions.setOverflowPolicy(policy, capacityBytes);
+        }
+
+        @Override
+        public int startServer(int port) throws IOException {
+            return sessions.startServer(port);
+        }
+
+        @Override
+        public Connection connect(String host, int port) throws IOException {
+            return sessions.connect(host, port);
+        }
+
+        @Override
+        public Connection addSocket(Socket socket) throws IOException {
+            return sessions.addSocket(socket);
+        }
+
+        @Override
+        public void broadcast(Frame frame, Connection except) {
+            for (Connection connection : connections()) {
+                if (connection != except) {
+                    connection.send(frame);
+                }
+            }
+        }
+
+        @Override
+        public Collection<? extends Connection> connections() {
+            MulticastSender s = sender;
+            if (s != null && s.isActive()) {
+                return Collections.singletonList(s);
+            }
+            return sessions.connections();
+        }
+
+        @Override
+        public void shutdown() {
+            sessions.shutdown();
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package com.example.myapplication;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+// 成員端的群播接收窗：依序號重組 datagram 成 Frame，依序交出；漏收的序號等一小段時間後以 NACK 要求補送
+// 語音與檔案各有自己的序號，互不阻擋；不需要可靠送達的封包 (即時語音) 收齊就先交出，不等前面的缺口
+// 補送多次仍沒有收到就放棄，跳過缺口繼續交出後面的封包：語音過時也沒用，檔案由 FILE_RESUME 補齊
+// 不是執行緒安全的，由 MulticastDelivery 加鎖呼叫
+public class MulticastReceiver {
+
+    // 序號窗大小 (datagram 數)，超過時最舊的缺口直接放棄
+    static final int WINDOW = 4096;
+    // 發現缺口後先等一下再要求補送，避免 TAIL 或補送剛好在路上
+    static final long NACK_DELAY_MS = 5;
+    // 補送經過 TCP，等一個來回再重新要求
+    static final long NACK_RETRY_MS = 80;
+    static final int MAX_NACK_ATTEMPTS = 3;
+    // 一個 NACK 封包最多帶幾段範圍
+    static final int MAX_NACK_RANGES = 64;
+
+    private final int epoch;
+    private final int memberId;
+    private final FrameCodec codec;
+    private final Lane[] lanes = new Lane[MulticastDelivery.LANE_COUNT];
+
+    private long receivedDatagrams;
+    private long duplicateDatagrams;
+    private long repairedDatagrams;
+    private long lostDatagrams;
+    private long deliveredFrames;
+    private long lastDatagramMs;
+
+    // startSequences：各 lane 從哪個序號開始屬於這個成員，之前的封包已經經由 TCP 收到
+    public MulticastReceiver(int epoch, int memberId, int[] startSequences, FrameCodec codec, long nowMs) {
+        this.epoch = epoch;
+        this.memberId = memberId;
+        this.codec = codec;
+        this.lastDatagramMs = nowMs;
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(startSequences[i]);
+        }
+    }
+
+    public int epoch() {
+        return epoch;
+    }
+
+    // 收到一個 datagram (群播或 TCP 補送)，可以交出的封包依序加進 ready；其他 epoch 的 datagram 直接忽略
+    public void onDatagram(ByteBuffer datagram, boolean repair, long nowMs, List<Frame> ready)
+            throws ProtocolException {
+        ByteBuffer in = datagram.slice();
+        if (in.remaining() < MulticastDelivery.HEADER_SIZE
+                || (in.getShort(0) & 0xffff) != MulticastDelivery.MAGIC
+                || (in.get(MulticastDelivery.VERSION_OFFSET) & 0xff) != MulticastDelivery.VERSION) {
+            throw new ProtocolException("Bad multicast datagram");
+        }
+        if (in.getInt(MulticastDelivery.EPOCH_OFFSET) != epoch) {
+            return;
+        }
+        int laneIndex = in.get(MulticastDelivery.LANE_OFFSET);
+        if (laneIndex < 0 || laneIndex >= lanes.length) {
+            throw new ProtocolException("Bad multicast lane: " + laneIndex);
+        }
+        if (!repair) {
+            lastDatagramMs = nowMs;
+        }
+        Lane lane = lanes[laneIndex];
+        int seq = in.getInt(MulticastDelivery.SEQ_OFFSET);
+        if (in.get(MulticastDelivery.KIND_OFFSET) == MulticastDelivery.KIND_TAIL) {
+            // 送出端目前最後的序號：之前沒收到的是漏收
+            lane.extendTo(seq, nowMs, ready);
+        } else {
+            receivedDatagrams++;
+            if (repair) {
+                repairedDatagrams++;
+            }
+            if (!lane.store(seq, in, nowMs, ready)) {
+                duplicateDatagrams++;
+                return;
+            }
+            lane.deliverEarly(seq, ready);
+        }
+        lane.drain(ready);
+    }
+
+    // 定期呼叫：放棄要求太多次的序號 (之後可以交出的封包加進 ready)，回傳到期的 NACK；沒有時回傳 null
+    public Frame onTick(long nowMs, List<Frame> ready) {
+        ByteBuffer payload = ByteBuffer.allocate(4 + MAX_NACK_RANGES * MulticastDelivery.NACK_RANGE_SIZE);
+        payload.putInt(epoch);
+        int ranges = 0;
+        for (int i = 0; i < lanes.length; i++) {
+            Lane lane = lanes[i];
+            int rangeStart = 0;
+            int rangeCount = 0;
+            for (int seq = lane.next; seq - lane.highest <= 0; seq++) {
+                int slot = seq & (WINDOW - 1);
+                if (lane.seqs[slot] == seq || lane.lost[slot]) {
+                    continue;
+                }
+                if (lane.attempts[slot] >= MAX_NACK_ATTEMPTS) {
+                    if (nowMs - lane.nackedAt[slot] >= NACK_RETRY_MS) {
+                        lane.lost[slot] = true;
+                    }
+                    continue;
+                }
+                boolean due = lane.attempts[slot] == 0 ? nowMs - lane.missingSince[slot] >= NACK_DELAY_MS
+                        : nowMs - lane.nackedAt[slot] >= NACK_RETRY_MS;
+                if (!due) {
+                    continue;
+                }
+                boolean extends_ = rangeCount > 0 && rangeStart + rangeCount == seq && rangeCount < 0xffff;
+                if (!extends_) {
+                    if (rangeCount > 0) {
+                        putRange(payload, i, rangeStart, rangeCount);
+                        ranges++;
+                        rangeCount = 0;
+                    }
+                    if (ranges == MAX_NACK_RANGES) {
+                        break;
+                    }
+                    rangeStart = seq;
+                }
+                rangeCount++;
+                lane.attempts[slot]++;
+                lane.nackedAt[slot] = nowMs;
+            }
+            if (rangeCount > 0) {
+                putRange(payload, i, rangeStart, rangeCount);
+                ranges++;
+            }
+            lane.drain(ready);
+            if (ranges == MAX_NACK_RANGES) {
+                break;
+            }
+        }
+        if (ranges == 0) {
+            return null;
+        }
+        payload.flip();
+        return new Frame(Frame.TYPE_MULTICAST_NACK, (byte) 0, 0, 0, payload);
+    }
+
+    private static void putRange(ByteBuffer payload, int lane, int seq, int count) {
+        payload.put((byte) lane).putInt(seq).putShort((short) count);
+    }
+
+    // 最後一次收到群播 datagram (含 TAIL) 的時間，用來判斷群播是否還收得到
+    public long lastDatagramMs() {
+        return lastDatagramMs;
+    }
+
+    public long receivedDatagrams() {
+        return receivedDatagrams;
+    }
+
+    public long duplicateDatagrams() {
+        return duplicateDatagrams;
+    }
+
+    public long repairedDatagrams() {
+        return repairedDatagrams;
+    }
+
+    public long lostDatagrams() {
+        return lostDatagrams;
+    }
+
+    public long deliveredFrames() {
+        return deliveredFrames;
+    }
+
+    // 還在等補送的序號數
+    public int missing() {
+        int missing = 0;
+        for (Lane lane : lanes) {
+            for (int seq = lane.next; seq - lane.highest <= 0; seq++) {
+                int slot = seq & (WINDOW - 1);
+                if (lane.seqs[slot] != seq && !lane.lost[slot]) {
+                    missing++;
+                }
+            }
+        }
+        return missing;
+    }
+
+    // 一條序號空間：next 之前都已交出或放棄，next ~ highest 之間是收到的 datagram 與缺口
+    // 位置以 seq & (WINDOW - 1) 對應，seqs 記錄該位置目前放的是哪個序號
+    private final class Lane {
+        final ByteBuffer[] datagrams = new ByteBuffer[WINDOW];
+        final int[] seqs = new int[WINDOW];
+        // 已經提前交出的封包 (標在第一個分段的位置)
+        final boolean[] early = new boolean[WINDOW];
+        final boolean[] lost = new boolean[WINDOW];
+        final long[] missingSince = new long[WINDOW];
+        final long[] nackedAt = new long[WINDOW];
+        final int[] attempts = new int[WINDOW];
+        int next;
+        int highest;
+
+        Lane(int start) {
+            next = start;
+            highest = start - 1;
+            // 空的位置不能剛好等於窗內的序號
+            for (int i = 0; i < WINDOW; i++) {
+                seqs[i] = start - WINDOW - 1;
+            }
+        }
+
+        boolean store(int seq, ByteBuffer datagram, long nowMs, List<Frame> ready) {
+            if (seq - next < 0) {
+                return false;
+            }
+            int slot = seq & (WINDOW - 1);
+            if (seqs[slot] == seq) {
+                return false;
+            }
+            extendTo(seq, nowMs, ready);
+            datagrams[slot] = datagram;
+            seqs[slot] = seq;
+            lost[slot] = false;
+            early[slot] = false;
+            return true;
+        }
+
+        // 標記 highest 之後到 seq 之前的缺口；超出序號窗時先放棄最舊的部分
+        void extendTo(int seq, long nowMs, List<Frame> ready) {
+            if (seq - next >= WINDOW) {
+                giveUpBefore(seq - WINDOW + 1, ready);
+            }
+            for (int s = highest + 1; s - seq < 0; s++) {
+                int slot = s & (WINDOW - 1);
+                clear(slot);
+                missingSince[slot] = nowMs;
+            }
+            if (seq - highest > 0) {
+                highest = seq;
+            }
+        }
+
+        // 序號窗滿了：before 之前的缺口直接放棄，收齊的照樣交出，仍不完整的封包丟掉
+        void giveUpBefore(int before, List<Frame> ready) {
+            for (int s = next; s - before < 0 && s - highest <= 0; s++) {
+                int slot = s & (WINDOW - 1);
+                if (seqs[slot] != s) {
+                    lost[slot] = true;
+                }
+            }
+            drain(ready);
+            while (before - next > 0) {
+                int slot = next & (WINDOW - 1);
+                if (seqs[slot] != next && next - highest <= 0) {
+                    lostDatagrams++;
+                }
+                clear(slot);
+                next++;
+            }
+            if (highest - next < -1) {
+                highest = next - 1;
+            }
+        }
+
+        // 不需要可靠送達的封包收齊就先交出，之後依序交出時略過
+        void deliverEarly(int seq, List<Frame> ready) {
+            ByteBuffer datagram = datagrams[seq & (WINDOW - 1)];
+            int first = seq - (datagram.getShort(MulticastDelivery.INDEX_OFFSET) & 0xffff);
+            if (first - next <= 0 || seqs[first & (WINDOW - 1)] != first || !complete(first)) {
+                return;
+            }
+            int firstSlot = first & (WINDOW - 1);
+            if (early[firstSlot]) {
+                return;
+            }
+            Frame frame = assemble(first);
+            if (frame != null && !frame.isReliable()) {
+                early[firstSlot] = true;
+                if (!excluded(first)) {
+                    deliveredFrames++;
+                    ready.add(frame);
+                }
+            }
+        }
+
+        void drain(List<Frame> ready) {
+            while (next - highest <= 0) {
+                int slot = next & (WINDOW - 1);
+                if (seqs[slot] != next) {
+                    if (!lost[slot]) {
+                        return;
+                    }
+                    lostDatagrams++;
+                    clear(slot);
+                    next++;
+                    continue;
+                }
+                ByteBuffer datagram = datagrams[slot];
+                int count = datagram.getShort(MulticastDelivery.COUNT_OFFSET) & 0xffff;
+                if ((datagram.getShort(MulticastDelivery.INDEX_OFFSET) & 0xffff) != 0 || broken(next, count)) {
+                    // 封包的開頭或中間的分段已經放棄，收到的其他分段也沒用了
+                    clear(slot);
+                    next++;
+                    continue;
+                }
+                if (!complete(next)) {
+                    return;
+                }
+                if (!early[slot] && !excluded(next)) {
+                    Frame frame = assemble(next);
+                    if (frame != null) {
+                        deliveredFrames++;
+                        ready.add(frame);
+                    }
+                }
+                for (int i = 0; i < count; i++) {
+                    clear((next + i) & (WINDOW - 1));
+                }
+                next += count;
+            }
+        }
+
+        boolean complete(int first) {
+            int count = datagrams[first & (WINDOW - 1)].getShort(MulticastDelivery.COUNT_OFFSET) & 0xffff;
+            for (int i = 0; i < count; i++) {
+                int seq = first + i;
+                if (seqs[seq & (WINDOW - 1)] != seq) {
+                    return false;
+                }
+            }
+            return count > 0;
+        }
+
+        boolean broken(int first, int count) {
+            if (count == 0 || count > MulticastDelivery.MAX_FRAGMENTS) {
+                return true;
+            }
+            for (int i = 1; i < count; i++) {
+                int seq = first + i;
+                int slot = seq & (WINDOW - 1);
+                if (seq - highest <= 0 && seqs[slot] != seq && lost[slot]) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        boolean excluded(int first) {
+            return datagrams[first & (WINDOW - 1)].getInt(MulticastDelivery.EXCLUDE_OFFSET) == memberId;
+        }
+
+        // 把分段的內容接起來解出 Frame；內容與長度不符時當成損壞丟棄
+        Frame assemble(int first) {
+            int count = datagrams[first & (WINDOW - 1)].getShort(MulticastDelivery.COUNT_OFFSET) & 0xffff;
+            int length = 0;
+            for (int i = 0; i < count; i++) {
+                length += datagrams[(first + i) & (WINDOW - 1)].remaining() - MulticastDelivery.HEADER_SIZE;
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            for (int i = 0; i < count; i++) {
+                ByteBuffer fragment = datagrams[(first + i) & (WINDOW - 1)].duplicate();
+                fragment.position(MulticastDelivery.HEADER_SIZE);
+                bytes.put(fragment);
+            }
+            bytes.flip();
+            try {
+                Frame frame = codec.decode(bytes);
+                if (frame != null && !bytes.hasRemaining()) {
+                    return frame;
+                }
+            } catch (ProtocolException e) {
+                // 跟長度不符一樣處理
+            }
+            lostDatagrams += count;
+            return null;
+        }
+
+        void clear(int slot) {
+            datagrams[slot] = null;
+            lost[slot] = false;
+            early[slot] = false;
+            attempts[slot] = 0;
+        }
+    }
+}
@@ -0,0 +1,528 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 群主的群播送出端：語音與檔案封包只以 UDP 群播送一次，由所有加入的成員共用，不再每個成員各送一份
+// 對上層而言是一條連線 (id 為 CONNECTION_ID)：送進來的封包在同一把鎖內決定走法，
+// 已加入的成員收群播，其他成員照常經 TCP 收到一份，不會重複也不會漏掉
+// 封包編成 Frame 的線路格式後切成不超過 MTU 的 datagram，語音與檔案各有自己的序號 (lane)，語音先送
+// 送出的 datagram 保留一段時間，成員以 NACK 要求時經 TCP 補送 (REPAIR)
+// 群播沒有個別成員的 ACK 與速率調整，通常以基本速率送出，所以自己限速；成員太少時單播反而比較快
+public class MulticastSender implements Transport.Connection {
+
+    public static final int CONNECTION_ID = -1;
+    // 1500 bytes 的 MTU 扣掉 IPv4 與 UDP 標頭
+    static final int MAX_DATAGRAM_SIZE = 1472;
+    static final int FRAGMENT_SIZE = MAX_DATAGRAM_SIZE - MulticastDelivery.HEADER_SIZE;
+    // 群播在 Wi-Fi 上以基本速率送出，保守抓在約 5 Mbps
+    public static final int DEFAULT_RATE_BYTES_PER_SEC = 600 * 1024;
+    private static final int BURST_BYTES = 32 * 1024;
+    // 每個 lane 保留最近送出的 datagram 數，須為 2 的次方
+    static final int REPAIR_HISTORY = 2048;
+    // 一陣封包送完後稍等一下再送 TAIL，讓成員發現結尾的漏收；沒有封包時定期送，成員藉此知道群播還收得到
+    static final long TAIL_DELAY_MS = 20;
+    static final long BEACON_INTERVAL_MS = 1000;
+    // 至少幾個成員加入才改走群播
+    public static final int DEFAULT_MIN_MEMBERS = 2;
+    // 排隊中佔記憶體的 payload 上限；檔案區段封包只是檔案位置的參考，不佔上限
+    static final int CAPACITY_BYTES = OutboundQueue.DEFAULT_CAPACITY_BYTES;
+
+    // 實際送出 datagram 的地方，正式環境為 DatagramChannel，測試時可以模擬遺失
+    public interface DatagramSink {
+        void send(ByteBuffer datagram) throws IOException;
+
+        default void close() { }
+    }
+
+    private final int epoch = new Random().nextInt();
+    private final Transport sessions;
+    private final DatagramSink sink;
+    private final String group;
+    private final FrameCodec codec = new FrameCodec();
+    private final int rateBytesPerSec;
+    private volatile int minMembers = DEFAULT_MIN_MEMBERS;
+    private volatile GroupRelay.Adapter adapter;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    // 以 lane 為索引
+    private final List<ArrayDeque<Outgoing>> queues = new ArrayList<>(MulticastDelivery.LANE_COUNT);
+    private final int[] nextSeq = new int[MulticastDelivery.LANE_COUNT];
+    private final Map<Integer, Transport.Connection> members = new HashMap<>();
+    private long queuedBytes;
+    private long tailDueMs;
+    private volatile boolean running = true;
+
+    // 以下由寫出執行緒使用
+    private final int[] sentSeq = new int[MulticastDelivery.LANE_COUNT];
+    private double tokens = BURST_BYTES;
+    private long refillNanos = System.nanoTime();
+
+    private final ByteBuffer[][] history = new ByteBuffer[MulticastDelivery.LANE_COUNT][REPAIR_HISTORY];
+    private final int[][] historySeqs = new int[MulticastDelivery.LANE_COUNT][REPAIR_HISTORY];
+
+    private final AtomicLong sentDatagrams = new AtomicLong();
+    private final AtomicLong sentBytes = new AtomicLong();
+    private final AtomicLong repairedDatagrams = new AtomicLong();
+    private final AtomicLong fallbackFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+
+    public MulticastSender(Transport sessions, DatagramSink sink, String group, int rateBytesPerSec) {
+        this.sessions = sessions;
+        this.sink = sink;
+        this.group = group;
+        this.rateBytesPerSec = rateBytesPerSec;
+        int start = new Random().nextInt();
+        for (int i = 0; i < MulticastDelivery.LANE_COUNT; i++) {
+            queues.add(new ArrayDeque<>());
+            nextSeq[i] = start;
+            sentSeq[i] = start - 1;
+            for (int j = 0; j < REPAIR_HISTORY; j++) {
+                historySeqs[i][j] = start - 1;
+            }
+        }
+    }
+
+    // 寫出迴圈會一直佔著一條執行緒
+    public void start(Executor executor) {
+        executor.execute(this::writeLoop);
+    }
+
+    public int epoch() {
+        return epoch;
+    }
+
+    public void setMinMembers(int minMembers) {
+        this.minMembers = minMembers;
+    }
+
+    // 經 TCP 送給沒加入的成員時依目標連線調整封包
+    public void setAdapter(GroupRelay.Adapter adapter) {
+        this.adapter = adapter;
+    }
+
+    public boolean isActive() {
+        lock.lock();
+        try {
+            return running && members.size() >= minMembers;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isMember(Transport.Connection connection) {
+        lock.lock();
+        try {
+            return members.containsKey(connection.id());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int memberCount() {
+        lock.lock();
+        try {
+            return members.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 只有即時語音與檔案走群播；文字與控制封包量少，仍經 TCP
+    static boolean carries(Frame frame) {
+        switch (frame.type) {
+            case Frame.TYPE_VOICE:
+            case Frame.TYPE_VOICE_SILENCE:
+            case Frame.TYPE_VOICE_END:
+            case Frame.TYPE_FILE_META:
+            case Frame.TYPE_FILE_START:
+            case Frame.TYPE_FILE_CHUNK:
+            case Frame.TYPE_FILE_END:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    static int fragments(Frame frame) {
+        return (int) ((FrameCodec.wireSize(frame) + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE);
+    }
+
+    // 成員能收到群播：之後的封包改走群播，以 START 告知從哪個序號開始
+    // 在同一把鎖內送出 START，之前排進 TCP 的封包都在 START 之前
+    public void join(Transport.Connection connection) {
+        lock.lock();
+        try {
+            if (!running || members.containsKey(connection.id())) {
+                return;
+            }
+            members.put(connection.id(), connection);
+            ByteBuffer payload = ByteBuffer.allocate(4 + 4 * MulticastDelivery.LANE_COUNT);
+            payload.putInt(epoch);
+            for (int seq : nextSeq) {
+                payload.putInt(seq);
+            }
+            payload.flip();
+            connection.send(new Frame(Frame.TYPE_MULTICAST_START, (byte) 0, 0, 0, payload));
+        } finally {
+            lock.unlock();
+        }
+        Log.d("MulticastSender", "Member " + connection.remoteAddress() + " joined " + group);
+    }
+
+    // 成員收不到群播或已斷線：之後的封包改經 TCP 送給它
+    public void leave(Transport.Connection connection) {
+        lock.lock();
+        try {
+            if (members.remove(connection.id()) == null) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        Log.d("MulticastSender", "Member " + connection.remoteAddress() + " left " + group);
+    }
+
+    // 群主自己送出的封包 (經 MulticastDelivery 的 fanout)
+    @Override
+    public void send(Frame frame) {
+        fanout(null, frame);
+    }
+
+    // 群主轉發成員的封包：群播時不送回來源 (成員端依 exclude 略過)；沒有啟用群播時回傳 false，照原本方式轉發
+    public boolean relay(Transport.Connection source, Frame frame) {
+        if (!carries(frame) || !isActive()) {
+            return false;
+        }
+        fanout(source, frame);
+        return true;
+    }
+
+    private void fanout(Transport.Connection source, Frame frame) {
+        GroupRelay.Adapter a = adapter;
+        lock.lock();
+        try {
+            // 轉發的封包也要符合群播這條連線的協商 (例如語音固定 ADPCM)，並標上原始發送者
+            boolean multicast = running && members.size() >= minMembers && carries(frame)
+                    && enqueue(source != null ? GroupRelay.forTarget(a, source, this, frame) : frame,
+                    source != null ? source.id() : 0);
+            for (Transport.Connection connection : sessions.connections()) {
+                if (connection == source || (multicast && members.containsKey(connection.id()))) {
+                    continue;
+                }
+                if (source != null) {
+                    connection.send(GroupRelay.forTarget(a, source, connection, frame));
+                } else {
+                    connection.send(a != null ? a.adapt(this, connection, frame) : frame);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 回傳 false 代表這個封包改經 TCP 送給所有成員
+    private boolean enqueue(Frame frame, int exclude) {
+        int count = fragments(frame);
+        if (count > MulticastDelivery.MAX_FRAGMENTS) {
+            fallbackFrames.incrementAndGet();
+            return false;
+        }
+        int lane = frame.priority() == Frame.PRIORITY_VOICE ? MulticastDelivery.LANE_VOICE
+                : MulticastDelivery.LANE_BULK;
+        long cost = frame.region != null ? 0 : frame.length;
+        if (queuedBytes > 0 && queuedBytes + cost > CAPACITY_BYTES) {
+            if (lane == MulticastDelivery.LANE_VOICE) {
+                // 即時語音過時就沒有意義，直接丟掉
+                droppedFrames.incrementAndGet();
+                return true;
+            }
+            fallbackFrames.incrementAndGet();
+            return false;
+        }
+        frame.retain();
+        queues.get(lane).add(new Outgoing(frame, lane, nextSeq[lane], count, exclude));
+        nextSeq[lane] += count;
+        queuedBytes += cost;
+        notEmpty.signal();
+        return true;
+    }
+
+    // 新成員收到 OFFER 後要等收到第一個 datagram 才加入，盡快送一次 TAIL
+    public void requestTail() {
+        lock.lock();
+        try {
+            tailDueMs = Math.min(tailDueMs, System.currentTimeMillis() + TAIL_DELAY_MS);
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void writeLoop() {
+        try {
+            while (running) {
+                Outgoing item;
+                lock.lock();
+                try {
+                    while ((item = poll()) == null && running) {
+                        long wait = tailDueMs - System.currentTimeMillis();
+                        if (wait <= 0) {
+                            break;
+                        }
+                        notEmpty.await(wait, TimeUnit.MILLISECONDS);
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (!running) {
+                    if (item != null) {
+                        item.frame.release();
+                    }
+                    break;
+                }
+                long nextTail;
+                if (item == null) {
+                    sendTails();
+                    nextTail = System.currentTimeMillis() + BEACON_INTERVAL_MS;
+                } else {
+                    write(item);
+                    nextTail = System.currentTimeMillis() + TAIL_DELAY_MS;
+                }
+                lock.lock();
+                try {
+                    tailDueMs = nextTail;
+                } finally {
+                    lock.unlock();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Outgoing poll() {
+        for (ArrayDeque<Outgoing> queue : queues) {
+            Outgoing item = queue.poll();
+            if (item != null) {
+                queuedBytes -= item.frame.region != null ? 0 : item.frame.length;
+                return item;
+            }
+        }
+        return null;
+    }
+
+    private void write(Outgoing item) throws InterruptedException {
+        Frame frame = item.frame;
+        sentSeq[item.lane] = item.firstSeq + item.count - 1;
+        ByteBuffer wire;
+        try {
+            ByteBuffer header = codec.encodeHeader(frame);
+            wire = ByteBuffer.allocate(header.remaining() + frame.length);
+            wire.put(header);
+            if (frame.region != null) {
+                FileRegion region = frame.region;
+                while (wire.hasRemaining()) {
+                    long position = region.position + wire.position() - header.limit();
+                    if (region.file.channel.read(wire, position) < 0) {
+                        throw new IOException("File ended before region was sent");
+                    }
+                }
+            } else {
+                wire.put(frame.payload.duplicate());
+            }
+            wire.flip();
+        } catch (IOException e) {
+            // 成員會以 NACK 要求，補不到就放棄；檔案在 FILE_END 時以 FILE_RESUME 補齊
+            Log.e("MulticastSender", "Cannot send " + frame, e);
+            return;
+        } finally {
+            frame.release();
+        }
+        ByteBuffer[] datagrams = fragment(wire, epoch, item.lane, item.firstSeq, item.exclude);
+        for (int index = 0; index < datagrams.length; index++) {
+            remember(item.lane, item.firstSeq + index, datagrams[index]);
+            transmit(datagrams[index]);
+        }
+    }
+
+    // 把一個封包的線路格式切成 datagram，序號從 firstSeq 起連續
+    static ByteBuffer[] fragment(ByteBuffer wire, int epoch, int lane, int firstSeq, int exclude) {
+        int count = Math.max(1, (wire.remaining() + FRAGMENT_SIZE - 1) / FRAGMENT_SIZE);
+        ByteBuffer[] datagrams = new ByteBuffer[count];
+        for (int index = 0; index < count; index++) {
+            ByteBuffer piece = wire.duplicate();
+            piece.position(wire.position() + index * FRAGMENT_SIZE);
+            piece.limit(Math.min(piece.position() + FRAGMENT_SIZE, wire.limit()));
+            datagrams[index] = MulticastDelivery.datagram(MulticastDelivery.KIND_DATA, epoch, lane, firstSeq + index,
+                    exclude, index, count, piece);
+        }
+        return datagrams;
+    }
+
+    private void sendTails() throws InterruptedException {
+        for (int lane = 0; lane < MulticastDelivery.LANE_COUNT; lane++) {
+            transmit(MulticastDelivery.datagram(MulticastDelivery.KIND_TAIL, epoch, lane, sentSeq[lane], 0, 0, 0,
+                    ByteBuffer.allocate(0)));
+        }
+    }
+
+    private void transmit(ByteBuffer datagram) throws InterruptedException {
+        int size = datagram.remaining();
+        pace(size);
+        try {
+            sink.send(datagram.duplicate());
+            sentDatagrams.incrementAndGet();
+            sentBytes.addAndGet(size);
+        } catch (IOException e) {
+            // 跟遺失一樣由 NACK 補送
+            Log.w("MulticastSender", "Failed to send datagram: " + e.getMessage());
+        }
+    }
+
+    // token bucket：平均不超過 rateBytesPerSec，短暫可以送出 BURST_BYTES
+    private void pace(int bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        tokens = Math.min(BURST_BYTES, tokens + (now - refillNanos) * (double) rateBytesPerSec / 1e9);
+        refillNanos = now;
+        tokens -= bytes;
+        if (tokens < 0) {
+            TimeUnit.NANOSECONDS.sleep((long) (-tokens * 1e9 / rateBytesPerSec));
+        }
+    }
+
+    private void remember(int lane, int seq, ByteBuffer datagram) {
+        synchronized (history) {
+            history[lane][seq & (REPAIR_HISTORY - 1)] = datagram;
+            historySeqs[lane][seq & (REPAIR_HISTORY - 1)] = seq;
+        }
+    }
+
+    // 成員的 NACK：還保留著的 datagram 各以一個 REPAIR 封包經 TCP 補送；已經被覆蓋的就不補，成員會放棄
+    public void repair(Transport.Connection connection, Frame nack) throws ProtocolException {
+        ByteBuffer payload = nack.payload.duplicate();
+        if (payload.remaining() < 4) {
+            throw new ProtocolException("Short MULTICAST_NACK payload");
+        }
+        if (payload.getInt() != epoch) {
+            return;
+        }
+        while (payload.remaining() >= MulticastDelivery.NACK_RANGE_SIZE) {
+            int lane = payload.get();
+            int seq = payload.getInt();
+            int count = Math.min(payload.getShort() & 0xffff, REPAIR_HISTORY);
+            if (lane < 0 || lane >= MulticastDelivery.LANE_COUNT) {
+                throw new ProtocolException("Bad multicast lane: " + lane);
+            }
+            for (int i = 0; i < count; i++) {
+                ByteBuffer datagram = null;
+                synchronized (history) {
+                    int slot = (seq + i) & (REPAIR_HISTORY - 1);
+                    if (historySeqs[lane][slot] == seq + i) {
+                        datagram = history[lane][slot];
+                    }
+                }
+                if (datagram != null) {
+                    connection.send(new Frame(Frame.TYPE_MULTICAST_REPAIR, (byte) 0, 0, 0, datagram.duplicate()));
+                    repairedDatagrams.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    public long sentDatagrams() {
+        return sentDatagrams.get();
+    }
+
+    public long sentBytes() {
+        return sentBytes.get();
+    }
+
+    public long repairedDatagrams() {
+        return repairedDatagrams.get();
+    }
+
+    // 太大或佇列已滿而改經 TCP 送出的封包
+    public long fallbackFrames() {
+        return fallbackFrames.get();
+    }
+
+    public long droppedFrames() {
+        return droppedFrames.get();
+    }
+
+    @Override
+    public int id() {
+        return CONNECTION_ID;
+    }
+
+    @Override
+    public String remoteAddress() {
+        return group;
+    }
+
+    // 停止送出，排隊中的封包丟掉
+    @Override
+    public void close() {
+        lock.lock();
+        try {
+            if (!running) {
+                return;
+            }
+            running = false;
+            members.clear();
+            for (ArrayDeque<Outgoing> queue : queues) {
+                for (Outgoing item : queue) {
+                    item.frame.release();
+                }
+                queue.clear();
+            }
+            queuedBytes = 0;
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        sink.close();
+    }
+
+    // 沒有自己的 OutboundQueue，語音編碼不依佇列調整
+    @Override
+    public OutboundQueue outboundQueue() {
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "MulticastSender{" + group + ", epoch " + epoch + "}";
+    }
+
+    private static final class Outgoing {
+        final Frame frame;
+        final int lane;
+        final int firstSeq;
+        final int count;
+        final int exclude;
+
+        Outgoing(Frame frame, int lane, int firstSeq, int count, int exclude) {
+            this.frame = frame;
+            this.lane = lane;
+            this.firstSeq = firstSeq;
+            this.count = count;
+            this.exclude = exclude;
+        }
+    }
+}
@@ -0,0 +1,436 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 單一執行緒 Selector：一條執行緒服務所有連線，沒有固定連線數上限
+// 每個連線有自己的讀取緩衝區與待送佇列，只在有資料待送時才註冊 OP_WRITE
+public class NioTransport implements Transport {
+
+    private static final int INITIAL_READ_BUFFER = 16 * 1024;
+    // 每次從待送佇列取出的封包數上限，合併成一次 gathering write
+    private static final int WRITE_BATCH_FRAMES = 16;
+
+    private final FrameCodec frameCodec;
+    private final TransportMetrics metrics;
+    private final Map<Integer, NioConnection> connectionMap = new ConcurrentHashMap<>();
+    private final ConcurrentLinkedQueue<Runnable> pendingTasks = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger nextId = new AtomicInteger();
+    private final Selector selector;
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+    private volatile Listener listener;
+    private volatile OutboundQueue.OverflowPolicy overflowPolicy = OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO;
+    private volatile int queueCapacityBytes = OutboundQueue.DEFAULT_CAPACITY_BYTES;
+
+    public NioTransport(FrameCodec frameCodec) throws IOException {
+        this(frameCodec, new TransportMetrics());
+    }
+
+    public NioTransport(FrameCodec frameCodec, TransportMetrics metrics) throws IOException {
+        this.frameCodec = frameCodec;
+        this.metrics = metrics;
+        this.selector = Selector.open();
+        this.selectorThread = new Thread(this::selectLoop, "NioTransport");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    // 不支援 BLOCK：送出常在 selector 執行緒上 (轉發、PONG、session 的 ACK 與補送)，
+    // 而只有 selector 會清空佇列，等待空間只會卡住所有連線直到逾時斷線
+    @Override
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy policy, int capacityBytes) {
+        if (policy == OutboundQueue.OverflowPolicy.BLOCK) {
+            throw new IllegalArgumentException("BLOCK would stall the selector thread, use BlockingTransport");
+        }
+        this.overflowPolicy = policy;
+        this.queueCapacityBytes = capacityBytes;
+    }
+
+    @Override
+    public int startServer(int port) throws IOException {
+        ServerSocketChannel server = ServerSocketChannel.open();
+        server.configureBlocking(false);
+        server.socket().bind(new InetSocketAddress(port));
+        runOnSelector(() -> {
+            try {
+                server.register(selector, SelectionKey.OP_ACCEPT);
+                Log.d("NioTransport", "Server started on port " + server.socket().getLocalPort());
+            } catch (ClosedChannelException e) {
+                Log.e("NioTransport", "Server channel closed before register", e);
+            }
+        });
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public Connection connect(String host, int port) throws IOException {
+        // 連線建立本身是阻塞的，之後才交給 selector
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(host, port));
+        return register(channel);
+    }
+
+    @Override
+    public Connection addSocket(Socket socket) throws IOException {
+        SocketChannel channel = socket.getChannel();
+        if (channel == null) {
+            throw new IOException("NioTransport requires a channel-backed socket");
+        }
+        return register(channel);
+    }
+
+    @Override
+    public void broadcast(Frame frame, Connection except) {
+        for (NioConnection connection : connectionMap.values()) {
+            if (connection != except) {
+                connection.send(frame);
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Connection> connections() {
+        return connectionMap.values();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private NioConnection register(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        NioConnection connection = new NioConnection(nextId.incrementAndGet(), channel);
+        connectionMap.put(connection.id, connection);
+        runOnSelector(() -> {
+            try {
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                // 註冊前就送出的資料
+                if (!connection.outbound.isEmpty()) {
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                }
+            } catch (ClosedChannelException e) {
+                connection.closeWith(e);
+                return;
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onConnected(connection);
+            }
+        });
+        return connection;
+    }
+
+    private void runOnSelector(Runnable task) {
+        pendingTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void selectLoop() {
+        try {
+            while (running) {
+                selector.select();
+                Runnable task;
+                while ((task = pendingTasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept((ServerSocketChannel) key.channel());
+                        continue;
+                    }
+                    NioConnection connection = (NioConnection) key.attachment();
+                    try {
+                        if (key.isReadable()) {
+                            connection.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.onWritable();
+                        }
+                    } catch (IOException e) {
+                        if (e instanceof ProtocolException) {
+                            // 只有讀取端會丟出，代表收到無法解析的資料
+                            metrics.onDecodeError();
+                        }
+                        connection.closeWith(e);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            Log.e("NioTransport", "Selector failed", e);
+        } finally {
+            closeAll();
+        }
+    }
+
+    private void accept(ServerSocketChannel server) {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                Log.d("NioTransport", "Connection received from " + channel.socket().getInetAddress());
+                register(channel);
+            }
+        } catch (IOException e) {
+            Log.e("NioTransport", "Accept failed", e);
+        }
+    }
+
+    private void closeAll() {
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof NioConnection) {
+                ((NioConnection) key.attachment()).closeWith(null);
+            } else {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    Log.e("NioTransport", "Failed to close channel", e);
+                }
+            }
+        }
+        for (NioConnection connection : connectionMap.values()) {
+            connection.closeWith(null);
+        }
+        try {
+            selector.close();
+        } catch (IOException e) {
+            Log.e("NioTransport", "Failed to close selector", e);
+        }
+    }
+
+    private class NioConnection implements Connection {
+        final int id;
+        final SocketChannel channel;
+        // 任何執行緒都可以放入，只有 selector 執行緒會取出寫出
+        final OutboundQueue outbound = new OutboundQueue(queueCapacityBytes, overflowPolicy);
+        final AtomicBoolean writeScheduled = new AtomicBoolean(false);
+        final AtomicBoolean closed = new AtomicBoolean(false);
+        // 以下只在 selector 執行緒存取
+        final ArrayDeque<ByteBuffer> writing = new ArrayDeque<>();
+        // 正在以 transferTo 送出的檔案區段封包
+        Frame regionFrame;
+        long regionPosition;
+        long regionRemaining;
+        // socket 緩衝區滿、開始等待可寫的時間，0 代表沒有在等
+        long stallStartNanos;
+        ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        SelectionKey key;
+
+        NioConnection(int id, SocketChannel channel) {
+            this.id = id;
+            this.channel = channel;
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public String remoteAddress() {
+            return String.valueOf(channel.socket().getInetAddress());
+        }
+
+        // 只放入佇列，由 selector 執行緒在可寫時送出
+        @Override
+        public void send(Frame frame) {
+            if (closed.get()) {
+                return;
+            }
+            if (!outbound.offer(frame)) {
+                Log.w("NioTransport", "Outbound queue overflow, disconnecting " + remoteAddress());
+                runOnSelector(() -> closeWith(new IOException("Outbound queue overflow")));
+                return;
+            }
+            if (writeScheduled.compareAndSet(false, true)) {
+                runOnSelector(this::enableWrite);
+            }
+        }
+
+        @Override
+        public void close() {
+            runOnSelector(() -> closeWith(null));
+        }
+
+        @Override
+        public OutboundQueue outboundQueue() {
+            return outbound;
+        }
+
+        void enableWrite() {
+            if (key != null && key.isValid()) {
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void onReadable() throws IOException {
+            int read = channel.read(readBuffer);
+            if (read == -1) {
+                closeWith(null);
+                return;
+            }
+            readBuffer.flip();
+            Frame frame;
+            while ((frame = frameCodec.decode(readBuffer)) != null) {
+                metrics.onFrameReceived(frame, FrameCodec.wireSize(frame));
+                Listener l = listener;
+                if (l != null) {
+                    l.onFrame(this, frame);
+                }
+            }
+            readBuffer.compact();
+            if (!readBuffer.hasRemaining()) {
+                // 單一封包比緩衝區大，加倍直到封包上限
+                int capacity = readBuffer.capacity();
+                if (capacity >= frameCodec.maxFrameSize()) {
+                    throw new ProtocolException("Frame exceeds read buffer limit");
+                }
+                ByteBuffer larger = ByteBuffer.allocate(Math.min(capacity * 2, frameCodec.maxFrameSize()));
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        void onWritable() throws IOException {
+            // 先清除排程旗標，之後才加入的資料會再觸發一次 enableWrite
+            writeScheduled.set(false);
+            if (stallStartNanos != 0) {
+                metrics.onWriteStall(System.nanoTime() - stallStartNanos);
+                stallStartNanos = 0;
+            }
+            while (!writing.isEmpty() || regionFrame != null || fillWriteBatch()) {
+                if (!writing.isEmpty()) {
+                    ByteBuffer[] batch = writing.toArray(new ByteBuffer[0]);
+                    channel.write(batch);
+                    while (!writing.isEmpty() && !writing.peek().hasRemaining()) {
+                        writing.poll();
+                    }
+                    if (!writing.isEmpty()) {
+                        // socket 緩衝區已滿，等下一次可寫
+                        stallStartNanos = System.nanoTime();
+                        return;
+                    }
+                    continue;
+                }
+                if (!transferRegion()) {
+                    stallStartNanos = System.nanoTime();
+                    return;
+                }
+            }
+            if (outbound.isEmpty()) {
+                key.interestOps(SelectionKey.OP_READ);
+                // 清除 OP_WRITE 之後才進來的資料
+                if (!outbound.isEmpty() && writeScheduled.compareAndSet(false, true)) {
+                    enableWrite();
+                }
+            }
+        }
+
+        // 佇列中的封包只在前一批送完後才取出，佇列深度即代表真正的積壓量
+        private boolean fillWriteBatch() {
+            Frame frame;
+            int count = 0;
+            while (count < WRITE_BATCH_FRAMES && (frame = outbound.poll()) != null) {
+                try {
+                    ByteBuffer header = frameCodec.encodeHeader(frame);
+                    writing.add(header);
+                    metrics.onFrameSent(frame, header.remaining() + (long) frame.length);
+                } catch (ProtocolException e) {
+                    Log.e("NioTransport", "Cannot encode frame " + frame, e);
+                    frame.release();
+                    continue;
+                }
+                if (frame.region != null) {
+                    // 檔案區段在標頭送完後以 transferTo 直接從檔案送進 socket，這一批到此為止
+                    regionFrame = frame;
+                    regionPosition = frame.region.position;
+                    regionRemaining = frame.region.count;
+                    break;
+                }
+                if (frame.length > 0) {
+                    // duplicate() 讓同一個 payload 可以同時排進多個連線
+                    writing.add(frame.payload.duplicate());
+                }
+                count++;
+            }
+            return !writing.isEmpty() || regionFrame != null;
+        }
+
+        // 回傳 false 代表 socket 緩衝區已滿，需等下一次可寫
+        private boolean transferRegion() throws IOException {
+            FileChannel file = regionFrame.region.file.channel;
+            long sent = file.transferTo(regionPosition, regionRemaining, channel);
+            regionPosition += sent;
+            regionRemaining -= sent;
+            if (regionRemaining > 0) {
+                if (sent == 0 && regionPosition >= file.size()) {
+                    throw new IOException("File ended before region was sent");
+                }
+                return false;
+            }
+            regionFrame.release();
+            regionFrame = null;
+            return true;
+        }
+
+        void closeWith(IOException cause) {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e("NioTransport", "Failed to close channel", e);
+            }
+            connectionMap.remove(id);
+            outbound.close();
+            if (regionFrame != null) {
+                regionFrame.release();
+                regionFrame = null;
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onDisconnected(this, cause);
+            }
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package com.example.myapplication;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// 每個連線自己的待送佇列，以位元組數為上限；滿了之後依 OverflowPolicy 處理
+// 依 Frame.priority 分成多條佇列，先取優先的；較低優先的封包連續被插隊太多次時先送一個，避免完全停擺
+// 佇列持有封包的檔案參考：接受時 retain，丟棄或關閉時 release；取出後由寫出端送完再 release
+// 上限只計算佔用記憶體的 payload，檔案區段封包只是檔案位置的參考，不佔上限
+public class OutboundQueue {
+
+    public enum OverflowPolicy {
+        // 丟掉佇列中最舊的即時語音或舒適噪音封包；沒有可丟的時，新的語音封包直接丟棄，其他封包則斷線
+        DROP_OLDEST_AUDIO,
+        // 呼叫端等待空間，逾時則斷線；只適用於由其他執行緒寫出的佇列 (BlockingTransport)，
+        // 清空佇列的執行緒自己送出時會等到自己，NioTransport 因此不接受
+        BLOCK,
+        // 立即斷開跟不上的連線
+        DISCONNECT
+    }
+
+    public static final int DEFAULT_CAPACITY_BYTES = 4 * 1024 * 1024;
+    public static final long DEFAULT_BLOCK_TIMEOUT_MS = 2000;
+    // 有較低優先的封包在等時，最多連續送出幾個較優先的封包
+    static final int MAX_BYPASS = 16;
+
+    private final int capacityBytes;
+    private final OverflowPolicy policy;
+    private final long blockTimeoutMs;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    // 以 Frame.PRIORITY_* 為索引
+    private final List<ArrayDeque<Frame>> lanes = new ArrayList<>(Frame.PRIORITY_COUNT);
+    private int depth;
+    private int bypassed;
+    private long queuedBytes;
+    private boolean closed;
+
+    private final AtomicLong enqueuedFrames = new AtomicLong();
+    private final AtomicLong droppedFrames = new AtomicLong();
+    private final AtomicLong droppedBytes = new AtomicLong();
+
+    public OutboundQueue(int capacityBytes, OverflowPolicy policy, long blockTimeoutMs) {
+        this.capacityBytes = capacityBytes;
+        this.policy = policy;
+        this.blockTimeoutMs = blockTimeoutMs;
+        for (int i = 0; i < Frame.PRIORITY_COUNT; i++) {
+            lanes.add(new ArrayDeque<>());
+        }
+    }
+
+    public OutboundQueue(int capacityBytes, OverflowPolicy policy) {
+        this(capacityBytes, policy, DEFAULT_BLOCK_TIMEOUT_MS);
+    }
+
+    // 回傳 false 代表此連線跟不上，呼叫端應將其斷線
+    public boolean offer(Frame frame) {
+        lock.lock();
+        try {
+            if (closed) {
+                return true;
+            }
+            // 佇列是空的時候一定接受，避免單一大封包永遠送不出去
+            while (depth > 0 && queuedBytes + cost(frame) > capacityBytes) {
+                switch (policy) {
+                    case DROP_OLDEST_AUDIO:
+                        if (!dropOldestVoice()) {
+                            if (isDroppable(frame)) {
+                                countDrop(frame);
+                                return true;
+                            }
+                            return false;
+                        }
+                        break;
+                    case BLOCK:
+                        if (!awaitSpace(frame)) {
+                            return false;
+                        }
+                        if (closed) {
+                            return true;
+                        }
+                        break;
+                    case DISCONNECT:
+                    default:
+                        return false;
+                }
+            }
+            frame.retain();
+            lanes.get(frame.priority()).add(frame);
+            depth++;
+            queuedBytes += cost(frame);
+            enqueuedFrames.incrementAndGet();
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 沒有資料時回傳 null
+    public Frame poll() {
+        lock.lock();
+        try {
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 等待下一個封包；佇列關閉時回傳 null
+    public Frame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (depth == 0 && !closed) {
+                notEmpty.await();
+            }
+            return removeFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // 清空並喚醒所有等待中的執行緒
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            for (ArrayDeque<Frame> lane : lanes) {
+                for (Frame frame : lane) {
+                    frame.release();
+                }
+                lane.clear();
+            }
+            depth = 0;
+            queuedBytes = 0;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return depth == 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int depth() {
+        lock.lock();
+        try {
+            return depth;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long queuedBytes() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int capacityBytes() {
+        return capacityBytes;
+    }
+
+    // 等到佔用的位元組數不超過 bytes (或佇列關閉)，逾時回傳 false；給會把大量 heap 封包排進來的送出端自行節流
+    public boolean awaitQueuedBytesAtMost(long bytes, long timeoutMs) throws InterruptedException {
+        lock.lock();
+        try {
+            long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+            while (!closed && queuedBytes > bytes) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long enqueuedFrames() {
+        return enqueuedFrames.get();
+    }
+
+    public long droppedFrames() {
+        return droppedFrames.get();
+    }
+
+    public long droppedBytes() {
+        return droppedBytes.get();
+    }
+
+    public OverflowPolicy policy() {
+        return policy;
+    }
+
+    // 每個優先順序的排隊封包數
+    public int depth(int priority) {
+        lock.lock();
+        try {
+            return lanes.get(priority).size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Frame removeFirst() {
+        int first = -1;
+        int last = -1;
+        for (int i = 0; i < lanes.size(); i++) {
+            if (!lanes.get(i).isEmpty()) {
+                if (first < 0) {
+                    first = i;
+                }
+                last = i;
+            }
+        }
+        if (first < 0) {
+            return null;
+        }
+        int lane = first;
+        if (last != first && ++bypassed > MAX_BYPASS) {
+            lane = last;
+        }
+        if (lane == last) {
+            bypassed = 0;
+        }
+        Frame frame = lanes.get(lane).pollFirst();
+        depth--;
+        queuedBytes -= cost(frame);
+        notFull.signalAll();
+        return frame;
+    }
+
+    private boolean dropOldestVoice() {
+        Iterator<Frame> it = lanes.get(Frame.PRIORITY_VOICE).iterator();
+        while (it.hasNext()) {
+            Frame queued = it.next();
+            if (isDroppable(queued)) {
+                it.remove();
+                depth--;
+                queuedBytes -= cost(queued);
+                queued.release();
+                countDrop(queued);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean awaitSpace(Frame frame) {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(blockTimeoutMs);
+        try {
+            while (!closed && depth > 0 && queuedBytes + cost(frame) > capacityBytes) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                remaining = notFull.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    // 即時語音過時就沒有意義，靜音期間的舒適噪音也一樣；VOICE_END 要保留，接收端靠它結束這段對講
+    private static boolean isDroppable(Frame frame) {
+        return frame.type == Frame.TYPE_VOICE || frame.type == Frame.TYPE_VOICE_SILENCE;
+    }
+
+    private static long cost(Frame frame) {
+        return frame.region != null ? 0 : frame.length;
+    }
+
+    private void countDrop(Frame frame) {
+        droppedFrames.incrementAndGet();
+        droppedBytes.addAndGet(frame.length);
+    }
+}
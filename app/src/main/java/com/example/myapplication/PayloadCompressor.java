@@ -0,0 +1,300 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+// 逐封包壓縮文字與檔案分段：連線建立時互送支援的壓縮方式 (COMPRESSION_OFFER)，只對有回應的連線送壓縮過的封包，
+// 與不認得 COMPRESSION_OFFER 的舊版相容；每個封包各自壓縮、不跨封包保留狀態，
+// 同一個壓縮結果可以送給多條連線，群主也能原樣轉發給支援的成員
+// 壓縮後沒有省下至少 10% 就送原始資料；檔案先試壓第一段，壓不下來 (AMR/AAC 等已編碼音訊) 整個檔案都略過
+public class PayloadCompressor implements GroupRelay.Adapter {
+
+    // raw deflate，解壓端一律先載入 CHAT_DICTIONARY
+    public static final byte METHOD_DEFLATE_V1 = 1;
+
+    // 太短的文字壓縮後通常不會更小
+    static final int MIN_COMPRESS_BYTES = 24;
+    // 壓縮的文字還原後的上限，更長的文字不壓縮直接送；接收端依此拒絕宣稱過大的長度
+    static final int MAX_TEXT_BYTES = 32 * 1024;
+    // 壓縮後的長度需小於原始長度的 90%
+    static final int MAX_RATIO_PERCENT = 90;
+
+    // 聊天文字的預設字典：常用詞放在後面，離要壓縮的資料越近，參照距離越短
+    // 與 METHOD_DEFLATE_V1 綁定，內容一旦發佈就不能修改，要改只能新增一個 method
+    static final byte[] CHAT_DICTIONARY = (
+            "http://https://www..com.tw/.jpg.png.mp4.3gp.wav "
+            + "ok OK okay thanks thank you sorry please where are you now what time see you later "
+            + "on my way I'm here wait for me call me can you hear me hello hi yes no lol haha "
+            + "收到了嗎？聽得到嗎？聽不到，再說一次。訊號不好，斷斷續續的。我先走了，等一下再聯絡。"
+            + "現在在哪裡？我在這裡，你在哪？幾點集合？幾點到？已經到了，快到了，馬上到。"
+            + "停車場門口入口出口樓下樓上左邊右邊前面後面這邊那邊往前走往回走。"
+            + "好啊好喔好的好，沒問題，不用了，不行，可以，可以嗎？知道了，了解，收到，"
+            + "謝謝，不好意思，對不起，沒關係，辛苦了，等等，等我一下，我在，你好，哈哈哈，嗯嗯，喔喔，"
+    ).getBytes(StandardCharsets.UTF_8);
+
+    private final int maxPayload;
+    private final Set<Integer> capableLinks = ConcurrentHashMap.newKeySet();
+    private final Map<Integer, Inflater> inflaters = new ConcurrentHashMap<>();
+    // 文字用預設壓縮等級加上字典；檔案分段較大，用最快的等級
+    private final Deflater textDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    private final Deflater bulkDeflater = new Deflater(Deflater.BEST_SPEED, true);
+    // 壓縮輸出的暫存區，只在持有 this 鎖時使用；封包本身仍需複製成剛好的大小
+    private byte[] scratch = new byte[FileTransfer.CHUNK_SIZE + 64];
+
+    private final AtomicLong compressedFrames = new AtomicLong();
+    private final AtomicLong skippedFrames = new AtomicLong();
+    private final AtomicLong bytesIn = new AtomicLong();
+    private final AtomicLong bytesOut = new AtomicLong();
+    private final AtomicLong deflateNanos = new AtomicLong();
+    private final AtomicLong inflateNanos = new AtomicLong();
+
+    public PayloadCompressor(int maxPayload) {
+        this.maxPayload = maxPayload;
+    }
+
+    public Frame offerFrame() {
+        return new Frame(Frame.TYPE_COMPRESSION_OFFER, (byte) 0, 0, 0,
+                ByteBuffer.wrap(new byte[] {METHOD_DEFLATE_V1}));
+    }
+
+    public void onOffer(Transport.Connection connection, Frame frame) {
+        ByteBuffer payload = frame.payload.duplicate();
+        while (payload.hasRemaining()) {
+            if (payload.get() == METHOD_DEFLATE_V1) {
+                capableLinks.add(connection.id());
+                Log.d("PayloadCompressor", "Link " + connection.remoteAddress() + " accepts compressed frames");
+                return;
+            }
+        }
+    }
+
+    public boolean supports(Transport.Connection connection) {
+        return capableLinks.contains(connection.id());
+    }
+
+    public void onDisconnected(Transport.Connection connection) {
+        capableLinks.remove(connection.id());
+        Inflater inflater = inflaters.remove(connection.id());
+        if (inflater != null) {
+            synchronized (inflater) {
+                inflater.end();
+            }
+        }
+    }
+
+    // 送給所有連線：只在有連線支援時才壓縮，而且只壓縮一次
+    public void broadcast(Transport transport, Frame frame) {
+        Frame compressed = null;
+        for (Transport.Connection connection : transport.connections()) {
+            if (supports(connection)) {
+                if (compressed == null) {
+                    compressed = compress(frame);
+                }
+                connection.send(compressed);
+            } else {
+                connection.send(frame);
+            }
+        }
+    }
+
+    // 回傳壓縮過的新封包；太短、已壓縮或壓縮後沒有變小時回傳原本的封包
+    public Frame compress(Frame frame) {
+        if (frame.payload == null || frame.isCompressed() || frame.length < MIN_COMPRESS_BYTES
+                || frame.length > maxInflatedLength(frame.type)) {
+            return frame;
+        }
+        boolean text = frame.type == Frame.TYPE_TEXT;
+        long start = System.nanoTime();
+        byte[] packed;
+        synchronized (this) {
+            packed = deflate(text ? textDeflater : bulkDeflater, text, frame.payload);
+        }
+        deflateNanos.addAndGet(System.nanoTime() - start);
+        bytesIn.addAndGet(frame.length);
+        if (packed == null) {
+            skippedFrames.incrementAndGet();
+            bytesOut.addAndGet(frame.length);
+            return frame;
+        }
+        compressedFrames.incrementAndGet();
+        bytesOut.addAndGet(packed.length);
+        return new Frame(frame.type, (byte) (frame.flags | Frame.FLAG_COMPRESSED), frame.streamId, frame.sequence,
+                ByteBuffer.wrap(packed));
+    }
+
+    // payload 格式：原始長度 (varint) + raw deflate；沒有省下足夠空間時回傳 null
+    private byte[] deflate(Deflater deflater, boolean useDictionary, ByteBuffer payload) {
+        int length = payload.remaining();
+        int limit = (int) ((long) length * MAX_RATIO_PERCENT / 100);
+        if (scratch.length < limit + 16) {
+            scratch = new byte[limit + 16];
+        }
+        int offset = putVarint(scratch, length);
+        deflater.reset();
+        if (useDictionary) {
+            deflater.setDictionary(CHAT_DICTIONARY);
+        }
+        ByteBuffer input = payload.duplicate();
+        if (input.hasArray()) {
+            deflater.setInput(input.array(), input.arrayOffset() + input.position(), length);
+        } else {
+            byte[] bytes = new byte[length];
+            input.get(bytes);
+            deflater.setInput(bytes);
+        }
+        deflater.finish();
+        // 輸出只給到 limit，超過就代表不值得壓縮，不必把整段壓完
+        while (!deflater.finished()) {
+            if (offset >= limit) {
+                return null;
+            }
+            offset += deflater.deflate(scratch, offset, limit - offset);
+        }
+        byte[] packed = new byte[offset];
+        System.arraycopy(scratch, 0, packed, 0, offset);
+        return packed;
+    }
+
+    // 接收端：把壓縮過的封包還原；未壓縮的封包原樣回傳
+    public Frame inflate(Transport.Connection connection, Frame frame) throws ProtocolException {
+        if (!frame.isCompressed()) {
+            return frame;
+        }
+        Inflater inflater = inflaters.get(connection.id());
+        if (inflater == null) {
+            inflater = new Inflater(true);
+            Inflater existing = inflaters.putIfAbsent(connection.id(), inflater);
+            if (existing != null) {
+                inflater.end();
+                inflater = existing;
+            }
+        }
+        long start = System.nanoTime();
+        byte[] plain;
+        synchronized (inflater) {
+            plain = inflate(inflater, frame.payload.duplicate(), maxInflatedLength(frame.type));
+        }
+        inflateNanos.addAndGet(System.nanoTime() - start);
+        return new Frame(frame.type, (byte) (frame.flags & ~Frame.FLAG_COMPRESSED), frame.streamId, frame.sequence,
+                ByteBuffer.wrap(plain));
+    }
+
+    // 還原後的長度上限：分段不超過 CHUNK_SIZE，文字不超過 MAX_TEXT_BYTES，其他類型不壓縮
+    int maxInflatedLength(byte type) {
+        switch (type) {
+            case Frame.TYPE_FILE_CHUNK:
+                return Math.min(FileTransfer.CHUNK_SIZE, maxPayload);
+            case Frame.TYPE_TEXT:
+                return Math.min(MAX_TEXT_BYTES, maxPayload);
+            default:
+                return 0;
+        }
+    }
+
+    // 長度是對方宣稱的，先檢查上限再配置緩衝區
+    private byte[] inflate(Inflater inflater, ByteBuffer payload, int maxLength) throws ProtocolException {
+        int length = getVarint(payload);
+        if (length < 0 || length > maxLength) {
+            throw new ProtocolException("Bad uncompressed length: " + length + " (limit " + maxLength + ")");
+        }
+        byte[] plain = new byte[length];
+        inflater.reset();
+        inflater.setDictionary(CHAT_DICTIONARY);
+        if (payload.hasArray()) {
+            inflater.setInput(payload.array(), payload.arrayOffset() + payload.position(), payload.remaining());
+        } else {
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            inflater.setInput(bytes);
+        }
+        try {
+            int offset = 0;
+            while (offset < length) {
+                int n = inflater.inflate(plain, offset, length - offset);
+                if (n == 0 && (inflater.finished() || inflater.needsInput())) {
+                    break;
+                }
+                offset += n;
+            }
+            if (offset != length || !inflater.finished()) {
+                throw new ProtocolException("Compressed payload does not match length " + length);
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Corrupt compressed payload: " + e.getMessage());
+        }
+        return plain;
+    }
+
+    // 群主轉發：對沒有回應 COMPRESSION_OFFER 的成員改送解壓後的內容
+    @Override
+    public Frame adapt(Transport.Connection source, Transport.Connection target, Frame frame) {
+        if (!frame.isCompressed() || supports(target)) {
+            return frame;
+        }
+        try {
+            return inflate(source, frame);
+        } catch (ProtocolException e) {
+            Log.w("PayloadCompressor", "Cannot relay corrupt compressed frame " + frame, e);
+            return frame;
+        }
+    }
+
+    private static int putVarint(byte[] out, int value) {
+        int offset = 0;
+        while ((value & ~0x7f) != 0) {
+            out[offset++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out[offset++] = (byte) value;
+        return offset;
+    }
+
+    private static int getVarint(ByteBuffer in) throws ProtocolException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (!in.hasRemaining()) {
+                throw new ProtocolException("Truncated compressed payload");
+            }
+            int b = in.get() & 0xff;
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new ProtocolException("Varint too long");
+    }
+
+    public long compressedFrames() {
+        return compressedFrames.get();
+    }
+
+    public long skippedFrames() {
+        return skippedFrames.get();
+    }
+
+    // 嘗試壓縮的原始位元組數與實際送出的位元組數 (略過的封包以原始長度計)
+    public long bytesIn() {
+        return bytesIn.get();
+    }
+
+    public long bytesOut() {
+        return bytesOut.get();
+    }
+
+    public long deflateNanos() {
+        return deflateNanos.get();
+    }
+
+    public long inflateNanos() {
+        return inflateNanos.get();
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.myapplication;
+
+// 未壓縮 PCM：不花 CPU，品質最好，每個 20 ms 封包 320 bytes (128 kbps)
+public class PcmCodec implements AudioCodec {
+
+    public static final byte ID = 0;
+
+    private static final Encoder ENCODER = pcm -> pcm;
+    private static final Decoder DECODER = data -> data.length == FRAME_BYTES ? data : null;
+
+    @Override
+    public byte id() {
+        return ID;
+    }
+
+    @Override
+    public String name() {
+        return "PCM";
+    }
+
+    @Override
+    public int bitrate() {
+        return SAMPLE_RATE * 16;
+    }
+
+    @Override
+    public Encoder newEncoder() {
+        return ENCODER;
+    }
+
+    @Override
+    public Decoder newDecoder() {
+        return DECODER;
+    }
+}
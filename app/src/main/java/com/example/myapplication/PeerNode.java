@@ -0,0 +1,122 @@
+package com.example.myapplication;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.Socket;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+
+// 一個群組成員的網路堆疊，不依賴 Android，可以在一般 JVM 上以 loopback 建立群主與多個成員：
+// 底層傳輸 -> 心跳 -> session -> 群播 -> 群主轉發 -> listener
+// 心跳關閉的是底層連線，session 會嘗試接回，逾時才通知 listener 斷線
+// Wi-Fi Direct 的群組建立與聊天紀錄等由 ConnectionManager 負責，這裡只處理連線與封包
+public class PeerNode {
+
+    private final SessionTransport transport;
+    private final Heartbeat heartbeat;
+    private final MulticastDelivery delivery;
+    private final GroupRelay relay;
+    private final TransportMetrics metrics;
+    private volatile GroupRelay.Adapter relayAdapter;
+
+    public PeerNode(Transport inner, ScheduledExecutorService scheduler, ExecutorService connectExecutor,
+                    TransportMetrics metrics, Transport.Listener listener) {
+        this(inner, scheduler, connectExecutor, metrics, listener, Heartbeat.DEFAULT_INTERVAL_MS);
+    }
+
+    public PeerNode(Transport inner, ScheduledExecutorService scheduler, ExecutorService connectExecutor,
+                    TransportMetrics metrics, Transport.Listener listener, long heartbeatIntervalMs) {
+        this.metrics = metrics;
+        this.transport = new SessionTransport(inner, scheduler, connectExecutor);
+        this.heartbeat = new Heartbeat(transport.innerListener(), scheduler, heartbeatIntervalMs,
+                Heartbeat.DEFAULT_MISS_THRESHOLD, metrics);
+        inner.setListener(heartbeat);
+        this.relay = new GroupRelay(transport, listener);
+        this.delivery = new MulticastDelivery(transport, relay, scheduler);
+        transport.setListener(delivery);
+        heartbeat.start();
+    }
+
+    // 群主：轉發成員之間的資料並開始接受連線，回傳實際綁定的 port
+    public int startOwner(int port) throws IOException {
+        relay.setEnabled(true);
+        return transport.startServer(port);
+    }
+
+    public Transport.Connection connect(String host, int port) throws IOException {
+        return transport.connect(host, port);
+    }
+
+    public Transport.Connection addSocket(Socket socket) throws IOException {
+        return transport.addSocket(socket);
+    }
+
+    // 群主：之後語音與檔案改以群播送給已加入的成員，回傳群播送出端 (寫出迴圈在 executor 上執行)
+    public MulticastSender startMulticast(InetSocketAddress group, NetworkInterface iface, Executor executor)
+            throws IOException {
+        return startMulticast(group, MulticastDelivery.channelSink(group, iface), executor);
+    }
+
+    public MulticastSender startMulticast(InetSocketAddress group, MulticastSender.DatagramSink sink,
+                                          Executor executor) {
+        MulticastSender sender = new MulticastSender(transport, sink,
+                group.getAddress().getHostAddress() + ":" + group.getPort(), MulticastSender.DEFAULT_RATE_BYTES_PER_SEC);
+        sender.setAdapter(relayAdapter);
+        relay.setMulticast(sender);
+        delivery.startSender(sender, group);
+        sender.start(executor);
+        return sender;
+    }
+
+    // 成員：群主提供群播時在 iface 上接收
+    public void acceptMulticast(NetworkInterface iface, Executor executor) {
+        delivery.acceptMulticast(iface, executor);
+    }
+
+    // 送出語音與檔案用，群播啟用時只送一次
+    public Transport fanout() {
+        return delivery.fanout();
+    }
+
+    public void broadcast(Frame frame) {
+        fanout().broadcast(frame, null);
+    }
+
+    // 群主轉發前依目標連線調整封包
+    public void setRelayAdapter(GroupRelay.Adapter adapter) {
+        relayAdapter = adapter;
+        relay.setAdapter(adapter);
+        MulticastSender sender = delivery.sender();
+        if (sender != null) {
+            sender.setAdapter(adapter);
+        }
+    }
+
+    public SessionTransport transport() {
+        return transport;
+    }
+
+    public MulticastDelivery delivery() {
+        return delivery;
+    }
+
+    public Heartbeat heartbeat() {
+        return heartbeat;
+    }
+
+    public TransportMetrics metrics() {
+        return metrics;
+    }
+
+    public boolean isOwner() {
+        return relay.isEnabled();
+    }
+
+    public void shutdown() {
+        heartbeat.stop();
+        delivery.shutdown();
+        transport.shutdown();
+    }
+}
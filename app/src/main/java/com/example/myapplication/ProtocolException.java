@@ -0,0 +1,12 @@
+package com.example.myapplication;
+
+import java.io.IOException;
+
+// 收到不符合 FrameCodec 格式的資料時拋出，連線應直接關閉
+public class ProtocolException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    public ProtocolException(String message) {
+        super(message);
+    }
+}
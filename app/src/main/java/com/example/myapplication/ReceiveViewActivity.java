@@ -1,30 +1,70 @@
 package com.example.myapplication;
 
+import androidx.activity.result.ActivityResultLauncher;
+import androidx.activity.result.contract.ActivityResultContracts;
+import androidx.annotation.NonNull;
+import androidx.appcompat.app.AlertDialog;
 import androidx.appcompat.app.AppCompatActivity;
+import androidx.core.content.ContextCompat;
+import androidx.core.content.FileProvider;
 import androidx.recyclerview.widget.LinearLayoutManager;
 import androidx.recyclerview.widget.RecyclerView;
 
-import android.media.MediaPlayer;
-import android.media.MediaRecorder;
+import android.Manifest;
+import android.content.ActivityNotFoundException;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Uri;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 import android.view.MotionEvent;
 import android.view.View;
 import android.widget.EditText;
 import android.widget.ImageButton;
+import android.widget.Switch;
+import android.widget.Toast;
 
 import java.io.File;
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-public class ReceiveViewActivity extends AppCompatActivity implements ConnectionManager.MessageCallback {
+public class ReceiveViewActivity extends AppCompatActivity
+        implements ConnectionManager.MessageCallback, ConnectionManager.BatchCallback {
 
     private RecyclerView messageRecyclerView;
     private MessageAdapter messageAdapter;
     private EditText msgInput;
-    private ImageButton sendBtn, recordBtn;
+    private ImageButton sendBtn, attachBtn, recordBtn;
+    private Switch livePttSwitch;
 
-    private MediaRecorder mediaRecorder;
-    private File audioFile;
+    // 錄音訊息多帶按下前 300 ms 的預錄
+    private static final int CLIP_PRE_ROLL_FRAMES = 15;
+
+    // 麥克風在畫面可見時保持擷取，按下按鈕只切換狀態
+    private final CaptureEngine captureEngine = CaptureEngine.forMicrophone();
+    private WavClipWriter clipWriter;
+
+    // 即時對講模式：邊錄邊送、邊收邊播
+    private final VoiceStreamer voiceStreamer = new VoiceStreamer(captureEngine);
+    private final VoicePlayer voicePlayer = new VoicePlayer(ConnectionManager.getInstance().metrics());
+
+    // 收到的音檔在專用執行緒上依序播放，播放器重複使用
+    private HandlerThread playbackThread;
+    private ClipPlaybackEngine clipPlayback;
+
+    private final ExecutorService historyLoader = Executors.newSingleThreadExecutor();
+    private MessageWindow messageWindow;
+    // 畫面停在最底時，新訊息套用後跟著捲動
+    private boolean followLatest = true;
+
+    // 系統檔案選擇器，選好的檔案直接從 content URI 送出，不先複製
+    private final ActivityResultLauncher<String[]> attachmentPicker = registerForActivityResult(
+            new ActivityResultContracts.OpenDocument(), this::sendAttachment);
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -34,14 +74,43 @@ public class ReceiveViewActivity extends AppCompatActivity implements Connection
         // 初始化 ConnectionManager，確保後續使用 getFilesDir() 正確運作
         ConnectionManager.getInstance().init(this);
 
+        playbackThread = new HandlerThread("ClipPlayback");
+        playbackThread.start();
+        Handler playbackHandler = new Handler(playbackThread.getLooper());
+        clipPlayback = new ClipPlaybackEngine(playbackHandler::post, MediaClipPlayer::new,
+                ClipPlaybackEngine.DEFAULT_POOL_SIZE);
+
         messageRecyclerView = findViewById(R.id.receive_message_list);
-        messageRecyclerView.setLayoutManager(new LinearLayoutManager(this));
-        messageAdapter = new MessageAdapter(new ArrayList<>());
-        messageRecyclerView.setAdapter(messageAdapter);
+        LinearLayoutManager layoutManager = new LinearLayoutManager(this);
+        layoutManager.setStackFromEnd(true);
+        messageRecyclerView.setLayoutManager(layoutManager);
+        // 聊天紀錄從磁碟分頁載入，只有畫面附近的幾頁留在記憶體
+        MessageLog messageLog = ConnectionManager.getInstance().messageLog();
+        if (messageLog != null) {
+            messageWindow = new MessageWindow(messageLog, historyLoader, ContextCompat.getMainExecutor(this),
+                    MessageWindow.DEFAULT_PAGE_SIZE, MessageWindow.DEFAULT_MAX_ITEMS);
+            messageAdapter = new MessageAdapter(messageWindow, message -> playReceivedAudio(new File(message.body)),
+                    this::openAttachment);
+            messageAdapter.setCommitCallback(() -> {
+                if (followLatest && messageWindow.isAtEnd() && messageAdapter.getItemCount() > 0) {
+                    messageRecyclerView.scrollToPosition(messageAdapter.getItemCount() - 1);
+                }
+            });
+            messageRecyclerView.setAdapter(messageAdapter);
+            messageRecyclerView.addOnScrollListener(new RecyclerView.OnScrollListener() {
+                @Override
+                public void onScrolled(@NonNull RecyclerView recyclerView, int dx, int dy) {
+                    followLatest = !recyclerView.canScrollVertically(1);
+                }
+            });
+            messageWindow.loadLatest();
+        }
 
         msgInput = findViewById(R.id.msg_input);
         sendBtn = findViewById(R.id.send_btn);
+        attachBtn = findViewById(R.id.attach_btn);
         recordBtn = findViewById(R.id.record_btn);
+        livePttSwitch = findViewById(R.id.live_ptt_switch);
 
         sendBtn.setOnClickListener(new View.OnClickListener() {
             @Override
@@ -49,23 +118,40 @@ public class ReceiveViewActivity extends AppCompatActivity implements Connection
                 String message = msgInput.getText().toString().trim();
                 if (!message.isEmpty()) {
                     // 呼叫 ConnectionManager 發送文字訊息
+                    // 送出後由 ConnectionManager 寫入聊天紀錄，再透過 onMessageAppended 顯示
                     ConnectionManager.getInstance().sendMessageToAll(message);
-                    messageAdapter.addMessage("Me: " + message);
                     msgInput.setText("");
                 }
             }
         });
 
+        attachBtn.setOnClickListener(view -> attachmentPicker.launch(new String[] {"*/*"}));
+
+        // 長按送出鍵顯示收送統計，現場排查群組變慢時使用
+        sendBtn.setOnLongClickListener(view -> {
+            showStats();
+            return true;
+        });
+
         // 錄音按鈕：按下開始錄音，放開後停止錄音並發送音檔
         recordBtn.setOnTouchListener(new View.OnTouchListener() {
             @Override
             public boolean onTouch(View v, MotionEvent event) {
                 switch (event.getAction()) {
                     case MotionEvent.ACTION_DOWN:
-                        startRecording();
+                        if (livePttSwitch.isChecked()) {
+                            startLiveTalk();
+                        } else {
+                            startRecording();
+                        }
                         return true;
                     case MotionEvent.ACTION_UP:
-                        stopRecordingAndSend();
+                    case MotionEvent.ACTION_CANCEL:
+                        if (voiceStreamer.isStreaming()) {
+                            stopLiveTalk();
+                        } else {
+                            stopRecordingAndSend();
+                        }
                         return true;
                 }
                 return false;
@@ -74,63 +160,182 @@ public class ReceiveViewActivity extends AppCompatActivity implements Connection
 
         // 註冊訊息回呼，接收來自 ConnectionManager 的訊息
         ConnectionManager.getInstance().setMessageCallback(this);
+        // 聊天紀錄改為每個 frame 一批送來，取代逐則的 onMessageAppended / onAudioMessageReceived
+        ConnectionManager.getInstance().setBatchCallback(this);
+        voicePlayer.start();
+    }
+
+    @Override
+    protected void onStart() {
+        super.onStart();
+        if (hasRecordPermission()) {
+            captureEngine.warmUp();
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        super.onStop();
+        voiceStreamer.stop();
+        stopRecordingAndSend();
+        captureEngine.coolDown();
+    }
+
+    @Override
+    protected void onDestroy() {
+        super.onDestroy();
+        // 兩個都要清掉：只清 batch 的話訊息會改走 MessageCallback，送進已經關閉的畫面
+        ConnectionManager.getInstance().clearBatchCallback(this);
+        ConnectionManager.getInstance().clearMessageCallback(this);
+        voiceStreamer.stop();
+        voicePlayer.stop();
+        historyLoader.shutdown();
+        // 先 release 所有播放器再結束執行緒
+        clipPlayback.shutdown();
+        playbackThread.quitSafely();
+    }
+
+    @Override
+    public void onMessagesAppended(List<ChatMessage> messages) {
+        boolean sentByMe = false;
+        for (ChatMessage message : messages) {
+            if (messageWindow != null) {
+                messageWindow.onAppended(message);
+            }
+            sentByMe |= message.outgoing;
+            if (message.kind == ChatMessage.KIND_AUDIO && !message.outgoing) {
+                playReceivedAudio(new File(message.body));
+            }
+        }
+        // 整批只會產生一次 snapshot，自己送出的訊息一律捲到最底；視窗已離開最新的紀錄時重新載入最後一頁
+        if (sentByMe && messageWindow != null) {
+            followLatest = true;
+            if (!messageWindow.isAtEnd()) {
+                messageWindow.loadLatest();
+            }
+        }
     }
 
     @Override
-    public void onTextMessageReceived(String message) {
-        runOnUiThread(() -> messageAdapter.addMessage("Peer: " + message));
+    public void onMessageAppended(ChatMessage message) {
+        onMessagesAppended(Collections.singletonList(message));
     }
 
     @Override
     public void onAudioMessageReceived(File audioFile) {
-        runOnUiThread(() -> {
-            messageAdapter.addMessage("Received an audio message");
-            playReceivedAudio(audioFile);
-        });
+        // 已在主執行緒
+        playReceivedAudio(audioFile);
+    }
+
+    @Override
+    public void onVoiceFrameReceived(int streamId, int sequence, byte[] frame) {
+        voicePlayer.onFrame(streamId, sequence, frame);
+    }
+
+    @Override
+    public void onVoiceStreamEnded(int streamId) {
+        voicePlayer.onStreamEnd(streamId);
+    }
+
+    private boolean hasRecordPermission() {
+        return ContextCompat.checkSelfPermission(this, Manifest.permission.RECORD_AUDIO)
+                == PackageManager.PERMISSION_GRANTED;
+    }
+
+    private void startLiveTalk() {
+        if (!hasRecordPermission()) {
+            Toast.makeText(this, "Microphone permission is required.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        voiceStreamer.start();
+    }
+
+    private void stopLiveTalk() {
+        voiceStreamer.stop();
+        ConnectionManager.getInstance().appendHistory(
+                ChatMessage.outgoing(ChatMessage.KIND_LIVE_TALK, ChatMessage.STATE_SENT, ""));
     }
 
     private void startRecording() {
+        if (!hasRecordPermission()) {
+            Toast.makeText(this, "Microphone permission is required.", Toast.LENGTH_SHORT).show();
+            return;
+        }
+        File audioFile;
         try {
-            // 使用內部儲存區，建立錄音檔案
-            audioFile = new File(getFilesDir(), "audio_message.3gp");
-            mediaRecorder = new MediaRecorder();
-            mediaRecorder.setAudioSource(MediaRecorder.AudioSource.MIC);
-            mediaRecorder.setOutputFormat(MediaRecorder.OutputFormat.THREE_GPP);
-            mediaRecorder.setOutputFile(audioFile.getAbsolutePath());
-            mediaRecorder.setAudioEncoder(MediaRecorder.AudioEncoder.AMR_NB);
-            mediaRecorder.prepare();
-            mediaRecorder.start();
-        } catch (Exception e) {
+            // 每次錄音使用新檔名：前一則可能還在分段傳送，不能覆蓋
+            audioFile = File.createTempFile("audio_message_", ".wav", getCacheDir());
+        } catch (IOException e) {
             Log.e("ReceiveViewActivity", "startRecording failed", e);
-            e.printStackTrace();
+            return;
         }
+        // 放開後在擷取執行緒寫完檔案，再透過 ConnectionManager 傳送音檔
+        clipWriter = new WavClipWriter(audioFile, AudioCodec.SAMPLE_RATE, (file, durationMs) -> {
+            if (file != null) {
+                ConnectionManager.getInstance().sendAudioFile(file);
+            }
+        });
+        // 權限剛取得時還沒啟動，擷取執行緒開好來源後才會有第一個封包
+        captureEngine.warmUp();
+        captureEngine.beginTake(clipWriter, CLIP_PRE_ROLL_FRAMES);
     }
 
     private void stopRecordingAndSend() {
+        if (clipWriter != null) {
+            captureEngine.endTake(clipWriter);
+            clipWriter = null;
+        }
+    }
+
+    private void sendAttachment(Uri uri) {
+        if (uri == null) {
+            return;
+        }
+        // 續傳可能在之後才發生，保留讀取權限到重新開機為止
         try {
-            if (mediaRecorder != null) {
-                mediaRecorder.stop();
-                mediaRecorder.release();
-                mediaRecorder = null;
-                // 透過 ConnectionManager 傳送音檔
-                ConnectionManager.getInstance().sendAudioFile(audioFile);
-                messageAdapter.addMessage("Me: Sent an audio message");
-            }
-        } catch (Exception e) {
-            Log.e("ReceiveViewActivity", "stopRecordingAndSend failed", e);
-            e.printStackTrace();
+            getContentResolver().takePersistableUriPermission(uri, Intent.FLAG_GRANT_READ_URI_PERMISSION);
+        } catch (SecurityException e) {
+            Log.w("ReceiveViewActivity", "No persistable permission for " + uri, e);
         }
+        ConnectionManager.getInstance().sendAttachment(uri);
     }
 
-    private void playReceivedAudio(File audioFile) {
-        MediaPlayer mediaPlayer = new MediaPlayer();
+    // 收到的附件是 received_media 裡的檔案，經 FileProvider 交給其他 app；送出的附件本來就是 content URI
+    private void openAttachment(ChatMessage message) {
+        String location = message.attachmentLocation();
+        Uri uri;
+        if (message.outgoing) {
+            uri = Uri.parse(location);
+        } else {
+            File file = new File(location);
+            if (!file.exists()) {
+                Toast.makeText(this, "File is no longer available.", Toast.LENGTH_SHORT).show();
+                return;
+            }
+            uri = FileProvider.getUriForFile(this, getPackageName() + ".files", file);
+        }
+        Intent intent = new Intent(Intent.ACTION_VIEW)
+                .setDataAndType(uri, message.attachmentMimeType())
+                .addFlags(Intent.FLAG_GRANT_READ_URI_PERMISSION);
         try {
-            mediaPlayer.setDataSource(audioFile.getAbsolutePath());
-            mediaPlayer.prepare();
-            mediaPlayer.start();
-        } catch (Exception e) {
-            Log.e("ReceiveViewActivity", "playReceivedAudio failed", e);
-            e.printStackTrace();
+            startActivity(intent);
+        } catch (ActivityNotFoundException e) {
+            Toast.makeText(this, "No app can open this file.", Toast.LENGTH_SHORT).show();
         }
     }
+
+    private void playReceivedAudio(File audioFile) {
+        clipPlayback.enqueue(audioFile);
+    }
+
+    // 統計在呼叫時取快照，開著對話框不會持續更新
+    private void showStats() {
+        String stats = ConnectionManager.getInstance().dumpStats();
+        Log.d("ReceiveViewActivity", "Stats\n" + stats);
+        new AlertDialog.Builder(this)
+                .setTitle("Transport stats")
+                .setMessage(stats)
+                .setPositiveButton(android.R.string.ok, null)
+                .show();
+    }
 }
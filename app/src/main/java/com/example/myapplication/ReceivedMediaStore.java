@@ -0,0 +1,124 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 收到的媒體檔存放區：每則訊息一個獨立檔名，先寫暫存檔再原子 rename，
+// 同時接收多個檔案不會互相覆蓋；總大小與保存時間超過上限時刪除最舊的檔案
+// 有內容摘要的檔案以摘要命名，同一個檔案被轉傳多次也只存一份
+public class ReceivedMediaStore {
+
+    private static final String TEMP_SUFFIX = ".part";
+
+    public static final long DEFAULT_MAX_BYTES = 50L * 1024 * 1024;
+    public static final long DEFAULT_MAX_AGE_MS = 7L * 24 * 60 * 60 * 1000;
+
+    private final File directory;
+    private final long maxBytes;
+    private final long maxAgeMs;
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong dedupedFiles = new AtomicLong();
+
+    public ReceivedMediaStore(File directory, long maxBytes, long maxAgeMs) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        this.maxAgeMs = maxAgeMs;
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.e("ReceivedMediaStore", "Cannot create " + directory);
+        }
+        // 上次執行中斷留下的暫存檔
+        File[] stale = directory.listFiles((dir, name) -> name.endsWith(TEMP_SUFFIX));
+        if (stale != null) {
+            for (File file : stale) {
+                file.delete();
+            }
+        }
+    }
+
+    // 接收中的暫存檔，完成後呼叫 commit
+    public File newTempFile() {
+        return new File(directory, nextName() + TEMP_SUFFIX);
+    }
+
+    // 把寫完的暫存檔原子地改名為正式檔案，並做一次清理
+    public File commit(File tempFile, String extension) throws IOException {
+        File target = new File(directory, nextName() + "." + extension);
+        try {
+            Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), target.toPath());
+        }
+        evict(target);
+        return target;
+    }
+
+    // 以 SHA-256 命名；已經有相同內容的檔案時丟棄暫存檔，更新既有檔案的時間 (視為剛收到) 後回傳
+    public File commit(File tempFile, byte[] digest, String extension) throws IOException {
+        File target = new File(directory, FileTransfer.hex(digest) + "." + extension);
+        synchronized (this) {
+            if (target.isFile() && target.length() == tempFile.length()) {
+                Files.delete(tempFile.toPath());
+                target.setLastModified(System.currentTimeMillis());
+                dedupedFiles.incrementAndGet();
+                return target;
+            }
+            try {
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        evict(target);
+        return target;
+    }
+
+    // 因內容重複而沒有另外存檔的次數
+    public long dedupedFiles() {
+        return dedupedFiles.get();
+    }
+
+    public File directory() {
+        return directory;
+    }
+
+    // 先刪除過期檔案，再從最舊的開始刪到總大小低於上限；keep 為剛收到的檔案，不會被刪除
+    synchronized void evict(File keep) {
+        File[] files = directory.listFiles((dir, name) -> !name.endsWith(TEMP_SUFFIX));
+        if (files == null) {
+            return;
+        }
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        long now = System.currentTimeMillis();
+        long total = 0;
+        for (File file : files) {
+            total += file.length();
+        }
+        for (File file : files) {
+            if (file.equals(keep)) {
+                continue;
+            }
+            boolean expired = now - file.lastModified() > maxAgeMs;
+            if (!expired && total <= maxBytes) {
+                break;
+            }
+            long length = file.length();
+            if (file.delete()) {
+                total -= length;
+            }
+        }
+    }
+
+    // 時間戳加上遞增序號，同一毫秒內多個檔案也不會重名
+    private String nextName() {
+        return System.currentTimeMillis() + "-" + sequence.incrementAndGet();
+    }
+}
@@ -0,0 +1,698 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+// 連線之上的 session 層：短暫斷線 (例如 Wi-Fi Direct 訊號中斷) 時保留 session，重新連上後只補送對方沒收到的封包，
+// 上層看到的始終是同一個 Connection，超過 resumeTimeoutMs 沒接回來才通知斷線
+//
+// 握手：主動連線的一方先送 HELLO (節點 id + session 代號 + 已收到的可靠封包數)，接受端依代號找出 session 後回 HELLO，
+// 雙方各自從對方回報的數量之後開始補送。可靠封包 (Frame.isReliable) 在各自的優先順序內依送出順序隱含編號：
+// 待送佇列會讓較優先的封包插隊，但同一優先順序內不會，兩端按優先順序分開計數就能對上，不需要在每個封包加序號
+// 收到的數量定期以 ACK 回報，送出端據此釋放補送緩衝區；緩衝區有上限，對方需要的封包已被丟掉時無法接續，
+// 雙方結束 session，由主動端重新建立新的 session
+public class SessionTransport implements Transport {
+
+    public static final long DEFAULT_RESUME_TIMEOUT_MS = 30_000;
+    public static final int DEFAULT_REPLAY_LIMIT_FRAMES = 4096;
+    public static final long DEFAULT_REPLAY_LIMIT_BYTES = 2L * 1024 * 1024;
+
+    // 每收到 32 個可靠封包或每 200 ms 回報一次
+    static final int ACK_EVERY_FRAMES = 32;
+    static final long ACK_INTERVAL_MS = 200;
+    private static final long RECONNECT_INITIAL_DELAY_MS = 100;
+    private static final long RECONNECT_MAX_DELAY_MS = 2000;
+    private static final long HANDSHAKE_TIMEOUT_MS = 2000;
+    // 送出 BYE 後稍等再關閉底層連線，讓 BYE 有機會送出
+    private static final long BYE_LINGER_MS = 100;
+    // 節點 id + session 代號 + 每個優先順序的已收數量
+    private static final int HELLO_PAYLOAD_SIZE = 16 + 8 * Frame.PRIORITY_COUNT;
+    private static final int ACK_PAYLOAD_SIZE = 8 * Frame.PRIORITY_COUNT;
+    // HELLO 的已收數量為 -1 代表接受端沒有可接續的 session
+    private static final long NO_SESSION = -1;
+
+    private final Transport inner;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService connectExecutor;
+    private final Random random = new Random();
+    private final long nodeId;
+    private final AtomicInteger nextSessionId = new AtomicInteger();
+    // 已通知上層的 session，包含暫時斷線中的
+    private final Map<Integer, Session> sessions = new ConcurrentHashMap<>();
+    // session 代號 (由主動端隨機產生) -> session
+    private final Map<Long, Session> sessionsByKey = new ConcurrentHashMap<>();
+    // 底層連線 id -> session；主動連線在握手完成前就有對應
+    private final Map<Integer, Session> sessionsByLink = new ConcurrentHashMap<>();
+    private final Transport.Listener innerListener = new InnerListener();
+    private final ScheduledFuture<?> ackTask;
+    private volatile Listener listener;
+    private volatile boolean running = true;
+    private volatile long resumeTimeoutMs = DEFAULT_RESUME_TIMEOUT_MS;
+    private volatile int replayLimitFrames = DEFAULT_REPLAY_LIMIT_FRAMES;
+    private volatile long replayLimitBytes = DEFAULT_REPLAY_LIMIT_BYTES;
+
+    private final AtomicLong resumedSessions = new AtomicLong();
+    private final AtomicLong replayedFrames = new AtomicLong();
+    private final AtomicLong replayedBytes = new AtomicLong();
+
+    // scheduler 負責 ACK、逾時與重連排程；重連的阻塞 connect 在 connectExecutor 上執行
+    public SessionTransport(Transport inner, ScheduledExecutorService scheduler, ExecutorService connectExecutor) {
+        this.inner = inner;
+        this.scheduler = scheduler;
+        this.connectExecutor = connectExecutor;
+        this.nodeId = random.nextLong();
+        inner.setListener(innerListener);
+        ackTask = scheduler.scheduleWithFixedDelay(this::flushAcks, ACK_INTERVAL_MS, ACK_INTERVAL_MS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    // 底層傳輸的 listener，可再包一層 (例如 Heartbeat) 後交給底層傳輸
+    public Transport.Listener innerListener() {
+        return innerListener;
+    }
+
+    public Transport inner() {
+        return inner;
+    }
+
+    public void setResumeTimeoutMs(long resumeTimeoutMs) {
+        this.resumeTimeoutMs = resumeTimeoutMs;
+    }
+
+    // 每個 session 補送緩衝區的上限；檔案區段封包只佔數量，不佔位元組
+    public void setReplayLimit(int frames, long bytes) {
+        this.replayLimitFrames = frames;
+        this.replayLimitBytes = bytes;
+    }
+
+    public long resumedSessions() {
+        return resumedSessions.get();
+    }
+
+    public long replayedFrames() {
+        return replayedFrames.get();
+    }
+
+    public long replayedBytes() {
+        return replayedBytes.get();
+    }
+
+    @Override
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    @Override
+    public void setOverflowPolicy(OutboundQueue.OverflowPolicy policy, int capacityBytes) {
+        inner.setOverflowPolicy(policy, capacityBytes);
+    }
+
+    @Override
+    public int startServer(int port) throws IOException {
+        return inner.startServer(port);
+    }
+
+    // 回傳的 session 在握手完成後才會通知 onConnected；之後斷線會自動重連同一個位址
+    @Override
+    public Connection connect(String host, int port) throws IOException {
+        Session session = new Session(host, port, random.nextLong());
+        attach(session, inner.connect(host, port));
+        return session;
+    }
+
+    // 視為本機主動建立的連線，但不知道對方位址，斷線後只能等對方重連
+    @Override
+    public Connection addSocket(Socket socket) throws IOException {
+        Session session = new Session(null, 0, random.nextLong());
+        attach(session, inner.addSocket(socket));
+        return session;
+    }
+
+    @Override
+    public void broadcast(Frame frame, Connection except) {
+        for (Session session : sessions.values()) {
+            if (session != except) {
+                session.send(frame);
+            }
+        }
+    }
+
+    @Override
+    public Collection<? extends Connection> connections() {
+        return sessions.values();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        ackTask.cancel(false);
+        inner.shutdown();
+        for (Session session : sessions.values()) {
+            endSession(session, null);
+        }
+    }
+
+    // 主動端：送出 HELLO 並等待對方回覆
+    private void attach(Session session, Connection link) {
+        long[] received;
+        synchronized (session) {
+            session.pendingLink = link;
+            // 送出 HELLO 之後不再接受舊連線上的資料，已收數量才會跟對方補送的起點一致
+            session.ready = false;
+            received = session.receivedCounts();
+        }
+        sessionsByLink.put(link.id(), session);
+        if (!inner.connections().contains(link)) {
+            // 登記前就已被對方關閉 (例如對方接受後立即斷開)，斷線通知已錯過
+            onLinkClosed(link, null);
+            return;
+        }
+        link.send(hello(session.key, received));
+        scheduler.schedule(() -> {
+            if (session.pendingLink == link) {
+                Log.w("SessionTransport", "Handshake timed out on " + link.remoteAddress());
+                link.close();
+                onLinkClosed(link, new SocketTimeoutException("Session handshake timed out"));
+            }
+        }, HANDSHAKE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+    }
+
+    // received 為 null 代表沒有可接續的 session
+    private Frame hello(long key, long[] received) {
+        ByteBuffer payload = ByteBuffer.allocate(HELLO_PAYLOAD_SIZE);
+        payload.putLong(nodeId).putLong(key);
+        for (int i = 0; i < Frame.PRIORITY_COUNT; i++) {
+            payload.putLong(received != null ? received[i] : NO_SESSION);
+        }
+        payload.flip();
+        return new Frame(Frame.TYPE_SESSION_HELLO, (byte) 0, 0, 0, payload);
+    }
+
+    private static Frame ack(long[] received) {
+        ByteBuffer payload = ByteBuffer.allocate(ACK_PAYLOAD_SIZE);
+        for (long count : received) {
+            payload.putLong(count);
+        }
+        payload.flip();
+        return new Frame(Frame.TYPE_SESSION_ACK, (byte) 0, 0, 0, payload);
+    }
+
+    private static long[] readCounts(ByteBuffer payload) {
+        long[] counts = new long[Frame.PRIORITY_COUNT];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = payload.getLong();
+        }
+        return counts;
+    }
+
+    private void onHello(Connection link, Frame frame) throws ProtocolException {
+        if (frame.length < HELLO_PAYLOAD_SIZE) {
+            throw new ProtocolException("Short SESSION_HELLO payload");
+        }
+        ByteBuffer payload = frame.payload.duplicate();
+        long peerNode = payload.getLong();
+        long key = payload.getLong();
+        long[] peerReceived = readCounts(payload);
+        Session initiated = sessionsByLink.get(link.id());
+        if (initiated != null) {
+            onHelloReply(initiated, link, peerNode, key, peerReceived);
+        } else {
+            onHelloRequest(link, peerNode, key, peerReceived);
+        }
+    }
+
+    // 接受端：依代號接續既有 session 或建立新的
+    private void onHelloRequest(Connection link, long peerNode, long key, long[] peerReceived) {
+        Session session = sessionsByKey.get(key);
+        if (session != null && session.peerNode != peerNode) {
+            session = null;
+        }
+        if (session == null && !isZero(peerReceived)) {
+            // 對方想接續，但這邊已經沒有該 session (逾時或重新啟動)
+            link.send(hello(key, null));
+            scheduler.schedule(link::close, BYE_LINGER_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        boolean fresh = session == null;
+        if (fresh) {
+            session = new Session(null, 0, key);
+            session.peerNode = peerNode;
+            sessionsByKey.put(key, session);
+            // 同一個節點開了新的 session，代表它那邊斷線中的舊 session 已經放棄 (BYE 可能沒送到)
+            for (Session old : sessions.values()) {
+                if (old.peerNode == peerNode && old.link == null) {
+                    endSession(old, new IOException("Replaced by a new session"));
+                }
+            }
+        }
+        sessionsByLink.put(link.id(), session);
+        if (!session.resume(link, peerReceived, true)) {
+            Log.w("SessionTransport", "Cannot resume session with " + link.remoteAddress() + ", replay window exceeded");
+            sessionsByLink.remove(link.id());
+            endSession(session, new IOException("Replay window exceeded"));
+            link.send(hello(key, null));
+            scheduler.schedule(link::close, BYE_LINGER_MS, TimeUnit.MILLISECONDS);
+            return;
+        }
+        if (fresh) {
+            announce(session);
+        } else {
+            resumedSessions.incrementAndGet();
+            Log.d("SessionTransport", "Session " + session.id + " resumed by " + link.remoteAddress());
+        }
+    }
+
+    // 主動端：收到接受端的回覆
+    private void onHelloReply(Session session, Connection link, long peerNode, long key, long[] peerReceived) {
+        boolean restarted = session.peerNode != 0 && session.peerNode != peerNode;
+        if (restarted || key != session.key || peerReceived[0] == NO_SESSION) {
+            // 對方已沒有這個 session，結束舊的並重新建立
+            restartSession(session, link, new IOException("Peer lost the session"));
+            return;
+        }
+        boolean fresh = session.peerNode == 0;
+        if (fresh) {
+            session.peerNode = peerNode;
+            sessionsByKey.put(key, session);
+        }
+        if (!session.resume(link, peerReceived, false)) {
+            Log.w("SessionTransport", "Cannot resume session to " + link.remoteAddress() + ", replay window exceeded");
+            link.send(new Frame(Frame.TYPE_SESSION_BYE, (byte) 0, 0, 0, ByteBuffer.allocate(0)));
+            restartSession(session, link, new IOException("Replay window exceeded"));
+            return;
+        }
+        if (fresh) {
+            announce(session);
+        } else {
+            resumedSessions.incrementAndGet();
+            Log.d("SessionTransport", "Session " + session.id + " resumed to " + link.remoteAddress());
+        }
+    }
+
+    private void restartSession(Session session, Connection link, IOException cause) {
+        sessionsByLink.remove(link.id());
+        synchronized (session) {
+            // 讓 BYE 有機會送出，稍後再關閉
+            if (session.pendingLink == link) {
+                session.pendingLink = null;
+            }
+        }
+        String host = session.host;
+        int port = session.port;
+        endSession(session, cause);
+        scheduler.schedule(link::close, BYE_LINGER_MS, TimeUnit.MILLISECONDS);
+        if (host != null && running) {
+            scheduleReconnect(new Session(host, port, random.nextLong()), BYE_LINGER_MS * 2);
+        }
+    }
+
+    private static boolean isZero(long[] counts) {
+        for (long count : counts) {
+            if (count != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void announce(Session session) {
+        sessions.put(session.id, session);
+        Listener l = listener;
+        if (l != null) {
+            l.onConnected(session);
+        }
+    }
+
+    private void onLinkClosed(Connection link, IOException cause) {
+        Session session = sessionsByLink.remove(link.id());
+        if (session == null) {
+            return;
+        }
+        synchronized (session) {
+            if (session.pendingLink == link) {
+                session.pendingLink = null;
+            } else if (session.link == link) {
+                session.link = null;
+                session.ready = false;
+            } else {
+                return;
+            }
+        }
+        if (session.ended) {
+            return;
+        }
+        if (!running) {
+            endSession(session, cause);
+            return;
+        }
+        Log.d("SessionTransport", "Session " + session.id + " lost its link, waiting " + resumeTimeoutMs + " ms to resume");
+        synchronized (session) {
+            if (session.expiry == null) {
+                session.expiry = scheduler.schedule(() -> endSession(session,
+                        cause != null ? cause : new SocketTimeoutException("Session not resumed in " + resumeTimeoutMs + " ms")),
+                        resumeTimeoutMs, TimeUnit.MILLISECONDS);
+            }
+        }
+        if (session.host != null) {
+            scheduleReconnect(session, RECONNECT_INITIAL_DELAY_MS);
+        }
+    }
+
+    private void scheduleReconnect(Session session, long delayMs) {
+        scheduler.schedule(() -> connectExecutor.execute(() -> reconnect(session, delayMs)), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void reconnect(Session session, long delayMs) {
+        if (session.ended || !running || session.link != null || session.pendingLink != null) {
+            return;
+        }
+        try {
+            attach(session, inner.connect(session.host, session.port));
+        } catch (IOException e) {
+            Log.d("SessionTransport", "Reconnect to " + session.host + " failed: " + e.getMessage());
+            scheduleReconnect(session, Math.min(delayMs * 2, RECONNECT_MAX_DELAY_MS));
+        }
+    }
+
+    private void endSession(Session session, IOException cause) {
+        boolean announced;
+        synchronized (session) {
+            if (session.ended) {
+                return;
+            }
+            session.ended = true;
+            session.ready = false;
+            session.releaseBuffer();
+            if (session.expiry != null) {
+                session.expiry.cancel(false);
+                session.expiry = null;
+            }
+            if (session.link != null) {
+                sessionsByLink.remove(session.link.id());
+                session.link.close();
+                session.link = null;
+            }
+            if (session.pendingLink != null) {
+                sessionsByLink.remove(session.pendingLink.id());
+                session.pendingLink.close();
+                session.pendingLink = null;
+            }
+            announced = sessions.remove(session.id, session);
+        }
+        sessionsByKey.remove(session.key, session);
+        Listener l = listener;
+        if (announced && l != null) {
+            l.onDisconnected(session, cause);
+        }
+    }
+
+    private void flushAcks() {
+        for (Session session : sessions.values()) {
+            session.flushAck();
+        }
+    }
+
+    private class InnerListener implements Transport.Listener {
+        @Override
+        public void onConnected(Connection link) {
+            // 主動端在 attach 時送出 HELLO；接受端等對方的 HELLO
+        }
+
+        @Override
+        public void onFrame(Connection link, Frame frame) {
+            try {
+                switch (frame.type) {
+                    case Frame.TYPE_SESSION_HELLO:
+                        onHello(link, frame);
+                        return;
+                    case Frame.TYPE_SESSION_ACK: {
+                        Session session = sessionsByLink.get(link.id());
+                        if (session != null && frame.length >= ACK_PAYLOAD_SIZE) {
+                            session.onAck(readCounts(frame.payload.duplicate()));
+                        }
+                        return;
+                    }
+                    case Frame.TYPE_SESSION_BYE: {
+                        Session session = sessionsByLink.remove(link.id());
+                        if (session != null) {
+                            endSession(session, new IOException("Session ended by peer"));
+                        }
+                        link.close();
+                        return;
+                    }
+                    default:
+                        break;
+                }
+            } catch (ProtocolException e) {
+                Log.e("SessionTransport", "Bad session frame from " + link.remoteAddress(), e);
+                link.close();
+                return;
+            }
+            Session session = sessionsByLink.get(link.id());
+            if (session == null || !session.accept(link, frame)) {
+                // 握手前或已被取代的連線上的資料
+                return;
+            }
+            Listener l = listener;
+            if (l != null) {
+                l.onFrame(session, frame);
+            }
+        }
+
+        @Override
+        public void onDisconnected(Connection link, IOException cause) {
+            onLinkClosed(link, cause);
+        }
+    }
+
+    private class Session implements Connection {
+        final int id = nextSessionId.incrementAndGet();
+        final long key;
+        // 主動端重連用的位址，接受端為 null
+        final String host;
+        final int port;
+        volatile long peerNode;
+        volatile boolean ended;
+        volatile boolean ready;
+        volatile Connection link;
+        // 已送出 HELLO、等待回覆中的底層連線
+        volatile Connection pendingLink;
+        ScheduledFuture<?> expiry;
+        String lastAddress = "unknown";
+
+        // 每個優先順序各自的送出/接收計數與補送緩衝區
+        private final Lane[] lanes = new Lane[Frame.PRIORITY_COUNT];
+        private int bufferedFrames;
+        private long bufferedBytes;
+        private long receivedTotal;
+        private long ackedTotal;
+
+        Session(String host, int port, long key) {
+            this.host = host;
+            this.port = port;
+            this.key = key;
+            for (int i = 0; i < lanes.length; i++) {
+                lanes[i] = new Lane();
+            }
+        }
+
+        @Override
+        public int id() {
+            return id;
+        }
+
+        @Override
+        public String remoteAddress() {
+            Connection current = link;
+            return current != null ? current.remoteAddress() : lastAddress;
+        }
+
+        // 可靠封包先放進補送緩衝區；斷線中只保留可靠封包，即時語音直接丟掉
+        @Override
+        public synchronized void send(Frame frame) {
+            if (ended) {
+                return;
+            }
+            if (frame.isReliable()) {
+                frame.retain();
+                Lane lane = lanes[frame.priority()];
+                lane.replay.add(frame);
+                lane.sent++;
+                bufferedFrames++;
+                bufferedBytes += cost(frame);
+                while (bufferedFrames > 1 && (bufferedFrames > replayLimitFrames || bufferedBytes > replayLimitBytes)) {
+                    dropOldest();
+                }
+            }
+            if (ready && link != null) {
+                link.send(frame);
+            }
+        }
+
+        @Override
+        public void close() {
+            Connection current;
+            synchronized (this) {
+                current = ready ? link : null;
+            }
+            if (current != null) {
+                current.send(new Frame(Frame.TYPE_SESSION_BYE, (byte) 0, 0, 0, ByteBuffer.allocate(0)));
+                // 先移除對應，BYE 送出前的斷線不會被當成要重連
+                sessionsByLink.remove(current.id());
+                synchronized (this) {
+                    link = null;
+                }
+                scheduler.schedule(current::close, BYE_LINGER_MS, TimeUnit.MILLISECONDS);
+            }
+            endSession(this, null);
+        }
+
+        @Override
+        public OutboundQueue outboundQueue() {
+            Connection current = link;
+            return current != null ? current.outboundQueue() : null;
+        }
+
+        // 切換到新的底層連線，補送對方還沒收到的封包；對方需要的封包已不在緩衝區時回傳 false
+        synchronized boolean resume(Connection newLink, long[] peerReceived, boolean replyHello) {
+            if (ended) {
+                return false;
+            }
+            for (int i = 0; i < lanes.length; i++) {
+                Lane lane = lanes[i];
+                if (peerReceived[i] < 0 || peerReceived[i] > lane.sent || peerReceived[i] + 1 < lane.firstBufferedSeq) {
+                    return false;
+                }
+            }
+            Connection old = link;
+            pendingLink = null;
+            link = newLink;
+            lastAddress = newLink.remoteAddress();
+            if (old != null && old != newLink) {
+                // 舊連線可能還沒被發現已失效 (半開連線)
+                sessionsByLink.remove(old.id());
+                old.close();
+            }
+            if (expiry != null) {
+                expiry.cancel(false);
+                expiry = null;
+            }
+            if (replyHello) {
+                newLink.send(hello(key, receivedCounts()));
+            }
+            onAck(peerReceived);
+            for (Lane lane : lanes) {
+                for (Frame frame : lane.replay) {
+                    newLink.send(frame);
+                    replayedFrames.incrementAndGet();
+                    replayedBytes.addAndGet(frame.length);
+                }
+            }
+            ready = true;
+            return true;
+        }
+
+        synchronized void onAck(long[] peerReceived) {
+            for (int i = 0; i < lanes.length; i++) {
+                Lane lane = lanes[i];
+                while (lane.firstBufferedSeq <= peerReceived[i] && !lane.replay.isEmpty()) {
+                    release(lane);
+                }
+            }
+        }
+
+        // 只接受目前連線上的資料，並計數可靠封包
+        synchronized boolean accept(Connection from, Frame frame) {
+            if (ended || !ready || from != link) {
+                return false;
+            }
+            if (frame.isReliable()) {
+                lanes[frame.priority()].received++;
+                receivedTotal++;
+                if (receivedTotal - ackedTotal >= ACK_EVERY_FRAMES) {
+                    ackedTotal = receivedTotal;
+                    link.send(ack(receivedCounts()));
+                }
+            }
+            return true;
+        }
+
+        synchronized void flushAck() {
+            if (ready && link != null && receivedTotal > ackedTotal) {
+                ackedTotal = receivedTotal;
+                link.send(ack(receivedCounts()));
+            }
+        }
+
+        synchronized long[] receivedCounts() {
+            long[] counts = new long[lanes.length];
+            for (int i = 0; i < lanes.length; i++) {
+                counts[i] = lanes[i].received;
+            }
+            return counts;
+        }
+
+        synchronized void releaseBuffer() {
+            for (Lane lane : lanes) {
+                for (Frame frame : lane.replay) {
+                    frame.release();
+                }
+                lane.replay.clear();
+            }
+            bufferedFrames = 0;
+            bufferedBytes = 0;
+        }
+
+        // 超過上限時從積壓最多的優先順序丟起，通常是檔案分段
+        private void dropOldest() {
+            Lane largest = lanes[0];
+            for (Lane lane : lanes) {
+                if (lane.replay.size() > largest.replay.size()) {
+                    largest = lane;
+                }
+            }
+            release(largest);
+        }
+
+        private void release(Lane lane) {
+            Frame frame = lane.replay.poll();
+            bufferedFrames--;
+            bufferedBytes -= cost(frame);
+            frame.release();
+            lane.firstBufferedSeq++;
+        }
+
+        private long cost(Frame frame) {
+            return frame.region != null ? 0 : frame.length;
+        }
+
+        @Override
+        public String toString() {
+            return "Session{id=" + id + ", peer=" + Long.toHexString(peerNode) + ", buffered=" + bufferedFrames
+                    + ", received=" + receivedTotal + ", ready=" + ready + "}";
+        }
+    }
+
+    // 一個優先順序內的可靠封包：已送出數量與補送緩衝區 (第一個元素的編號為 firstBufferedSeq)，以及已收到的數量
+    private static class Lane {
+        final ArrayDeque<Frame> replay = new ArrayDeque<>();
+        long sent;
+        long firstBufferedSeq = 1;
+        long received;
+    }
+}
@@ -0,0 +1,49 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 廣播檔案時所有連線共用同一個唯讀 FileChannel，以參考計數決定何時關閉
+// transferTo 使用指定位置，不會改動 channel 的 position，多條執行緒同時使用是安全的
+public final class SharedFileChannel {
+
+    final FileChannel channel;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    private SharedFileChannel(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    // 開啟後參考計數為 1，由開啟者在排完所有封包後 release
+    public static SharedFileChannel open(File file) throws IOException {
+        return new SharedFileChannel(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+    }
+
+    // 已開啟的 channel，例如 ContentResolver 給的 file descriptor；release 到 0 時關閉
+    public static SharedFileChannel of(FileChannel channel) {
+        return new SharedFileChannel(channel);
+    }
+
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    void retain() {
+        refCount.incrementAndGet();
+    }
+
+    void release() {
+        if (refCount.decrementAndGet() == 0) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                Log.e("SharedFileChannel", "Failed to close file channel", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.myapplication;
+
+// 擷取端的靜音抑制：按下按鈕後到開口前的靜音不送，說話中的停頓與放開前的靜音
+// 依模式略過或改送舒適噪音標記 (VOICE_SILENCE，只帶噪音強度 1 byte)
+// 封包仍佔用 sequence，接收端知道中間經過的時間
+public class SilenceSuppressor {
+
+    public enum Mode {
+        // 每個封包都照送
+        OFF,
+        // 靜音封包直接略過，接收端以補音處理
+        TRIM,
+        // 開口之後的靜音改送舒適噪音標記
+        COMFORT_NOISE
+    }
+
+    public enum Action {
+        SEND,
+        // 剛開口：先補送前一個被略過的封包，避免切掉第一個音的開頭，再送這個封包
+        SEND_WITH_PREVIOUS,
+        COMFORT_NOISE,
+        SKIP
+    }
+
+    // 舒適噪音標記的 payload 大小
+    static final int MARKER_BYTES = 1;
+
+    private final VoiceActivityDetector detector = new VoiceActivityDetector();
+    private final Mode mode;
+    private boolean talking;
+    private boolean previousSkipped;
+
+    private long capturedFrames;
+    private long sentFrames;
+    private long skippedFrames;
+    private long comfortNoiseFrames;
+    private long savedBytes;
+
+    public SilenceSuppressor(Mode mode) {
+        this.mode = mode;
+    }
+
+    public Action process(byte[] pcm) {
+        capturedFrames++;
+        if (mode == Mode.OFF) {
+            sentFrames++;
+            return Action.SEND;
+        }
+        if (detector.isSpeech(pcm)) {
+            sentFrames++;
+            boolean onset = previousSkipped;
+            talking = true;
+            previousSkipped = false;
+            if (onset) {
+                // 補送的前一個封包原本算在省下的位元組裡
+                sentFrames++;
+                skippedFrames--;
+                savedBytes -= pcm.length;
+                return Action.SEND_WITH_PREVIOUS;
+            }
+            return Action.SEND;
+        }
+        if (talking && mode == Mode.COMFORT_NOISE) {
+            comfortNoiseFrames++;
+            savedBytes += pcm.length - MARKER_BYTES;
+            previousSkipped = false;
+            return Action.COMFORT_NOISE;
+        }
+        skippedFrames++;
+        savedBytes += pcm.length;
+        previousSkipped = true;
+        return Action.SKIP;
+    }
+
+    // 舒適噪音標記要帶的噪音強度
+    public int noiseLevelDbov() {
+        return detector.noiseLevelDbov();
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public long capturedFrames() {
+        return capturedFrames;
+    }
+
+    public long sentFrames() {
+        return sentFrames;
+    }
+
+    public long skippedFrames() {
+        return skippedFrames;
+    }
+
+    public long comfortNoiseFrames() {
+        return comfortNoiseFrames;
+    }
+
+    // 相較於全部送出 PCM 省下的 payload 位元組數
+    public long savedBytes() {
+        return savedBytes;
+    }
+
+    // 接收端：依噪音強度產生一個封包的舒適噪音 (均勻分布，RMS 等於指定強度)
+    public static byte[] comfortNoise(int levelDbov, int frameBytes, int seed) {
+        byte[] pcm = new byte[frameBytes];
+        double rms = 32768.0 * Math.pow(10, -levelDbov / 20.0);
+        int amplitude = (int) Math.min(Short.MAX_VALUE, rms * Math.sqrt(3));
+        int state = seed * 0x9E3779B9 + 1;
+        for (int i = 0; i + 1 < frameBytes; i += 2) {
+            state = state * 1103515245 + 12345;
+            int sample = amplitude == 0 ? 0 : ((state >>> 8) % (2 * amplitude + 1)) - amplitude;
+            pcm[i] = (byte) sample;
+            pcm[i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+}
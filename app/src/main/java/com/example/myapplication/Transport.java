@@ -0,0 +1,45 @@
+package com.example.myapplication;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Collection;
+
+// 傳輸層抽象：ConnectionManager 透過它收送 Frame，可切換阻塞式或 NIO 實作
+public interface Transport {
+
+    interface Listener {
+        void onConnected(Connection connection);
+        // 由傳輸層的執行緒呼叫，不可在此做耗時工作
+        void onFrame(Connection connection, Frame frame);
+        void onDisconnected(Connection connection, IOException cause);
+    }
+
+    interface Connection {
+        int id();
+        String remoteAddress();
+        // 非阻塞 (BLOCK 策略除外)：放進該連線的待送佇列
+        void send(Frame frame);
+        void close();
+        // 待送佇列深度與丟棄計數
+        OutboundQueue outboundQueue();
+    }
+
+    void setListener(Listener listener);
+
+    // 之後建立的連線使用的待送佇列上限與滿載處理方式；BLOCK 只有每條連線各有寫出執行緒的 BlockingTransport 支援
+    void setOverflowPolicy(OutboundQueue.OverflowPolicy policy, int capacityBytes);
+
+    // 開始接受連線，回傳實際綁定的 port (傳入 0 時由系統分配)
+    int startServer(int port) throws IOException;
+
+    Connection connect(String host, int port) throws IOException;
+
+    Connection addSocket(Socket socket) throws IOException;
+
+    // 送給所有連線；except 不為 null 時略過該連線
+    void broadcast(Frame frame, Connection except);
+
+    Collection<? extends Connection> connections();
+
+    void shutdown();
+}
@@ -0,0 +1,362 @@
+package com.example.myapplication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+// 傳輸層的統計：每種封包類型的收送數量與位元組、寫出阻塞時間、排隊時間、RTT、重連、解碼錯誤與語音延遲
+// 計數器是 LongAdder、直方圖是固定的桶，記錄時不加鎖也不配置物件，可以放在讀寫迴圈裡
+// 佇列深度這類目前值以 gauge 註冊，只在 snapshot 時讀取
+public class TransportMetrics {
+
+    // 封包類型 0~31 各自計數，超出範圍的併入 0
+    static final int TYPE_SLOTS = 32;
+
+    private final LongAdder[] sentFrames = newAdders(TYPE_SLOTS);
+    private final LongAdder[] sentBytes = newAdders(TYPE_SLOTS);
+    private final LongAdder[] receivedFrames = newAdders(TYPE_SLOTS);
+    private final LongAdder[] receivedBytes = newAdders(TYPE_SLOTS);
+    private final LongAdder decodeErrors = new LongAdder();
+    // 時間一律以微秒記錄
+    private final Histogram writeStallMicros = new Histogram();
+    private final Histogram queueDelayMicros = new Histogram();
+    private final Histogram voiceQueueDelayMicros = new Histogram();
+    private final Histogram rttMicros = new Histogram();
+    private final Histogram voiceLatencyMicros = new Histogram();
+    private final AtomicLong lastRttMicros = new AtomicLong(-1);
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static int slot(byte type) {
+        int index = type & 0xff;
+        return index < TYPE_SLOTS ? index : 0;
+    }
+
+    // 由寫出執行緒或 selector 呼叫：wireBytes 含標頭
+    public void onFrameSent(Frame frame, long wireBytes) {
+        int slot = slot(frame.type);
+        sentFrames[slot].increment();
+        sentBytes[slot].add(wireBytes);
+        long waitedMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - frame.createdNanos);
+        queueDelayMicros.record(waitedMicros);
+        if (frame.type == Frame.TYPE_VOICE) {
+            voiceQueueDelayMicros.record(waitedMicros);
+        }
+    }
+
+    public void onFrameReceived(Frame frame, long wireBytes) {
+        int slot = slot(frame.type);
+        receivedFrames[slot].increment();
+        receivedBytes[slot].add(wireBytes);
+    }
+
+    public void onDecodeError() {
+        decodeErrors.increment();
+    }
+
+    // 一次寫入 socket 被阻塞 (阻塞式) 或等待 socket 緩衝區空出 (NIO) 的時間
+    public void onWriteStall(long nanos) {
+        writeStallMicros.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    public void onRtt(long nanos) {
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        rttMicros.record(micros);
+        lastRttMicros.set(micros);
+    }
+
+    // 播放端每播出一個收到的語音封包呼叫一次，residenceMs 為封包在抖動緩衝裡等待的時間
+    // 兩端時鐘沒有同步，單程網路時間以最近的 RTT 一半估計；再加上擷取一個封包的時間與本機語音封包的平均排隊時間
+    public void onVoicePlayed(long residenceMs, int frameMs) {
+        long rtt = lastRttMicros.get();
+        long micros = TimeUnit.MILLISECONDS.toMicros(residenceMs + frameMs)
+                + (rtt > 0 ? rtt / 2 : 0) + voiceQueueDelayMicros.mean();
+        voiceLatencyMicros.record(micros);
+    }
+
+    // 目前值，例如佇列深度或重連次數；supplier 會在 snapshot 的呼叫執行緒上執行
+    public void registerGauge(String name, LongSupplier supplier) {
+        gauges.add(new Gauge(name, supplier));
+    }
+
+    public long sentFrames(byte type) {
+        return sentFrames[slot(type)].sum();
+    }
+
+    public long sentBytes(byte type) {
+        return sentBytes[slot(type)].sum();
+    }
+
+    public long receivedFrames(byte type) {
+        return receivedFrames[slot(type)].sum();
+    }
+
+    public long receivedBytes(byte type) {
+        return receivedBytes[slot(type)].sum();
+    }
+
+    public long decodeErrors() {
+        return decodeErrors.sum();
+    }
+
+    public Histogram writeStallMicros() {
+        return writeStallMicros;
+    }
+
+    public Histogram queueDelayMicros() {
+        return queueDelayMicros;
+    }
+
+    public Histogram rttMicros() {
+        return rttMicros;
+    }
+
+    public Histogram voiceLatencyMicros() {
+        return voiceLatencyMicros;
+    }
+
+    public Snapshot snapshot() {
+        List<TypeStats> types = new ArrayList<>();
+        for (int i = 0; i < TYPE_SLOTS; i++) {
+            long sent = sentFrames[i].sum();
+            long received = receivedFrames[i].sum();
+            if (sent != 0 || received != 0) {
+                types.add(new TypeStats(i, sent, sentBytes[i].sum(), received, receivedBytes[i].sum()));
+            }
+        }
+        List<String> gaugeNames = new ArrayList<>();
+        List<Long> gaugeValues = new ArrayList<>();
+        for (Gauge gauge : gauges) {
+            gaugeNames.add(gauge.name);
+            gaugeValues.add(gauge.supplier.getAsLong());
+        }
+        return new Snapshot(types, decodeErrors.sum(), writeStallMicros.snapshot(), queueDelayMicros.snapshot(),
+                voiceQueueDelayMicros.snapshot(), rttMicros.snapshot(), voiceLatencyMicros.snapshot(),
+                gaugeNames, gaugeValues);
+    }
+
+    // 除錯用的文字輸出
+    public String dump() {
+        return snapshot().toString();
+    }
+
+    private static final class Gauge {
+        final String name;
+        final LongSupplier supplier;
+
+        Gauge(String name, LongSupplier supplier) {
+            this.name = name;
+            this.supplier = supplier;
+        }
+    }
+
+    // 固定桶的直方圖：每個 2 的次方區間再分 4 格，百分位數的誤差在 25% 以內
+    // 值 0~3 各一格，上限約 2^31 (微秒約 35 分鐘)，超過的落在最後一格
+    public static final class Histogram {
+        static final int SUB_BUCKETS = 4;
+        static final int BUCKETS = SUB_BUCKETS + 29 * SUB_BUCKETS;
+
+        private final LongAdder[] buckets = newAdders(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        public void record(long value) {
+            if (value < 0) {
+                value = 0;
+            }
+            buckets[bucketOf(value)].increment();
+            count.increment();
+            sum.add(value);
+            if (value > max.get()) {
+                max.accumulateAndGet(value, Math::max);
+            }
+        }
+
+        static int bucketOf(long value) {
+            if (value < SUB_BUCKETS) {
+                return (int) value;
+            }
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 2)) & (SUB_BUCKETS - 1);
+            return Math.min(BUCKETS - 1, SUB_BUCKETS + (exponent - 2) * SUB_BUCKETS + sub);
+        }
+
+        // 該格涵蓋的最大值
+        static long upperBound(int bucket) {
+            if (bucket < SUB_BUCKETS) {
+                return bucket;
+            }
+            int exponent = (bucket - SUB_BUCKETS) / SUB_BUCKETS + 2;
+            int sub = (bucket - SUB_BUCKETS) % SUB_BUCKETS;
+            return ((long) (SUB_BUCKETS + sub + 1) << (exponent - 2)) - 1;
+        }
+
+        public long count() {
+            return count.sum();
+        }
+
+        public long mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : sum.sum() / n;
+        }
+
+        public long max() {
+            return max.get();
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            long total = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+                total += counts[i];
+            }
+            // 各格分別讀取，與 count、sum 之間可能差幾筆正在寫入的紀錄
+            long mean = total == 0 ? 0 : sum.sum() / Math.max(total, count.sum());
+            long maxValue = max.get();
+            return new HistogramSnapshot(total, mean, percentile(counts, total, 0.5, maxValue),
+                    percentile(counts, total, 0.9, maxValue), percentile(counts, total, 0.99, maxValue), maxValue);
+        }
+
+        private static long percentile(long[] counts, long total, double fraction, long maxValue) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = (long) Math.ceil(total * fraction);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), maxValue);
+                }
+            }
+            return maxValue;
+        }
+    }
+
+    public static final class HistogramSnapshot {
+        public final long count;
+        public final long mean;
+        public final long p50;
+        public final long p90;
+        public final long p99;
+        public final long max;
+
+        HistogramSnapshot(long count, long mean, long p50, long p90, long p99, long max) {
+            this.count = count;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.max = max;
+        }
+
+        // 以毫秒輸出，原始值為微秒
+        @Override
+        public String toString() {
+            if (count == 0) {
+                return "n=0";
+            }
+            return String.format(Locale.US, "n=%d mean %.1f p50 %.1f p90 %.1f p99 %.1f max %.1f ms",
+                    count, mean / 1000.0, p50 / 1000.0, p90 / 1000.0, p99 / 1000.0, max / 1000.0);
+        }
+    }
+
+    public static final class TypeStats {
+        public final int type;
+        public final long sentFrames;
+        public final long sentBytes;
+        public final long receivedFrames;
+        public final long receivedBytes;
+
+        TypeStats(int type, long sentFrames, long sentBytes, long receivedFrames, long receivedBytes) {
+            this.type = type;
+            this.sentFrames = sentFrames;
+            this.sentBytes = sentBytes;
+            this.receivedFrames = receivedFrames;
+            this.receivedBytes = receivedBytes;
+        }
+    }
+
+    public static final class Snapshot {
+        public final List<TypeStats> types;
+        public final long decodeErrors;
+        public final HistogramSnapshot writeStall;
+        public final HistogramSnapshot queueDelay;
+        public final HistogramSnapshot voiceQueueDelay;
+        public final HistogramSnapshot rtt;
+        public final HistogramSnapshot voiceLatency;
+        private final List<String> gaugeNames;
+        private final List<Long> gaugeValues;
+
+        Snapshot(List<TypeStats> types, long decodeErrors, HistogramSnapshot writeStall, HistogramSnapshot queueDelay,
+                 HistogramSnapshot voiceQueueDelay, HistogramSnapshot rtt, HistogramSnapshot voiceLatency,
+                 List<String> gaugeNames, List<Long> gaugeValues) {
+            this.types = Collections.unmodifiableList(types);
+            this.decodeErrors = decodeErrors;
+            this.writeStall = writeStall;
+            this.queueDelay = queueDelay;
+            this.voiceQueueDelay = voiceQueueDelay;
+            this.rtt = rtt;
+            this.voiceLatency = voiceLatency;
+            this.gaugeNames = gaugeNames;
+            this.gaugeValues = gaugeValues;
+        }
+
+        // 沒有註冊時回傳 -1
+        public long gauge(String name) {
+            int index = gaugeNames.indexOf(name);
+            return index < 0 ? -1 : gaugeValues.get(index);
+        }
+
+        public long totalSentBytes() {
+            long total = 0;
+            for (TypeStats stats : types) {
+                total += stats.sentBytes;
+            }
+            return total;
+        }
+
+        public long totalReceivedBytes() {
+            long total = 0;
+            for (TypeStats stats : types) {
+                total += stats.receivedBytes;
+            }
+            return total;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append("type  sent frames/bytes  received frames/bytes\n");
+            for (TypeStats stats : types) {
+                out.append(String.format(Locale.US, "%-4d  %d / %d  %d / %d\n", stats.type,
+                        stats.sentFrames, stats.sentBytes, stats.receivedFrames, stats.receivedBytes));
+            }
+            for (int i = 0; i < gaugeNames.size(); i++) {
+                out.append(gaugeNames.get(i)).append(": ").append(gaugeValues.get(i)).append('\n');
+            }
+            out.append("decode errors: ").append(decodeErrors).append('\n')
+                    .append("write stall: ").append(writeStall).append('\n')
+                    .append("queue delay: ").append(queueDelay).append('\n')
+                    .append("voice queue delay: ").append(voiceQueueDelay).append('\n')
+                    .append("rtt: ").append(rtt).append('\n')
+                    .append("voice latency (est.): ").append(voiceLatency).append('\n');
+            return out.toString();
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.example.myapplication;
+
+// 以能量與過零率判斷 20 ms 的 PCM 封包是否為語音；背景噪音底值隨環境自動調整
+// 每個封包都會呼叫，所有運算只用基本型別，不配置記憶體
+public class VoiceActivityDetector {
+
+    // 能量超過噪音底值 6 倍 (約 8 dB) 視為有聲語音
+    static final int ENERGY_RATIO = 6;
+    // 能量不高但過零率高的封包 (ㄙ、ㄘ 等摩擦音) 只要超過底值 2.5 倍
+    static final double FRICATIVE_ENERGY_RATIO = 2.5;
+    static final double FRICATIVE_ZCR = 0.3;
+    // 平均振幅低於 100 (約 -50 dBov) 一律視為靜音
+    static final long MIN_SPEECH_ENERGY = 100 * 100;
+    // 噪音底值下限，避免完全無聲的環境讓任何雜音都被當成語音
+    static final long MIN_NOISE_FLOOR = 10 * 10;
+    // 語音結束後再維持 8 個封包 (160 ms)，避免切掉字尾
+    static final int HANGOVER_FRAMES = 8;
+
+    private long noiseFloor = -1;
+    private int hangover;
+    private long lastEnergy;
+    private double lastZeroCrossingRate;
+
+    // 回傳此封包是否屬於語音 (含字尾的延長)
+    public boolean isSpeech(byte[] pcm, int offset, int length) {
+        int samples = length / 2;
+        if (samples == 0) {
+            return false;
+        }
+        long sumSquares = 0;
+        int crossings = 0;
+        int previous = 0;
+        for (int i = 0; i < samples; i++) {
+            int position = offset + 2 * i;
+            int sample = (short) ((pcm[position] & 0xff) | (pcm[position + 1] << 8));
+            sumSquares += (long) sample * sample;
+            if (i > 0 && (sample >= 0) != (previous >= 0)) {
+                crossings++;
+            }
+            previous = sample;
+        }
+        long energy = sumSquares / samples;
+        double zcr = (double) crossings / samples;
+        lastEnergy = energy;
+        lastZeroCrossingRate = zcr;
+        if (noiseFloor < 0) {
+            // 第一個封包通常是按下按鈕前後的環境音
+            noiseFloor = Math.max(MIN_NOISE_FLOOR, Math.min(energy, MIN_SPEECH_ENERGY));
+        }
+
+        boolean voiced = energy > noiseFloor * ENERGY_RATIO && energy > MIN_SPEECH_ENERGY;
+        boolean fricative = zcr > FRICATIVE_ZCR && energy > noiseFloor * FRICATIVE_ENERGY_RATIO
+                && energy > MIN_SPEECH_ENERGY / 4;
+        if (voiced || fricative) {
+            hangover = HANGOVER_FRAMES;
+            return true;
+        }
+        // 只在非語音時更新底值：往下很快跟上，往上慢慢爬，避免被長母音拉高
+        if (energy < noiseFloor) {
+            noiseFloor += (energy - noiseFloor) / 4;
+        } else {
+            noiseFloor += (energy - noiseFloor) / 32;
+        }
+        noiseFloor = Math.max(MIN_NOISE_FLOOR, noiseFloor);
+        if (hangover > 0) {
+            hangover--;
+            return true;
+        }
+        return false;
+    }
+
+    public boolean isSpeech(byte[] pcm) {
+        return isSpeech(pcm, 0, pcm.length);
+    }
+
+    // 目前的背景噪音強度，以 RFC 3389 的 -dBov 表示 (0 最大聲，127 最小聲)
+    public int noiseLevelDbov() {
+        long floor = Math.max(1, noiseFloor);
+        double dbov = 10 * Math.log10((double) floor / (32768.0 * 32768.0));
+        return (int) Math.max(0, Math.min(127, Math.round(-dbov)));
+    }
+
+    public long lastEnergy() {
+        return lastEnergy;
+    }
+
+    public double lastZeroCrossingRate() {
+        return lastZeroCrossingRate;
+    }
+
+    public long noiseFloor() {
+        return noiseFloor;
+    }
+
+    public void reset() {
+        noiseFloor = -1;
+        hangover = 0;
+    }
+}
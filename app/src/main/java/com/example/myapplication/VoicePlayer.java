@@ -0,0 +1,110 @@
+package com.example.myapplication;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.util.Log;
+
+// 即時對講的接收端：封包先進 JitterBuffer 重新排序並依網路抖動決定播放延遲，
+// 播放執行緒每次取一個封包寫進 AudioTrack，由 AudioTrack 的阻塞寫入控制節奏
+public class VoicePlayer {
+
+    // 播放延遲介於 2 到 20 個 20 ms 封包之間 (40 ms ~ 400 ms)
+    private static final int MIN_DELAY_FRAMES = 2;
+    private static final int MAX_DELAY_FRAMES = 20;
+    // 超過一秒沒有輸出就停止 AudioTrack
+    private static final long IDLE_TIMEOUT_MS = 1000;
+
+    private final JitterBuffer jitterBuffer = new JitterBuffer(VoiceStreamer.FRAME_MS,
+            VoiceStreamer.FRAME_BYTES, MIN_DELAY_FRAMES, MAX_DELAY_FRAMES);
+    // 每播出一個收到的封包記錄一次估計的端到端延遲
+    private final TransportMetrics metrics;
+    private Thread playbackThread;
+    private volatile boolean running = false;
+
+    public VoicePlayer(TransportMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        playbackThread = new Thread(this::playbackLoop, "VoicePlayer");
+        playbackThread.start();
+    }
+
+    public synchronized void stop() {
+        running = false;
+        if (playbackThread != null) {
+            playbackThread.interrupt();
+            playbackThread = null;
+        }
+    }
+
+    // 由接收執行緒呼叫
+    public void onFrame(int streamId, int sequence, byte[] frame) {
+        jitterBuffer.push(streamId, sequence, frame, System.currentTimeMillis());
+    }
+
+    public void onStreamEnd(int streamId) {
+        jitterBuffer.markEnd(streamId);
+    }
+
+    public JitterBuffer jitterBuffer() {
+        return jitterBuffer;
+    }
+
+    private void playbackLoop() {
+        int minBuffer = AudioTrack.getMinBufferSize(VoiceStreamer.SAMPLE_RATE,
+                AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        AudioTrack track = new AudioTrack.Builder()
+                .setAudioAttributes(new AudioAttributes.Builder()
+                        .setUsage(AudioAttributes.USAGE_VOICE_COMMUNICATION)
+                        .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH)
+                        .build())
+                .setAudioFormat(new AudioFormat.Builder()
+                        .setSampleRate(VoiceStreamer.SAMPLE_RATE)
+                        .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                        .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                        .build())
+                // 緩衝放在 JitterBuffer，AudioTrack 只保留最小需求，避免額外延遲
+                .setBufferSizeInBytes(Math.max(minBuffer, VoiceStreamer.FRAME_BYTES * 2))
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .build();
+        JitterBuffer.PcmSink sink = (pcm, offset, length) -> track.write(pcm, offset, length);
+        boolean trackPlaying = false;
+        long lastOutput = 0;
+        try {
+            while (running) {
+                long now = System.currentTimeMillis();
+                if (jitterBuffer.playout(now, sink)) {
+                    long residenceMs = jitterBuffer.lastResidenceMs();
+                    if (residenceMs >= 0) {
+                        metrics.onVoicePlayed(residenceMs, VoiceStreamer.FRAME_MS);
+                    }
+                    if (!trackPlaying) {
+                        track.play();
+                        trackPlaying = true;
+                    }
+                    lastOutput = now;
+                    continue;
+                }
+                if (trackPlaying && now - lastOutput > IDLE_TIMEOUT_MS) {
+                    // MODE_STREAM 下 stop() 會先把已寫入的資料播完
+                    track.stop();
+                    trackPlaying = false;
+                }
+                Thread.sleep(VoiceStreamer.FRAME_MS / 4);
+            }
+        } catch (InterruptedException e) {
+            Log.d("VoicePlayer", "Playback thread interrupted");
+        } finally {
+            Log.d("VoicePlayer", "Jitter " + jitterBuffer.jitterMs() + " ms, played "
+                    + jitterBuffer.playedFrames() + ", concealed " + jitterBuffer.concealedFrames()
+                    + ", late " + jitterBuffer.lateFrames());
+            track.release();
+        }
+    }
+}
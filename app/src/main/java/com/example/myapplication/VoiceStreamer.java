@@ -0,0 +1,106 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+// 即時對講：按住按鈕時把 CaptureEngine 擷取的 20 ms PCM 封包直接送出
+public class VoiceStreamer {
+
+    // 格式與 AudioCodec 一致：8 kHz、16-bit 單聲道，20 ms 一個封包
+    public static final int SAMPLE_RATE = AudioCodec.SAMPLE_RATE;
+    public static final int FRAME_MS = AudioCodec.FRAME_MS;
+    public static final int FRAME_SAMPLES = AudioCodec.FRAME_SAMPLES;
+    public static final int FRAME_BYTES = AudioCodec.FRAME_BYTES;
+
+    // 按下前 100 ms 的預錄一起送出，接收端的 JitterBuffer 會吸收這一小段突發
+    private static final int PRE_ROLL_FRAMES = 5;
+
+    private static final AtomicInteger nextStreamId = new AtomicInteger((int) (System.nanoTime() & 0x7fff) << 16);
+
+    private final CaptureEngine captureEngine;
+    private Talk talk;
+    private volatile long lastSavedBytes;
+    private volatile SilenceSuppressor.Mode suppressionMode = SilenceSuppressor.Mode.COMFORT_NOISE;
+
+    public VoiceStreamer(CaptureEngine captureEngine) {
+        this.captureEngine = captureEngine;
+    }
+
+    // 擷取已由 CaptureEngine 預先啟動，這裡只切換狀態
+    public synchronized void start() {
+        if (talk != null) {
+            return;
+        }
+        talk = new Talk(nextStreamId.incrementAndGet(), new SilenceSuppressor(suppressionMode));
+        captureEngine.warmUp();
+        captureEngine.beginTake(talk, PRE_ROLL_FRAMES);
+    }
+
+    // 結束封包在擷取執行緒處理完最後一個封包後送出
+    public synchronized void stop() {
+        if (talk == null) {
+            return;
+        }
+        captureEngine.endTake(talk);
+        talk = null;
+    }
+
+    public synchronized boolean isStreaming() {
+        return talk != null;
+    }
+
+    // 下一次 start 起生效
+    public void setSuppressionMode(SilenceSuppressor.Mode mode) {
+        this.suppressionMode = mode;
+    }
+
+    // 一段對講，在擷取執行緒上收到封包
+    private final class Talk implements CaptureEngine.Sink {
+        private final ConnectionManager connectionManager = ConnectionManager.getInstance();
+        private final int id;
+        private final SilenceSuppressor suppressor;
+        private byte[] previous;
+        private int sequence;
+
+        Talk(int id, SilenceSuppressor suppressor) {
+            this.id = id;
+            this.suppressor = suppressor;
+        }
+
+        @Override
+        public void onFrame(byte[] frame) {
+            switch (suppressor.process(frame)) {
+                case SEND_WITH_PREVIOUS:
+                    connectionManager.sendVoiceFrame(id, sequence - 1, previous);
+                    connectionManager.sendVoiceFrame(id, sequence, frame);
+                    break;
+                case SEND:
+                    connectionManager.sendVoiceFrame(id, sequence, frame);
+                    break;
+                case COMFORT_NOISE:
+                    connectionManager.sendVoiceSilence(id, sequence, suppressor.noiseLevelDbov());
+                    break;
+                case SKIP:
+                default:
+                    break;
+            }
+            previous = frame;
+            sequence++;
+        }
+
+        @Override
+        public void onEnd() {
+            Log.d("VoiceStreamer", "Stream " + id + ": captured " + suppressor.capturedFrames()
+                    + " frames, sent " + suppressor.sentFrames() + ", comfort noise " + suppressor.comfortNoiseFrames()
+                    + ", skipped " + suppressor.skippedFrames() + ", saved " + suppressor.savedBytes() + " bytes");
+            lastSavedBytes = suppressor.savedBytes();
+            connectionManager.sendVoiceEnd(id);
+        }
+    }
+
+    // 上一段對講因靜音抑制省下的 payload 位元組數
+    public long lastSavedBytes() {
+        return lastSavedBytes;
+    }
+}
@@ -0,0 +1,103 @@
+package com.example.myapplication;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// 錄音訊息：把 CaptureEngine 的 PCM 封包寫成 WAV 檔 (16-bit 單聲道)，結束時補上標頭的長度
+// 在擷取執行緒上寫檔；每個封包只有 320 bytes，不會拖慢擷取
+public class WavClipWriter implements CaptureEngine.Sink {
+
+    public interface Callback {
+        // 在擷取執行緒呼叫；寫檔失敗或沒有任何封包時 file 為 null
+        void onClipFinished(File file, long durationMs);
+    }
+
+    static final int HEADER_BYTES = 44;
+
+    private final File file;
+    private final int sampleRate;
+    private final Callback callback;
+    private RandomAccessFile out;
+    private long dataBytes;
+    private boolean failed;
+
+    public WavClipWriter(File file, int sampleRate, Callback callback) {
+        this.file = file;
+        this.sampleRate = sampleRate;
+        this.callback = callback;
+    }
+
+    @Override
+    public void onFrame(byte[] frame) {
+        if (failed) {
+            return;
+        }
+        try {
+            if (out == null) {
+                out = new RandomAccessFile(file, "rw");
+                out.setLength(0);
+                out.write(header(0));
+            }
+            out.write(frame);
+            dataBytes += frame.length;
+        } catch (IOException e) {
+            Log.e("WavClipWriter", "Failed to write " + file, e);
+            failed = true;
+        }
+    }
+
+    @Override
+    public void onEnd() {
+        File result = null;
+        if (out != null) {
+            try {
+                out.seek(0);
+                out.write(header(dataBytes));
+                if (!failed) {
+                    result = file;
+                }
+            } catch (IOException e) {
+                Log.e("WavClipWriter", "Failed to finish " + file, e);
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+        callback.onClipFinished(result, dataBytes * 1000 / (sampleRate * 2L));
+    }
+
+    private byte[] header(long dataBytes) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(new byte[] {'R', 'I', 'F', 'F'}).putInt((int) (HEADER_BYTES - 8 + dataBytes))
+                .put(new byte[] {'W', 'A', 'V', 'E'})
+                .put(new byte[] {'f', 'm', 't', ' '}).putInt(16)
+                .putShort((short) 1)            // PCM
+                .putShort((short) 1)            // 單聲道
+                .putInt(sampleRate)
+                .putInt(sampleRate * 2)         // 每秒位元組數
+                .putShort((short) 2)            // 每個取樣的位元組數
+                .putShort((short) 16)
+                .put(new byte[] {'d', 'a', 't', 'a'}).putInt((int) dataBytes);
+        return header.array();
+    }
+
+    // 收到的音檔依內容決定副檔名：WAV 或舊版的 3GP
+    public static String extensionOf(File file) throws IOException {
+        byte[] magic = new byte[4];
+        try (InputStream in = new FileInputStream(file)) {
+            if (in.read(magic) == 4 && magic[0] == 'R' && magic[1] == 'I' && magic[2] == 'F' && magic[3] == 'F') {
+                return "wav";
+            }
+        }
+        return "3gp";
+    }
+}
@@ -0,0 +1,85 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AttachmentTest {
+
+    private static byte[] digest() {
+        byte[] digest = new byte[Attachment.DIGEST_SIZE];
+        for (int i = 0; i < digest.length; i++) {
+            digest[i] = (byte) i;
+        }
+        return digest;
+    }
+
+    @Test
+    public void roundTripsThroughFrame() throws Exception {
+        Attachment sent = Attachment.describe("照片 01.JPG", "image/jpeg").withContent(123456, digest());
+        Frame frame = sent.toFrame(7);
+        assertEquals(Frame.TYPE_FILE_META, frame.type);
+        assertEquals(7, frame.streamId);
+        Attachment received = Attachment.decode(frame.payload.duplicate());
+        assertEquals("照片 01.JPG", received.name);
+        assertEquals("image/jpeg", received.mimeType);
+        assertEquals(123456, received.size);
+        assertArrayEquals(digest(), received.digest);
+        assertTrue(received.hasMetadata());
+        assertEquals("jpg", received.extension());
+    }
+
+    @Test
+    public void unknownTypeFallsBackToOctetStream() {
+        Attachment attachment = Attachment.describe("notes", "not a mime type");
+        assertEquals(Attachment.DEFAULT_MIME, attachment.mimeType);
+        assertEquals("bin", attachment.extension());
+        assertEquals("pdf", Attachment.describe("report", "application/pdf").extension());
+        // 檔名的副檔名不合理時改依類型
+        assertEquals("png", Attachment.describe("x.p/ng..", "image/png").extension());
+    }
+
+    @Test
+    public void peerNamesCannotEscapeTheStore() {
+        assertEquals("passwd", Attachment.sanitizeName("../../etc/passwd"));
+        assertEquals("evil.txt", Attachment.sanitizeName("C:\\temp\\evil.txt"));
+        assertEquals("ab", Attachment.sanitizeName("a\nb"));
+        assertEquals("", Attachment.sanitizeName(".."));
+        assertFalse(new Attachment("a\nb", "text/plain", 1, null).name.contains("\n"));
+    }
+
+    @Test
+    public void longNamesAreTruncatedOnCharacterBoundary() throws Exception {
+        char[] chars = new char[200];
+        Arrays.fill(chars, '檔');
+        Attachment received = Attachment.decode(
+                Attachment.describe(new String(chars), "text/plain").withContent(1, digest()).encode());
+        byte[] bytes = received.name.getBytes(StandardCharsets.UTF_8);
+        assertTrue(bytes.length <= 255);
+        assertEquals(0, bytes.length % 3);
+        assertEquals(bytes.length / 3, received.name.length());
+    }
+
+    @Test
+    public void truncatedPayloadIsRejected() {
+        ByteBuffer full = Attachment.describe("a.txt", "text/plain").withContent(5, digest()).encode();
+        for (int length : new int[] {0, 8, 40, full.remaining() - 1}) {
+            ByteBuffer partial = full.duplicate();
+            partial.limit(length);
+            try {
+                Attachment.decode(partial);
+                fail("accepted " + length + " bytes");
+            } catch (ProtocolException expected) {
+                // 預期
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AudioCodecTest {
+
+    // 產生一段 20 ms 的語音頻段正弦波，phase 為起始取樣位置
+    static byte[] sineFrame(int frequency, int amplitude, int phase) {
+        byte[] pcm = new byte[AudioCodec.FRAME_BYTES];
+        for (int i = 0; i < AudioCodec.FRAME_SAMPLES; i++) {
+            int sample = (int) (amplitude * Math.sin(2 * Math.PI * frequency * (phase + i) / AudioCodec.SAMPLE_RATE));
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        return pcm;
+    }
+
+    private static int sample(byte[] pcm, int i) {
+        return (short) ((pcm[2 * i] & 0xff) | (pcm[2 * i + 1] << 8));
+    }
+
+    private static double snrDb(byte[] reference, byte[] decoded) {
+        double signal = 0;
+        double noise = 0;
+        for (int i = 0; i < AudioCodec.FRAME_SAMPLES; i++) {
+            int expected = sample(reference, i);
+            int error = expected - sample(decoded, i);
+            signal += (double) expected * expected;
+            noise += (double) error * error;
+        }
+        return 10 * Math.log10(signal / Math.max(noise, 1));
+    }
+
+    @Test
+    public void pcmIsPassthrough() {
+        AudioCodec codec = new PcmCodec();
+        byte[] pcm = sineFrame(440, 8000, 0);
+        byte[] encoded = codec.newEncoder().encode(pcm);
+        assertArrayEquals(pcm, encoded);
+        assertArrayEquals(pcm, codec.newDecoder().decode(encoded));
+        assertNull(codec.newDecoder().decode(new byte[10]));
+    }
+
+    @Test
+    public void adpcmCompressesFourToOne() {
+        AudioCodec codec = new ImaAdpcmCodec();
+        AudioCodec.Encoder encoder = codec.newEncoder();
+        AudioCodec.Decoder decoder = codec.newDecoder();
+        double worst = Double.MAX_VALUE;
+        for (int frame = 0; frame < 50; frame++) {
+            byte[] pcm = sineFrame(440, 8000, frame * AudioCodec.FRAME_SAMPLES);
+            byte[] encoded = encoder.encode(pcm);
+            assertEquals(ImaAdpcmCodec.ENCODED_BYTES, encoded.length);
+            byte[] decoded = decoder.decode(encoded);
+            assertEquals(AudioCodec.FRAME_BYTES, decoded.length);
+            // 第一個取樣原封不動放在標頭
+            assertEquals(sample(pcm, 0), sample(decoded, 0));
+            if (frame > 0) {
+                worst = Math.min(worst, snrDb(pcm, decoded));
+            }
+        }
+        assertTrue("SNR " + worst, worst > 20);
+        assertTrue(codec.bitrate() < new PcmCodec().bitrate() / 3);
+    }
+
+    @Test
+    public void adpcmFramesDecodeIndependently() {
+        AudioCodec codec = new ImaAdpcmCodec();
+        AudioCodec.Encoder encoder = codec.newEncoder();
+        byte[] first = encoder.encode(sineFrame(300, 12000, 0));
+        byte[] second = encoder.encode(sineFrame(300, 12000, AudioCodec.FRAME_SAMPLES));
+        AudioCodec.Decoder sequential = codec.newDecoder();
+        sequential.decode(first);
+        byte[] expected = sequential.decode(second);
+        // 前一個封包遺失時解碼結果不變
+        assertArrayEquals(expected, codec.newDecoder().decode(second));
+    }
+
+    @Test
+    public void adpcmRejectsMalformedFrames() {
+        AudioCodec.Decoder decoder = new ImaAdpcmCodec().newDecoder();
+        assertNull(decoder.decode(new byte[ImaAdpcmCodec.ENCODED_BYTES - 1]));
+        byte[] badIndex = new byte[ImaAdpcmCodec.ENCODED_BYTES];
+        badIndex[2] = (byte) 200;
+        assertNull(decoder.decode(badIndex));
+    }
+
+    @Test
+    public void adpcmHandlesFullScale() {
+        AudioCodec codec = new ImaAdpcmCodec();
+        byte[] pcm = new byte[AudioCodec.FRAME_BYTES];
+        for (int i = 0; i < AudioCodec.FRAME_SAMPLES; i++) {
+            int sample = i % 2 == 0 ? Short.MAX_VALUE : Short.MIN_VALUE;
+            pcm[2 * i] = (byte) sample;
+            pcm[2 * i + 1] = (byte) (sample >> 8);
+        }
+        byte[] decoded = codec.newDecoder().decode(codec.newEncoder().encode(pcm));
+        assertEquals(AudioCodec.FRAME_BYTES, decoded.length);
+    }
+
+    // 每個編碼的編碼與解碼速度 (每 20 ms 封包花費的時間)；先暖身讓 JIT 編譯完成再量測
+    @Test
+    public void benchmarkEncodeDecode() {
+        AudioCodec[] codecs = {new PcmCodec(), new ImaAdpcmCodec()};
+        byte[][] input = new byte[50][];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = sineFrame(440, 8000, i * AudioCodec.FRAME_SAMPLES);
+        }
+        for (AudioCodec codec : codecs) {
+            AudioCodec.Encoder encoder = codec.newEncoder();
+            AudioCodec.Decoder decoder = codec.newDecoder();
+            byte[][] encoded = new byte[input.length][];
+            int sink = 0;
+            for (int round = 0; round < 2; round++) {
+                int iterations = round == 0 ? 20_000 : 100_000;
+                long encodeStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    byte[] out = encoder.encode(input[i % input.length]);
+                    encoded[i % input.length] = out;
+                    sink += out.length;
+                }
+                long encodeNanos = System.nanoTime() - encodeStart;
+                long decodeStart = System.nanoTime();
+                for (int i = 0; i < iterations; i++) {
+                    sink += decoder.decode(encoded[i % input.length]).length;
+                }
+                long decodeNanos = System.nanoTime() - decodeStart;
+                if (round == 1) {
+                    System.out.println(String.format("%-10s %4d bytes/frame %7d bps: encode %7.0f ns/frame, decode %7.0f ns/frame",
+                            codec.name(), encoded[0].length, codec.bitrate(),
+                            (double) encodeNanos / iterations, (double) decodeNanos / iterations));
+                }
+            }
+            assertTrue(sink > 0);
+        }
+    }
+}
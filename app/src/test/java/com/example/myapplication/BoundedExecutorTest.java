@@ -0,0 +1,167 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class BoundedExecutorTest {
+
+    private final List<BoundedExecutor> executors = new ArrayList<>();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        for (BoundedExecutor executor : executors) {
+            executor.shutdownNow();
+        }
+    }
+
+    private BoundedExecutor newExecutor(String name, int threads, int queue, BoundedExecutor.SaturationPolicy policy) {
+        BoundedExecutor executor = new BoundedExecutor(name, threads, queue, policy);
+        executors.add(executor);
+        return executor;
+    }
+
+    private void block() {
+        try {
+            release.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Test
+    public void rejectsWhenThreadsAndQueueAreFull() {
+        BoundedExecutor executor = newExecutor("test", 2, 3, BoundedExecutor.SaturationPolicy.REJECT);
+        for (int i = 0; i < 5; i++) {
+            executor.execute(this::block);
+        }
+        try {
+            executor.execute(this::block);
+            fail("expected rejection");
+        } catch (RejectedExecutionException expected) {
+        }
+        assertEquals(1, executor.rejectedTasks());
+        assertEquals(3, executor.queueDepth());
+        assertEquals(2, executor.getPoolSize());
+    }
+
+    @Test
+    public void unqueuedPoolStartsThreadUntilLimit() throws InterruptedException {
+        BoundedExecutor io = newExecutor("io", 3, 0, BoundedExecutor.SaturationPolicy.REJECT);
+        CountDownLatch started = new CountDownLatch(3);
+        for (int i = 0; i < 3; i++) {
+            io.execute(() -> {
+                started.countDown();
+                block();
+            });
+        }
+        // 每個工作都立刻有自己的執行緒，不會排在長時間的讀取迴圈後面
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+        try {
+            io.execute(this::block);
+            fail("expected rejection");
+        } catch (RejectedExecutionException expected) {
+        }
+    }
+
+    @Test
+    public void blockPolicyKeepsOrderUnderBackpressure() throws InterruptedException {
+        BoundedExecutor file = newExecutor("file", 1, 4, BoundedExecutor.SaturationPolicy.BLOCK);
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch done = new CountDownLatch(200);
+        for (int i = 0; i < 200; i++) {
+            int value = i;
+            file.execute(() -> {
+                order.add(value);
+                done.countDown();
+            });
+            assertTrue(file.queueDepth() <= 4);
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 200; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+        assertEquals(0, file.rejectedTasks());
+    }
+
+    @Test
+    public void shutdownAndWaitFinishesQueuedWork() {
+        BoundedExecutor history = newExecutor("history", 1, 16, BoundedExecutor.SaturationPolicy.BLOCK);
+        int[] ran = {0};
+        for (int i = 0; i < 10; i++) {
+            history.execute(() -> ran[0]++);
+        }
+        assertTrue(history.shutdownAndWait(1000));
+        assertEquals(10, ran[0]);
+    }
+
+    // 讀取迴圈佔滿 I/O 執行緒時，另一個池的短工作不受影響；舊的 10 條共用池這時會讓所有送出與連線排隊
+    @Test
+    public void busyReadersDoNotDelayControlTasks() throws Exception {
+        BoundedExecutor io = newExecutor("io", 10, 0, BoundedExecutor.SaturationPolicy.REJECT);
+        BoundedExecutor control = newExecutor("control", 2, 32, BoundedExecutor.SaturationPolicy.REJECT);
+        for (int i = 0; i < 10; i++) {
+            io.execute(this::block);
+        }
+        CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            while (control.queueDepth() >= 30) {
+                Thread.sleep(1);
+            }
+            control.execute(done::countDown);
+        }
+        assertTrue(done.await(1, TimeUnit.SECONDS));
+        System.out.println("BoundedExecutor: " + io + "\nBoundedExecutor: " + control);
+        assertTrue(control.maxWaitNanos() < TimeUnit.MILLISECONDS.toNanos(500));
+    }
+
+    @Test
+    public void transportRefusesConnectionWhenNoReaderThreadIsFree() throws Exception {
+        // 一條給 accept 迴圈、一條給第一個連線
+        BoundedExecutor io = newExecutor("io", 2, 0, BoundedExecutor.SaturationPolicy.REJECT);
+        BlockingTransport server = new BlockingTransport(io, new FrameCodec());
+        List<IOException> refused = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch disconnected = new CountDownLatch(1);
+        server.setListener(new Transport.Listener() {
+            @Override
+            public void onConnected(Transport.Connection connection) {
+            }
+
+            @Override
+            public void onFrame(Transport.Connection connection, Frame frame) {
+            }
+
+            @Override
+            public void onDisconnected(Transport.Connection connection, IOException cause) {
+                refused.add(cause);
+                disconnected.countDown();
+            }
+        });
+        int port = server.startServer(0);
+        try (Socket first = new Socket("127.0.0.1", port); Socket second = new Socket("127.0.0.1", port)) {
+            assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+            assertTrue(refused.get(0).getMessage().contains("Too many connections"));
+            assertEquals(1, server.connections().size());
+            // 先連上的一端佔住唯一的名額，仍然連著
+            assertTrue(first.isConnected() && !first.isClosed());
+            // 被拒絕的一端讀到 EOF
+            assertEquals(-1, second.getInputStream().read());
+        } finally {
+            server.shutdown();
+        }
+    }
+}
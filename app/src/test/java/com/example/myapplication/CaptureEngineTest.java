@@ -0,0 +1,210 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CaptureEngineTest {
+
+    // 模擬的麥克風每 2 ms 產生一個封包，開頭 4 bytes 為封包編號
+    private static final long FRAME_INTERVAL_MS = 2;
+
+    private final AtomicInteger produced = new AtomicInteger();
+    private final AtomicInteger opened = new AtomicInteger();
+    private final AtomicInteger closed = new AtomicInteger();
+    private CaptureEngine engine;
+
+    @After
+    public void tearDown() {
+        if (engine != null) {
+            engine.coolDown();
+        }
+    }
+
+    private CaptureEngine newEngine(long openDelayMs) {
+        engine = new CaptureEngine(() -> {
+            opened.incrementAndGet();
+            // 模擬 AudioRecord 建立與 startRecording 的時間
+            sleep(openDelayMs);
+            return new CaptureEngine.Source() {
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    sleep(FRAME_INTERVAL_MS);
+                    ByteBuffer.wrap(buffer, offset, length).putInt(produced.getAndIncrement());
+                    return length;
+                }
+
+                @Override
+                public void close() {
+                    closed.incrementAndGet();
+                }
+            };
+        });
+        return engine;
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static class RecordingSink implements CaptureEngine.Sink {
+        final List<Integer> frames = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch ended = new CountDownLatch(1);
+        final AtomicInteger ends = new AtomicInteger();
+
+        @Override
+        public void onFrame(byte[] frame) {
+            frames.add(ByteBuffer.wrap(frame).getInt());
+        }
+
+        @Override
+        public void onEnd() {
+            ends.incrementAndGet();
+            ended.countDown();
+        }
+    }
+
+    private static void waitFor(AtomicInteger counter, int value) {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (counter.get() < value && System.currentTimeMillis() < deadline) {
+            sleep(1);
+        }
+    }
+
+    @Test
+    public void takeIncludesPreRollAndEveryFrameUntilRelease() throws InterruptedException {
+        newEngine(0).warmUp();
+        waitFor(produced, 40);
+        RecordingSink sink = new RecordingSink();
+        int pressedAt = produced.get();
+        engine.beginTake(sink, 10);
+        waitFor(produced, pressedAt + 50);
+        engine.endTake(sink);
+        assertTrue(sink.ended.await(1, TimeUnit.SECONDS));
+
+        // 預錄的 10 個封包加上按下後的封包，編號連續不重複
+        List<Integer> frames = new ArrayList<>(sink.frames);
+        assertTrue(frames.size() >= 50);
+        for (int i = 1; i < frames.size(); i++) {
+            assertEquals(frames.get(i - 1) + 1, (int) frames.get(i));
+        }
+        assertTrue(frames.get(0) <= pressedAt - 10 + 1);
+        assertEquals(1, sink.ends.get());
+        assertEquals(1, engine.takes());
+        // 擷取沒有因為按下放開而重新開啟來源
+        assertEquals(1, opened.get());
+    }
+
+    @Test
+    public void coolDownEndsActiveTakeAndClosesSource() throws InterruptedException {
+        newEngine(0).warmUp();
+        RecordingSink sink = new RecordingSink();
+        engine.beginTake(sink, 0);
+        waitFor(produced, 10);
+        engine.coolDown();
+        assertTrue(sink.ended.await(1, TimeUnit.SECONDS));
+        assertEquals(1, closed.get());
+        assertTrue(!engine.isWarm());
+    }
+
+    @Test
+    public void staleReleaseDoesNotEndNewerTake() throws InterruptedException {
+        newEngine(0).warmUp();
+        RecordingSink first = new RecordingSink();
+        RecordingSink second = new RecordingSink();
+        engine.beginTake(first, 0);
+        engine.beginTake(second, 0);
+        engine.endTake(first);
+        int before = produced.get();
+        waitFor(produced, before + 10);
+        assertEquals(1, second.ended.getCount());
+        assertTrue(second.frames.size() > 0);
+        engine.endTake(second);
+        assertTrue(second.ended.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void takeReplacedWithinOneFrameStillEnds() throws InterruptedException {
+        // 每次 read 都等測試放行，按下、放開、再按下都發生在同一次 read 期間
+        Semaphore reads = new Semaphore(0);
+        engine = new CaptureEngine(() -> new CaptureEngine.Source() {
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                reads.acquireUninterruptibly();
+                ByteBuffer.wrap(buffer, offset, length).putInt(produced.getAndIncrement());
+                return length;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        engine.warmUp();
+        reads.release();
+        waitFor(produced, 1);
+
+        RecordingSink tap = new RecordingSink();
+        RecordingSink hold = new RecordingSink();
+        engine.beginTake(tap, 0);
+        engine.endTake(tap);
+        engine.beginTake(hold, 0);
+        reads.release();
+        // 擷取執行緒從沒拿到第一個 take，它仍要收到 onEnd (送出 VOICE_END、收尾 WAV)
+        assertTrue(tap.ended.await(1, TimeUnit.SECONDS));
+        assertEquals(1, tap.ends.get());
+        assertTrue(tap.frames.isEmpty());
+
+        waitFor(produced, 2);
+        engine.endTake(hold);
+        reads.release();
+        assertTrue(hold.ended.await(1, TimeUnit.SECONDS));
+        assertEquals(1, hold.ends.get());
+        assertTrue(hold.frames.size() >= 1);
+        reads.release(Integer.MAX_VALUE / 2);
+    }
+
+    // 基準測試：預先啟動與按下時才啟動 (開啟來源需 150 ms) 的按下到第一個封包時間
+    @Test
+    public void warmCaptureStartsWithinOneFrame() throws InterruptedException {
+        newEngine(150);
+        RecordingSink cold = new RecordingSink();
+        engine.beginTake(cold, 0);
+        engine.warmUp();
+        waitFor(produced, 5);
+        engine.endTake(cold);
+        assertTrue(cold.ended.await(1, TimeUnit.SECONDS));
+        long coldMicros = TimeUnit.NANOSECONDS.toMicros(engine.lastStartLatencyNanos());
+
+        long totalMicros = 0;
+        int presses = 20;
+        for (int i = 0; i < presses; i++) {
+            RecordingSink warm = new RecordingSink();
+            engine.beginTake(warm, 5);
+            waitFor(produced, produced.get() + 3);
+            engine.endTake(warm);
+            assertTrue(warm.ended.await(1, TimeUnit.SECONDS));
+            totalMicros += TimeUnit.NANOSECONDS.toMicros(engine.lastStartLatencyNanos());
+        }
+        long warmMicros = totalMicros / presses;
+        System.out.println("CaptureEngine: press to first captured frame, cold " + coldMicros + " us, warm "
+                + warmMicros + " us (frame interval " + FRAME_INTERVAL_MS * 1000 + " us)");
+        assertTrue(coldMicros >= TimeUnit.MILLISECONDS.toMicros(150));
+        assertTrue(warmMicros < coldMicros / 4);
+        assertEquals(presses + 1, engine.takes());
+    }
+}
@@ -0,0 +1,147 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ClipPlaybackEngineTest {
+
+    private static final long PREPARE_MS = 3;
+    private static final long DURATION_MS = 4;
+
+    private final ExecutorService playbackThread = Executors.newSingleThreadExecutor();
+    // 模擬 MediaPlayer 的原生執行緒：prepare 與播放都需要時間，回呼從這裡送出
+    private final ScheduledExecutorService mediaThread = Executors.newSingleThreadScheduledExecutor();
+    private final List<String> played = Collections.synchronizedList(new ArrayList<>());
+    private final AtomicInteger playing = new AtomicInteger();
+    private final AtomicInteger maxPlaying = new AtomicInteger();
+    private final AtomicInteger released = new AtomicInteger();
+    private CountDownLatch finished;
+
+    @After
+    public void tearDown() {
+        playbackThread.shutdownNow();
+        mediaThread.shutdownNow();
+    }
+
+    private class FakePlayer implements ClipPlaybackEngine.Player {
+        private File file;
+        private ClipPlaybackEngine.Listener listener;
+
+        @Override
+        public void prepareAsync(File file, ClipPlaybackEngine.Listener listener) {
+            this.file = file;
+            this.listener = listener;
+            mediaThread.schedule(() -> {
+                if (file.getName().startsWith("bad")) {
+                    listener.onError("unsupported");
+                    finished.countDown();
+                } else {
+                    listener.onPrepared();
+                }
+            }, PREPARE_MS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void start() {
+            maxPlaying.accumulateAndGet(playing.incrementAndGet(), Math::max);
+            played.add(file.getName());
+            mediaThread.schedule(() -> {
+                playing.decrementAndGet();
+                listener.onCompletion();
+                finished.countDown();
+            }, DURATION_MS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void reset() {
+            file = null;
+        }
+
+        @Override
+        public void release() {
+            released.incrementAndGet();
+        }
+    }
+
+    private <T> T onPlaybackThread(Callable<T> task) throws Exception {
+        return playbackThread.submit(task).get();
+    }
+
+    // 基準測試：連續收到 100 則音檔
+    @Test
+    public void consecutiveClipsPlayInOrderWithBoundedPlayers() throws Exception {
+        int clips = 100;
+        finished = new CountDownLatch(clips);
+        ClipPlaybackEngine engine = new ClipPlaybackEngine(playbackThread, FakePlayer::new,
+                ClipPlaybackEngine.DEFAULT_POOL_SIZE);
+        long start = System.nanoTime();
+        for (int i = 0; i < clips; i++) {
+            engine.enqueue(new File("clip" + i + ".3gp"));
+        }
+        assertTrue(finished.await(10, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        for (int i = 0; i < clips; i++) {
+            assertEquals("clip" + i + ".3gp", played.get(i));
+        }
+        assertEquals(1, maxPlaying.get());
+        assertEquals(clips, (long) onPlaybackThread(engine::playedClips));
+        int created = onPlaybackThread(engine::createdPlayers);
+        assertTrue(created <= ClipPlaybackEngine.DEFAULT_POOL_SIZE);
+        // 每則都在前一則播放時準備好，總時間接近一次 prepare 加上所有播放時間
+        long maxWaitMs = TimeUnit.NANOSECONDS.toMillis(onPlaybackThread(engine::maxStartLatencyNanos));
+        engine.shutdown();
+        assertEquals(0, (int) onPlaybackThread(engine::livePlayers));
+        assertEquals(created, released.get());
+        System.out.println("ClipPlaybackEngine: " + clips + " clips in " + elapsedMs + " ms (ideal "
+                + (PREPARE_MS + clips * DURATION_MS) + " ms), " + created + " players, 0 live after shutdown"
+                + ", longest wait in queue " + maxWaitMs + " ms");
+    }
+
+    @Test
+    public void firstClipStartsAfterOnePrepare() throws Exception {
+        finished = new CountDownLatch(1);
+        ClipPlaybackEngine engine = new ClipPlaybackEngine(playbackThread, FakePlayer::new,
+                ClipPlaybackEngine.DEFAULT_POOL_SIZE);
+        engine.enqueue(new File("only.3gp"));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(onPlaybackThread(engine::averageStartLatencyNanos));
+        System.out.println("ClipPlaybackEngine: time to first audio " + latencyMs + " ms (prepare " + PREPARE_MS + " ms)");
+        assertTrue(latencyMs < 500);
+        // 播完的播放器留著給下一則，不重新建立
+        finished = new CountDownLatch(1);
+        engine.enqueue(new File("again.3gp"));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(1, (int) onPlaybackThread(engine::createdPlayers));
+    }
+
+    @Test
+    public void failedClipIsSkipped() throws Exception {
+        finished = new CountDownLatch(3);
+        ClipPlaybackEngine engine = new ClipPlaybackEngine(playbackThread, FakePlayer::new,
+                ClipPlaybackEngine.DEFAULT_POOL_SIZE);
+        engine.enqueue(new File("a.3gp"));
+        engine.enqueue(new File("bad.3gp"));
+        engine.enqueue(new File("b.3gp"));
+        assertTrue(finished.await(5, TimeUnit.SECONDS));
+        assertEquals(2, played.size());
+        assertEquals("a.3gp", played.get(0));
+        assertEquals("b.3gp", played.get(1));
+        assertEquals(1L, (long) onPlaybackThread(engine::errors));
+    }
+}
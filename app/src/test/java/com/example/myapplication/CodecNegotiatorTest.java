@@ -0,0 +1,383 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class CodecNegotiatorTest {
+
+    private final List<Transport> transports = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+    }
+
+    // 只有 id 與待送佇列的連線，用來直接驅動協商邏輯
+    private static class FakeConnection implements Transport.Connection {
+        final OutboundQueue queue = new OutboundQueue(1024 * 1024, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        private final int id;
+
+        FakeConnection(int id) {
+            this.id = id;
+        }
+
+        @Override public int id() { return id; }
+        @Override public String remoteAddress() { return "fake-" + id; }
+        @Override public void send(Frame frame) { queue.offer(frame); }
+        @Override public void close() { }
+        @Override public OutboundQueue outboundQueue() { return queue; }
+    }
+
+    // 只回傳固定連線清單的傳輸層，給 sendVoice 使用
+    private static class FakeTransport implements Transport {
+        final List<Transport.Connection> connections = new ArrayList<>();
+
+        @Override public void setListener(Listener listener) { }
+        @Override public void setOverflowPolicy(OutboundQueue.OverflowPolicy policy, int capacityBytes) { }
+        @Override public int startServer(int port) { throw new UnsupportedOperationException(); }
+        @Override public Connection connect(String host, int port) { throw new UnsupportedOperationException(); }
+        @Override public Connection addSocket(Socket socket) { throw new UnsupportedOperationException(); }
+        @Override public void broadcast(Frame frame, Connection except) { throw new UnsupportedOperationException(); }
+        @Override public Collection<? extends Connection> connections() { return connections; }
+        @Override public void shutdown() { }
+    }
+
+    // 像 Opus、AAC 一樣需要設定的編碼：編碼器第一次輸出之後才有設定，解碼器沒收到設定只輸出靜音
+    private static class ConfiguredCodec implements AudioCodec {
+        static final byte ID = 9;
+        static final byte CONFIG = 0x7e;
+
+        @Override public byte id() { return ID; }
+        @Override public String name() { return "Configured"; }
+        @Override public int bitrate() { return 8000; }
+
+        @Override
+        public Encoder newEncoder() {
+            return new Encoder() {
+                private boolean started;
+
+                @Override
+                public byte[] encode(byte[] pcm) {
+                    if (!started) {
+                        started = true;
+                        return new byte[0];
+                    }
+                    return pcm.clone();
+                }
+
+                @Override
+                public byte[] config() {
+                    return started ? new byte[] {CONFIG} : new byte[0];
+                }
+            };
+        }
+
+        @Override
+        public Decoder newDecoder() {
+            return new Decoder() {
+                private boolean configured;
+
+                @Override
+                public byte[] decode(byte[] data) {
+                    int offset = 0;
+                    if (data.length == FRAME_BYTES + 1 && data[0] == CONFIG) {
+                        configured = true;
+                        offset = 1;
+                    }
+                    if (!configured || data.length == offset) {
+                        return new byte[FRAME_BYTES];
+                    }
+                    return Arrays.copyOfRange(data, offset, data.length);
+                }
+            };
+        }
+    }
+
+    // 堆積超過 200 ms 的 PCM，讓下一次 select 降階
+    private static void congest(FakeConnection connection) {
+        for (int i = 0; i < 20; i++) {
+            connection.send(Frame.voice(99, i, new byte[AudioCodec.FRAME_BYTES]));
+        }
+    }
+
+    // 取出佇列中指定串流的最後一個封包，其餘視為已送出
+    private static Frame lastOf(FakeConnection connection, int streamId) {
+        Frame last = null;
+        Frame frame;
+        while ((frame = connection.queue.poll()) != null) {
+            if (frame.streamId == streamId) {
+                last = frame;
+            }
+        }
+        return last;
+    }
+
+    private static Frame offer(byte... ids) {
+        return new Frame(Frame.TYPE_CODEC_OFFER, (byte) 0, 0, 0, ByteBuffer.wrap(ids));
+    }
+
+    @Test
+    public void offerListsCodecsByBitrate() {
+        CodecNegotiator negotiator = new CodecNegotiator(new ImaAdpcmCodec(), new PcmCodec());
+        Frame frame = negotiator.offerFrame();
+        assertEquals(Frame.TYPE_CODEC_OFFER, frame.type);
+        assertArrayEquals(new byte[] {PcmCodec.ID, ImaAdpcmCodec.ID}, frame.payloadBytes());
+    }
+
+    @Test
+    public void usesPcmUntilOfferArrives() {
+        CodecNegotiator negotiator = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec());
+        FakeConnection connection = new FakeConnection(1);
+        assertEquals(PcmCodec.ID, negotiator.select(connection).id());
+        // 對方只支援 ADPCM 與本機沒有的編碼
+        negotiator.onOffer(connection, offer(ImaAdpcmCodec.ID, (byte) 99));
+        assertEquals(ImaAdpcmCodec.ID, negotiator.select(connection).id());
+    }
+
+    @Test
+    public void stepsDownWhenCongestedAndBackUpWhenClean() {
+        CodecNegotiator negotiator = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec());
+        FakeConnection connection = new FakeConnection(1);
+        negotiator.onOffer(connection, offer(PcmCodec.ID, ImaAdpcmCodec.ID));
+        assertEquals(PcmCodec.ID, negotiator.select(connection).id());
+
+        // 堆積超過 200 ms 的 PCM (16 KB/s)
+        for (int i = 0; i < 20; i++) {
+            connection.send(Frame.voice(1, i, new byte[AudioCodec.FRAME_BYTES]));
+        }
+        assertEquals(ImaAdpcmCodec.ID, negotiator.select(connection).id());
+
+        // 佇列清空後要連續順暢一段時間才升回 PCM
+        while (connection.queue.poll() != null) {
+            // 模擬送出
+        }
+        for (int i = 0; i < CodecNegotiator.STEP_UP_FRAMES - 1; i++) {
+            assertEquals(ImaAdpcmCodec.ID, negotiator.select(connection).id());
+        }
+        assertEquals(PcmCodec.ID, negotiator.select(connection).id());
+    }
+
+    @Test
+    public void dropsCountAsCongestion() {
+        CodecNegotiator negotiator = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec());
+        FakeConnection connection = new FakeConnection(1) {
+            final OutboundQueue tiny = new OutboundQueue(AudioCodec.FRAME_BYTES, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+
+            @Override
+            public OutboundQueue outboundQueue() {
+                return tiny;
+            }
+        };
+        negotiator.onOffer(connection, offer(PcmCodec.ID, ImaAdpcmCodec.ID));
+        assertEquals(PcmCodec.ID, negotiator.select(connection).id());
+        OutboundQueue queue = connection.outboundQueue();
+        queue.offer(Frame.voice(1, 0, new byte[AudioCodec.FRAME_BYTES]));
+        queue.offer(Frame.voice(1, 1, new byte[AudioCodec.FRAME_BYTES]));
+        queue.poll();
+        assertEquals(ImaAdpcmCodec.ID, negotiator.select(connection).id());
+    }
+
+    @Test
+    public void unknownCodecIsNotDecoded() {
+        CodecNegotiator negotiator = new CodecNegotiator(new PcmCodec());
+        FakeConnection connection = new FakeConnection(1);
+        assertNull(negotiator.decode(connection, Frame.voice(1, 0, ImaAdpcmCodec.ID, new byte[ImaAdpcmCodec.ENCODED_BYTES])));
+    }
+
+    // 對講中途才降到需要設定的編碼：編碼器已經給別的連線用了一段時間，這條連線的第一個封包仍要帶設定
+    @Test
+    public void linkSwitchingCodecMidStreamGetsConfig() {
+        CodecNegotiator sender = new CodecNegotiator(new PcmCodec(), new ConfiguredCodec());
+        CodecNegotiator receiver = new CodecNegotiator(new PcmCodec(), new ConfiguredCodec());
+        FakeConnection early = new FakeConnection(1);
+        FakeConnection late = new FakeConnection(2);
+        sender.onOffer(early, offer(ConfiguredCodec.ID));
+        sender.onOffer(late, offer(PcmCodec.ID, ConfiguredCodec.ID));
+        FakeTransport transport = new FakeTransport();
+        transport.connections.add(early);
+        transport.connections.add(late);
+
+        int sequence = 0;
+        for (; sequence < 5; sequence++) {
+            byte[] pcm = AudioCodecTest.sineFrame(440, 8000, sequence * 160);
+            sender.sendVoice(transport, 1, sequence, pcm);
+            Frame frame = lastOf(early, 1);
+            byte[] decoded = receiver.decode(early, frame);
+            if (sequence > 0) {
+                assertArrayEquals(pcm, decoded);
+            }
+            assertEquals(PcmCodec.ID, lastOf(late, 1).flags);
+        }
+
+        congest(late);
+        for (int i = 0; i < 3; i++, sequence++) {
+            byte[] pcm = AudioCodecTest.sineFrame(440, 8000, sequence * 160);
+            sender.sendVoice(transport, 1, sequence, pcm);
+            Frame frame = lastOf(late, 1);
+            assertEquals(ConfiguredCodec.ID, frame.flags);
+            assertArrayEquals(pcm, receiver.decode(late, frame));
+            assertArrayEquals(pcm, receiver.decode(early, lastOf(early, 1)));
+        }
+        sender.endStream(1);
+    }
+
+    // 群主轉碼：轉成同一種編碼的成員共用編碼器，中途換過來或中途加入的成員也要拿到設定
+    @Test
+    public void relayTargetSwitchingCodecMidStreamGetsConfig() {
+        CodecNegotiator owner = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec(), new ConfiguredCodec());
+        CodecNegotiator receiver = new CodecNegotiator(new PcmCodec(), new ConfiguredCodec());
+        FakeConnection source = new FakeConnection(1);
+        FakeConnection early = new FakeConnection(2);
+        FakeConnection late = new FakeConnection(3);
+        FakeConnection joined = new FakeConnection(4);
+        owner.onOffer(source, offer(ImaAdpcmCodec.ID));
+        owner.onOffer(early, offer(ConfiguredCodec.ID));
+        owner.onOffer(late, offer(PcmCodec.ID, ConfiguredCodec.ID));
+
+        AudioCodec.Encoder encoder = new ImaAdpcmCodec().newEncoder();
+        AudioCodec.Decoder reference = new ImaAdpcmCodec().newDecoder();
+        for (int sequence = 0; sequence < 8; sequence++) {
+            Frame sent = Frame.voice(3, sequence, ImaAdpcmCodec.ID, encoder.encode(AudioCodecTest.sineFrame(440, 8000, sequence * 160)));
+            byte[] expected = reference.decode(sent.payloadBytes());
+            if (sequence == 5) {
+                congest(late);
+                owner.onOffer(joined, offer(ConfiguredCodec.ID));
+            }
+
+            Frame toEarly = owner.adapt(source, early, sent);
+            Frame toLate = owner.adapt(source, late, sent);
+            byte[] decoded = receiver.decode(early, toEarly);
+            if (sequence > 0) {
+                assertArrayEquals(expected, decoded);
+            }
+            if (sequence < 5) {
+                assertEquals(PcmCodec.ID, toLate.flags);
+            } else {
+                assertEquals(ConfiguredCodec.ID, toLate.flags);
+                assertArrayEquals(expected, receiver.decode(late, toLate));
+                assertArrayEquals(expected, receiver.decode(joined, owner.adapt(source, joined, sent)));
+            }
+            lastOf(late, 99);
+        }
+    }
+
+    // 同一段對講送給兩個成員：支援 PCM 的拿到原始 PCM，只支援 ADPCM 的拿到壓縮後的封包
+    @Test
+    public void perLinkCodecOverLoopback() throws Exception {
+        CodecNegotiator ownerCodecs = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec());
+        NioTransport owner = new NioTransport(new FrameCodec());
+        RecordingListener ownerListener = new RecordingListener();
+        owner.setListener(ownerListener);
+        transports.add(owner);
+        int port = owner.startServer(0);
+
+        CodecNegotiator[] clientCodecs = {
+                new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec()),
+                new CodecNegotiator(new ImaAdpcmCodec())
+        };
+        List<RecordingListener> listeners = new ArrayList<>();
+        List<Transport.Connection> links = new ArrayList<>();
+        for (CodecNegotiator codecs : clientCodecs) {
+            NioTransport client = new NioTransport(new FrameCodec());
+            RecordingListener listener = new RecordingListener();
+            client.setListener(listener);
+            transports.add(client);
+            listeners.add(listener);
+            links.add(client.connect("127.0.0.1", port));
+            Transport.Connection ownerSide = ownerListener.connected.poll(5, TimeUnit.SECONDS);
+            assertNotNull(ownerSide);
+            links.get(links.size() - 1).send(codecs.offerFrame());
+            ownerCodecs.onOffer(ownerSide, ownerListener.next());
+        }
+
+        byte[] pcm = AudioCodecTest.sineFrame(440, 8000, 0);
+        ownerCodecs.sendVoice(owner, 5, 0, pcm);
+
+        Frame pcmFrame = listeners.get(0).next();
+        assertEquals(PcmCodec.ID, pcmFrame.flags);
+        assertArrayEquals(pcm, clientCodecs[0].decode(links.get(0), pcmFrame));
+
+        Frame adpcmFrame = listeners.get(1).next();
+        assertEquals(ImaAdpcmCodec.ID, adpcmFrame.flags);
+        assertEquals(ImaAdpcmCodec.ENCODED_BYTES, adpcmFrame.length);
+        byte[] decoded = clientCodecs[1].decode(links.get(1), adpcmFrame);
+        assertEquals(AudioCodec.FRAME_BYTES, decoded.length);
+
+        ownerCodecs.endStream(5);
+        clientCodecs[1].endStream(links.get(1), 5);
+    }
+
+    // 群主轉發：發話成員用 ADPCM，只支援 PCM 的成員拿到群主轉碼後的 PCM，內容與直接解碼相同
+    @Test
+    public void relayTranscodesForPcmOnlyMember() throws Exception {
+        CodecNegotiator ownerCodecs = new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec());
+        NioTransport owner = new NioTransport(new FrameCodec());
+        RecordingListener ownerListener = new RecordingListener() {
+            @Override
+            public void onFrame(Transport.Connection connection, Frame frame) {
+                if (frame.type == Frame.TYPE_CODEC_OFFER) {
+                    ownerCodecs.onOffer(connection, frame);
+                }
+                super.onFrame(connection, frame);
+            }
+        };
+        GroupRelay relay = new GroupRelay(owner, ownerListener);
+        relay.setAdapter(ownerCodecs);
+        relay.setEnabled(true);
+        owner.setListener(relay);
+        transports.add(owner);
+        int port = owner.startServer(0);
+
+        CodecNegotiator[] clientCodecs = {
+                new CodecNegotiator(new PcmCodec(), new ImaAdpcmCodec()),
+                new CodecNegotiator(new PcmCodec())
+        };
+        List<RecordingListener> listeners = new ArrayList<>();
+        List<Transport.Connection> links = new ArrayList<>();
+        for (CodecNegotiator codecs : clientCodecs) {
+            NioTransport client = new NioTransport(new FrameCodec());
+            RecordingListener listener = new RecordingListener();
+            client.setListener(listener);
+            transports.add(client);
+            listeners.add(listener);
+            Transport.Connection link = client.connect("127.0.0.1", port);
+            links.add(link);
+            link.send(codecs.offerFrame());
+            assertEquals(Frame.TYPE_CODEC_OFFER, ownerListener.next().type);
+        }
+
+        AudioCodec.Encoder encoder = new ImaAdpcmCodec().newEncoder();
+        AudioCodec.Decoder reference = new ImaAdpcmCodec().newDecoder();
+        for (int i = 0; i < 5; i++) {
+            Frame sent = Frame.voice(3, i, ImaAdpcmCodec.ID, encoder.encode(AudioCodecTest.sineFrame(440, 8000, i * 160)));
+            links.get(0).send(sent);
+
+            assertEquals(ImaAdpcmCodec.ID, ownerListener.next().flags);
+            Frame relayed = listeners.get(1).next();
+            assertEquals(PcmCodec.ID, relayed.flags);
+            assertEquals(i, relayed.sequence);
+            byte[] pcm = clientCodecs[1].decode(links.get(1), relayed);
+            assertNotNull(pcm);
+            assertArrayEquals(reference.decode(sent.payloadBytes()), pcm);
+        }
+        links.get(0).send(Frame.voiceEnd(3));
+        assertEquals(Frame.TYPE_VOICE_END, listeners.get(1).next().type);
+        // 發話者不會收到自己的語音
+        assertNull(listeners.get(0).frames.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
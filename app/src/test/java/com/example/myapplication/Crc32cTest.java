@@ -0,0 +1,87 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class Crc32cTest {
+
+    // 逐 byte 計算，用來對照 slicing-by-8 的結果
+    private static long bitwise(byte[] data, int offset, int length) {
+        int crc = 0xffffffff;
+        for (int i = offset; i < offset + length; i++) {
+            crc ^= data[i] & 0xff;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82f63b78 : crc >>> 1;
+            }
+        }
+        return ~crc & 0xffffffffL;
+    }
+
+    @Test
+    public void knownVectors() {
+        Crc32c crc = new Crc32c();
+        crc.update("123456789".getBytes(StandardCharsets.US_ASCII));
+        assertEquals(0xe3069283L, crc.getValue());
+
+        // RFC 3720 附錄 B.4：32 bytes 的 0
+        crc.reset();
+        crc.update(new byte[32]);
+        assertEquals(0x8a9136aaL, crc.getValue());
+
+        crc.reset();
+        assertEquals(0L, crc.getValue());
+    }
+
+    @Test
+    public void matchesBitwiseForEveryLengthAndAlignment() {
+        byte[] data = new byte[300];
+        new Random(1).nextBytes(data);
+        for (int offset = 0; offset < 9; offset++) {
+            for (int length = 0; length + offset <= data.length; length += 7) {
+                Crc32c crc = new Crc32c();
+                crc.update(data, offset, length);
+                assertEquals(offset + "/" + length, bitwise(data, offset, length), crc.getValue());
+            }
+        }
+    }
+
+    @Test
+    public void incrementalAndBufferUpdatesAgree() {
+        byte[] data = new byte[10_000];
+        new Random(2).nextBytes(data);
+        Crc32c pieces = new Crc32c();
+        pieces.update(data, 0, 3);
+        pieces.update(data[3]);
+        pieces.update(data, 4, data.length - 4);
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data).flip();
+        assertEquals(bitwise(data, 0, data.length), pieces.getValue());
+        assertEquals((int) pieces.getValue(), Crc32c.of(direct));
+        assertEquals((int) pieces.getValue(), Crc32c.of(ByteBuffer.wrap(data)));
+        // 不改變 buffer 的位置
+        assertEquals(0, direct.position());
+    }
+
+    @Test
+    public void benchmarkThroughput() {
+        byte[] chunk = new byte[FileTransfer.CHUNK_SIZE];
+        new Random(3).nextBytes(chunk);
+        Crc32c crc = new Crc32c();
+        for (int i = 0; i < 200; i++) {
+            crc.update(chunk);
+        }
+        int rounds = 1000;
+        long start = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            crc.update(chunk);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("Crc32c: %.0f MB/s", (double) rounds * chunk.length / (1 << 20) / (elapsed / 1e9)));
+    }
+}
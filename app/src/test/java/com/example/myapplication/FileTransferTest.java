@@ -0,0 +1,593 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FileTransferTest {
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("file-transfer").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        executor.shutdownNow();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        File file = new File(dir, name);
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    // 接收端：收到完成的檔案後放進 completed
+    private static class FileSink extends RecordingListener {
+        final FileTransfer.Receiver receiver;
+        final LinkedBlockingQueue<File> completed = new LinkedBlockingQueue<>();
+
+        FileSink(File dir) {
+            receiver = new FileTransfer.Receiver((connection, id) -> new File(dir, "received-" + id));
+        }
+
+        @Override
+        public void onFrame(Transport.Connection connection, Frame frame) {
+            try {
+                File file = receiver.onFrame(connection, frame);
+                if (file != null) {
+                    completed.add(file);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            if (frame.type == Frame.TYPE_TEXT) {
+                super.onFrame(connection, frame);
+            }
+        }
+    }
+
+    private FileSink startReceiver(Transport server) throws IOException {
+        FileSink sink = new FileSink(dir);
+        server.setListener(sink);
+        transports.add(server);
+        return sink;
+    }
+
+    private void assertSameContent(File expected, File actual) throws IOException {
+        assertTrue(Arrays.equals(Files.readAllBytes(expected.toPath()), Files.readAllBytes(actual.toPath())));
+    }
+
+    @Test
+    public void nioRoundTrip() throws Exception {
+        NioTransport server = new NioTransport(new FrameCodec());
+        FileSink sink = startReceiver(server);
+        int port = server.startServer(0);
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+
+        File source = randomFile("source", 3 * FileTransfer.CHUNK_SIZE + 123);
+        FileTransfer.broadcast(client, source, 42);
+        File received = sink.completed.poll(10, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertSameContent(source, received);
+    }
+
+    @Test
+    public void blockingRoundTripWithInterleavedText() throws Exception {
+        NioTransport server = new NioTransport(new FrameCodec());
+        FileSink sink = startReceiver(server);
+        int port = server.startServer(0);
+        BlockingTransport client = new BlockingTransport(executor, new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+
+        File source = randomFile("source", 1024 * 1024);
+        FileTransfer.broadcast(client, source, 7);
+        client.broadcast(Frame.text("after file"), null);
+        File received = sink.completed.poll(10, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertSameContent(source, received);
+        assertEquals("after file", sink.next().payloadAsText());
+    }
+
+    // 基準測試：20 MB 檔案排進佇列之後才送的文字，不需要等整個檔案送完
+    // 原本單一 FIFO 佇列下文字要排在所有分段後面，延遲等於檔案剩下的傳送時間，以此作為對照
+    // 兩者都從文字排進佇列時開始計時 (broadcast 先讀一次檔案算摘要，不算在內)
+    @Test
+    public void textIsNotBlockedBehindLargeTransfer() throws Exception {
+        NioTransport server = new NioTransport(new FrameCodec());
+        FileSink sink = startReceiver(server);
+        int port = server.startServer(0);
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+
+        long idleStart = System.nanoTime();
+        client.broadcast(Frame.text("idle"), null);
+        assertEquals("idle", sink.next().payloadAsText());
+        long idleMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - idleStart);
+
+        File source = randomFile("large", 20 * 1024 * 1024);
+        FileTransfer.broadcast(client, source, 9);
+        long start = System.nanoTime();
+        client.broadcast(Frame.text("urgent"), null);
+        assertEquals("urgent", sink.next().payloadAsText());
+        long textMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        // 文字先到，檔案還沒收完
+        assertNull(sink.completed.poll());
+        File received = sink.completed.poll(30, TimeUnit.SECONDS);
+        long fifoMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+        assertNotNull(received);
+        assertSameContent(source, received);
+        System.out.println("Text latency: idle " + idleMicros + " us, during 20 MB transfer " + textMicros
+                + " us (FIFO would wait for the rest of the file: " + fifoMicros + " us)");
+        // 插隊的文字仍要等正在送的分段與已經在 socket 緩衝區裡的資料，但至少要比 FIFO 快一倍
+        assertTrue("text " + textMicros + " us vs FIFO " + fifoMicros + " us", textMicros * 2 < fifoMicros);
+    }
+
+    @Test
+    public void emptyFile() throws Exception {
+        NioTransport server = new NioTransport(new FrameCodec());
+        FileSink sink = startReceiver(server);
+        int port = server.startServer(0);
+        NioTransport client = new NioTransport(new FrameCodec());
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+
+        FileTransfer.broadcast(client, randomFile("empty", 0), 1);
+        File received = sink.completed.poll(5, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertEquals(0, received.length());
+    }
+
+    @Test
+    public void abortDeletesPartialFile() throws Exception {
+        FileSink sink = new FileSink(dir);
+        Transport.Connection connection = new Transport.Connection() {
+            @Override public int id() { return 1; }
+            @Override public String remoteAddress() { return "test"; }
+            @Override public void send(Frame frame) { }
+            @Override public void close() { }
+            @Override public OutboundQueue outboundQueue() { return null; }
+        };
+        ByteBuffer start = ByteBuffer.allocate(12);
+        start.putLong(100).putInt(FileTransfer.CHUNK_SIZE).flip();
+        assertNull(sink.receiver.onFrame(connection, new Frame(Frame.TYPE_FILE_START, (byte) 0, 5, 0, start)));
+        assertTrue(new File(dir, "received-5").exists());
+        sink.receiver.abort(connection);
+        assertFalse(new File(dir, "received-5").exists());
+    }
+
+    // 直接收下送出的封包；檔案區段在 send 當下讀成 payload，跟經過網路收到的一樣
+    private static class CapturingConnection implements Transport.Connection {
+        final List<Frame> sent = new ArrayList<>();
+        private final int id;
+
+        CapturingConnection(int id) {
+            this.id = id;
+        }
+
+        @Override public int id() { return id; }
+        @Override public String remoteAddress() { return "capture-" + id; }
+        @Override public void close() { }
+        @Override public OutboundQueue outboundQueue() { return null; }
+
+        @Override
+        public void send(Frame frame) {
+            if (frame.region == null) {
+                sent.add(frame);
+                return;
+            }
+            ByteBuffer payload = ByteBuffer.allocate(frame.region.count);
+            try {
+                while (payload.hasRemaining()) {
+                    frame.region.file.channel.read(payload, frame.region.position + payload.position());
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            payload.flip();
+            sent.add(new Frame(frame.type, frame.flags, frame.streamId, frame.sequence, payload));
+        }
+
+        List<Frame> take() {
+            List<Frame> frames = new ArrayList<>(sent);
+            sent.clear();
+            return frames;
+        }
+    }
+
+    private static Transport senderOf(CapturingConnection connection) throws IOException {
+        return new NioTransport(new FrameCodec()) {
+            @Override
+            public List<Transport.Connection> connections() {
+                return Collections.<Transport.Connection>singletonList(connection);
+            }
+        };
+    }
+
+    private static int countChunks(List<Frame> frames) {
+        int chunks = 0;
+        for (Frame frame : frames) {
+            if (frame.type == Frame.TYPE_FILE_CHUNK) {
+                chunks++;
+            }
+        }
+        return chunks;
+    }
+
+    @Test
+    public void corruptChunkIsRequestedAgain() throws Exception {
+        File source = randomFile("source", 4 * FileTransfer.CHUNK_SIZE + 10);
+        FileTransfer.Catalog catalog = new FileTransfer.Catalog();
+        CapturingConnection toReceiver = new CapturingConnection(1);
+        Transport sender = senderOf(toReceiver);
+        transports.add(sender);
+        FileTransfer.broadcast(sender, source, 3, null, catalog);
+
+        FileSink sink = new FileSink(dir);
+        CapturingConnection toSender = new CapturingConnection(2);
+        for (Frame frame : toReceiver.take()) {
+            if (frame.type == Frame.TYPE_FILE_CHUNK && frame.sequence == 2) {
+                byte[] bytes = frame.payloadBytes();
+                bytes[100] ^= 1;
+                frame = new Frame(frame.type, frame.flags, frame.streamId, frame.sequence, ByteBuffer.wrap(bytes));
+            }
+            assertNull(sink.receiver.onFrame(toSender, frame));
+        }
+        assertEquals(1, sink.receiver.corruptChunks());
+        assertEquals(1, sink.receiver.suspendedCount());
+
+        // 收到 FILE_END 時立即要求補送損壞的分段
+        List<Frame> requests = toSender.take();
+        assertEquals(1, requests.size());
+        assertEquals(Frame.TYPE_FILE_RESUME, requests.get(0).type);
+        assertTrue(FileTransfer.resume(toReceiver, requests.get(0), 4, catalog, null));
+        List<Frame> repair = toReceiver.take();
+        assertEquals(1, countChunks(repair));
+        File received = null;
+        for (Frame frame : repair) {
+            received = sink.receiver.onFrame(toSender, frame);
+        }
+        assertNotNull(received);
+        assertSameContent(source, received);
+        assertEquals(0, sink.receiver.suspendedCount());
+    }
+
+    @Test
+    public void resumesAfterReconnectWithOnlyMissingChunks() throws Exception {
+        int chunks = 40;
+        File source = randomFile("source", chunks * FileTransfer.CHUNK_SIZE - 1000);
+        FileTransfer.Catalog catalog = new FileTransfer.Catalog();
+        CapturingConnection toReceiver = new CapturingConnection(1);
+        Transport sender = senderOf(toReceiver);
+        transports.add(sender);
+        FileTransfer.broadcast(sender, source, 3, null, catalog);
+        List<Frame> first = toReceiver.take();
+
+        // 收到 30 個分段後 session 結束
+        FileSink sink = new FileSink(dir);
+        CapturingConnection oldLink = new CapturingConnection(2);
+        for (Frame frame : first.subList(0, 31)) {
+            assertNull(sink.receiver.onFrame(oldLink, frame));
+        }
+        sink.receiver.abort(oldLink);
+        assertEquals(1, sink.receiver.suspendedCount());
+        File partial = new File(dir, "received-3");
+        assertTrue(partial.exists());
+
+        // 新連線：要求補送，對方只送缺少的分段
+        CapturingConnection newLink = new CapturingConnection(3);
+        sink.receiver.requestMissing(newLink);
+        List<Frame> requests = newLink.take();
+        assertEquals(1, requests.size());
+        long start = System.nanoTime();
+        assertTrue(FileTransfer.resume(toReceiver, requests.get(0), 8, catalog, null));
+        List<Frame> resumed = toReceiver.take();
+        assertEquals(chunks - 30, countChunks(resumed));
+        File received = null;
+        for (Frame frame : resumed) {
+            received = sink.receiver.onFrame(newLink, frame);
+        }
+        long elapsed = System.nanoTime() - start;
+        assertEquals(partial, received);
+        assertSameContent(source, received);
+        assertEquals(1, sink.receiver.resumedTransfers());
+        System.out.println(String.format("FileTransfer resume: resent %d of %d chunks (%d KB of %d KB) in %.1f ms",
+                countChunks(resumed), chunks, (chunks - 30) * FileTransfer.CHUNK_SIZE / 1024,
+                source.length() / 1024, elapsed / 1e6));
+
+        // 沒有這個檔案的一方不回應
+        assertFalse(FileTransfer.resume(toReceiver, requests.get(0), 9, new FileTransfer.Catalog(), null));
+    }
+
+    @Test
+    public void digestMismatchDeletesFile() throws Exception {
+        File source = randomFile("source", FileTransfer.CHUNK_SIZE + 1);
+        CapturingConnection toReceiver = new CapturingConnection(1);
+        Transport sender = senderOf(toReceiver);
+        transports.add(sender);
+        FileTransfer.broadcast(sender, source, 5);
+
+        FileSink sink = new FileSink(dir);
+        CapturingConnection link = new CapturingConnection(2);
+        List<Frame> frames = toReceiver.take();
+        // 分段的 CRC 都對，但 FILE_START 宣告的 SHA-256 不同
+        ByteBuffer start = ByteBuffer.wrap(frames.get(0).payloadBytes());
+        start.put(12, (byte) (start.get(12) ^ 1));
+        frames.set(0, new Frame(Frame.TYPE_FILE_START, (byte) 0, 5, 0, start));
+        try {
+            for (Frame frame : frames) {
+                sink.receiver.onFrame(link, frame);
+            }
+            fail("expected digest mismatch");
+        } catch (IOException expected) {
+            // 預期的錯誤
+        }
+        assertFalse(new File(dir, "received-5").exists());
+    }
+
+    @Test
+    public void cancelledTransferDeletesFileAndIgnoresRest() throws Exception {
+        File source = randomFile("source", 3 * FileTransfer.CHUNK_SIZE);
+        CapturingConnection toReceiver = new CapturingConnection(1);
+        Transport sender = senderOf(toReceiver);
+        transports.add(sender);
+        FileTransfer.broadcast(sender, source, 6);
+
+        FileSink sink = new FileSink(dir);
+        CapturingConnection link = new CapturingConnection(2);
+        List<Frame> frames = toReceiver.take();
+        sink.receiver.onFrame(link, frames.get(0));
+        sink.receiver.onFrame(link, frames.get(1));
+        assertTrue(new File(dir, "received-6").exists());
+        // 收檔跟不上時放棄：已寫入的部分刪除，之後的分段與 FILE_END 都略過，也不要求補送
+        sink.receiver.cancel(link, 6);
+        assertFalse(new File(dir, "received-6").exists());
+        for (Frame frame : frames.subList(2, frames.size())) {
+            assertNull(sink.receiver.onFrame(link, frame));
+        }
+        assertFalse(new File(dir, "received-6").exists());
+        assertTrue(link.take().isEmpty());
+    }
+
+    @Test
+    public void attachmentMetadataPrecedesContent() throws Exception {
+        File source = randomFile("photo", 3 * FileTransfer.CHUNK_SIZE + 7);
+        FileTransfer.Catalog catalog = new FileTransfer.Catalog();
+        CapturingConnection toReceiver = new CapturingConnection(1);
+        Transport sender = senderOf(toReceiver);
+        transports.add(sender);
+        // 跟 ContentResolver 開啟的 file descriptor 一樣只有 channel，沒有路徑
+        FileTransfer.Content content = () -> SharedFileChannel.of(new FileInputStream(source).getChannel());
+        Attachment sent = FileTransfer.broadcast(sender, content, Attachment.describe("photo.png", "image/png"), 6,
+                null, catalog);
+        assertEquals(source.length(), sent.size);
+
+        List<Frame> frames = toReceiver.take();
+        assertEquals(Frame.TYPE_FILE_META, frames.get(0).type);
+        assertEquals(Frame.TYPE_FILE_START, frames.get(1).type);
+        FileSink sink = new FileSink(dir);
+        CapturingConnection link = new CapturingConnection(2);
+        // 先收一半就斷線，續傳時由 catalog 重新開啟內容
+        for (Frame frame : frames.subList(0, 3)) {
+            assertNull(sink.receiver.onFrame(link, frame));
+        }
+        sink.receiver.abort(link);
+        CapturingConnection newLink = new CapturingConnection(3);
+        sink.receiver.requestMissing(newLink);
+        assertTrue(FileTransfer.resume(toReceiver, newLink.take().get(0), 7, catalog, null));
+        File received = null;
+        for (Frame frame : toReceiver.take()) {
+            received = sink.receiver.onFrame(newLink, frame);
+        }
+        assertNotNull(received);
+        assertSameContent(source, received);
+
+        Attachment attachment = sink.receiver.takeAttachment(received);
+        assertEquals("photo.png", attachment.name);
+        assertEquals("image/png", attachment.mimeType);
+        assertEquals(source.length(), attachment.size);
+        assertTrue(Arrays.equals(sent.digest, attachment.digest));
+        assertNull(sink.receiver.takeAttachment(received));
+    }
+
+    @Test
+    public void voiceNotesCarryNoMetadata() throws Exception {
+        File source = randomFile("clip", 1000);
+        CapturingConnection toReceiver = new CapturingConnection(1);
+        Transport sender = senderOf(toReceiver);
+        transports.add(sender);
+        FileTransfer.broadcast(sender, source, 2);
+        FileSink sink = new FileSink(dir);
+        File received = null;
+        for (Frame frame : toReceiver.take()) {
+            assertTrue(frame.type != Frame.TYPE_FILE_META);
+            received = sink.receiver.onFrame(toReceiver, frame);
+        }
+        Attachment attachment = sink.receiver.takeAttachment(received);
+        assertFalse(attachment.hasMetadata());
+        assertEquals(1000, attachment.size);
+        assertNotNull(attachment.digest);
+    }
+
+    // 與原本 4 KB byte[] 複製的路徑比較吞吐量，檔案大小 10 KB ~ 50 MB，各取三次中最快的一次
+    // transferTo 分兩欄：只有分段傳輸 (舊版 FILE_START，接收端直接寫入)，以及 app 實際使用的完整路徑
+    // (送出前先讀一次檔案算 SHA-256 與各分段 CRC32C，接收端逐段檢查 CRC 並邊收邊算 SHA-256)
+    // 兩端的檢查碼都要把整個檔案多讀一遍，單核心的機器上會比串流複製慢，差距來自檢查而不是 transferTo
+    @Test
+    public void benchmarkAgainstStreamCopy() throws Exception {
+        // 先讓 JIT 編譯好三條路徑
+        File warmup = randomFile("bench-warmup", 4 * 1024 * 1024);
+        legacyTransferNanos(warmup);
+        chunkedTransferNanos(warmup, false);
+        chunkedTransferNanos(warmup, true);
+        warmup.delete();
+        int[] sizes = {10 * 1024, 1024 * 1024, 10 * 1024 * 1024, 50 * 1024 * 1024};
+        for (int size : sizes) {
+            File source = randomFile("bench-" + size, size);
+            long legacy = Long.MAX_VALUE;
+            long chunked = Long.MAX_VALUE;
+            long verified = Long.MAX_VALUE;
+            for (int run = 0; run < 3; run++) {
+                legacy = Math.min(legacy, legacyTransferNanos(source));
+                chunked = Math.min(chunked, chunkedTransferNanos(source, false));
+                verified = Math.min(verified, chunkedTransferNanos(source, true));
+            }
+            System.out.println(String.format(Locale.US,
+                    "FileTransfer %8d KB: stream copy %6.1f MB/s, transferTo %6.1f MB/s, transferTo + SHA-256/CRC32C %6.1f MB/s",
+                    size / 1024, mbPerSecond(size, legacy), mbPerSecond(size, chunked),
+                    mbPerSecond(size, verified)));
+            source.delete();
+        }
+    }
+
+    private static double mbPerSecond(long bytes, long nanos) {
+        return bytes / (1024.0 * 1024.0) / (nanos / 1e9);
+    }
+
+    // 原本 ConnectionManager 的做法：writeLong 長度 + 4 KB 緩衝複製，接收端同樣 4 KB 讀寫
+    private long legacyTransferNanos(File source) throws Exception {
+        File target = new File(dir, "legacy-target");
+        try (ServerSocket server = new ServerSocket(0)) {
+            Future<?> receiver = executor.submit(() -> {
+                try (Socket socket = server.accept();
+                     DataInputStream dis = new DataInputStream(socket.getInputStream());
+                     FileOutputStream fos = new FileOutputStream(target)) {
+                    long length = dis.readLong();
+                    byte[] buffer = new byte[4096];
+                    long total = 0;
+                    while (total < length) {
+                        int n = dis.read(buffer, 0, (int) Math.min(buffer.length, length - total));
+                        if (n == -1) {
+                            break;
+                        }
+                        fos.write(buffer, 0, n);
+                        total += n;
+                    }
+                }
+                return null;
+            });
+            long start = System.nanoTime();
+            try (Socket socket = new Socket("127.0.0.1", server.getLocalPort());
+                 DataOutputStream dos = new DataOutputStream(socket.getOutputStream());
+                 FileInputStream fis = new FileInputStream(source)) {
+                dos.writeLong(source.length());
+                byte[] buffer = new byte[4096];
+                int n;
+                while ((n = fis.read(buffer)) != -1) {
+                    dos.write(buffer, 0, n);
+                }
+                dos.flush();
+                receiver.get(60, TimeUnit.SECONDS);
+            }
+            long elapsed = System.nanoTime() - start;
+            assertEquals(source.length(), target.length());
+            target.delete();
+            return elapsed;
+        }
+    }
+
+    // verified 為 false 時送舊版沒有摘要的 FILE_START，接收端不做任何檢查
+    private long chunkedTransferNanos(File source, boolean verified) throws Exception {
+        NioTransport server = new NioTransport(new FrameCodec());
+        NioTransport client = new NioTransport(new FrameCodec());
+        try {
+            FileSink sink = new FileSink(dir);
+            server.setListener(sink);
+            int port = server.startServer(0);
+            client.connect("127.0.0.1", port);
+            assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+            long start = System.nanoTime();
+            if (verified) {
+                FileTransfer.broadcast(client, source, 99);
+            } else {
+                sendUnverified(client, source, 99);
+            }
+            File received = sink.completed.poll(60, TimeUnit.SECONDS);
+            long elapsed = System.nanoTime() - start;
+            assertNotNull(received);
+            assertEquals(source.length(), received.length());
+            received.delete();
+            return elapsed;
+        } finally {
+            client.shutdown();
+            server.shutdown();
+        }
+    }
+
+    private static void sendUnverified(Transport transport, File file, int transferId) throws IOException {
+        SharedFileChannel shared = SharedFileChannel.open(file);
+        try {
+            long size = shared.size();
+            ByteBuffer start = ByteBuffer.allocate(12);
+            start.putLong(size).putInt(FileTransfer.CHUNK_SIZE).flip();
+            transport.broadcast(new Frame(Frame.TYPE_FILE_START, (byte) 0, transferId, 0, start), null);
+            int chunks = (int) ((size + FileTransfer.CHUNK_SIZE - 1) / FileTransfer.CHUNK_SIZE);
+            for (int index = 0; index < chunks; index++) {
+                long position = (long) index * FileTransfer.CHUNK_SIZE;
+                int count = (int) Math.min(FileTransfer.CHUNK_SIZE, size - position);
+                transport.broadcast(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, transferId, index,
+                        new FileRegion(shared, position, count)), null);
+            }
+            transport.broadcast(new Frame(Frame.TYPE_FILE_END, (byte) 0, transferId, chunks, ByteBuffer.allocate(0)),
+                    null);
+        } finally {
+            shared.release();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class FrameCodecTest {
+
+    private final FrameCodec codec = new FrameCodec(1024 * 1024);
+
+    private byte[] encode(Frame... frames) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        for (Frame frame : frames) {
+            codec.writeFrame(out, frame);
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    private static DataInputStream input(byte[] bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes));
+    }
+
+    @Test
+    public void textRoundTrip() throws IOException {
+        Frame decoded = codec.readFrame(input(encode(Frame.text("哈囉 walkie talkie"))));
+        assertEquals(Frame.TYPE_TEXT, decoded.type);
+        assertEquals("哈囉 walkie talkie", decoded.payloadAsText());
+    }
+
+    @Test
+    public void headerFieldsRoundTrip() throws IOException {
+        byte[] data = {1, 2, 3, 4, 5};
+        Frame frame = new Frame(Frame.TYPE_VOICE, (byte) 0x5a, 0x12345678, -2, ByteBuffer.wrap(data));
+        Frame decoded = codec.readFrame(input(encode(frame)));
+        assertEquals(Frame.TYPE_VOICE, decoded.type);
+        assertEquals(0x5a, decoded.flags);
+        assertEquals(0x12345678, decoded.streamId);
+        assertEquals(-2, decoded.sequence);
+        assertArrayEquals(data, decoded.payloadBytes());
+    }
+
+    @Test
+    public void textLongerThanWriteUtfLimit() throws IOException {
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 100_000) {
+            builder.append("訊息");
+        }
+        String message = builder.toString();
+        Frame decoded = codec.readFrame(input(encode(Frame.text(message))));
+        assertEquals(message, decoded.payloadAsText());
+    }
+
+    @Test
+    public void consecutiveFramesOnOneStream() throws IOException {
+        DataInputStream in = input(encode(Frame.voice(7, 0, new byte[320]),
+                Frame.voice(7, 1, new byte[320]), Frame.voiceEnd(7)));
+        assertEquals(0, codec.readFrame(in).sequence);
+        assertEquals(1, codec.readFrame(in).sequence);
+        Frame end = codec.readFrame(in);
+        assertEquals(Frame.TYPE_VOICE_END, end.type);
+        assertEquals(0, end.length);
+    }
+
+    @Test
+    public void varintBoundaries() throws IOException {
+        int[] values = {0, 1, 127, 128, 16383, 16384, 1 << 21, Integer.MAX_VALUE};
+        for (int value : values) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            FrameCodec.writeVarint(new DataOutputStream(bytes), value);
+            assertEquals(value, FrameCodec.readVarint(input(bytes.toByteArray())));
+        }
+    }
+
+    @Test
+    public void smallFrameHeaderIsCompact() throws IOException {
+        assertEquals(FrameCodec.FIXED_HEADER_SIZE + 1 + 2, encode(Frame.text("hi")).length);
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsBadMagic() throws IOException {
+        byte[] bytes = encode(Frame.text("hi"));
+        bytes[0] = 0x00;
+        codec.readFrame(input(bytes));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsUnknownVersion() throws IOException {
+        byte[] bytes = encode(Frame.text("hi"));
+        bytes[2] = 99;
+        codec.readFrame(input(bytes));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOversizedPayload() throws IOException {
+        FrameCodec large = new FrameCodec(Integer.MAX_VALUE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        large.writeHeader(new DataOutputStream(bytes), Frame.TYPE_TEXT, (byte) 0, 0, 0, 2 * 1024 * 1024);
+        codec.readFrame(input(bytes.toByteArray()));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void defaultLimitRejectsDeclaredLengthBeforeAllocating() throws IOException {
+        FrameCodec large = new FrameCodec(Integer.MAX_VALUE);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        large.writeHeader(new DataOutputStream(bytes), Frame.TYPE_FILE_CHUNK, (byte) 0, 0, 0,
+                FrameCodec.DEFAULT_MAX_PAYLOAD + 1);
+        // 只有標頭，沒有 payload：在配置緩衝區之前就應該拒絕
+        new FrameCodec().decode(ByteBuffer.wrap(bytes.toByteArray()));
+    }
+
+    @Test
+    public void originRoundTrip() throws IOException {
+        Frame tagged = Frame.text("轉發").withOrigin("192.168.49.5");
+        Frame decoded = codec.readFrame(input(encode(tagged)));
+        assertTrue(decoded.hasOrigin());
+        assertEquals("192.168.49.5", decoded.origin());
+        assertEquals("轉發", decoded.payloadAsText());
+        assertEquals("轉發", decoded.withoutOrigin().payloadAsText());
+        assertNull(decoded.withoutOrigin().origin());
+        // 再轉發一次時換掉發送者，不會疊加
+        assertEquals("10.0.0.2", decoded.withOrigin("10.0.0.2").origin());
+        assertEquals("轉發", decoded.withOrigin("10.0.0.2").withoutOrigin().payloadAsText());
+        // 語音不標示發送者
+        Frame voice = Frame.voice(1, 0, new byte[4]);
+        assertSame(voice, voice.withOrigin("192.168.49.5"));
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsTruncatedOrigin() throws IOException {
+        byte[] body = {40, 'a', 'b'};
+        new Frame(Frame.TYPE_TEXT, Frame.FLAG_ORIGIN, 0, 0, ByteBuffer.wrap(body)).withoutOrigin();
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsOverlongVarint() throws IOException {
+        byte[] bytes = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 0x01};
+        FrameCodec.readVarint(input(bytes));
+    }
+
+    @Test(expected = EOFException.class)
+    public void rejectsTruncatedPayload() throws IOException {
+        byte[] bytes = encode(Frame.text("truncated"));
+        byte[] cut = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, cut, 0, cut.length);
+        codec.readFrame(input(cut));
+    }
+}
@@ -0,0 +1,131 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+public class GroupRelayTest {
+
+    private static final int CLIENTS = 8;
+    private static final int FRAMES = 2000;
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<RecordingListener> listeners = new ArrayList<>();
+    private NioTransport owner;
+    private RecordingListener ownerListener;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        owner = new NioTransport(new FrameCodec());
+        ownerListener = new RecordingListener();
+        GroupRelay relay = new GroupRelay(owner, ownerListener);
+        relay.setEnabled(true);
+        owner.setListener(relay);
+        transports.add(owner);
+        port = owner.startServer(0);
+    }
+
+    @After
+    public void tearDown() {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        executor.shutdownNow();
+    }
+
+    private List<Transport.Connection> connectClients(int count) throws Exception {
+        List<Transport.Connection> connections = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            // 一半用 NIO、一半用阻塞式，確認兩種客戶端都能被轉發
+            Transport client = i % 2 == 0
+                    ? new NioTransport(new FrameCodec())
+                    : new BlockingTransport(executor, new FrameCodec());
+            RecordingListener listener = new RecordingListener();
+            client.setListener(listener);
+            transports.add(client);
+            listeners.add(listener);
+            connections.add(client.connect("127.0.0.1", port));
+        }
+        for (int i = 0; i < count; i++) {
+            assertNotNull(ownerListener.connected.poll(5, TimeUnit.SECONDS));
+        }
+        return connections;
+    }
+
+    @Test
+    public void textFromOneClientReachesAllOthers() throws Exception {
+        List<Transport.Connection> clients = connectClients(3);
+        clients.get(0).send(Frame.text("hi group"));
+        assertEquals("hi group", ownerListener.next().payloadAsText());
+        assertEquals("hi group", listeners.get(1).next().payloadAsText());
+        assertEquals("hi group", listeners.get(2).next().payloadAsText());
+        // 不會回送給發話者
+        assertNull(listeners.get(0).frames.poll(200, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void relayedTextCarriesItsSender() throws Exception {
+        List<Transport.Connection> clients = connectClients(2);
+        clients.get(0).send(Frame.text("from a member"));
+        Frame owned = ownerListener.next();
+        assertNull(owned.origin());
+        Frame relayed = listeners.get(1).next();
+        assertEquals("from a member", relayed.payloadAsText());
+        // 群主看到的來源位址 (成員自己的位址)，而不是群主
+        assertEquals("/127.0.0.1", relayed.origin());
+
+        // 成員自己標的發送者會被換掉，無法冒充其他人
+        clients.get(0).send(Frame.text("spoofed").withOrigin("10.9.9.9"));
+        assertNull(ownerListener.next().origin());
+        assertEquals("/127.0.0.1", listeners.get(1).next().origin());
+
+        // 語音不標示發送者，原封不動轉發
+        clients.get(0).send(Frame.voice(1, 0, new byte[4]));
+        Frame voice = listeners.get(1).next();
+        assertEquals(Frame.TYPE_VOICE, voice.type);
+        assertEquals(0, voice.flags);
+    }
+
+    @Test
+    public void fanOutThroughput() throws Exception {
+        List<Transport.Connection> clients = connectClients(CLIENTS);
+        byte[] voice = new byte[320];
+        long start = System.nanoTime();
+        for (int i = 0; i < FRAMES; i++) {
+            clients.get(0).send(Frame.voice(1, i, voice));
+        }
+        for (int c = 1; c < CLIENTS; c++) {
+            for (int i = 0; i < FRAMES; i++) {
+                assertEquals(i, listeners.get(c).next().sequence);
+            }
+        }
+        long elapsedNanos = System.nanoTime() - start;
+        long delivered = (long) FRAMES * (CLIENTS - 1);
+        System.out.println("GroupRelay fan-out: " + CLIENTS + " clients, " + delivered + " frames in "
+                + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms ("
+                + (delivered * 1_000_000_000L / elapsedNanos) + " frames/s)");
+    }
+
+    @Test
+    public void disabledRelayOnlyDeliversToOwner() throws Exception {
+        GroupRelay relay = new GroupRelay(owner, ownerListener);
+        owner.setListener(relay);
+        List<Transport.Connection> clients = connectClients(2);
+        clients.get(0).send(Frame.text("owner only"));
+        assertEquals("owner only", ownerListener.next().payloadAsText());
+        assertNull(listeners.get(1).frames.poll(200, TimeUnit.MILLISECONDS));
+    }
+}
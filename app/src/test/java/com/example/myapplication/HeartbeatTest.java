@@ -0,0 +1,153 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HeartbeatTest {
+
+    private static final long INTERVAL_MS = 100;
+    private static final int MISSES = 3;
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final List<Socket> sockets = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private NioTransport server;
+    private CauseRecorder serverListener;
+    private Heartbeat serverHeartbeat;
+    private int port;
+
+    // 額外記錄斷線原因
+    private static class CauseRecorder extends RecordingListener {
+        final LinkedBlockingQueue<Object> causes = new LinkedBlockingQueue<>();
+
+        @Override
+        public void onDisconnected(Transport.Connection connection, IOException cause) {
+            causes.add(cause != null ? cause : "none");
+            super.onDisconnected(connection, cause);
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = new NioTransport(new FrameCodec());
+        serverListener = new CauseRecorder();
+        serverHeartbeat = new Heartbeat(serverListener, scheduler, INTERVAL_MS, MISSES);
+        server.setListener(serverHeartbeat);
+        serverHeartbeat.start();
+        transports.add(server);
+        port = server.startServer(0);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        scheduler.shutdownNow();
+    }
+
+    private Heartbeat connectWithHeartbeat(RecordingListener listener) throws IOException {
+        NioTransport client = new NioTransport(new FrameCodec());
+        Heartbeat heartbeat = new Heartbeat(listener, scheduler, INTERVAL_MS, MISSES);
+        client.setListener(heartbeat);
+        heartbeat.start();
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        return heartbeat;
+    }
+
+    @Test
+    public void respondingPeerStaysConnectedAndReportsRtt() throws Exception {
+        RecordingListener clientListener = new RecordingListener();
+        Heartbeat clientHeartbeat = connectWithHeartbeat(clientListener);
+        Transport.Connection serverSide = serverListener.connected.poll(5, TimeUnit.SECONDS);
+        Transport.Connection clientSide = clientListener.connected.poll(5, TimeUnit.SECONDS);
+        assertNotNull(serverSide);
+        assertNotNull(clientSide);
+
+        // 經過超過斷線門檻數倍的時間仍然連著
+        assertNull(serverListener.disconnected.poll(INTERVAL_MS * MISSES * 3, TimeUnit.MILLISECONDS));
+        assertTrue(serverHeartbeat.rttMs(serverSide) >= 0);
+        assertTrue(clientHeartbeat.rttMs(clientSide) >= 0);
+        // PING / PONG 不會傳給下游
+        assertNull(serverListener.frames.poll());
+        assertNull(clientListener.frames.poll());
+        System.out.println(String.format("Heartbeat loopback RTT: %.3f ms", serverHeartbeat.rttMs(serverSide)));
+    }
+
+    // 只建立 TCP 連線、之後完全不送資料的成員，相當於走出範圍但 socket 還沒斷
+    @Test
+    public void silentRawSocketIsEvicted() throws Exception {
+        Socket silent = new Socket("127.0.0.1", port);
+        sockets.add(silent);
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        long start = System.nanoTime();
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue(serverListener.causes.poll() instanceof SocketTimeoutException);
+        // 在門檻後一到兩個間隔內被移除
+        assertTrue("evicted after " + elapsedMs + " ms", elapsedMs < INTERVAL_MS * (MISSES + 3));
+        assertTrue(server.connections().isEmpty());
+    }
+
+    // 沒有心跳的成員不會回 PONG，也視為沒有回應
+    @Test
+    public void peerWithoutHeartbeatIsEvicted() throws Exception {
+        NioTransport client = new NioTransport(new FrameCodec());
+        RecordingListener clientListener = new RecordingListener();
+        client.setListener(clientListener);
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertTrue(serverListener.causes.poll() instanceof SocketTimeoutException);
+        // 對方收過 PING，之後被斷線
+        assertEquals(Frame.TYPE_PING, clientListener.next().type);
+        assertNotNull(clientListener.disconnected.poll(5, TimeUnit.SECONDS));
+    }
+
+    // 持續送資料的成員即使不回 PONG 也不會被斷線
+    @Test
+    public void dataCountsAsLiveness() throws Exception {
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        Transport.Connection connection = client.connect("127.0.0.1", port);
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        for (int i = 0; i < MISSES * 4; i++) {
+            connection.send(Frame.text("still here " + i));
+            Thread.sleep(INTERVAL_MS / 2);
+        }
+        assertTrue(serverListener.disconnected.isEmpty());
+    }
+
+    @Test
+    public void normalCloseKeepsOriginalCause() throws Exception {
+        RecordingListener clientListener = new RecordingListener();
+        connectWithHeartbeat(clientListener);
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        Transport.Connection clientSide = clientListener.connected.poll(5, TimeUnit.SECONDS);
+        clientSide.close();
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertEquals("none", serverListener.causes.poll());
+    }
+}
@@ -0,0 +1,98 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InboundDispatcherTest {
+
+    @Test
+    public void eventsPostedBeforeFrameArriveAsOneBatch() {
+        ArrayDeque<Runnable> frames = new ArrayDeque<>();
+        List<List<Integer>> batches = new ArrayList<>();
+        InboundDispatcher<Integer> dispatcher = new InboundDispatcher<>(frames::add, batches::add);
+        for (int i = 0; i < 100; i++) {
+            dispatcher.post(i);
+        }
+        // 只排了一次 frame
+        assertEquals(1, frames.size());
+        frames.poll().run();
+        assertEquals(1, batches.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(Integer.valueOf(i), batches.get(0).get(i));
+        }
+        // frame 執行後再送來的事件排下一個 frame
+        dispatcher.post(100);
+        assertEquals(1, frames.size());
+        frames.poll().run();
+        assertEquals(2, batches.size());
+        assertEquals(2, dispatcher.deliveredBatches());
+        assertEquals(101, dispatcher.postedEvents());
+    }
+
+    // 基準測試：多個連線同時送訊息，主執行緒每 16 ms 一個 frame
+    @Test
+    public void concurrentProducersAreDeliveredInOrderWithFewWakeups() throws Exception {
+        int producers = 8;
+        int perProducer = 20_000;
+        ScheduledExecutorService frameThread = Executors.newSingleThreadScheduledExecutor();
+        CountDownLatch done = new CountDownLatch(producers * perProducer);
+        int[] lastSeen = new int[producers];
+        boolean[] ordered = {true};
+        int[] largestBatch = {0};
+        InboundDispatcher<long[]> dispatcher = new InboundDispatcher<>(
+                task -> frameThread.schedule(task, 16, TimeUnit.MILLISECONDS),
+                batch -> {
+                    largestBatch[0] = Math.max(largestBatch[0], batch.size());
+                    for (long[] event : batch) {
+                        int producer = (int) event[0];
+                        ordered[0] &= event[1] == lastSeen[producer];
+                        lastSeen[producer]++;
+                        done.countDown();
+                    }
+                });
+        List<Thread> threads = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int p = 0; p < producers; p++) {
+            int producer = p;
+            Thread thread = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    dispatcher.post(new long[] {producer, i});
+                    // 分散到多個 frame
+                    if (i % 500 == 499) {
+                        try {
+                            Thread.sleep(1);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        frameThread.shutdownNow();
+
+        assertTrue("per-producer order broken", ordered[0]);
+        assertEquals(producers * perProducer, dispatcher.postedEvents());
+        // 逐則 post 需要喚醒主執行緒 160000 次
+        assertTrue(dispatcher.deliveredBatches() < producers * perProducer / 100);
+        System.out.println("InboundDispatcher: " + dispatcher.postedEvents() + " events from " + producers
+                + " threads in " + elapsedMs + " ms, " + dispatcher.deliveredBatches()
+                + " main-thread wakeups, largest batch " + largestBatch[0]);
+    }
+}
@@ -0,0 +1,251 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JitterBufferTest {
+
+    private static final int FRAME_MS = 20;
+    private static final int FRAME_BYTES = 320;
+    private static final int STREAM = 7;
+    // 補音輸出在結果中以 -1 表示
+    private static final int CONCEALED = -1;
+
+    private final List<byte[]> pushed = new ArrayList<>();
+
+    private JitterBuffer newBuffer() {
+        return new JitterBuffer(FRAME_MS, FRAME_BYTES, 2, 20);
+    }
+
+    // 第一個 byte 記錄 sequence，其餘填非零樣本，方便檢查補音
+    private byte[] frame(int sequence) {
+        byte[] frame = new byte[FRAME_BYTES];
+        Arrays.fill(frame, (byte) 0x10);
+        frame[0] = (byte) sequence;
+        pushed.add(frame);
+        return frame;
+    }
+
+    // 以模擬時鐘每 20 ms 播放一次：先放入已到達的封包再取出一個，
+    // 全部到達後送出結束通知，回傳每次實際輸出的 sequence
+    private List<Integer> simulate(JitterBuffer buffer, int[] sequences, long[] arrivals) {
+        Integer[] order = new Integer[sequences.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> arrivals[i]));
+        List<Integer> output = new ArrayList<>();
+        int next = 0;
+        boolean ended = false;
+        for (long now = 0; now < 60_000; now += FRAME_MS) {
+            while (next < order.length && arrivals[order[next]] <= now) {
+                int i = order[next++];
+                buffer.push(STREAM, sequences[i], frame(sequences[i]), arrivals[i]);
+            }
+            if (next == order.length && !ended) {
+                buffer.markEnd(STREAM);
+                ended = true;
+            }
+            byte[] out = buffer.pull(now);
+            if (out != null) {
+                output.add(isPushed(out) ? (int) out[0] : CONCEALED);
+            } else if (ended && !buffer.isPlaying()) {
+                break;
+            }
+        }
+        return output;
+    }
+
+    private boolean isPushed(byte[] frame) {
+        for (byte[] candidate : pushed) {
+            if (candidate == frame) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int[] range(int count) {
+        int[] sequences = new int[count];
+        for (int i = 0; i < count; i++) {
+            sequences[i] = i;
+        }
+        return sequences;
+    }
+
+    private static long[] steadyArrivals(int count) {
+        long[] arrivals = new long[count];
+        for (int i = 0; i < count; i++) {
+            arrivals[i] = (long) i * FRAME_MS;
+        }
+        return arrivals;
+    }
+
+    private static List<Integer> expectedRange(int count) {
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            expected.add(i);
+        }
+        return expected;
+    }
+
+    @Test
+    public void steadyStreamPlaysInOrderWithMinimumDelay() {
+        JitterBuffer buffer = newBuffer();
+        List<Integer> output = simulate(buffer, range(50), steadyArrivals(50));
+        assertEquals(expectedRange(50), output);
+        assertEquals(2, buffer.targetDelayFrames());
+        assertEquals(0, buffer.concealedFrames());
+        assertEquals(0, buffer.underruns());
+        assertFalse(buffer.isPlaying());
+    }
+
+    @Test
+    public void reorderedFramesAreSorted() {
+        long[] arrivals = steadyArrivals(30);
+        arrivals[5] = 115;
+        arrivals[6] = 100;
+        arrivals[12] = 245;
+        arrivals[13] = 240;
+        List<Integer> output = simulate(newBuffer(), range(30), arrivals);
+        assertEquals(expectedRange(30), output);
+    }
+
+    @Test
+    public void lostFrameIsConcealed() {
+        int[] sequences = new int[29];
+        long[] arrivals = new long[29];
+        for (int i = 0, j = 0; i < 30; i++) {
+            if (i == 10) {
+                continue;
+            }
+            sequences[j] = i;
+            arrivals[j++] = (long) i * FRAME_MS;
+        }
+        JitterBuffer buffer = newBuffer();
+        List<Integer> output = simulate(buffer, sequences, arrivals);
+        List<Integer> expected = expectedRange(30);
+        expected.set(10, CONCEALED);
+        assertEquals(expected, output);
+        assertEquals(1, buffer.concealedFrames());
+        assertEquals(29, buffer.playedFrames());
+    }
+
+    @Test
+    public void lateFrameIsDroppedAfterConcealment() {
+        long[] arrivals = steadyArrivals(30);
+        arrivals[10] = 400;
+        JitterBuffer buffer = new JitterBuffer(FRAME_MS, FRAME_BYTES, 2, 2);
+        List<Integer> output = simulate(buffer, range(30), arrivals);
+        List<Integer> expected = expectedRange(30);
+        expected.set(10, CONCEALED);
+        assertEquals(expected, output);
+        assertEquals(1, buffer.lateFrames());
+    }
+
+    @Test
+    public void concealmentFadesOut() {
+        JitterBuffer buffer = newBuffer();
+        buffer.push(STREAM, 0, frame(0), 0);
+        buffer.push(STREAM, 1, frame(1), 20);
+        assertNotNull(buffer.pull(20));
+        assertNotNull(buffer.pull(40));
+        // 之後沒有任何封包：先衰減補音，超過上限後停止輸出
+        byte[] first = buffer.pull(60).clone();
+        byte[] second = buffer.pull(80).clone();
+        int firstSample = (short) ((first[2] & 0xff) | (first[3] << 8));
+        int secondSample = (short) ((second[2] & 0xff) | (second[3] << 8));
+        assertTrue(Math.abs(secondSample) < Math.abs(firstSample));
+        for (int i = 2; i < JitterBuffer.MAX_CONCEALED_RUN; i++) {
+            assertNotNull(buffer.pull(60 + i * FRAME_MS));
+        }
+        assertNull(buffer.pull(200));
+        assertFalse(buffer.isPlaying());
+    }
+
+    @Test
+    public void delayAdaptsToJitter() {
+        int count = 500;
+        Random random = new Random(1);
+        long[] calm = new long[count];
+        long[] bursty = new long[count];
+        for (int i = 0; i < count; i++) {
+            calm[i] = (long) i * FRAME_MS + random.nextInt(3);
+            bursty[i] = (long) i * FRAME_MS + random.nextInt(80);
+        }
+        JitterBuffer calmBuffer = newBuffer();
+        simulate(calmBuffer, range(count), calm);
+        JitterBuffer burstyBuffer = newBuffer();
+        List<Integer> output = simulate(burstyBuffer, range(count), bursty);
+
+        assertEquals(2, calmBuffer.targetDelayFrames());
+        assertEquals(0, calmBuffer.concealedFrames());
+        assertTrue(burstyBuffer.jitterMs() > 10);
+        assertTrue(burstyBuffer.targetDelayFrames() > 2);
+        // 延遲放大後只剩開頭調整期間少量補音
+        assertTrue("concealed " + burstyBuffer.concealedFrames(), burstyBuffer.concealedFrames() < count / 20);
+        System.out.println(String.format("JitterBuffer bursty: jitter %.1f ms, target %d frames, played %d, concealed %d, late %d",
+                burstyBuffer.jitterMs(), burstyBuffer.targetDelayFrames(), burstyBuffer.playedFrames(),
+                burstyBuffer.concealedFrames(), burstyBuffer.lateFrames()));
+        assertTrue(output.size() >= count);
+    }
+
+    @Test
+    public void shortUtteranceDrainsOnEnd() {
+        JitterBuffer buffer = newBuffer();
+        buffer.push(STREAM, 0, frame(0), 0);
+        assertNull(buffer.pull(0));
+        buffer.markEnd(STREAM);
+        assertNotNull(buffer.pull(0));
+        assertNull(buffer.pull(20));
+        assertEquals(0, buffer.concealedFrames());
+        assertFalse(buffer.isPlaying());
+    }
+
+    @Test
+    public void newStreamStartsFresh() {
+        JitterBuffer buffer = newBuffer();
+        buffer.push(STREAM, 100, frame(100), 0);
+        buffer.push(STREAM, 101, frame(101), 20);
+        assertEquals(100, buffer.pull(20)[0]);
+        byte[] next = frame(0);
+        buffer.push(STREAM + 1, 0, next, 40);
+        buffer.push(STREAM + 1, 1, frame(1), 60);
+        assertTrue(buffer.pull(60) == next);
+    }
+
+    @Test
+    public void playoutWritesToSink() {
+        JitterBuffer buffer = newBuffer();
+        buffer.push(STREAM, 0, frame(0), 0);
+        buffer.push(STREAM, 1, frame(1), 20);
+        int[] written = new int[1];
+        assertTrue(buffer.playout(20, (pcm, offset, length) -> written[0] += length));
+        assertEquals(FRAME_BYTES, written[0]);
+    }
+
+    @Test
+    public void reportsResidenceOfPlayedFramesOnly() {
+        JitterBuffer buffer = newBuffer();
+        buffer.push(STREAM, 0, frame(0), 0);
+        buffer.push(STREAM, 2, frame(2), 10);
+        assertNotNull(buffer.pull(40));
+        assertEquals(40, buffer.lastResidenceMs());
+        // sequence 1 遺失，補音沒有等待時間
+        assertNotNull(buffer.pull(60));
+        assertEquals(-1, buffer.lastResidenceMs());
+        assertNotNull(buffer.pull(80));
+        assertEquals(70, buffer.lastResidenceMs());
+    }
+}
@@ -0,0 +1,219 @@
+package com.example.myapplication;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+// 測試用：loopback 上的 TCP 代理，模擬無線連結的單程延遲、頻寬與遺失
+// 兩個方向各自排隊，資料切成 MSS 大小的 segment：先依頻寬排隊送上連結，再加上延遲才交給另一端
+// 傳輸層是 TCP，遺失不會讓資料消失，而是那個 segment 等到重送逾時才到，之後的資料也跟著被擋住 (head-of-line blocking)
+// 佇列有上限，連結忙不過來時讀取端停下來，壓力經由 TCP 流量控制傳回送出端
+class LinkSimulator implements Closeable {
+
+    static final int SEGMENT_BYTES = 1460;
+    // Linux 與 Android 的最小重送逾時
+    static final long RETRANSMIT_TIMEOUT_MS = 200;
+    // 每個方向在途的 segment 上限，約等於 socket 緩衝區
+    private static final int MAX_IN_FLIGHT_SEGMENTS = 256;
+
+    static final class Profile {
+        static final Profile IDEAL = new Profile("ideal", 0, 0, 0);
+
+        final String name;
+        final long latencyMs;
+        final double lossRate;
+        // 0 代表不限制
+        final long bytesPerSecond;
+
+        Profile(String name, long latencyMs, double lossRate, long bytesPerSecond) {
+            this.name = name;
+            this.latencyMs = latencyMs;
+            this.lossRate = lossRate;
+            this.bytesPerSecond = bytesPerSecond;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    private final int targetPort;
+    private final Profile profile;
+    private final Random random;
+    private final ServerSocket server;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private volatile boolean running = true;
+
+    LinkSimulator(int targetPort, Profile profile, long seed) throws IOException {
+        this.targetPort = targetPort;
+        this.profile = profile;
+        this.random = new Random(seed);
+        this.server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        Thread accept = new Thread(this::acceptLoop, "LinkSimulator-accept");
+        accept.setDaemon(true);
+        accept.start();
+    }
+
+    int port() {
+        return server.getLocalPort();
+    }
+
+    // 模擬連結中斷：關閉目前所有經過代理的連線，之後的新連線照常轉送
+    void dropConnections() {
+        for (Socket socket : sockets) {
+            closeQuietly(socket);
+        }
+        sockets.clear();
+    }
+
+    private void acceptLoop() {
+        try {
+            while (running) {
+                Socket downstream = server.accept();
+                Socket upstream = new Socket(InetAddress.getLoopbackAddress(), targetPort);
+                downstream.setTcpNoDelay(true);
+                upstream.setTcpNoDelay(true);
+                sockets.add(downstream);
+                sockets.add(upstream);
+                new Direction(downstream, upstream).start();
+                new Direction(upstream, downstream).start();
+            }
+        } catch (IOException e) {
+            // 代理關閉
+        }
+    }
+
+    private static final class Segment {
+        final byte[] data;
+        final int length;
+        final long deliverAtNanos;
+
+        Segment(byte[] data, int length, long deliverAtNanos) {
+            this.data = data;
+            this.length = length;
+            this.deliverAtNanos = deliverAtNanos;
+        }
+    }
+
+    private static final Segment END = new Segment(new byte[0], 0, 0);
+
+    private final class Direction {
+        final Socket from;
+        final Socket to;
+        final BlockingQueue<Segment> inFlight = new ArrayBlockingQueue<>(MAX_IN_FLIGHT_SEGMENTS);
+        // 連結空出來的時間與上一個 segment 的送達時間，只在讀取執行緒使用
+        long linkFreeAtNanos;
+        long lastDeliverAtNanos;
+        volatile boolean closed;
+
+        Direction(Socket from, Socket to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        void start() {
+            Thread reader = new Thread(this::readLoop, "LinkSimulator-read");
+            Thread writer = new Thread(this::writeLoop, "LinkSimulator-write");
+            reader.setDaemon(true);
+            writer.setDaemon(true);
+            reader.start();
+            writer.start();
+        }
+
+        void readLoop() {
+            try (InputStream in = from.getInputStream()) {
+                while (true) {
+                    byte[] data = new byte[SEGMENT_BYTES];
+                    int read = in.read(data);
+                    if (read < 0) {
+                        break;
+                    }
+                    enqueue(new Segment(data, read, deliverAt(read)));
+                }
+            } catch (IOException | InterruptedException e) {
+                // 任一端關閉
+            } finally {
+                try {
+                    enqueue(END);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        // 寫出端已結束時不再等待佇列空位
+        private void enqueue(Segment segment) throws InterruptedException {
+            while (!inFlight.offer(segment, 100, TimeUnit.MILLISECONDS)) {
+                if (closed) {
+                    return;
+                }
+            }
+        }
+
+        private long deliverAt(int length) {
+            long now = System.nanoTime();
+            long start = Math.max(now, linkFreeAtNanos);
+            long transmit = profile.bytesPerSecond > 0
+                    ? length * TimeUnit.SECONDS.toNanos(1) / profile.bytesPerSecond : 0;
+            linkFreeAtNanos = start + transmit;
+            long deliverAt = linkFreeAtNanos + TimeUnit.MILLISECONDS.toNanos(profile.latencyMs);
+            synchronized (random) {
+                if (profile.lossRate > 0 && random.nextDouble() < profile.lossRate) {
+                    deliverAt += TimeUnit.MILLISECONDS.toNanos(RETRANSMIT_TIMEOUT_MS);
+                }
+            }
+            // TCP 依序交付，後面的 segment 不會比前面的早到
+            lastDeliverAtNanos = Math.max(lastDeliverAtNanos, deliverAt);
+            return lastDeliverAtNanos;
+        }
+
+        void writeLoop() {
+            try (OutputStream out = to.getOutputStream()) {
+                Segment segment;
+                while ((segment = inFlight.take()) != END) {
+                    long wait;
+                    while ((wait = segment.deliverAtNanos - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    out.write(segment.data, 0, segment.length);
+                }
+            } catch (IOException | InterruptedException e) {
+                // 任一端關閉
+            } finally {
+                closed = true;
+                inFlight.clear();
+                closeQuietly(from);
+                closeQuietly(to);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        try {
+            server.close();
+        } catch (IOException ignored) {
+        }
+        dropConnections();
+    }
+}
@@ -0,0 +1,71 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+// 基準測試：群主與 4 個成員在 loopback 上組成群組，兩種傳輸 x 理想與模擬 Wi-Fi Direct 的連結，
+// 分別量測文字、檔案與即時語音的吞吐量與送達延遲；數值會印出來，斷言只擋明顯的退步
+public class LoopbackBenchmarkTest {
+
+    private static final int CLIENTS = 4;
+    // 單程 5 ms、1% 遺失、約 20 Mbit/s，接近實際 Wi-Fi Direct 群組在干擾下的表現
+    private static final LinkSimulator.Profile WIFI_DIRECT =
+            new LinkSimulator.Profile("wifi-p2p", 5, 0.01, 2_500_000);
+
+    @Test
+    public void groupBenchmark() throws Exception {
+        List<ScenarioRunner.Result> results = new ArrayList<>();
+        for (ScenarioRunner.TransportKind kind : ScenarioRunner.TransportKind.values()) {
+            for (LinkSimulator.Profile profile : new LinkSimulator.Profile[] {LinkSimulator.Profile.IDEAL, WIFI_DIRECT}) {
+                try (ScenarioRunner runner = new ScenarioRunner(kind, CLIENTS, profile)) {
+                    results.add(runner.runText(1000, 64));
+                    results.add(runner.runFile(512 * 1024));
+                    results.add(runner.runVoice(50));
+                }
+            }
+        }
+        for (ScenarioRunner.Result result : results) {
+            System.out.println("Loopback: " + result);
+        }
+        for (ScenarioRunner.Result result : results) {
+            assertEquals(result.toString(), result.expected, result.delivered);
+            if (result.workload.equals("voice")) {
+                // 語音必須即時：轉發後 99% 在 250 ms 內送達
+                assertTrue(result.toString(), result.p99Ms() < 250);
+            }
+            if (result.profile == WIFI_DIRECT) {
+                // 模擬的延遲確實生效
+                assertTrue(result.toString(), result.p50Ms() >= WIFI_DIRECT.latencyMs);
+            }
+        }
+    }
+
+    @Test
+    public void simulatorLimitsBandwidth() throws Exception {
+        LinkSimulator.Profile slow = new LinkSimulator.Profile("slow", 0, 0, 256 * 1024);
+        try (ScenarioRunner runner = new ScenarioRunner(ScenarioRunner.TransportKind.BLOCKING, 1, slow)) {
+            ScenarioRunner.Result result = runner.runFile(256 * 1024);
+            System.out.println("Loopback: " + result);
+            assertEquals(1, result.delivered);
+            // 256 KB 經過 256 KB/s 的連結至少要一秒
+            assertTrue(result.toString(), result.p50Ms() >= 900);
+        }
+    }
+
+    @Test
+    public void sessionResumesAfterLinkDrop() throws Exception {
+        try (ScenarioRunner runner = new ScenarioRunner(ScenarioRunner.TransportKind.NIO, 2, LinkSimulator.Profile.IDEAL)) {
+            runner.dropLinks();
+            // 斷線期間送出的訊息在 session 接回後補送
+            ScenarioRunner.Result result = runner.runText(100, 32);
+            System.out.println("Loopback: " + result);
+            assertEquals(result.expected, result.delivered);
+            assertTrue(runner.owner().transport().resumedSessions() >= 1);
+        }
+    }
+}
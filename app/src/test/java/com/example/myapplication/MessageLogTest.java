@@ -0,0 +1,239 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MessageLogTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("message-log").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private static ChatMessage text(int i) {
+        boolean outgoing = i % 2 == 0;
+        return new ChatMessage(-1, 1_000_000L + i, outgoing, outgoing ? "" : "192.168.49.1",
+                ChatMessage.KIND_TEXT, outgoing ? ChatMessage.STATE_SENT : ChatMessage.STATE_RECEIVED, "message " + i);
+    }
+
+    private static void assertEntry(int i, ChatMessage message) {
+        assertEquals(text(i).withId(i), message);
+    }
+
+    private File lastSegment() {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(".log"));
+        File last = files[0];
+        for (File file : files) {
+            if (file.getName().compareTo(last.getName()) > 0) {
+                last = file;
+            }
+        }
+        return last;
+    }
+
+    @Test
+    public void appendAndReadRanges() throws IOException {
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, log.append(text(i)).id);
+        }
+        assertEquals(100, log.size());
+        List<ChatMessage> range = log.read(30, 40);
+        assertEquals(40, range.size());
+        for (int i = 0; i < 40; i++) {
+            assertEntry(30 + i, range.get(i));
+        }
+        // 超出範圍的部分略過
+        assertEquals(5, log.read(95, 50).size());
+        assertEquals(0, log.read(100, 10).size());
+        log.close();
+    }
+
+    @Test
+    public void rotatesSegmentsAndReadsAcrossThem() throws IOException {
+        MessageLog log = new MessageLog(dir, 1024);
+        for (int i = 0; i < 500; i++) {
+            log.append(text(i));
+        }
+        assertTrue(log.segmentCount() > 10);
+        List<ChatMessage> all = log.read(0, 500);
+        for (int i = 0; i < 500; i++) {
+            assertEntry(i, all.get(i));
+        }
+        log.close();
+
+        MessageLog reopened = new MessageLog(dir, 1024);
+        assertEquals(500, reopened.size());
+        List<ChatMessage> range = reopened.read(123, 200);
+        for (int i = 0; i < 200; i++) {
+            assertEntry(123 + i, range.get(i));
+        }
+        assertEquals(500, reopened.append(text(500)).id);
+        assertEntry(500, reopened.read(500, 1).get(0));
+        reopened.close();
+    }
+
+    @Test
+    public void truncatedTailIsDroppedOnReopen() throws IOException {
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 70; i++) {
+            log.append(text(i));
+        }
+        log.close();
+        // 模擬最後一則寫到一半就中斷
+        File segment = lastSegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        MessageLog reopened = new MessageLog(dir);
+        assertEquals(69, reopened.size());
+        assertEntry(68, reopened.read(68, 1).get(0));
+        assertEquals(69, reopened.append(text(69)).id);
+        assertEntry(69, reopened.read(69, 1).get(0));
+        reopened.close();
+    }
+
+    @Test
+    public void corruptedRecordIsDroppedOnReopen() throws IOException {
+        MessageLog log = new MessageLog(dir);
+        for (int i = 0; i < 10; i++) {
+            log.append(text(i));
+        }
+        log.close();
+        File segment = lastSegment();
+        try (RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.seek(file.length() - 1);
+            file.write('X');
+        }
+        MessageLog reopened = new MessageLog(dir);
+        assertEquals(9, reopened.size());
+        reopened.close();
+    }
+
+    @Test
+    public void missingIndexIsRebuilt() throws IOException {
+        MessageLog log = new MessageLog(dir, 2048);
+        for (int i = 0; i < 300; i++) {
+            log.append(text(i));
+        }
+        log.close();
+        File[] indexes = dir.listFiles((d, name) -> name.endsWith(".idx"));
+        for (File index : indexes) {
+            assertTrue(index.delete());
+        }
+        MessageLog reopened = new MessageLog(dir, 2048);
+        assertEquals(300, reopened.size());
+        List<ChatMessage> all = reopened.read(0, 300);
+        for (int i = 0; i < 300; i++) {
+            assertEntry(i, all.get(i));
+        }
+        reopened.close();
+    }
+
+    @Test
+    public void keepsSenderStateAndKind() throws IOException {
+        MessageLog log = new MessageLog(dir);
+        ChatMessage failed = log.append(ChatMessage.outgoing(ChatMessage.KIND_AUDIO, ChatMessage.STATE_FAILED, "/a.3gp"));
+        ChatMessage received = log.append(ChatMessage.incoming("裝置 A", ChatMessage.KIND_TEXT, "你好"));
+        log.close();
+        MessageLog reopened = new MessageLog(dir);
+        List<ChatMessage> all = reopened.read(0, 2);
+        assertEquals(failed, all.get(0));
+        assertEquals(received, all.get(1));
+        assertEquals("裝置 A", all.get(1).sender);
+        reopened.close();
+    }
+
+    @Test
+    public void readsRecordsWithoutSenderAndState() throws IOException {
+        // 加入寄件者與傳送狀態之前寫下的紀錄：timestamp、flags、kind、內文
+        byte[] text = "old".getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = ByteBuffer.allocate(10 + text.length);
+        body.putLong(42L).put((byte) 0).put(ChatMessage.KIND_TEXT).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(body.array());
+        ByteBuffer record = ByteBuffer.allocate(8 + body.capacity());
+        record.putInt(body.capacity()).putInt((int) crc.getValue()).put(body.array());
+        Files.write(new File(dir, String.format("%020d.log", 0)).toPath(), record.array());
+
+        MessageLog log = new MessageLog(dir);
+        assertEquals(1, log.size());
+        ChatMessage old = log.read(0, 1).get(0);
+        assertEquals(new ChatMessage(0, 42L, false, "", ChatMessage.KIND_TEXT, ChatMessage.STATE_RECEIVED, "old"), old);
+        // 之後附加的紀錄使用新格式，兩種混在同一區段
+        log.append(text(1));
+        assertEntry(1, log.read(1, 1).get(0));
+        log.close();
+    }
+
+    // 基準測試：附加與範圍讀取的吞吐量，以及 10 萬則紀錄的開啟時間
+    @Test
+    public void benchmarkAppendReadAndOpen() throws IOException {
+        int count = 100_000;
+        MessageLog log = new MessageLog(dir);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            log.append(text(i));
+        }
+        long appendNanos = System.nanoTime() - start;
+        log.close();
+
+        start = System.nanoTime();
+        MessageLog reopened = new MessageLog(dir);
+        long openNanos = System.nanoTime() - start;
+        assertEquals(count, reopened.size());
+
+        start = System.nanoTime();
+        int pages = 0;
+        for (int from = 0; from < count; from += MessageWindow.DEFAULT_PAGE_SIZE) {
+            assertEquals(MessageWindow.DEFAULT_PAGE_SIZE, reopened.read(from, MessageWindow.DEFAULT_PAGE_SIZE).size());
+            pages++;
+        }
+        long readNanos = System.nanoTime() - start;
+
+        // 開啟只需讀索引，最後一頁也只需一次查詢
+        start = System.nanoTime();
+        assertEntry(count - 1, reopened.read(count - 1, 1).get(0));
+        long lastPageNanos = System.nanoTime() - start;
+        reopened.close();
+
+        long bytes = 0;
+        for (File file : dir.listFiles()) {
+            bytes += file.length();
+        }
+        System.out.println("MessageLog: " + count + " messages (" + bytes / 1024 + " KB): append "
+                + count * 1_000_000_000L / appendNanos + " msg/s, page read "
+                + TimeUnit.NANOSECONDS.toMicros(readNanos / pages) + " us/page, open "
+                + TimeUnit.NANOSECONDS.toMillis(openNanos) + " ms, last message "
+                + TimeUnit.NANOSECONDS.toMicros(lastPageNanos) + " us");
+        assertTrue("open took " + TimeUnit.NANOSECONDS.toMillis(openNanos) + " ms",
+                openNanos < TimeUnit.SECONDS.toNanos(1));
+    }
+}
@@ -0,0 +1,199 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MessageWindowTest {
+
+    private File dir;
+    private MessageLog log;
+    // 主執行緒與背景載入各用一個佇列，由測試決定何時執行
+    private final ArrayDeque<Runnable> mainQueue = new ArrayDeque<>();
+    private final ArrayDeque<Runnable> ioQueue = new ArrayDeque<>();
+    private final List<List<ChatMessage>> snapshots = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("message-window").toFile();
+        log = new MessageLog(dir);
+    }
+
+    @After
+    public void tearDown() {
+        log.close();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private MessageWindow newWindow(int pageSize, int maxItems) {
+        MessageWindow window = new MessageWindow(log, ioQueue::add, mainQueue::add, pageSize, maxItems);
+        window.setListener(snapshots::add);
+        return window;
+    }
+
+    private void runAll() {
+        while (!ioQueue.isEmpty() || !mainQueue.isEmpty()) {
+            runIo();
+            runMain();
+        }
+    }
+
+    private void runIo() {
+        while (!ioQueue.isEmpty()) {
+            ioQueue.poll().run();
+        }
+    }
+
+    private void runMain() {
+        while (!mainQueue.isEmpty()) {
+            mainQueue.poll().run();
+        }
+    }
+
+    private ChatMessage append(int i) throws IOException {
+        return log.append(ChatMessage.incoming("peer", ChatMessage.KIND_TEXT, "m" + i));
+    }
+
+    private void fill(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            append(i);
+        }
+    }
+
+    private List<ChatMessage> latest() {
+        return snapshots.get(snapshots.size() - 1);
+    }
+
+    private static void assertContiguous(long first, int count, List<ChatMessage> snapshot) {
+        assertEquals(count, snapshot.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(first + i, snapshot.get(i).id);
+            assertEquals("m" + (first + i), snapshot.get(i).body);
+        }
+    }
+
+    @Test
+    public void loadLatestPublishesLastPage() throws IOException {
+        fill(100);
+        MessageWindow window = newWindow(20, 60);
+        window.loadLatest();
+        runAll();
+        assertEquals(1, snapshots.size());
+        assertContiguous(80, 20, latest());
+        assertTrue(window.isAtEnd());
+        assertTrue(window.hasOlder());
+    }
+
+    @Test
+    public void residentEntriesStayBoundedWhileScrolling() throws IOException {
+        fill(100_000);
+        MessageWindow window = newWindow(50, 200);
+        window.loadLatest();
+        runAll();
+        // 從最後一則往前捲到最前面，再捲回最後
+        while (window.hasOlder()) {
+            window.loadOlder();
+            runAll();
+            assertTrue(window.residentEntries() <= 200);
+        }
+        assertContiguous(0, 200, latest());
+        assertFalse(window.isAtEnd());
+        while (!window.isAtEnd()) {
+            window.loadNewer();
+            runAll();
+            assertTrue(window.residentEntries() <= 200);
+        }
+        assertContiguous(100_000 - 200, 200, latest());
+        // 往前 2000 頁，再往後 (100000 - 200) / 50 頁
+        assertEquals(2000 + 1996, window.loadedPages());
+    }
+
+    @Test
+    public void burstOfAppendsPublishesOneSnapshot() throws IOException {
+        fill(10);
+        MessageWindow window = newWindow(20, 60);
+        window.loadLatest();
+        runAll();
+        snapshots.clear();
+        for (int i = 10; i < 40; i++) {
+            window.onAppended(append(i));
+        }
+        runAll();
+        assertEquals(1, snapshots.size());
+        assertContiguous(0, 40, latest());
+        // 超過上限時丟掉最舊的
+        for (int i = 40; i < 100; i++) {
+            window.onAppended(append(i));
+        }
+        runAll();
+        assertContiguous(40, 60, latest());
+        assertEquals(40, window.start());
+    }
+
+    @Test
+    public void appendWhileScrolledBackIsLoadedLater() throws IOException {
+        fill(1000);
+        MessageWindow window = newWindow(50, 100);
+        window.loadLatest();
+        runAll();
+        for (int i = 0; i < 3; i++) {
+            window.loadOlder();
+            runAll();
+        }
+        assertContiguous(800, 100, latest());
+        int published = snapshots.size();
+        window.onAppended(append(1000));
+        runAll();
+        assertEquals(published, snapshots.size());
+        assertFalse(window.isAtEnd());
+        while (!window.isAtEnd()) {
+            window.loadNewer();
+            runAll();
+        }
+        assertEquals(1000, latest().get(latest().size() - 1).id);
+    }
+
+    @Test
+    public void appendsDuringLoadAreCaughtUp() throws IOException {
+        fill(100);
+        MessageWindow window = newWindow(20, 100);
+        window.loadLatest();
+        // 讀完最後一頁、還沒交回主執行緒之前又寫入兩則
+        runIo();
+        window.onAppended(append(100));
+        window.onAppended(append(101));
+        runAll();
+        assertContiguous(80, 22, latest());
+        assertTrue(window.isAtEnd());
+    }
+
+    @Test
+    public void entriesWrittenBeforeWindowAreNotCountedTwice() throws IOException {
+        fill(10);
+        ChatMessage last = append(10);
+        MessageWindow window = newWindow(20, 60);
+        window.loadLatest();
+        runAll();
+        // 寫入通知在建立視窗之後才送達
+        window.onAppended(last);
+        runAll();
+        assertContiguous(0, 11, latest());
+    }
+}
@@ -0,0 +1,311 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// 群主與成員都在 loopback 上：群播走 lo 介面，送出端依固定亂數丟掉 10% 的 datagram，
+// 所有成員漏掉同一批 (跟實際空中的遺失一樣是同時發生的)，靠 NACK 經 TCP 補齊
+public class MulticastDeliveryTest {
+
+    private static final long TIMEOUT_MS = 20_000;
+    private static final double LOSS = 0.10;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<File> tempFiles = new ArrayList<>();
+    private final List<PeerNode> nodes = new ArrayList<>();
+    private NetworkInterface loopback;
+    private InetSocketAddress group;
+
+    @Before
+    public void setUp() throws Exception {
+        loopback = NetworkInterface.getByName("lo");
+        Assume.assumeTrue("no loopback interface", loopback != null && loopback.isUp());
+        group = new InetSocketAddress(InetAddress.getByName(MulticastDelivery.DEFAULT_GROUP),
+                20_000 + new Random().nextInt(20_000));
+    }
+
+    @After
+    public void tearDown() {
+        for (PeerNode node : nodes) {
+            node.shutdown();
+        }
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        for (File file : tempFiles) {
+            file.delete();
+        }
+    }
+
+    // 送出端的遺失：以固定亂數丟掉部分 datagram
+    private static final class LossySink implements MulticastSender.DatagramSink {
+        final MulticastSender.DatagramSink target;
+        final Random random = new Random(7);
+        final double loss;
+        final AtomicLong dropped = new AtomicLong();
+
+        LossySink(MulticastSender.DatagramSink target, double loss) {
+            this.target = target;
+            this.loss = loss;
+        }
+
+        @Override
+        public void send(ByteBuffer datagram) throws IOException {
+            if (random.nextDouble() < loss) {
+                dropped.incrementAndGet();
+                return;
+            }
+            target.send(datagram);
+        }
+
+        @Override
+        public void close() {
+            target.close();
+        }
+    }
+
+    // 一個節點收到的語音序號與完成的檔案
+    private final class Member implements Transport.Listener {
+        final Map<Integer, AtomicLong> voice = new ConcurrentHashMap<>();
+        final Map<Integer, byte[]> files = new ConcurrentHashMap<>();
+        final Set<Integer> fileStarts = ConcurrentHashMap.newKeySet();
+        final AtomicLong duplicates = new AtomicLong();
+        final FileTransfer.Receiver receiver = new FileTransfer.Receiver((connection, transferId) -> newTempFile());
+        PeerNode node;
+
+        @Override
+        public void onConnected(Transport.Connection connection) {
+        }
+
+        @Override
+        public void onFrame(Transport.Connection connection, Frame frame) {
+            switch (frame.type) {
+                case Frame.TYPE_VOICE:
+                    if (voice.computeIfAbsent(frame.sequence, s -> new AtomicLong()).incrementAndGet() > 1) {
+                        duplicates.incrementAndGet();
+                    }
+                    break;
+                case Frame.TYPE_FILE_START:
+                    if (!fileStarts.add(frame.streamId)) {
+                        duplicates.incrementAndGet();
+                    }
+                    receiveFile(connection, frame);
+                    break;
+                case Frame.TYPE_FILE_CHUNK:
+                case Frame.TYPE_FILE_END:
+                    receiveFile(connection, frame);
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        private void receiveFile(Transport.Connection connection, Frame frame) {
+            try {
+                File received = receiver.onFrame(connection, frame);
+                if (received != null) {
+                    files.put(frame.streamId, Files.readAllBytes(received.toPath()));
+                }
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void onDisconnected(Transport.Connection connection, IOException cause) {
+        }
+    }
+
+    private File newTempFile() throws IOException {
+        File file = File.createTempFile("multicast", ".bin");
+        synchronized (tempFiles) {
+            tempFiles.add(file);
+        }
+        return file;
+    }
+
+    private PeerNode newNode(Transport inner, Member member) {
+        PeerNode node = new PeerNode(inner, scheduler, executor, new TransportMetrics(), member);
+        member.node = node;
+        nodes.add(node);
+        return node;
+    }
+
+    private static void await(String what, BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue("timed out waiting for " + what, System.currentTimeMillis() < deadline);
+            Thread.sleep(5);
+        }
+    }
+
+    // 群主 (NIO，與正式環境相同) 加上 members 個成員，前 joined 個接收群播
+    private List<Member> formGroup(Member owner, int members, int joined) throws Exception {
+        int port = newNode(new NioTransport(new FrameCodec()), owner).startOwner(0);
+        List<Member> clients = new ArrayList<>();
+        for (int i = 0; i < members; i++) {
+            Member client = new Member();
+            PeerNode node = newNode(new BlockingTransport(executor, new FrameCodec()), client);
+            if (i < joined) {
+                node.acceptMulticast(loopback, executor);
+            }
+            node.connect("127.0.0.1", port);
+            clients.add(client);
+        }
+        await("group", () -> owner.node.transport().connections().size() == members);
+        return clients;
+    }
+
+    private MulticastSender startMulticast(Member owner, LossySink[] sink) throws IOException {
+        sink[0] = new LossySink(MulticastDelivery.channelSink(group, loopback), LOSS);
+        return owner.node.startMulticast(group, sink[0], executor);
+    }
+
+    private File randomFile(int size, long seed) throws IOException {
+        byte[] content = new byte[size];
+        new Random(seed).nextBytes(content);
+        File file = newTempFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void ownerFileAndVoiceReachEveryMemberOnce() throws Exception {
+        Member owner = new Member();
+        List<Member> clients = formGroup(owner, 4, 3);
+        LossySink[] sink = new LossySink[1];
+        MulticastSender sender = startMulticast(owner, sink);
+        await("joins", () -> sender.memberCount() == 3);
+        assertTrue(sender.isActive());
+
+        File file = randomFile(300 * 1024, 1);
+        FileTransfer.broadcast(owner.node.fanout(), file, 1);
+        for (int i = 0; i < 50; i++) {
+            owner.node.broadcast(Frame.voice(1, i, ImaAdpcmCodec.ID, new byte[164]));
+        }
+        owner.node.broadcast(Frame.voiceEnd(1));
+
+        byte[] expected = Files.readAllBytes(file.toPath());
+        for (Member client : clients) {
+            await("file", () -> client.files.containsKey(1));
+            assertArrayEquals(expected, client.files.get(1));
+            await("voice", () -> client.voice.size() == 50);
+        }
+        Thread.sleep(200);
+        for (Member client : clients) {
+            assertEquals(0, client.duplicates.get());
+            assertEquals(50, client.voice.size());
+        }
+        long lost = 0;
+        long repaired = 0;
+        for (int i = 0; i < 3; i++) {
+            MulticastDelivery delivery = clients.get(i).node.delivery();
+            assertTrue(delivery.isReceiving());
+            lost += delivery.lostDatagrams();
+            repaired += delivery.repairedDatagrams();
+        }
+        assertTrue("loss was simulated", sink[0].dropped.get() > 0);
+        assertTrue("repairs were requested", sender.repairedDatagrams() > 0);
+        assertEquals(0, lost);
+        assertTrue(repaired > 0);
+        assertFalse(clients.get(3).node.delivery().isReceiving());
+
+        // 群播只送一份 (加上補送)，單播則每個成員各一份
+        long unicast = 3L * expected.length;
+        System.out.println(String.format(Locale.US,
+                "Multicast: %d datagrams, %.1f KB on air (%d dropped, %d repaired over TCP) vs %.1f KB unicast to 3 members",
+                sender.sentDatagrams(), sender.sentBytes() / 1024.0, sink[0].dropped.get(),
+                sender.repairedDatagrams(), unicast / 1024.0));
+        assertTrue(sender.sentBytes() < unicast / 2);
+    }
+
+    @Test
+    public void relayedFileSkipsItsSourceAndReachesTcpMembers() throws Exception {
+        Member owner = new Member();
+        List<Member> clients = formGroup(owner, 3, 2);
+        LossySink[] sink = new LossySink[1];
+        MulticastSender sender = startMulticast(owner, sink);
+        await("joins", () -> sender.memberCount() == 2);
+
+        File file = randomFile(100 * 1024, 2);
+        Member source = clients.get(0);
+        FileTransfer.broadcast(source.node.fanout(), file, 77);
+
+        byte[] expected = Files.readAllBytes(file.toPath());
+        await("owner", () -> owner.files.containsKey(77));
+        for (int i = 1; i < clients.size(); i++) {
+            Member client = clients.get(i);
+            await("relayed file", () -> client.files.containsKey(77));
+            assertArrayEquals(expected, client.files.get(77));
+            assertEquals(0, client.duplicates.get());
+        }
+        Thread.sleep(300);
+        // 來源成員也在群播裡，但依 exclude 略過自己送出的檔案
+        assertFalse(source.fileStarts.contains(77));
+        assertTrue(sender.sentDatagrams() > 100 * 1024 / MulticastSender.FRAGMENT_SIZE);
+    }
+
+    @Test
+    public void staysOnTcpBelowMemberThreshold() throws Exception {
+        Member owner = new Member();
+        List<Member> clients = formGroup(owner, 2, 1);
+        LossySink[] sink = new LossySink[1];
+        MulticastSender sender = startMulticast(owner, sink);
+        await("join", () -> sender.memberCount() == 1);
+
+        assertFalse(sender.isActive());
+        long beacons = sender.sentDatagrams();
+        owner.node.broadcast(Frame.voice(1, 0, ImaAdpcmCodec.ID, new byte[164]));
+        for (Member client : clients) {
+            await("voice", () -> client.voice.size() == 1);
+        }
+        // 只有 TAIL，沒有資料
+        assertTrue(sender.sentDatagrams() - beacons <= 2 * MulticastDelivery.LANE_COUNT);
+    }
+
+    @Test
+    public void memberFallsBackToTcpWhenItLeaves() throws Exception {
+        Member owner = new Member();
+        List<Member> clients = formGroup(owner, 2, 2);
+        LossySink[] sink = new LossySink[1];
+        MulticastSender sender = startMulticast(owner, sink);
+        sender.setMinMembers(1);
+        await("joins", () -> sender.memberCount() == 2);
+
+        // 成員離開群組：群主移出群播成員，其他成員不受影響
+        clients.get(1).node.transport().connections().iterator().next().close();
+        await("leave", () -> sender.memberCount() == 1);
+        assertFalse(clients.get(1).node.delivery().isReceiving());
+
+        owner.node.broadcast(Frame.voice(1, 0, ImaAdpcmCodec.ID, new byte[164]));
+        await("voice", () -> clients.get(0).voice.size() == 1);
+        assertTrue(clients.get(1).voice.isEmpty());
+    }
+}
@@ -0,0 +1,288 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class MulticastReceiverTest {
+
+    private static final int EPOCH = 42;
+    private static final int MEMBER_ID = 7;
+    private static final int VOICE_START = 1000;
+    private static final int BULK_START = -3;
+
+    private final FrameCodec codec = new FrameCodec();
+    private final int[] nextSeq = {VOICE_START, BULK_START};
+    private final MulticastReceiver receiver =
+            new MulticastReceiver(EPOCH, MEMBER_ID, new int[] {VOICE_START, BULK_START}, codec, 0);
+
+    // 跟 MulticastSender 一樣編碼並切段，序號接續
+    private ByteBuffer[] datagrams(Frame frame, int exclude) throws Exception {
+        ByteBuffer header = codec.encodeHeader(frame);
+        ByteBuffer wire = ByteBuffer.allocate(header.remaining() + frame.length);
+        wire.put(header).put(frame.payload.duplicate());
+        wire.flip();
+        int lane = frame.priority() == Frame.PRIORITY_VOICE ? MulticastDelivery.LANE_VOICE
+                : MulticastDelivery.LANE_BULK;
+        ByteBuffer[] datagrams = MulticastSender.fragment(wire, EPOCH, lane, nextSeq[lane], exclude);
+        nextSeq[lane] += datagrams.length;
+        return datagrams;
+    }
+
+    private static Frame chunk(int index, int size) {
+        byte[] data = new byte[size];
+        new Random(index).nextBytes(data);
+        return new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, 1, index, ByteBuffer.wrap(data));
+    }
+
+    private List<Frame> feed(long nowMs, ByteBuffer... datagrams) throws Exception {
+        List<Frame> ready = new ArrayList<>();
+        for (ByteBuffer datagram : datagrams) {
+            receiver.onDatagram(datagram.duplicate(), false, nowMs, ready);
+        }
+        return ready;
+    }
+
+    private List<Frame> repair(long nowMs, ByteBuffer datagram) throws Exception {
+        List<Frame> ready = new ArrayList<>();
+        receiver.onDatagram(datagram.duplicate(), true, nowMs, ready);
+        return ready;
+    }
+
+    private static int[] sequences(List<Frame> frames) {
+        int[] sequences = new int[frames.size()];
+        for (int i = 0; i < sequences.length; i++) {
+            sequences[i] = frames.get(i).sequence;
+        }
+        return sequences;
+    }
+
+    // NACK 的範圍：{lane, 起始序號, 數量}
+    private static List<int[]> ranges(Frame nack) {
+        ByteBuffer payload = nack.payload.duplicate();
+        assertEquals(EPOCH, payload.getInt());
+        List<int[]> ranges = new ArrayList<>();
+        while (payload.hasRemaining()) {
+            ranges.add(new int[] {payload.get(), payload.getInt(), payload.getShort() & 0xffff});
+        }
+        return ranges;
+    }
+
+    @Test
+    public void reassemblesShuffledFragmentsInOrder() throws Exception {
+        List<ByteBuffer> all = new ArrayList<>();
+        List<Frame> sent = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Frame frame = chunk(i, 4000);
+            sent.add(frame);
+            ByteBuffer[] datagrams = datagrams(frame, 0);
+            assertEquals(3, datagrams.length);
+            all.addAll(Arrays.asList(datagrams));
+        }
+        Collections.shuffle(all, new Random(1));
+
+        List<Frame> ready = feed(0, all.toArray(new ByteBuffer[0]));
+
+        assertArrayEquals(new int[] {0, 1, 2, 3}, sequences(ready));
+        for (int i = 0; i < ready.size(); i++) {
+            assertEquals(Frame.TYPE_FILE_CHUNK, ready.get(i).type);
+            assertArrayEquals(sent.get(i).payloadBytes(), ready.get(i).payloadBytes());
+        }
+        assertEquals(0, receiver.missing());
+        assertEquals(12, receiver.receivedDatagrams());
+    }
+
+    @Test
+    public void duplicatesAreIgnored() throws Exception {
+        ByteBuffer[] a = datagrams(chunk(0, 100), 0);
+        assertEquals(1, feed(0, a).size());
+        assertEquals(0, feed(0, a).size());
+        assertEquals(1, receiver.duplicateDatagrams());
+    }
+
+    @Test
+    public void nackRequestsGapAndRepairCompletesInOrder() throws Exception {
+        ByteBuffer[] a = datagrams(chunk(0, 100), 0);
+        ByteBuffer[] b = datagrams(chunk(1, 100), 0);
+        ByteBuffer[] c = datagrams(chunk(2, 100), 0);
+
+        assertArrayEquals(new int[] {0}, sequences(feed(0, a[0], c[0])));
+        assertEquals(1, receiver.missing());
+
+        List<Frame> ready = new ArrayList<>();
+        // 剛發現的缺口先不要求，補送可能已經在路上
+        assertNull(receiver.onTick(1, ready));
+        Frame nack = receiver.onTick(MulticastReceiver.NACK_DELAY_MS, ready);
+        assertNotNull(nack);
+        assertEquals(Frame.TYPE_MULTICAST_NACK, nack.type);
+        List<int[]> ranges = ranges(nack);
+        assertEquals(1, ranges.size());
+        assertArrayEquals(new int[] {MulticastDelivery.LANE_BULK, BULK_START + 1, 1}, ranges.get(0));
+        // 等待補送期間不重複要求
+        assertNull(receiver.onTick(MulticastReceiver.NACK_DELAY_MS + 1, ready));
+
+        assertArrayEquals(new int[] {1, 2}, sequences(repair(20, b[0])));
+        assertEquals(0, receiver.missing());
+        assertEquals(1, receiver.repairedDatagrams());
+        assertEquals(0, receiver.lostDatagrams());
+    }
+
+    @Test
+    public void consecutiveGapsShareOneRange() throws Exception {
+        ByteBuffer[] a = datagrams(chunk(0, 4000), 0);
+        ByteBuffer[] b = datagrams(chunk(1, 4000), 0);
+        feed(0, a[0], a[2], b[2]);
+
+        List<int[]> ranges = ranges(receiver.onTick(10, new ArrayList<>()));
+
+        assertEquals(2, ranges.size());
+        assertArrayEquals(new int[] {MulticastDelivery.LANE_BULK, BULK_START + 1, 1}, ranges.get(0));
+        assertArrayEquals(new int[] {MulticastDelivery.LANE_BULK, BULK_START + 3, 2}, ranges.get(1));
+    }
+
+    @Test
+    public void givesUpAfterRetriesAndSkipsLostFrame() throws Exception {
+        ByteBuffer[] a = datagrams(chunk(0, 100), 0);
+        datagrams(chunk(1, 4000), 0);
+        ByteBuffer[] c = datagrams(chunk(2, 100), 0);
+        feed(0, a[0], c[0]);
+
+        List<Frame> ready = new ArrayList<>();
+        long now = 0;
+        int nacks = 0;
+        while (ready.isEmpty() && now < 10_000) {
+            now += 10;
+            if (receiver.onTick(now, ready) != null) {
+                nacks++;
+            }
+        }
+
+        assertEquals(MulticastReceiver.MAX_NACK_ATTEMPTS, nacks);
+        assertArrayEquals(new int[] {2}, sequences(ready));
+        assertEquals(3, receiver.lostDatagrams());
+        assertEquals(0, receiver.missing());
+        // 放棄前的等待不超過幾次補送的來回
+        assertTrue("gave up at " + now, now <= (MulticastReceiver.MAX_NACK_ATTEMPTS + 1) * MulticastReceiver.NACK_RETRY_MS);
+    }
+
+    @Test
+    public void partiallyLostFrameIsDroppedWhole() throws Exception {
+        ByteBuffer[] a = datagrams(chunk(0, 4000), 0);
+        ByteBuffer[] b = datagrams(chunk(1, 100), 0);
+        feed(0, a[0], a[2], b[0]);
+
+        List<Frame> ready = new ArrayList<>();
+        for (long now = 10; now < 1000; now += 10) {
+            receiver.onTick(now, ready);
+        }
+
+        assertArrayEquals(new int[] {1}, sequences(ready));
+        assertEquals(1, receiver.lostDatagrams());
+    }
+
+    @Test
+    public void liveVoiceIsDeliveredBeforeGapIsRepaired() throws Exception {
+        ByteBuffer[] v0 = datagrams(Frame.voice(1, 0, ImaAdpcmCodec.ID, new byte[164]), 0);
+        ByteBuffer[] v1 = datagrams(Frame.voice(1, 1, ImaAdpcmCodec.ID, new byte[164]), 0);
+        ByteBuffer[] end = datagrams(Frame.voiceEnd(1), 0);
+
+        // 語音不等前面的缺口，VOICE_END 需要可靠送達，要等
+        List<Frame> ready = feed(0, v1[0], end[0]);
+        assertEquals(1, ready.size());
+        assertEquals(Frame.TYPE_VOICE, ready.get(0).type);
+        assertEquals(1, ready.get(0).sequence);
+
+        ready = repair(20, v0[0]);
+        assertEquals(2, ready.size());
+        assertEquals(0, ready.get(0).sequence);
+        assertEquals(Frame.TYPE_VOICE_END, ready.get(1).type);
+        assertEquals(3, receiver.deliveredFrames());
+    }
+
+    @Test
+    public void lanesDoNotBlockEachOther() throws Exception {
+        datagrams(chunk(0, 100), 0);
+        ByteBuffer[] bulk = datagrams(chunk(1, 100), 0);
+        ByteBuffer[] voice = datagrams(Frame.voice(1, 0, ImaAdpcmCodec.ID, new byte[164]), 0);
+        ByteBuffer[] end = datagrams(Frame.voiceEnd(1), 0);
+
+        // 檔案的缺口不影響語音
+        List<Frame> ready = feed(0, bulk[0], voice[0], end[0]);
+
+        assertEquals(2, ready.size());
+        assertEquals(Frame.TYPE_VOICE_END, ready.get(1).type);
+        assertEquals(1, receiver.missing());
+    }
+
+    @Test
+    public void skipsFramesRelayedFromThisMember() throws Exception {
+        ByteBuffer[] own = datagrams(chunk(0, 4000), MEMBER_ID);
+        ByteBuffer[] other = datagrams(chunk(1, 100), 3);
+
+        List<Frame> ready = feed(0, own[0], own[1], own[2], other[0]);
+
+        assertArrayEquals(new int[] {1}, sequences(ready));
+        assertEquals(0, receiver.missing());
+    }
+
+    @Test
+    public void ignoresDatagramsBeforeStartAndFromOtherEpochs() throws Exception {
+        nextSeq[MulticastDelivery.LANE_BULK] = BULK_START - 1;
+        ByteBuffer[] early = datagrams(chunk(0, 100), 0);
+        assertEquals(0, feed(0, early).size());
+        assertEquals(0, receiver.missing());
+
+        ByteBuffer body = ByteBuffer.wrap(new byte[10]);
+        ByteBuffer foreign = MulticastDelivery.datagram(MulticastDelivery.KIND_DATA, EPOCH + 1,
+                MulticastDelivery.LANE_BULK, BULK_START, 0, 0, 1, body);
+        assertEquals(0, feed(0, foreign).size());
+        assertEquals(0, receiver.missing());
+    }
+
+    @Test(expected = ProtocolException.class)
+    public void rejectsMalformedDatagram() throws Exception {
+        feed(0, ByteBuffer.wrap(new byte[MulticastDelivery.HEADER_SIZE]));
+    }
+
+    @Test
+    public void tailRevealsLostLastFrame() throws Exception {
+        ByteBuffer[] a = datagrams(chunk(0, 100), 0);
+        datagrams(chunk(1, 100), 0);
+        feed(0, a[0]);
+        assertNull(receiver.onTick(10, new ArrayList<>()));
+
+        feed(20, MulticastDelivery.datagram(MulticastDelivery.KIND_TAIL, EPOCH, MulticastDelivery.LANE_BULK,
+                BULK_START + 1, 0, 0, 0, ByteBuffer.allocate(0)));
+
+        List<int[]> ranges = ranges(receiver.onTick(30, new ArrayList<>()));
+        assertArrayEquals(new int[] {MulticastDelivery.LANE_BULK, BULK_START + 1, 1}, ranges.get(0));
+        assertEquals(20, receiver.lastDatagramMs());
+    }
+
+    @Test
+    public void windowOverflowDeliversCompleteFramesAndDropsGap() throws Exception {
+        datagrams(chunk(0, 100), 0);
+        List<ByteBuffer> later = new ArrayList<>();
+        for (int i = 1; i <= MulticastReceiver.WINDOW; i++) {
+            later.addAll(Arrays.asList(datagrams(chunk(i, 100), 0)));
+        }
+
+        List<Frame> ready = feed(0, later.toArray(new ByteBuffer[0]));
+
+        // 第一個缺口被擠出序號窗後放棄，之後的封包照序交出
+        assertEquals(MulticastReceiver.WINDOW, ready.size());
+        assertEquals(1, ready.get(0).sequence);
+        assertEquals(1, receiver.lostDatagrams());
+    }
+}
@@ -0,0 +1,142 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class NioTransportTest {
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    private NioTransport server;
+    private RecordingListener serverListener;
+    private int port;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new NioTransport(new FrameCodec());
+        serverListener = new RecordingListener();
+        server.setListener(serverListener);
+        transports.add(server);
+        port = server.startServer(0);
+    }
+
+    @After
+    public void tearDown() {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        executor.shutdownNow();
+    }
+
+    private RecordingListener connectNioClient() throws IOException {
+        NioTransport client = new NioTransport(new FrameCodec());
+        RecordingListener listener = new RecordingListener();
+        client.setListener(listener);
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        return listener;
+    }
+
+    @Test
+    public void clientToServerRoundTrip() throws Exception {
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        Transport.Connection connection = client.connect("127.0.0.1", port);
+        connection.send(Frame.text("hello"));
+        assertEquals("hello", serverListener.next().payloadAsText());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsBlockPolicy() throws Exception {
+        NioTransport transport = new NioTransport(new FrameCodec());
+        transports.add(transport);
+        // 在 selector 執行緒上等待佇列空間會卡住所有連線
+        transport.setOverflowPolicy(OutboundQueue.OverflowPolicy.BLOCK, 1024);
+    }
+
+    @Test
+    public void interoperatesWithBlockingTransport() throws Exception {
+        BlockingTransport client = new BlockingTransport(executor, new FrameCodec());
+        RecordingListener listener = new RecordingListener();
+        client.setListener(listener);
+        transports.add(client);
+        client.connect("127.0.0.1", port).send(Frame.voice(3, 9, new byte[320]));
+        Frame frame = serverListener.next();
+        assertEquals(Frame.TYPE_VOICE, frame.type);
+        assertEquals(9, frame.sequence);
+
+        server.broadcast(Frame.text("from owner"), null);
+        assertEquals("from owner", listener.next().payloadAsText());
+    }
+
+    @Test
+    public void servesMorePeersThanOldThreadPool() throws Exception {
+        int peers = 25;
+        List<RecordingListener> clients = new ArrayList<>();
+        for (int i = 0; i < peers; i++) {
+            clients.add(connectNioClient());
+        }
+        for (int i = 0; i < peers; i++) {
+            assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        }
+        server.broadcast(Frame.text("everyone"), null);
+        for (RecordingListener client : clients) {
+            assertEquals("everyone", client.next().payloadAsText());
+        }
+    }
+
+    @Test
+    public void largeFrameIsReassembledAcrossReads() throws Exception {
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        byte[] data = new byte[FrameCodec.DEFAULT_MAX_PAYLOAD];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        client.connect("127.0.0.1", port).send(Frame.voice(1, 1, data));
+        Frame frame = serverListener.next();
+        assertEquals(data.length, frame.length);
+        assertTrue(java.util.Arrays.equals(data, frame.payloadBytes()));
+    }
+
+    @Test
+    public void framesKeepOrderUnderLoad() throws Exception {
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        Transport.Connection connection = client.connect("127.0.0.1", port);
+        for (int i = 0; i < 2000; i++) {
+            connection.send(Frame.voice(1, i, new byte[320]));
+        }
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(i, serverListener.next().sequence);
+        }
+    }
+
+    @Test
+    public void peerCloseIsReported() throws Exception {
+        NioTransport client = new NioTransport(new FrameCodec());
+        client.setListener(new RecordingListener());
+        transports.add(client);
+        client.connect("127.0.0.1", port);
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        client.shutdown();
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertTrue(server.connections().isEmpty());
+    }
+}
@@ -0,0 +1,203 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class OutboundQueueTest {
+
+    private static Frame voice(int sequence) {
+        return Frame.voice(1, sequence, new byte[100]);
+    }
+
+    private static Frame text(int size) {
+        return new Frame(Frame.TYPE_TEXT, (byte) 0, 0, 0, ByteBuffer.allocate(size));
+    }
+
+    @Test
+    public void dropOldestAudioKeepsNewestVoice() {
+        OutboundQueue queue = new OutboundQueue(300, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(voice(i)));
+        }
+        assertEquals(3, queue.depth());
+        assertEquals(2, queue.droppedFrames());
+        assertEquals(200, queue.droppedBytes());
+        assertEquals(2, queue.poll().sequence);
+    }
+
+    @Test
+    public void dropOldestAudioNeverDropsText() {
+        OutboundQueue queue = new OutboundQueue(300, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        assertTrue(queue.offer(text(300)));
+        // 沒有語音可丟：新語音丟棄，新文字則要求斷線
+        assertTrue(queue.offer(voice(0)));
+        assertEquals(1, queue.droppedFrames());
+        assertFalse(queue.offer(text(10)));
+        assertEquals(Frame.TYPE_TEXT, queue.poll().type);
+    }
+
+    @Test
+    public void comfortNoiseIsDroppedLikeVoice() {
+        // 每個舒適噪音封包 1 byte，塞滿整個佇列
+        OutboundQueue queue = new OutboundQueue(4, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(queue.offer(Frame.voiceSilence(1, i, 60)));
+        }
+        // 佇列滿了也不會斷線：丟掉最舊的舒適噪音
+        assertTrue(queue.offer(Frame.voiceSilence(1, 4, 60)));
+        assertTrue(queue.offer(text(2)));
+        assertEquals(3, queue.droppedFrames());
+        assertEquals(Frame.TYPE_TEXT, queue.poll().type);
+        assertEquals(3, queue.poll().sequence);
+    }
+
+    @Test
+    public void awaitQueuedBytesReturnsOnceDrained() throws Exception {
+        OutboundQueue queue = new OutboundQueue(300, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        assertTrue(queue.offer(text(100)));
+        assertTrue(queue.offer(text(100)));
+        assertTrue(queue.awaitQueuedBytesAtMost(200, 0));
+        assertFalse(queue.awaitQueuedBytesAtMost(100, 20));
+        Thread drain = new Thread(() -> {
+            try {
+                Thread.sleep(20);
+            } catch (InterruptedException e) {
+                return;
+            }
+            queue.poll();
+        });
+        drain.start();
+        assertTrue(queue.awaitQueuedBytesAtMost(100, 5000));
+        drain.join();
+        assertEquals(100, queue.queuedBytes());
+    }
+
+    @Test
+    public void disconnectPolicyRejectsOnOverflow() {
+        OutboundQueue queue = new OutboundQueue(150, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(voice(0)));
+        assertFalse(queue.offer(voice(1)));
+    }
+
+    @Test
+    public void emptyQueueAcceptsOversizedFrame() {
+        OutboundQueue queue = new OutboundQueue(10, OutboundQueue.OverflowPolicy.DISCONNECT);
+        assertTrue(queue.offer(text(1000)));
+        assertEquals(1000, queue.queuedBytes());
+    }
+
+    @Test
+    public void blockPolicyWaitsForSpace() throws Exception {
+        OutboundQueue queue = new OutboundQueue(150, OutboundQueue.OverflowPolicy.BLOCK, 2000);
+        queue.offer(voice(0));
+        Thread consumer = new Thread(() -> {
+            try {
+                Thread.sleep(100);
+                queue.take();
+            } catch (InterruptedException ignored) {
+            }
+        });
+        consumer.start();
+        long start = System.nanoTime();
+        assertTrue(queue.offer(voice(1)));
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        consumer.join();
+    }
+
+    @Test
+    public void blockPolicyTimesOut() {
+        OutboundQueue queue = new OutboundQueue(150, OutboundQueue.OverflowPolicy.BLOCK, 50);
+        queue.offer(voice(0));
+        assertFalse(queue.offer(voice(1)));
+    }
+
+    @Test
+    public void closeReleasesTake() throws Exception {
+        OutboundQueue queue = new OutboundQueue(150, OutboundQueue.OverflowPolicy.BLOCK);
+        Thread closer = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException ignored) {
+            }
+            queue.close();
+        });
+        closer.start();
+        assertNull(queue.take());
+        closer.join();
+    }
+
+    @Test
+    public void higherPriorityOvertakesQueuedBulk() {
+        OutboundQueue queue = new OutboundQueue(1 << 20, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        for (int i = 0; i < 3; i++) {
+            queue.offer(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, 1, i, ByteBuffer.allocate(100)));
+        }
+        queue.offer(voice(0));
+        queue.offer(text(10));
+        queue.offer(new Frame(Frame.TYPE_PING, (byte) 0, 0, 0, ByteBuffer.allocate(8)));
+        assertEquals(1, queue.depth(Frame.PRIORITY_TEXT));
+        assertEquals(Frame.TYPE_PING, queue.poll().type);
+        assertEquals(Frame.TYPE_TEXT, queue.poll().type);
+        assertEquals(Frame.TYPE_VOICE, queue.poll().type);
+        // 同一優先順序內維持原本順序
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, queue.poll().sequence);
+        }
+        assertNull(queue.poll());
+        assertEquals(0, queue.queuedBytes());
+    }
+
+    @Test
+    public void bulkIsNotStarvedByContinuousVoice() {
+        OutboundQueue queue = new OutboundQueue(1 << 20, OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO);
+        queue.offer(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, 1, 0, ByteBuffer.allocate(100)));
+        for (int i = 0; i < 100; i++) {
+            queue.offer(voice(i));
+        }
+        for (int i = 0; i < OutboundQueue.MAX_BYPASS; i++) {
+            assertEquals(Frame.TYPE_VOICE, queue.poll().type);
+        }
+        assertEquals(Frame.TYPE_FILE_CHUNK, queue.poll().type);
+    }
+
+    // 一個完全不讀取的成員不應該影響其他成員，且 DISCONNECT 策略會把它踢掉
+    @Test
+    public void stalledPeerDoesNotBlockOthers() throws Exception {
+        NioTransport owner = new NioTransport(new FrameCodec());
+        RecordingListener ownerListener = new RecordingListener();
+        owner.setListener(ownerListener);
+        owner.setOverflowPolicy(OutboundQueue.OverflowPolicy.DISCONNECT, 256 * 1024);
+        int port = owner.startServer(0);
+        NioTransport client = new NioTransport(new FrameCodec());
+        RecordingListener clientListener = new RecordingListener();
+        client.setListener(clientListener);
+        Socket stalled = new Socket("127.0.0.1", port);
+        stalled.setReceiveBufferSize(4096);
+        try {
+            client.connect("127.0.0.1", port);
+            assertNotNull(ownerListener.connected.poll(5, TimeUnit.SECONDS));
+            assertNotNull(ownerListener.connected.poll(5, TimeUnit.SECONDS));
+            byte[] chunk = new byte[16 * 1024];
+            // 正常成員每收到一個才送下一個，卡住的成員則持續累積直到超過上限
+            for (int i = 0; i < 2000; i++) {
+                owner.broadcast(Frame.voice(1, i, chunk), null);
+                assertEquals(i, clientListener.next().sequence);
+            }
+            assertNotNull(ownerListener.disconnected.poll(5, TimeUnit.SECONDS));
+            assertEquals(1, owner.connections().size());
+        } finally {
+            stalled.close();
+            client.shutdown();
+            owner.shutdown();
+        }
+    }
+}
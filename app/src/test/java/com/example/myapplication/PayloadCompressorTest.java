@@ -0,0 +1,443 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PayloadCompressorTest {
+
+    private static final int MAX_PAYLOAD = 1024 * 1024;
+
+    private static final String[] CHAT = {
+            "收到了嗎？聽得到嗎？我在停車場門口等你",
+            "ok I'm here, where are you now? 我在樓下入口",
+            "訊號不好，斷斷續續的，再說一次好嗎？",
+            "幾點集合？我大概還要十分鐘才會到，等我一下",
+            "好啊沒問題，等一下在出口那邊見，謝謝",
+            "can you hear me? call me when you get here please",
+            "往前走到底左轉就看到了，我在右邊那台車旁邊",
+            "不好意思快到了，馬上到，辛苦了哈哈哈",
+    };
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final List<File> files = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        for (File file : files) {
+            file.delete();
+        }
+    }
+
+    private static class FakeConnection implements Transport.Connection {
+        final LinkedBlockingQueue<Frame> sent = new LinkedBlockingQueue<>();
+        private final int id;
+
+        FakeConnection(int id) {
+            this.id = id;
+        }
+
+        @Override public int id() { return id; }
+        @Override public String remoteAddress() { return "fake-" + id; }
+        @Override public void send(Frame frame) { sent.add(frame); }
+        @Override public void close() { }
+        @Override public OutboundQueue outboundQueue() { return null; }
+    }
+
+    private static Frame text(String message) {
+        return Frame.text(message);
+    }
+
+    private static String textOf(Frame frame) {
+        return new String(frame.payloadBytes(), StandardCharsets.UTF_8);
+    }
+
+    // 16-bit 單聲道的 PCM：正弦波加上一點雜訊，接近 WAV 錄音的內容
+    private static byte[] pcm(int bytes, long seed) {
+        Random random = new Random(seed);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        for (int i = 0; buffer.remaining() >= 2; i++) {
+            double sample = Math.sin(i * 2 * Math.PI * 440 / 16000) * 3000 + random.nextGaussian() * 40;
+            buffer.putShort((short) sample);
+        }
+        return buffer.array();
+    }
+
+    private static byte[] random(int bytes, long seed) {
+        byte[] data = new byte[bytes];
+        new Random(seed).nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void textRoundTripsThroughDictionary() throws Exception {
+        PayloadCompressor sender = new PayloadCompressor(MAX_PAYLOAD);
+        PayloadCompressor receiver = new PayloadCompressor(MAX_PAYLOAD);
+        FakeConnection link = new FakeConnection(1);
+        for (String message : CHAT) {
+            Frame packed = sender.compress(text(message));
+            assertTrue(message, packed.isCompressed());
+            assertTrue(message, packed.length < message.getBytes(StandardCharsets.UTF_8).length);
+            Frame plain = receiver.inflate(link, packed);
+            assertFalse(plain.isCompressed());
+            assertEquals(Frame.TYPE_TEXT, plain.type);
+            assertEquals(message, textOf(plain));
+        }
+        assertEquals(CHAT.length, sender.compressedFrames());
+    }
+
+    @Test
+    public void skipsShortAndIncompressiblePayloads() {
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        Frame shortText = text("ok");
+        assertSame(shortText, compressor.compress(shortText));
+
+        Frame noise = new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, 1, 0, ByteBuffer.wrap(random(8192, 1)));
+        assertSame(noise, compressor.compress(noise));
+        assertEquals(1, compressor.skippedFrames());
+
+        Frame voice = Frame.voice(1, 0, new byte[AudioCodec.FRAME_BYTES]);
+        assertSame(voice, compressor.compress(voice));
+    }
+
+    @Test
+    public void broadcastCompressesOnlyForLinksThatOffered() throws Exception {
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        FakeConnection modern = new FakeConnection(1);
+        FakeConnection legacy = new FakeConnection(2);
+        compressor.onOffer(modern, new PayloadCompressor(MAX_PAYLOAD).offerFrame());
+        assertTrue(compressor.supports(modern));
+        assertFalse(compressor.supports(legacy));
+
+        Transport transport = new NioTransport(new FrameCodec()) {
+            @Override
+            public List<Transport.Connection> connections() {
+                return Arrays.<Transport.Connection>asList(modern, legacy);
+            }
+        };
+        transports.add(transport);
+        compressor.broadcast(transport, text(CHAT[0]));
+        assertTrue(modern.sent.poll().isCompressed());
+        assertEquals(CHAT[0], textOf(legacy.sent.poll()));
+
+        // 斷線後重新連上的連線要重新協商
+        compressor.onDisconnected(modern);
+        assertFalse(compressor.supports(modern));
+    }
+
+    @Test
+    public void relayInflatesForLinksWithoutSupport() {
+        PayloadCompressor owner = new PayloadCompressor(MAX_PAYLOAD);
+        FakeConnection source = new FakeConnection(1);
+        FakeConnection modern = new FakeConnection(2);
+        FakeConnection legacy = new FakeConnection(3);
+        owner.onOffer(source, owner.offerFrame());
+        owner.onOffer(modern, owner.offerFrame());
+
+        Frame packed = new PayloadCompressor(MAX_PAYLOAD).compress(text(CHAT[1]));
+        assertTrue(packed.isCompressed());
+        assertSame(packed, owner.adapt(source, modern, packed));
+        Frame relayed = owner.adapt(source, legacy, packed);
+        assertFalse(relayed.isCompressed());
+        assertEquals(CHAT[1], textOf(relayed));
+    }
+
+    @Test
+    public void corruptPayloadIsProtocolError() {
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        FakeConnection link = new FakeConnection(1);
+        Frame packed = compressor.compress(text(CHAT[2]));
+        byte[] bytes = packed.payloadBytes();
+        bytes[bytes.length / 2] ^= 0x5a;
+        assertThrows(compressor, link, new Frame(Frame.TYPE_TEXT, Frame.FLAG_COMPRESSED, 0, 0, ByteBuffer.wrap(bytes)));
+
+        // 宣稱的原始長度超過上限
+        byte[] huge = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0x7f, 0};
+        assertThrows(compressor, link, new Frame(Frame.TYPE_TEXT, Frame.FLAG_COMPRESSED, 0, 0, ByteBuffer.wrap(huge)));
+
+        // 連線的 Inflater 在錯誤後仍可繼續使用
+        try {
+            assertEquals(CHAT[3], textOf(compressor.inflate(link, compressor.compress(text(CHAT[3])))));
+        } catch (ProtocolException e) {
+            fail(e.toString());
+        }
+    }
+
+    // 自己組出壓縮封包：原始長度 (varint) 可以跟實際內容不同，模擬惡意或有問題的對方
+    private static Frame packed(byte type, int declaredLength, byte[] content) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        deflater.setDictionary(PayloadCompressor.CHAT_DICTIONARY);
+        deflater.setInput(content);
+        deflater.finish();
+        ByteBuffer out = ByteBuffer.allocate(content.length + 64);
+        for (int value = declaredLength; ; value >>>= 7) {
+            if ((value & ~0x7f) == 0) {
+                out.put((byte) value);
+                break;
+            }
+            out.put((byte) ((value & 0x7f) | 0x80));
+        }
+        byte[] buffer = new byte[4096];
+        while (!deflater.finished()) {
+            out.put(buffer, 0, deflater.deflate(buffer));
+        }
+        deflater.end();
+        out.flip();
+        return new Frame(type, Frame.FLAG_COMPRESSED, 1, 0, out);
+    }
+
+    @Test
+    public void declaredLengthIsCappedPerFrameType() throws Exception {
+        // 上限遠大於分段與文字，確認擋下來的是各類型自己的上限
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        FakeConnection link = new FakeConnection(1);
+        byte[] chunk = pcm(FileTransfer.CHUNK_SIZE + 2, 5);
+
+        assertEquals(FileTransfer.CHUNK_SIZE, compressor.inflate(link,
+                packed(Frame.TYPE_FILE_CHUNK, FileTransfer.CHUNK_SIZE, Arrays.copyOf(chunk, FileTransfer.CHUNK_SIZE)))
+                .length);
+        assertThrows(compressor, link, packed(Frame.TYPE_FILE_CHUNK, chunk.length, chunk));
+        // 宣稱的長度就超過上限時不必看內容
+        assertThrows(compressor, link, packed(Frame.TYPE_FILE_CHUNK, 512 * 1024, new byte[16]));
+
+        byte[] longText = new byte[PayloadCompressor.MAX_TEXT_BYTES + 1];
+        Arrays.fill(longText, (byte) 'a');
+        assertThrows(compressor, link, packed(Frame.TYPE_TEXT, longText.length, longText));
+        // 其他類型不會壓縮
+        assertThrows(compressor, link, packed(Frame.TYPE_FILE_START, 64, new byte[64]));
+
+        // 送出端不壓縮超過上限的文字，對方不會因此拒絕
+        Frame plain = new Frame(Frame.TYPE_TEXT, (byte) 0, 0, 0, ByteBuffer.wrap(longText));
+        assertSame(plain, compressor.compress(plain));
+    }
+
+    private static void assertThrows(PayloadCompressor compressor, Transport.Connection link, Frame frame) {
+        try {
+            compressor.inflate(link, frame);
+            fail("expected ProtocolException");
+        } catch (ProtocolException expected) {
+            // 預期的錯誤
+        }
+    }
+
+    // 收檔端：先還原壓縮過的分段再交給 FileTransfer.Receiver
+    private static class InflatingSink extends RecordingListener {
+        final PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        final FileTransfer.Receiver receiver;
+        final LinkedBlockingQueue<File> completed = new LinkedBlockingQueue<>();
+        volatile int compressedChunks;
+
+        InflatingSink(FileTransfer.TargetFactory targets) {
+            receiver = new FileTransfer.Receiver(targets);
+        }
+
+        @Override
+        public void onFrame(Transport.Connection connection, Frame frame) {
+            try {
+                if (frame.type == Frame.TYPE_FILE_CHUNK && frame.isCompressed()) {
+                    compressedChunks++;
+                }
+                File file = receiver.onFrame(connection, compressor.inflate(connection, frame));
+                if (file != null) {
+                    completed.add(file);
+                }
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private int sendFile(byte[] content) throws Exception {
+        File source = File.createTempFile("compress-source", ".bin");
+        files.add(source);
+        Files.write(source.toPath(), content);
+
+        NioTransport server = new NioTransport(new FrameCodec());
+        transports.add(server);
+        InflatingSink sink = new InflatingSink((connection, id) -> {
+            File target = File.createTempFile("compress-received", ".bin");
+            files.add(target);
+            return target;
+        });
+        server.setListener(sink);
+        int port = server.startServer(0);
+        NioTransport client = new NioTransport(new FrameCodec());
+        transports.add(client);
+        RecordingListener clientEvents = new RecordingListener();
+        client.setListener(clientEvents);
+        Transport.Connection connection = client.connect("127.0.0.1", port);
+        assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        compressor.onOffer(connection, sink.compressor.offerFrame());
+        FileTransfer.broadcast(client, source, 7, compressor, null);
+        File received = sink.completed.poll(10, TimeUnit.SECONDS);
+        assertNotNull(received);
+        assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+        return sink.compressedChunks;
+    }
+
+    @Test
+    public void pcmFileIsCompressedPerChunk() throws Exception {
+        int chunks = 3;
+        assertEquals(chunks, sendFile(pcm(chunks * FileTransfer.CHUNK_SIZE - 100, 3)));
+    }
+
+    @Test
+    public void largeCompressibleFileKeepsSlowLinkUp() throws Exception {
+        // 壓縮後約 5 MB，遠超過 1 MB 的佇列上限加上 socket 緩衝區，連結又比讀檔壓縮慢得多；
+        // 一次全部排進佇列的話會以 overflow 斷線
+        byte[] content = pcm(6 * 1024 * 1024, 6);
+        File source = File.createTempFile("compress-source", ".bin");
+        files.add(source);
+        Files.write(source.toPath(), content);
+
+        NioTransport server = new NioTransport(new FrameCodec());
+        transports.add(server);
+        InflatingSink sink = new InflatingSink((connection, id) -> {
+            File target = File.createTempFile("compress-received", ".bin");
+            files.add(target);
+            return target;
+        });
+        server.setListener(sink);
+        LinkSimulator.Profile slow = new LinkSimulator.Profile("slow", 2, 0, 2 * 1024 * 1024);
+        try (LinkSimulator link = new LinkSimulator(server.startServer(0), slow, 1)) {
+            NioTransport client = new NioTransport(new FrameCodec());
+            client.setOverflowPolicy(OutboundQueue.OverflowPolicy.DROP_OLDEST_AUDIO, 1024 * 1024);
+            transports.add(client);
+            RecordingListener clientEvents = new RecordingListener();
+            client.setListener(clientEvents);
+            Transport.Connection connection = client.connect("127.0.0.1", link.port());
+            assertNotNull(sink.connected.poll(5, TimeUnit.SECONDS));
+
+            PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+            compressor.onOffer(connection, sink.compressor.offerFrame());
+            long start = System.nanoTime();
+            FileTransfer.broadcast(client, source, 8, compressor, null);
+            File received = sink.completed.poll(20, TimeUnit.SECONDS);
+            System.out.println(String.format(Locale.US,
+                    "Compressed file over %d KB/s link: %d KB -> %d KB in %d ms",
+                    slow.bytesPerSecond / 1024, compressor.bytesIn() / 1024, compressor.bytesOut() / 1024,
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)));
+            assertNotNull("file did not arrive", received);
+            assertArrayEquals(content, Files.readAllBytes(received.toPath()));
+            assertEquals(content.length / FileTransfer.CHUNK_SIZE, sink.compressedChunks);
+            assertNull(clientEvents.disconnected.poll());
+            assertEquals(1, client.connections().size());
+        }
+    }
+
+    @Test
+    public void encodedFileFallsBackToRegions() throws Exception {
+        // 已壓縮的音訊 (AMR/AAC) 與亂數一樣壓不下來，第一段試壓失敗後整個檔案都不壓
+        assertEquals(0, sendFile(random(3 * FileTransfer.CHUNK_SIZE + 17, 4)));
+    }
+
+    // 基準測試：各種內容經過壓縮後實際送出的位元組數與每個封包的 CPU 時間
+    @Test
+    public void benchmarkBytesOnAirAndCpu() throws Exception {
+        List<Frame> chat = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            chat.add(text(CHAT[i % CHAT.length] + " #" + i));
+        }
+        List<Frame> pcm = new ArrayList<>();
+        List<Frame> noise = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            pcm.add(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, 1, i, ByteBuffer.wrap(pcm(FileTransfer.CHUNK_SIZE, i))));
+            noise.add(new Frame(Frame.TYPE_FILE_CHUNK, (byte) 0, 2, i,
+                    ByteBuffer.wrap(random(FileTransfer.CHUNK_SIZE, i))));
+        }
+
+        report("chat text", chat);
+        reportWithoutDictionary("chat text (no dictionary)", chat);
+        report("pcm chunks", pcm);
+        report("random chunks", noise);
+
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        for (Frame frame : chat) {
+            compressor.compress(frame);
+        }
+        // 聊天文字至少省下 30%
+        assertTrue(compressor.bytesOut() < compressor.bytesIn() * 0.7);
+    }
+
+    private static void report(String label, List<Frame> frames) throws ProtocolException {
+        PayloadCompressor compressor = new PayloadCompressor(MAX_PAYLOAD);
+        FakeConnection link = new FakeConnection(1);
+        // 暖機
+        for (Frame frame : frames) {
+            compressor.inflate(link, compressor.compress(frame));
+        }
+        compressor = new PayloadCompressor(MAX_PAYLOAD);
+        long wireBefore = 0;
+        long wireAfter = 0;
+        List<Frame> packed = new ArrayList<>();
+        for (Frame frame : frames) {
+            Frame out = compressor.compress(frame);
+            packed.add(out);
+            wireBefore += FrameCodec.wireSize(frame);
+            wireAfter += FrameCodec.wireSize(out);
+        }
+        for (Frame frame : packed) {
+            compressor.inflate(link, frame);
+        }
+        System.out.println(String.format(Locale.US,
+                "Compression %-26s %5d frames  payload %9d -> %9d B  on air %9d -> %9d B (%5.1f%%)"
+                        + "  deflate %7.0f ns/frame  inflate %7.0f ns/frame  skipped %d",
+                label, frames.size(), compressor.bytesIn(), compressor.bytesOut(), wireBefore, wireAfter,
+                wireAfter * 100.0 / wireBefore, (double) compressor.deflateNanos() / frames.size(),
+                (double) compressor.inflateNanos() / frames.size(), compressor.skippedFrames()));
+    }
+
+    // 對照組：同樣的 raw deflate 但不載入字典
+    private static void reportWithoutDictionary(String label, List<Frame> frames) {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] out = new byte[MAX_PAYLOAD];
+        long before = 0;
+        long after = 0;
+        long start = System.nanoTime();
+        for (Frame frame : frames) {
+            byte[] input = frame.payloadBytes();
+            deflater.reset();
+            deflater.setInput(input);
+            deflater.finish();
+            int length = 0;
+            while (!deflater.finished()) {
+                length += deflater.deflate(out, length, out.length - length);
+            }
+            before += input.length;
+            after += Math.min(input.length, length + 1);
+        }
+        long elapsed = System.nanoTime() - start;
+        deflater.end();
+        System.out.println(String.format(Locale.US,
+                "Compression %-26s %5d frames  payload %9d -> %9d B (%5.1f%%)  deflate %7.0f ns/frame",
+                label, frames.size(), before, after, after * 100.0 / before, (double) elapsed / frames.size()));
+    }
+}
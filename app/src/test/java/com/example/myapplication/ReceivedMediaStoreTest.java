@@ -0,0 +1,127 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReceivedMediaStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("media-store").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private File write(ReceivedMediaStore store, int size) throws IOException {
+        File temp = store.newTempFile();
+        Files.write(temp.toPath(), new byte[size]);
+        return store.commit(temp, "3gp");
+    }
+
+    @Test
+    public void parallelReceivesGetDistinctFiles() throws Exception {
+        ReceivedMediaStore store = new ReceivedMediaStore(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<File>> futures = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final int size = i;
+            futures.add(executor.submit(() -> write(store, size)));
+        }
+        Set<File> files = new HashSet<>();
+        for (Future<File> future : futures) {
+            files.add(future.get());
+        }
+        executor.shutdown();
+        assertEquals(200, files.size());
+        for (File file : files) {
+            assertTrue(file.getName().endsWith(".3gp"));
+        }
+    }
+
+    @Test
+    public void staleTempFilesAreRemovedOnStartup() throws IOException {
+        ReceivedMediaStore store = new ReceivedMediaStore(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        File temp = store.newTempFile();
+        Files.write(temp.toPath(), new byte[10]);
+        File kept = write(store, 10);
+        new ReceivedMediaStore(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        assertFalse(temp.exists());
+        assertTrue(kept.exists());
+    }
+
+    @Test
+    public void evictsOldestWhenOverSize() throws IOException {
+        ReceivedMediaStore store = new ReceivedMediaStore(dir, 250, Long.MAX_VALUE);
+        File first = write(store, 100);
+        first.setLastModified(System.currentTimeMillis() - 3000);
+        File second = write(store, 100);
+        second.setLastModified(System.currentTimeMillis() - 2000);
+        File third = write(store, 100);
+        assertFalse(first.exists());
+        assertTrue(second.exists());
+        assertTrue(third.exists());
+    }
+
+    @Test
+    public void evictsExpiredFiles() throws IOException {
+        ReceivedMediaStore store = new ReceivedMediaStore(dir, Long.MAX_VALUE, 60_000);
+        File old = write(store, 10);
+        old.setLastModified(System.currentTimeMillis() - 120_000);
+        File fresh = write(store, 10);
+        assertFalse(old.exists());
+        assertTrue(fresh.exists());
+    }
+
+    @Test
+    public void sameContentIsStoredOnce() throws IOException {
+        ReceivedMediaStore store = new ReceivedMediaStore(dir, Long.MAX_VALUE, Long.MAX_VALUE);
+        byte[] digest = new byte[32];
+        digest[0] = 0x5a;
+        File first = store.newTempFile();
+        Files.write(first.toPath(), new byte[100]);
+        File kept = store.commit(first, digest, "png");
+        assertEquals(FileTransfer.hex(digest) + ".png", kept.getName());
+
+        File second = store.newTempFile();
+        Files.write(second.toPath(), new byte[100]);
+        assertEquals(kept, store.commit(second, digest, "png"));
+        assertFalse(second.exists());
+        assertTrue(kept.exists());
+        assertEquals(1, store.dedupedFiles());
+        assertEquals(1, dir.listFiles().length);
+    }
+
+    @Test
+    public void newestFileIsKeptEvenIfOverLimit() throws IOException {
+        ReceivedMediaStore store = new ReceivedMediaStore(dir, 10, Long.MAX_VALUE);
+        File large = write(store, 1000);
+        assertTrue(large.exists());
+    }
+}
@@ -0,0 +1,35 @@
+package com.example.myapplication;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+
+// 測試用：把傳輸層事件放進佇列，方便測試等待
+class RecordingListener implements Transport.Listener {
+    final LinkedBlockingQueue<Frame> frames = new LinkedBlockingQueue<>();
+    final LinkedBlockingQueue<Transport.Connection> connected = new LinkedBlockingQueue<>();
+    final LinkedBlockingQueue<Transport.Connection> disconnected = new LinkedBlockingQueue<>();
+
+    @Override
+    public void onConnected(Transport.Connection connection) {
+        connected.add(connection);
+    }
+
+    @Override
+    public void onFrame(Transport.Connection connection, Frame frame) {
+        frames.add(frame);
+    }
+
+    @Override
+    public void onDisconnected(Transport.Connection connection, IOException cause) {
+        disconnected.add(connection);
+    }
+
+    Frame next() throws InterruptedException {
+        Frame frame = frames.poll(5, TimeUnit.SECONDS);
+        assertNotNull("timed out waiting for frame", frame);
+        return frame;
+    }
+}
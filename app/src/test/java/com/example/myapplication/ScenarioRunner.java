@@ -0,0 +1,321 @@
+package com.example.myapplication;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// 測試用的情境執行器：在 loopback 上建立一個群主與 N 個成員 (各自經過一個 LinkSimulator)，
+// 由第一個成員送出文字、檔案或即時語音，經群主轉發給所有其他節點，量測吞吐量與送達延遲
+// 所有節點在同一個 JVM，封包內直接帶 System.nanoTime() 的送出時間，不需要對時
+class ScenarioRunner implements AutoCloseable {
+
+    enum TransportKind { BLOCKING, NIO }
+
+    private static final long CONNECT_TIMEOUT_MS = 10_000;
+    private static final long DELIVERY_TIMEOUT_MS = 60_000;
+    private static final int STAMP_BYTES = 8;
+
+    private final TransportKind kind;
+    private final LinkSimulator.Profile profile;
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private final List<LinkSimulator> links = new ArrayList<>();
+    private final PeerNode owner;
+    private final List<PeerNode> clients = new ArrayList<>();
+    private final List<File> tempFiles = new ArrayList<>();
+    // 目前情境的收件統計
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<>();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong deliveredBytes = new AtomicLong();
+    // 檔案傳輸編號 -> 開始送出的時間
+    private final Map<Integer, Long> fileStarts = new ConcurrentHashMap<>();
+    private final AtomicInteger nextTransferId = new AtomicInteger();
+
+    ScenarioRunner(TransportKind kind, int clientCount, LinkSimulator.Profile profile) throws IOException {
+        this.kind = kind;
+        this.profile = profile;
+        owner = newNode();
+        int ownerPort = owner.startOwner(0);
+        for (int i = 0; i < clientCount; i++) {
+            LinkSimulator link = new LinkSimulator(ownerPort, profile, i);
+            links.add(link);
+            PeerNode client = newNode();
+            clients.add(client);
+            client.connect("127.0.0.1", link.port());
+        }
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT_MS;
+        while (!allConnected()) {
+            if (System.currentTimeMillis() > deadline) {
+                close();
+                throw new IOException("Group did not form in " + CONNECT_TIMEOUT_MS + " ms");
+            }
+            sleepMillis(5);
+        }
+    }
+
+    private PeerNode newNode() throws IOException {
+        Transport inner = kind == TransportKind.NIO ? new NioTransport(new FrameCodec())
+                : new BlockingTransport(executor, new FrameCodec());
+        return new PeerNode(inner, scheduler, executor, new TransportMetrics(), new Recorder());
+    }
+
+    private boolean allConnected() {
+        if (owner.transport().connections().size() != clients.size()) {
+            return false;
+        }
+        for (PeerNode client : clients) {
+            if (client.transport().connections().size() != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // 除了送出的成員之外都會收到：群主本身加上其他成員
+    private int receivers() {
+        return clients.size();
+    }
+
+    private PeerNode sender() {
+        return clients.get(0);
+    }
+
+    PeerNode owner() {
+        return owner;
+    }
+
+    // 切斷所有成員的連線，session 層會自動重連
+    void dropLinks() {
+        for (LinkSimulator link : links) {
+            link.dropConnections();
+        }
+    }
+
+    // 連續送出 messages 則文字 (不限速)，每則 payloadBytes
+    Result runText(int messages, int payloadBytes) throws InterruptedException {
+        reset();
+        long start = System.nanoTime();
+        for (int i = 0; i < messages; i++) {
+            sender().broadcast(new Frame(Frame.TYPE_TEXT, (byte) 0, 0, i, stamped(payloadBytes)));
+        }
+        return await("text", (long) messages * receivers(), start);
+    }
+
+    // 以即時速度 (每 20 ms 一個封包) 送出 frames 個語音封包
+    Result runVoice(int frames) throws InterruptedException {
+        reset();
+        long start = System.nanoTime();
+        long interval = TimeUnit.MILLISECONDS.toNanos(VoiceStreamer.FRAME_MS);
+        for (int i = 0; i < frames; i++) {
+            long wait;
+            while ((wait = start + i * interval - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            sender().broadcast(new Frame(Frame.TYPE_VOICE, PcmCodec.ID, 1, i, stamped(AudioCodec.FRAME_BYTES)));
+        }
+        sender().broadcast(Frame.voiceEnd(1));
+        return await("voice", (long) frames * receivers(), start);
+    }
+
+    // 送出一個 bytes 大小的檔案，每個接收端收完整個檔案算一則
+    Result runFile(int bytes) throws IOException, InterruptedException {
+        reset();
+        File file = File.createTempFile("scenario", ".bin");
+        synchronized (tempFiles) {
+            tempFiles.add(file);
+        }
+        try (RandomAccessFile out = new RandomAccessFile(file, "rw")) {
+            out.setLength(bytes);
+        }
+        int transferId = nextTransferId.incrementAndGet();
+        long start = System.nanoTime();
+        fileStarts.put(transferId, start);
+        FileTransfer.broadcast(sender().transport(), file, transferId);
+        return await("file", receivers(), start);
+    }
+
+    private static ByteBuffer stamped(int size) {
+        ByteBuffer payload = ByteBuffer.allocate(Math.max(size, STAMP_BYTES));
+        payload.putLong(0, System.nanoTime());
+        return payload;
+    }
+
+    private void reset() {
+        latencies.clear();
+        delivered.set(0);
+        deliveredBytes.set(0);
+    }
+
+    private Result await(String workload, long expected, long start) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + DELIVERY_TIMEOUT_MS;
+        while (delivered.get() < expected && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        long elapsed = System.nanoTime() - start;
+        long[] sorted = new long[latencies.size()];
+        int i = 0;
+        for (Long latency : latencies) {
+            if (i == sorted.length) {
+                break;
+            }
+            sorted[i++] = latency;
+        }
+        Arrays.sort(sorted, 0, i);
+        return new Result(workload, kind, profile, clients.size(), expected, delivered.get(),
+                deliveredBytes.get(), elapsed, percentile(sorted, i, 0.5), percentile(sorted, i, 0.99));
+    }
+
+    private static long percentile(long[] sorted, int count, double fraction) {
+        if (count == 0) {
+            return 0;
+        }
+        return sorted[Math.min(count - 1, (int) Math.ceil(count * fraction) - 1)];
+    }
+
+    private static void sleepMillis(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // 每個節點的收件端：依封包內的送出時間記錄延遲，檔案在收完時記錄
+    private final class Recorder implements Transport.Listener {
+        private final FileTransfer.Receiver files = new FileTransfer.Receiver((connection, transferId) -> {
+            File target = File.createTempFile("received", ".bin");
+            synchronized (tempFiles) {
+                tempFiles.add(target);
+            }
+            return target;
+        });
+
+        @Override
+        public void onConnected(Transport.Connection connection) {
+        }
+
+        @Override
+        public void onFrame(Transport.Connection connection, Frame frame) {
+            switch (frame.type) {
+                case Frame.TYPE_TEXT:
+                case Frame.TYPE_VOICE: {
+                    // 經群主轉發的文字前面標有發送者，時間戳記在那之後
+                    Frame body;
+                    try {
+                        body = frame.withoutOrigin();
+                    } catch (ProtocolException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    latencies.add(System.nanoTime() - body.payload.getLong(body.payload.position()));
+                    deliveredBytes.addAndGet(body.length);
+                    delivered.incrementAndGet();
+                    break;
+                }
+                case Frame.TYPE_FILE_START:
+                case Frame.TYPE_FILE_CHUNK:
+                case Frame.TYPE_FILE_END:
+                    try {
+                        File received = files.onFrame(connection, frame);
+                        if (received != null) {
+                            latencies.add(System.nanoTime() - fileStarts.get(frame.streamId));
+                            deliveredBytes.addAndGet(received.length());
+                            delivered.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void onDisconnected(Transport.Connection connection, IOException cause) {
+            files.abort(connection);
+        }
+    }
+
+    @Override
+    public void close() {
+        for (PeerNode client : clients) {
+            client.shutdown();
+        }
+        owner.shutdown();
+        for (LinkSimulator link : links) {
+            link.close();
+        }
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+        synchronized (tempFiles) {
+            for (File file : tempFiles) {
+                file.delete();
+            }
+        }
+    }
+
+    static final class Result {
+        final String workload;
+        final TransportKind kind;
+        final LinkSimulator.Profile profile;
+        final int clients;
+        final long expected;
+        final long delivered;
+        final long bytes;
+        final long elapsedNanos;
+        final long p50Nanos;
+        final long p99Nanos;
+
+        Result(String workload, TransportKind kind, LinkSimulator.Profile profile, int clients, long expected,
+               long delivered, long bytes, long elapsedNanos, long p50Nanos, long p99Nanos) {
+            this.workload = workload;
+            this.kind = kind;
+            this.profile = profile;
+            this.clients = clients;
+            this.expected = expected;
+            this.delivered = delivered;
+            this.bytes = bytes;
+            this.elapsedNanos = elapsedNanos;
+            this.p50Nanos = p50Nanos;
+            this.p99Nanos = p99Nanos;
+        }
+
+        double messagesPerSecond() {
+            return delivered * 1e9 / elapsedNanos;
+        }
+
+        double bytesPerSecond() {
+            return bytes * 1e9 / elapsedNanos;
+        }
+
+        double p50Ms() {
+            return p50Nanos / 1e6;
+        }
+
+        double p99Ms() {
+            return p99Nanos / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-5s %-8s %-8s %2d clients  %6d/%-6d msgs  %9.0f msg/s  %8.1f KB/s"
+                            + "  p50 %8.2f ms  p99 %8.2f ms", workload, kind, profile, clients, delivered, expected,
+                    messagesPerSecond(), bytesPerSecond() / 1024, p50Ms(), p99Ms());
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SessionTransportTest {
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+    private SessionTransport server;
+    private SessionTransport client;
+    private RecordingListener serverListener;
+    private RecordingListener clientListener;
+    private LinkProxy proxy;
+
+    // 兩端之間的 TCP 轉送，可切斷所有連線並暫時拒絕新連線 (接受後立即關閉)，模擬 Wi-Fi Direct 訊號中斷
+    private static class LinkProxy {
+        private final ServerSocket serverSocket;
+        private final int targetPort;
+        private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        private volatile boolean down;
+
+        LinkProxy(int targetPort, ExecutorService executor) throws IOException {
+            this.serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+            this.targetPort = targetPort;
+            executor.execute(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket accepted = serverSocket.accept();
+                        if (down) {
+                            accepted.close();
+                            continue;
+                        }
+                        Socket upstream = new Socket(InetAddress.getLoopbackAddress(), this.targetPort);
+                        sockets.add(accepted);
+                        sockets.add(upstream);
+                        executor.execute(() -> pump(accepted, upstream));
+                        executor.execute(() -> pump(upstream, accepted));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        void cut() throws IOException {
+            down = true;
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+            sockets.clear();
+        }
+
+        void restore() {
+            down = false;
+        }
+
+        void close() throws IOException {
+            serverSocket.close();
+            cut();
+        }
+
+        private static void pump(Socket from, Socket to) {
+            byte[] buffer = new byte[8192];
+            try {
+                InputStream in = from.getInputStream();
+                OutputStream out = to.getOutputStream();
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                }
+            } catch (IOException ignored) {
+            }
+            try {
+                from.close();
+                to.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @Before
+    public void setUp() throws IOException {
+        server = newSessionTransport();
+        serverListener = new RecordingListener();
+        server.setListener(serverListener);
+        int port = server.startServer(0);
+        proxy = new LinkProxy(port, executor);
+        client = newSessionTransport();
+        clientListener = new RecordingListener();
+        client.setListener(clientListener);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        proxy.close();
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private SessionTransport newSessionTransport() throws IOException {
+        SessionTransport transport = new SessionTransport(new NioTransport(new FrameCodec()), scheduler, executor);
+        transports.add(transport);
+        return transport;
+    }
+
+    private Transport.Connection connect() throws Exception {
+        Transport.Connection connection = client.connect("127.0.0.1", proxy.port());
+        assertNotNull(clientListener.connected.poll(5, TimeUnit.SECONDS));
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        return connection;
+    }
+
+    @Test
+    public void briefDropoutResumesAndReplaysOnlyMissedFrames() throws Exception {
+        Transport.Connection toServer = connect();
+        Transport.Connection toClient = server.connections().iterator().next();
+        for (int i = 0; i < 10; i++) {
+            toServer.send(Frame.text("c" + i));
+            toClient.send(Frame.text("s" + i));
+        }
+        for (int i = 0; i < 10; i++) {
+            assertEquals("c" + i, serverListener.next().payloadAsText());
+            assertEquals("s" + i, clientListener.next().payloadAsText());
+        }
+        // 等 ACK 釋放已送達的封包，補送的只會是斷線期間的部分
+        Thread.sleep(SessionTransport.ACK_INTERVAL_MS * 3);
+
+        proxy.cut();
+        Thread.sleep(300);
+        for (int i = 10; i < 20; i++) {
+            toServer.send(Frame.text("c" + i));
+            toClient.send(Frame.text("s" + i));
+        }
+        // 斷線中的即時語音不補送，結束通知則要補送；不同優先順序各自計數
+        toServer.send(Frame.voice(1, 0, new byte[AudioCodec.FRAME_BYTES]));
+        toServer.send(Frame.voiceEnd(1));
+
+        long restoredAt = System.nanoTime();
+        proxy.restore();
+        for (int i = 10; i < 20; i++) {
+            assertEquals("c" + i, serverListener.next().payloadAsText());
+        }
+        assertEquals(Frame.TYPE_VOICE_END, serverListener.next().type);
+        for (int i = 10; i < 20; i++) {
+            assertEquals("s" + i, clientListener.next().payloadAsText());
+        }
+        long resumeMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - restoredAt);
+
+        assertNull(serverListener.frames.poll(300, TimeUnit.MILLISECONDS));
+        assertNull(clientListener.frames.poll(0, TimeUnit.MILLISECONDS));
+        // 上層看到的是同一條連線，沒有斷線也沒有新連線
+        assertTrue(serverListener.disconnected.isEmpty());
+        assertTrue(clientListener.disconnected.isEmpty());
+        assertTrue(serverListener.connected.isEmpty());
+        assertTrue(clientListener.connected.isEmpty());
+        assertEquals(1, client.resumedSessions());
+        assertEquals(1, server.resumedSessions());
+        assertEquals(11, client.replayedFrames());
+        assertEquals(10, server.replayedFrames());
+
+        toServer.send(Frame.text("after"));
+        assertEquals("after", serverListener.next().payloadAsText());
+        System.out.println("Session resume: " + resumeMs + " ms after link restored, replayed "
+                + (client.replayedBytes() + server.replayedBytes()) + " bytes in "
+                + (client.replayedFrames() + server.replayedFrames()) + " frames");
+    }
+
+    @Test
+    public void sessionEndsWhenNotResumedInTime() throws Exception {
+        client.setResumeTimeoutMs(300);
+        server.setResumeTimeoutMs(300);
+        connect();
+        proxy.cut();
+        assertNotNull(clientListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertTrue(client.connections().isEmpty());
+        assertTrue(server.connections().isEmpty());
+    }
+
+    @Test
+    public void closeEndsSessionOnBothSides() throws Exception {
+        Transport.Connection toServer = connect();
+        toServer.close();
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertNotNull(clientListener.disconnected.poll(5, TimeUnit.SECONDS));
+        // 正常關閉不重連
+        assertNull(serverListener.connected.poll(500, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void exceededReplayWindowStartsNewSession() throws Exception {
+        client.setReplayLimit(4, SessionTransport.DEFAULT_REPLAY_LIMIT_BYTES);
+        Transport.Connection first = connect();
+        proxy.cut();
+        Thread.sleep(300);
+        for (int i = 0; i < 10; i++) {
+            first.send(Frame.text("lost" + i));
+        }
+        proxy.restore();
+        // 舊 session 無法接續：兩端各收到一次斷線，再建立新的 session
+        assertNotNull(clientListener.disconnected.poll(5, TimeUnit.SECONDS));
+        assertNotNull(serverListener.disconnected.poll(5, TimeUnit.SECONDS));
+        Transport.Connection second = clientListener.connected.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second);
+        assertNotSame(first, second);
+        assertNotNull(serverListener.connected.poll(5, TimeUnit.SECONDS));
+        assertNull(serverListener.frames.poll(0, TimeUnit.MILLISECONDS));
+
+        second.send(Frame.text("fresh"));
+        assertEquals("fresh", serverListener.next().payloadAsText());
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SilenceSuppressorTest {
+
+    private static SilenceSuppressor.Action[] run(SilenceSuppressor suppressor, byte[][] frames) {
+        SilenceSuppressor.Action[] actions = new SilenceSuppressor.Action[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            actions[i] = suppressor.process(frames[i]);
+        }
+        return actions;
+    }
+
+    private static int count(SilenceSuppressor.Action[] actions, SilenceSuppressor.Action action) {
+        int n = 0;
+        for (SilenceSuppressor.Action a : actions) {
+            if (a == action) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void offSendsEverything() throws IOException {
+        byte[][] frames = VoiceActivityDetectorTest.loadFrames(VoiceActivityDetectorTest.UTTERANCE);
+        SilenceSuppressor suppressor = new SilenceSuppressor(SilenceSuppressor.Mode.OFF);
+        assertEquals(frames.length, count(run(suppressor, frames), SilenceSuppressor.Action.SEND));
+        assertEquals(0, suppressor.savedBytes());
+    }
+
+    @Test
+    public void trimDropsLeadingSilenceAndKeepsOnset() throws IOException {
+        byte[][] frames = VoiceActivityDetectorTest.loadFrames(VoiceActivityDetectorTest.UTTERANCE);
+        SilenceSuppressor suppressor = new SilenceSuppressor(SilenceSuppressor.Mode.TRIM);
+        SilenceSuppressor.Action[] actions = run(suppressor, frames);
+        for (int i = 0; i < 30; i++) {
+            assertEquals(SilenceSuppressor.Action.SKIP, actions[i]);
+        }
+        int onset = 30;
+        while (actions[onset] == SilenceSuppressor.Action.SKIP) {
+            onset++;
+        }
+        assertEquals(SilenceSuppressor.Action.SEND_WITH_PREVIOUS, actions[onset]);
+        assertEquals(0, count(actions, SilenceSuppressor.Action.COMFORT_NOISE));
+        assertEquals(SilenceSuppressor.Action.SKIP, actions[frames.length - 1]);
+        // 送出與略過的封包加起來等於擷取的封包
+        assertEquals(frames.length, suppressor.sentFrames() + suppressor.skippedFrames());
+        assertEquals(suppressor.skippedFrames() * AudioCodec.FRAME_BYTES, suppressor.savedBytes());
+    }
+
+    @Test
+    public void comfortNoiseReplacesPausesAfterSpeechStarted() throws IOException {
+        byte[][] frames = VoiceActivityDetectorTest.loadFrames(VoiceActivityDetectorTest.UTTERANCE);
+        SilenceSuppressor suppressor = new SilenceSuppressor(SilenceSuppressor.Mode.COMFORT_NOISE);
+        SilenceSuppressor.Action[] actions = run(suppressor, frames);
+        // 開口前仍然略過，開口後的停頓與結尾改送標記
+        assertEquals(SilenceSuppressor.Action.SKIP, actions[0]);
+        assertEquals(SilenceSuppressor.Action.COMFORT_NOISE, actions[90]);
+        assertEquals(SilenceSuppressor.Action.COMFORT_NOISE, actions[frames.length - 1]);
+        long expected = suppressor.skippedFrames() * AudioCodec.FRAME_BYTES
+                + suppressor.comfortNoiseFrames() * (AudioCodec.FRAME_BYTES - SilenceSuppressor.MARKER_BYTES);
+        assertEquals(expected, suppressor.savedBytes());
+        // 這段錄音大約四成是靜音
+        assertTrue("saved " + suppressor.savedBytes(), suppressor.savedBytes() > frames.length * AudioCodec.FRAME_BYTES / 4);
+        System.out.println("SilenceSuppressor: " + suppressor.capturedFrames() + " frames, sent "
+                + suppressor.sentFrames() + ", comfort noise " + suppressor.comfortNoiseFrames()
+                + ", skipped " + suppressor.skippedFrames() + ", saved " + suppressor.savedBytes() + " bytes");
+    }
+
+    @Test
+    public void comfortNoiseMatchesLevel() {
+        int level = 40;
+        byte[] noise = SilenceSuppressor.comfortNoise(level, AudioCodec.FRAME_BYTES, 7);
+        double sum = 0;
+        for (int i = 0; i < AudioCodec.FRAME_SAMPLES; i++) {
+            int sample = (short) ((noise[2 * i] & 0xff) | (noise[2 * i + 1] << 8));
+            sum += (double) sample * sample;
+        }
+        double rmsDb = 10 * Math.log10(sum / AudioCodec.FRAME_SAMPLES / (32768.0 * 32768.0));
+        assertEquals(-level, rmsDb, 3.0);
+        assertEquals(0, SilenceSuppressor.comfortNoise(127, AudioCodec.FRAME_BYTES, 1)[0]);
+    }
+}
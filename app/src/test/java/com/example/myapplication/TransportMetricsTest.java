@@ -0,0 +1,157 @@
+package com.example.myapplication;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class TransportMetricsTest {
+
+    private final List<Transport> transports = new ArrayList<>();
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void tearDown() {
+        for (Transport transport : transports) {
+            transport.shutdown();
+        }
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void bucketsCoverEveryValueWithinQuarter() {
+        for (long value = 0; value < 1_000_000; value += value < 100 ? 1 : 97) {
+            int bucket = TransportMetrics.Histogram.bucketOf(value);
+            long upper = TransportMetrics.Histogram.upperBound(bucket);
+            assertTrue(value <= upper);
+            assertTrue(bucket == 0 || value > TransportMetrics.Histogram.upperBound(bucket - 1));
+            assertTrue(upper - value <= value / 4 + 1);
+        }
+        assertEquals(TransportMetrics.Histogram.BUCKETS - 1, TransportMetrics.Histogram.bucketOf(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void percentilesFollowRecordedDistribution() {
+        TransportMetrics.Histogram histogram = new TransportMetrics.Histogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        TransportMetrics.HistogramSnapshot snapshot = histogram.snapshot();
+        assertEquals(1000, snapshot.count);
+        assertEquals(500, snapshot.mean);
+        assertEquals(1000, snapshot.max);
+        assertTrue(snapshot.p50 >= 500 && snapshot.p50 <= 625);
+        assertTrue(snapshot.p99 >= 990 && snapshot.p99 <= 1000);
+    }
+
+    // 基準測試：多執行緒同時記錄不會遺失計數，並印出每次記錄的成本
+    @Test
+    public void concurrentRecordingLosesNothing() throws InterruptedException {
+        TransportMetrics metrics = new TransportMetrics();
+        Frame frame = Frame.voice(1, 1, new byte[100]);
+        int threads = 4;
+        int perThread = 200_000;
+        Thread[] workers = new Thread[threads];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads; t++) {
+            workers[t] = new Thread(() -> {
+                for (int i = 0; i < perThread; i++) {
+                    metrics.onFrameReceived(frame, 114);
+                    metrics.onWriteStall(i);
+                }
+            });
+            workers[t].start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        long elapsed = System.nanoTime() - start;
+        long total = (long) threads * perThread;
+        System.out.println("TransportMetrics: " + elapsed / (total * 2) + " ns per record, " + threads + " threads");
+        assertEquals(total, metrics.receivedFrames(Frame.TYPE_VOICE));
+        assertEquals(total * 114, metrics.receivedBytes(Frame.TYPE_VOICE));
+        assertEquals(total, metrics.writeStallMicros().count());
+    }
+
+    @Test
+    public void transportsCountFramesPerType() throws Exception {
+        TransportMetrics serverMetrics = new TransportMetrics();
+        TransportMetrics clientMetrics = new TransportMetrics();
+        NioTransport server = new NioTransport(new FrameCodec(), serverMetrics);
+        RecordingListener serverListener = new RecordingListener();
+        server.setListener(serverListener);
+        transports.add(server);
+        int port = server.startServer(0);
+        BlockingTransport client = new BlockingTransport(executor, new FrameCodec(), clientMetrics);
+        client.setListener(new RecordingListener());
+        transports.add(client);
+
+        Transport.Connection connection = client.connect("127.0.0.1", port);
+        connection.send(Frame.text("hello"));
+        for (int i = 0; i < 10; i++) {
+            connection.send(Frame.voice(1, i, new byte[320]));
+        }
+        for (int i = 0; i < 11; i++) {
+            serverListener.next();
+        }
+
+        long textBytes = FrameCodec.wireSize(Frame.text("hello"));
+        long voiceBytes = 10 * FrameCodec.wireSize(Frame.voice(1, 0, new byte[320]));
+        assertEquals(1, serverMetrics.receivedFrames(Frame.TYPE_TEXT));
+        assertEquals(textBytes, serverMetrics.receivedBytes(Frame.TYPE_TEXT));
+        assertEquals(10, serverMetrics.receivedFrames(Frame.TYPE_VOICE));
+        assertEquals(voiceBytes, serverMetrics.receivedBytes(Frame.TYPE_VOICE));
+        assertEquals(10, clientMetrics.sentFrames(Frame.TYPE_VOICE));
+        assertEquals(voiceBytes, clientMetrics.sentBytes(Frame.TYPE_VOICE));
+        TransportMetrics.Snapshot snapshot = clientMetrics.snapshot();
+        assertEquals(11, snapshot.queueDelay.count);
+        assertEquals(10, snapshot.voiceQueueDelay.count);
+        assertEquals(textBytes + voiceBytes, snapshot.totalSentBytes());
+    }
+
+    @Test
+    public void malformedStreamCountsDecodeError() throws Exception {
+        TransportMetrics metrics = new TransportMetrics();
+        NioTransport server = new NioTransport(new FrameCodec(), metrics);
+        RecordingListener listener = new RecordingListener();
+        server.setListener(listener);
+        transports.add(server);
+        int port = server.startServer(0);
+        try (Socket socket = new Socket("127.0.0.1", port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(new byte[32]);
+            out.flush();
+            assertNotNull(listener.disconnected.poll(5, TimeUnit.SECONDS));
+        }
+        assertEquals(1, metrics.decodeErrors());
+    }
+
+    @Test
+    public void snapshotReadsGaugesAndDumps() throws IOException {
+        TransportMetrics metrics = new TransportMetrics();
+        long[] depth = {3};
+        metrics.registerGauge("queued frames", () -> depth[0]);
+        metrics.onRtt(TimeUnit.MILLISECONDS.toNanos(40));
+        metrics.onVoicePlayed(60, 20);
+        depth[0] = 7;
+        TransportMetrics.Snapshot snapshot = metrics.snapshot();
+        assertEquals(7, snapshot.gauge("queued frames"));
+        assertEquals(-1, snapshot.gauge("missing"));
+        // 20 ms 擷取 + 60 ms 緩衝 + 單程 20 ms
+        assertEquals(TimeUnit.MILLISECONDS.toMicros(100), snapshot.voiceLatency.max);
+        String dump = metrics.dump();
+        assertTrue(dump.contains("queued frames: 7"));
+        assertTrue(dump.contains("rtt: n=1"));
+    }
+}
@@ -0,0 +1,129 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class VoiceActivityDetectorTest {
+
+    // utterance 的內容 (以 20 ms 封包計)：
+    // 0-29 靜音、30-69 有聲、70-94 停頓、95-104 摩擦音、105-129 有聲、130-159 靜音
+    static final String UTTERANCE = "/vad/utterance_8k_s16le.pcm";
+    static final String SILENCE = "/vad/silence_8k_s16le.pcm";
+
+    static byte[][] loadFrames(String resource) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (InputStream in = VoiceActivityDetectorTest.class.getResourceAsStream(resource)) {
+            assertNotNull("missing fixture " + resource, in);
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+            }
+        }
+        byte[] pcm = out.toByteArray();
+        byte[][] frames = new byte[pcm.length / AudioCodec.FRAME_BYTES][];
+        for (int i = 0; i < frames.length; i++) {
+            frames[i] = Arrays.copyOfRange(pcm, i * AudioCodec.FRAME_BYTES, (i + 1) * AudioCodec.FRAME_BYTES);
+        }
+        return frames;
+    }
+
+    private static boolean[] classify(byte[][] frames) {
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        boolean[] speech = new boolean[frames.length];
+        for (int i = 0; i < frames.length; i++) {
+            speech[i] = detector.isSpeech(frames[i]);
+        }
+        return speech;
+    }
+
+    private static int count(boolean[] speech, int from, int to) {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            if (speech[i]) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    @Test
+    public void leadingAndTrailingSilenceIsNotSpeech() throws IOException {
+        boolean[] speech = classify(loadFrames(UTTERANCE));
+        assertEquals(160, speech.length);
+        assertEquals(0, count(speech, 0, 30));
+        // 字尾延長之後就是靜音
+        int trailingStart = 130 + VoiceActivityDetector.HANGOVER_FRAMES;
+        assertEquals(0, count(speech, trailingStart, 160));
+    }
+
+    @Test
+    public void voicedSegmentsAreSpeech() throws IOException {
+        boolean[] speech = classify(loadFrames(UTTERANCE));
+        // 有聲段的頭尾振幅漸弱，中間部分必須全部判為語音
+        assertEquals(30, count(speech, 35, 65));
+        assertEquals(15, count(speech, 110, 125));
+    }
+
+    @Test
+    public void fricativeIsCaughtByZeroCrossings() throws IOException {
+        byte[][] frames = loadFrames(UTTERANCE);
+        boolean[] speech = classify(frames);
+        assertTrue(count(speech, 95, 105) >= 8);
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        for (int i = 0; i < 100; i++) {
+            detector.isSpeech(frames[i]);
+        }
+        assertTrue(detector.lastZeroCrossingRate() > VoiceActivityDetector.FRICATIVE_ZCR);
+    }
+
+    @Test
+    public void pauseEndsAfterHangover() throws IOException {
+        boolean[] speech = classify(loadFrames(UTTERANCE));
+        int pauseStart = 70 + VoiceActivityDetector.HANGOVER_FRAMES + 2;
+        assertEquals(0, count(speech, pauseStart, 95));
+    }
+
+    @Test
+    public void backgroundNoiseStaysSilent() throws IOException {
+        byte[][] frames = loadFrames(SILENCE);
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        for (byte[] frame : frames) {
+            assertFalse(detector.isSpeech(frame));
+        }
+        // 約 60 的噪音振幅 ≈ -55 dBov
+        assertTrue(detector.noiseLevelDbov() > 45 && detector.noiseLevelDbov() < 65);
+    }
+
+    // 每個封包都要跑，確認成本遠低於 20 ms
+    @Test
+    public void benchmarkPerFrameCost() throws IOException {
+        byte[][] frames = loadFrames(UTTERANCE);
+        VoiceActivityDetector detector = new VoiceActivityDetector();
+        int speech = 0;
+        for (int i = 0; i < 50_000; i++) {
+            if (detector.isSpeech(frames[i % frames.length])) {
+                speech++;
+            }
+        }
+        int iterations = 200_000;
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            if (detector.isSpeech(frames[i % frames.length])) {
+                speech++;
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.println(String.format("VoiceActivityDetector: %.0f ns/frame", (double) elapsed / iterations));
+        assertTrue(speech > 0);
+    }
+}
@@ -0,0 +1,58 @@
+package com.example.myapplication;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WavClipWriterTest {
+
+    @Test
+    public void writesHeaderWithFinalLengths() throws IOException {
+        File file = File.createTempFile("clip", ".wav");
+        File[] result = new File[1];
+        long[] duration = new long[1];
+        WavClipWriter writer = new WavClipWriter(file, AudioCodec.SAMPLE_RATE, (f, ms) -> {
+            result[0] = f;
+            duration[0] = ms;
+        });
+        // 一秒 = 50 個 20 ms 封包
+        for (int i = 0; i < 50; i++) {
+            byte[] frame = new byte[AudioCodec.FRAME_BYTES];
+            frame[0] = (byte) i;
+            writer.onFrame(frame);
+        }
+        writer.onEnd();
+
+        assertEquals(file, result[0]);
+        assertEquals(1000, duration[0]);
+        byte[] bytes = Files.readAllBytes(file.toPath());
+        int dataBytes = 50 * AudioCodec.FRAME_BYTES;
+        assertEquals(WavClipWriter.HEADER_BYTES + dataBytes, bytes.length);
+        ByteBuffer header = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        assertEquals("RIFF", new String(bytes, 0, 4, "US-ASCII"));
+        assertEquals(bytes.length - 8, header.getInt(4));
+        assertEquals(AudioCodec.SAMPLE_RATE, header.getInt(24));
+        assertEquals(16, header.getShort(34));
+        assertEquals(dataBytes, header.getInt(40));
+        assertEquals(7, bytes[WavClipWriter.HEADER_BYTES + 7 * AudioCodec.FRAME_BYTES]);
+        assertEquals("wav", WavClipWriter.extensionOf(file));
+        file.delete();
+    }
+
+    @Test
+    public void emptyTakeProducesNoClip() throws IOException {
+        File file = File.createTempFile("clip", ".wav");
+        File[] result = {file};
+        new WavClipWriter(file, AudioCodec.SAMPLE_RATE, (f, ms) -> result[0] = f).onEnd();
+        assertNull(result[0]);
+        assertEquals("3gp", WavClipWriter.extensionOf(file));
+        file.delete();
+    }
+}